@@ -1,6 +1,6 @@
 package m13;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Subclass of Element. Represents animals, e.g. preys and predators.
@@ -9,33 +9,104 @@ import java.util.Random;
  */
 public class Animal extends Element {
 
-	/** Age of the animal */
-	private int age;
+	/** Clock of the simulation, null for an animal out of any simulation */
+	private Clock clock;
+
+	/** Update of the scheduled death of the animal, see DeathWheel */
+	private int deathUpdate = DeathWheel.NONE;
+
+	/** Index of the animal in its list of the DeathWheel, if scheduled */
+	private int deathIndex;
 
 	/**
-	 * Boolean representing if the animal has reproduced during the current update
-	 * or not (true if it has, false if it hasn't) x
+	 * Creates a new animal at (x, y), in a new slot of the store.
+	 * 
+	 * The store holds the speed of the animal, whether it ate a plant in the
+	 * last update and three stamps of the clock : the age counter when the
+	 * animal was born (its age is the number of times the ages grew since, see
+	 * Clock), the age counter when it reproduced (it has reproduced during the
+	 * current update if the ages didn't grow since) and the hunger counter when
+	 * it last ate (its lastate is the number of times the lastates grew since ;
+	 * for an animal whose hunger doesn't grow, the lastate itself).
+	 * 
+	 * @param store
+	 *            The store of the simulation of the animal
+	 * 
+	 * @param x
+	 *            The x coordinate of the animal
+	 * 
+	 * @param y
+	 *            The y coordinate of the animal
 	 */
-	private boolean hasReproduced;
-
-	/** Integer representing how long it has been since the animal ate x */
-	private int lastate;
+	public Animal(EntityStore store, double x, double y) {
+		super(store, x, y);
+		store.setBirth(slot, 0);
+		store.setReproduced(slot, -1);
+		store.setMeal(slot, 0);
+		store.setSpeed(slot, Simulation.SPEED);
+		store.setFlag(slot, EntityStore.ATE_PLANT, false);
+	}
 
-	/** Speed of the animal */
-	private double speed;
+	/**
+	 * Brings a pooled animal back to the state of a newborn at (x, y)
+	 * 
+	 * @param x
+	 *            The x coordinate of the animal
+	 * 
+	 * @param y
+	 *            The y coordinate of the animal
+	 */
+	public void reset(double x, double y) {
+		this.resetPos(x, y);
+		this.setSpeed(Simulation.SPEED);
+		this.setAtePlant(false);
+		this.setHasReproduced(false);
+		this.setLastate(0);
+		this.setAge(0);
+	}
 
-	/** Boolean representing if the animal ate a plant in the last update */
-	private boolean atePlant;
+	/**
+	 * Makes the animal live by the clock of a simulation, keeping its age, its
+	 * lastate and whether it reproduced
+	 * 
+	 * @param clock
+	 *            The clock of the simulation
+	 */
+	public void setClock(Clock clock) {
+		int age = getAge();
+		int lastate = getLastate();
+		boolean hasReproduced = getHasReproduced();
+		this.clock = clock;
+		setHasReproduced(hasReproduced);
+		setLastate(lastate);
+		setAge(age);
+	}
 
 	/**
-	 * Creates a new animal
+	 * Takes the speed, the age, the lastate and the flags of an animal saved in
+	 * another store, such as a Checkpoint, keeping its own position
+	 * 
+	 * @param saved
+	 *            The store holding the saved animal
+	 * 
+	 * @param savedSlot
+	 *            The slot of the saved animal
+	 * 
+	 * @param ages
+	 *            The age counter of the clock the stamps of the saved animal
+	 *            refer to
+	 * 
+	 * @param hunger
+	 *            The hunger counter of the clock the stamps of the saved animal
+	 *            refer to
 	 */
-	public Animal() {
-		this.age = 0;
-		this.hasReproduced = false;
-		this.lastate = 0;
-		this.speed = Simulation.SPEED;
-		this.atePlant = false;
+	public void restore(EntityStore saved, int savedSlot, int ages, int hunger) {
+		int meal = saved.getMeal(savedSlot);
+		setSpeed(saved.getSpeed(savedSlot));
+		setAtePlant(saved.getFlag(savedSlot, EntityStore.ATE_PLANT));
+		setHasReproduced(saved.getReproduced(savedSlot) == ages);
+		setLastate(getsHungry() ? hunger - meal : meal);
+		setAge(ages - saved.getBirth(savedSlot));
 	}
 
 	/**
@@ -44,7 +115,7 @@ public class Animal extends Element {
 	 * @return The age of the animal
 	 */
 	public int getAge() {
-		return this.age;
+		return ages() - store.getBirth(slot);
 	}
 
 	/**
@@ -53,7 +124,7 @@ public class Animal extends Element {
 	 * @return The attribute hasReproduced
 	 */
 	public boolean getHasReproduced() {
-		return this.hasReproduced;
+		return store.getReproduced(slot) == ages();
 	}
 
 	/**
@@ -62,7 +133,8 @@ public class Animal extends Element {
 	 * @return The attribute lastate
 	 */
 	public int getLastate() {
-		return this.lastate;
+		int meal = store.getMeal(slot);
+		return getsHungry() ? hunger() - meal : meal;
 	}
 
 	/**
@@ -71,7 +143,7 @@ public class Animal extends Element {
 	 * @return The speed of the animal
 	 */
 	public double getSpeed() {
-		return this.speed;
+		return store.getSpeed(slot);
 	}
 
 	/**
@@ -80,7 +152,7 @@ public class Animal extends Element {
 	 * @return The atePlant boolean
 	 */
 	public boolean getAtePlant() {
-		return this.atePlant;
+		return store.getFlag(slot, EntityStore.ATE_PLANT);
 	}
 
 	/**
@@ -90,7 +162,8 @@ public class Animal extends Element {
 	 *            The age of the animal
 	 */
 	public void setAge(int age) {
-		this.age = age;
+		store.setBirth(slot, ages() - age);
+		schedule();
 	}
 
 	/**
@@ -100,7 +173,7 @@ public class Animal extends Element {
 	 *            Represents whether or not the animal has reproduced this update
 	 */
 	public void setHasReproduced(boolean hasReproduced) {
-		this.hasReproduced = hasReproduced;
+		store.setReproduced(slot, hasReproduced ? ages() : ages() - 1);
 	}
 
 	/**
@@ -110,7 +183,116 @@ public class Animal extends Element {
 	 *            The last time the animal ate
 	 */
 	public void setLastate(int lastate) {
-		this.lastate = lastate;
+		store.setMeal(slot, getsHungry() ? hunger() - lastate : lastate);
+		schedule();
+	}
+
+	/**
+	 * Returns the first update whose death check will find the animal too old
+	 * or too hungry, if its age and lastate keep growing
+	 * 
+	 * @return The update of the death of the animal
+	 */
+	public long getDeathUpdate() {
+		int meal = store.getMeal(slot);
+		long hungry;
+		if (getsHungry()) {
+			hungry = deathAfter(meal, getMaxLastate());
+		} else {
+			hungry = meal > getMaxLastate() ? 0 : Long.MAX_VALUE;
+		}
+		return Math.min(deathAfter(store.getBirth(slot), getMaxAge()), hungry);
+	}
+
+	/**
+	 * Returns the update of the death scheduled in the DeathWheel of the clock
+	 * 
+	 * @return The update of the death, DeathWheel.NONE if none is scheduled
+	 */
+	public int getScheduledDeath() {
+		return this.deathUpdate;
+	}
+
+	/**
+	 * Sets the update of the death scheduled in the DeathWheel of the clock
+	 * 
+	 * @param deathUpdate
+	 *            The update of the death, DeathWheel.NONE if none is scheduled
+	 */
+	void setDeathUpdate(int deathUpdate) {
+		this.deathUpdate = deathUpdate;
+	}
+
+	/**
+	 * Returns the index of the animal in its list of the DeathWheel
+	 * 
+	 * @return The index, meaningless if no death is scheduled
+	 */
+	int getDeathIndex() {
+		return this.deathIndex;
+	}
+
+	/**
+	 * Sets the index of the animal in its list of the DeathWheel
+	 * 
+	 * @param deathIndex
+	 *            The index
+	 */
+	void setDeathIndex(int deathIndex) {
+		this.deathIndex = deathIndex;
+	}
+
+	/**
+	 * Returns the age above which the animal dies
+	 * 
+	 * @return The maximum age
+	 */
+	protected double getMaxAge() {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Returns the lastate above which the animal dies
+	 * 
+	 * @return The maximum lastate
+	 */
+	protected double getMaxLastate() {
+		return Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Tells if the lastate of the animal grows at every update
+	 * 
+	 * @return True if the animal gets hungry
+	 */
+	protected boolean getsHungry() {
+		return true;
+	}
+
+	/**
+	 * Returns the first update whose death check finds a value counted from a
+	 * stamp above max. The counters of the clock are u - 1 during the death
+	 * check of update u, so the value is then u - 1 - stamp.
+	 */
+	private static long deathAfter(int stamp, double max) {
+		if (max >= Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return stamp + (long) Math.floor(max) + 2;
+	}
+
+	private int ages() {
+		return clock == null ? 0 : clock.getAges();
+	}
+
+	private int hunger() {
+		return clock == null ? 0 : clock.getHunger();
+	}
+
+	private void schedule() {
+		if (clock != null) {
+			clock.schedule(this);
+		}
 	}
 
 	/**
@@ -120,7 +302,7 @@ public class Animal extends Element {
 	 *            The speed of the animal
 	 */
 	public void setSpeed(double speed) {
-		this.speed = speed;
+		store.setSpeed(slot, speed);
 	}
 
 	/**
@@ -131,7 +313,7 @@ public class Animal extends Element {
 	 *            update
 	 */
 	public void setAtePlant(boolean atePlant) {
-		this.atePlant = atePlant;
+		store.setFlag(slot, EntityStore.ATE_PLANT, atePlant);
 	}
 
 	/**
@@ -146,16 +328,15 @@ public class Animal extends Element {
 
 		boolean gotOut = false;
 
-		Random rand = new Random();
-		double theta = 2 * Math.PI * rand.nextDouble();
-		double x = this.getPos().get(this.getPos().size() - 1).getX() + d * Math.cos(theta);
-		double y = this.getPos().get(this.getPos().size() - 1).getY() + d * Math.sin(theta);
+		double theta = 2 * Math.PI * ThreadLocalRandom.current().nextDouble();
+		double x = this.getX() + d * Math.cos(theta);
+		double y = this.getY() + d * Math.sin(theta);
 
 		if ((x > Simulation.SPACE_SIZE) || (x < 0) || (y > Simulation.SPACE_SIZE) || (y < 0)) {
 			gotOut = true;
 		}
 
-		this.addPos(new Position(x, y));
+		this.moveTo(x, y);
 
 		return gotOut;
 
@@ -177,14 +358,14 @@ public class Animal extends Element {
 
 		boolean gotOut = false;
 
-		double x = this.getPos().get(this.getPos().size() - 1).getX() + d * Math.cos(theta);
-		double y = this.getPos().get(this.getPos().size() - 1).getY() + d * Math.sin(theta);
+		double x = this.getX() + d * Math.cos(theta);
+		double y = this.getY() + d * Math.sin(theta);
 
 		if ((x > Simulation.SPACE_SIZE) || (x < 0) || (y > Simulation.SPACE_SIZE) || (y < 0)) {
 			gotOut = true;
 		}
 
-		this.addPos(new Position(x, y));
+		this.moveTo(x, y);
 
 		return gotOut;
 
@@ -205,22 +386,16 @@ public class Animal extends Element {
 	 * @param a
 	 *            The other animal to reproduce with
 	 * 
+	 * @param alpha
+	 *            The reproduction probability of their species
+	 * 
 	 * @return A boolean checking if the two animals can reproduce
 	 */
-	public boolean isReproductionPossible(Animal a) {
-		if ((this.getPos().get(this.getPos().size() - 1).withinRange(a.getPos().get(a.getPos().size() - 1),
-				Simulation.REPROD)) && (!this.hasReproduced) && (!a.hasReproduced) && (this.age > Simulation.REPROD_AGE)
-				&& (a.age > Simulation.REPROD_AGE)) {
-
-			Random rand = new Random();
-			double alpha;
-
-			if (((Animal) a).getType().equals("prey")) {
-				alpha = Simulation.ALPHA_PREY;
-			} else {
-				alpha = Simulation.ALPHA_PRED;
-			}
-			if (rand.nextDouble() < alpha) {
+	public boolean isReproductionPossible(Animal a, double alpha) {
+		if ((Position.withinRange(this.getX(), this.getY(), a.getX(), a.getY(), Simulation.REPROD))
+				&& (!this.getHasReproduced()) && (!a.getHasReproduced()) && (this.getAge() > Simulation.REPROD_AGE)
+				&& (a.getAge() > Simulation.REPROD_AGE)) {
+			if (ThreadLocalRandom.current().nextDouble() < alpha) {
 				return true;
 			} else {
 				return false;
@@ -242,8 +417,7 @@ public class Animal extends Element {
 	 * @return A boolean checking if this animal can eat element e
 	 */
 	public boolean edible(Element e) {
-		if (this.getPos().get(this.getPos().size() - 1).withinRange(e.getPos().get(e.getPos().size() - 1),
-				Simulation.PRED)) {
+		if (Position.withinRange(this.getX(), this.getY(), e.getX(), e.getY(), Simulation.PRED)) {
 			return true;
 		} else {
 			return false;
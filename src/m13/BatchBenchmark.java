@@ -0,0 +1,79 @@
+package m13;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the throughput of a sweep of small worlds run as one Simulation per
+ * world with the same sweep run by BatchedWorlds, in elements updated per
+ * second on one thread.
+ *
+ * With "objects", every world is a Simulation with its embedded server, the
+ * worlds being updated in turn. With "batched", all of them are in one
+ * BatchedWorlds. Both print the mean populations at the end, which must be
+ * close since the rules are the same.
+ *
+ * Usage: java m13.BatchBenchmark batched|objects [<worlds> [<elements> [<ticks>]]]
+ */
+public class BatchBenchmark {
+
+	public static void main(String[] args) {
+		String mode = args.length > 0 ? args[0] : "batched";
+		int worlds = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int nbElements = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+		int nbTicks = args.length > 3 ? Integer.parseInt(args[3]) : 600;
+
+		// must be set before the Simulation class is initialized
+		System.setProperty("m13.transport", "inprocess");
+		System.setProperty("m13.verbose", "false");
+
+		long updated = 0;
+		double preys = 0;
+		double predators = 0;
+		int alive = 0;
+		long t0 = System.nanoTime();
+		if (mode.equals("batched")) {
+			BatchedWorlds batch = new BatchedWorlds(worlds, nbElements, nbTicks, System.nanoTime());
+			while (batch.getRunning() > 0) {
+				updated += batch.getSize();
+				batch.tick();
+			}
+			for (int w = 0; w < worlds; w++) {
+				if (batch.getPreys(w) + batch.getPredators(w) > 0) {
+					alive++;
+				}
+				preys += batch.getPreys(w);
+				predators += batch.getPredators(w);
+			}
+		} else {
+			ArrayList<Simulation> simulations = new ArrayList<Simulation>();
+			for (int w = 0; w < worlds; w++) {
+				simulations.add(new Simulation(nbElements));
+			}
+			t0 = System.nanoTime();
+			for (int t = 0; t < nbTicks; t++) {
+				for (Simulation simulation : simulations) {
+					if (simulation.getPreys() + simulation.getPredators() > 0) {
+						updated += simulation.getElements().size();
+						simulation.update();
+					}
+				}
+			}
+			for (Simulation simulation : simulations) {
+				if (simulation.getPreys() + simulation.getPredators() > 0) {
+					alive++;
+				}
+				preys += simulation.getPreys();
+				predators += simulation.getPredators();
+				simulation.close();
+			}
+		}
+		long elapsed = System.nanoTime() - t0;
+
+		System.out.printf("mode=%s worlds=%d elements=%d ticks=%d%n", mode, worlds, nbElements, nbTicks);
+		System.out.printf("time: %.0f ms, %.1f ns/element, %.2f M elements/s%n", elapsed / 1e6,
+				(double) elapsed / updated, updated * 1e3 / elapsed);
+		System.out.printf("at the end: %.1f preys, %.1f predators per world, %d worlds alive%n", preys / worlds,
+				predators / worlds, alive);
+	}
+
+}
@@ -0,0 +1,727 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Many small independent worlds advanced together, for parameter sweeps : the
+ * elements of all the worlds are stored in one set of arrays (structure of
+ * arrays) with a world id column, instead of one Simulation per world with
+ * its own lists, objects and connection.
+ *
+ * The elements of a world are contiguous and the worlds are in order, so
+ * that a tick walks the store once. Each world is copied into scratch arrays
+ * (a few hundred elements, which stay in the caches), updated there with the
+ * rules of the Simulation, and written back into the next store ; the two
+ * stores are then swapped. Every world has its own random number generator,
+ * seeded from the seed of the batch and its id, so that a world evolves the
+ * same whatever the other worlds of the batch. A world stops when it reaches
+ * its number of ticks or when its animals are extinct ; its elements are then
+ * dropped from the store, and only its counts remain.
+ *
+ * The rules are those of an update of the Simulation with the default
+ * settings : discrete plants, chasing predators and fleeing preys, and the
+ * exiting animals coming back on the opposite side, as the server does. The
+ * animals are not objects, so a world never allocates once the arrays are
+ * large enough.
+ */
+public class BatchedWorlds {
+
+	/** Kinds of elements */
+	public static final byte PREY = 0;
+	public static final byte PREDATOR = 1;
+	public static final byte PLANT = 2;
+
+	private static final int KINDS = 3;
+
+	/**
+	 * Cells of the index of the neighbours of a world, PRED wide. Like the
+	 * SpatialIndex, the index sees the world as a torus.
+	 */
+	private static final int CELL = Simulation.PRED;
+	private static final int SIDE = (Simulation.SPACE_SIZE + CELL - 1) / CELL;
+	private static final int CELLS = SIDE * SIDE;
+
+	/** Claim of a target nobody reached */
+	private static final int NONE = Integer.MAX_VALUE;
+
+	private final int worlds;
+
+	/** Per-world columns */
+	private final long[] random;
+	private final int[] ticks;
+	private final int[] limits;
+	private final boolean[] terminated;
+	private final int[] nbPreys;
+	private final int[] nbPredators;
+	private final int[] nbPlants;
+	private int running;
+
+	/** Store of the elements of all the worlds, world w in [start[w], start[w + 1]) */
+	private Store store;
+	private Store next;
+	private final int[] start;
+	private final int[] nextStart;
+
+	/** Scratch columns of the world being updated */
+	private byte[] kind = new byte[256];
+	private double[] x = new double[256];
+	private double[] y = new double[256];
+	private double[] heading = new double[256];
+	private int[] age = new int[256];
+	private int[] lastate = new int[256];
+	private boolean[] atePlant = new boolean[256];
+	private boolean[] reproduced = new boolean[256];
+	private boolean[] eaten = new boolean[256];
+	private int[] claim = new int[256];
+
+	/** Positions before the movement, seen by the animals */
+	private double[] seenX = new double[256];
+	private double[] seenY = new double[256];
+
+	/** Elements sorted by kind and cell, kind k and cell c in [first[k CELLS + c], first[k CELLS + c + 1]) */
+	private final int[] first = new int[KINDS * CELLS + 1];
+	private int[] sorted = new int[256];
+	private int[] keys = new int[256];
+
+	/** Elements found by the last gather() */
+	private int[] hits = new int[64];
+
+	/** Closest animal found by the last closest() */
+	private int found;
+
+	/**
+	 * Columns of the elements of all the worlds
+	 */
+	private static class Store {
+		private int size;
+		private int[] world;
+		private byte[] kind;
+		private double[] x;
+		private double[] y;
+		private double[] heading;
+		private int[] age;
+		private int[] lastate;
+		private boolean[] atePlant;
+
+		private Store(int capacity) {
+			world = new int[capacity];
+			kind = new byte[capacity];
+			x = new double[capacity];
+			y = new double[capacity];
+			heading = new double[capacity];
+			age = new int[capacity];
+			lastate = new int[capacity];
+			atePlant = new boolean[capacity];
+		}
+
+		private void ensure(int capacity) {
+			if (capacity > world.length) {
+				int c = Math.max(capacity, 2 * world.length);
+				world = Arrays.copyOf(world, c);
+				kind = Arrays.copyOf(kind, c);
+				x = Arrays.copyOf(x, c);
+				y = Arrays.copyOf(y, c);
+				heading = Arrays.copyOf(heading, c);
+				age = Arrays.copyOf(age, c);
+				lastate = Arrays.copyOf(lastate, c);
+				atePlant = Arrays.copyOf(atePlant, c);
+			}
+		}
+	}
+
+	/**
+	 * Creates a batch of worlds, each populated like a new Simulation
+	 *
+	 * @param worlds
+	 *            The number of worlds
+	 *
+	 * @param nbElements
+	 *            The number of elements of each world
+	 *
+	 * @param nbTicks
+	 *            The number of ticks after which a world stops
+	 *
+	 * @param seed
+	 *            The seed of the batch, world w using its own generator seeded
+	 *            from seed and w
+	 */
+	public BatchedWorlds(int worlds, int nbElements, int nbTicks, long seed) {
+		this.worlds = worlds;
+		random = new long[worlds];
+		ticks = new int[worlds];
+		limits = new int[worlds];
+		terminated = new boolean[worlds];
+		nbPreys = new int[worlds];
+		nbPredators = new int[worlds];
+		nbPlants = new int[worlds];
+		start = new int[worlds + 1];
+		nextStart = new int[worlds + 1];
+		store = new Store(worlds * nbElements);
+		next = new Store(worlds * nbElements);
+		running = worlds;
+
+		int s = Simulation.SPACE_SIZE;
+		int half = s / 2;
+		for (int w = 0; w < worlds; w++) {
+			random[w] = mix(seed + w * 0x9E3779B97F4A7C15L);
+			limits[w] = nbTicks;
+			start[w] = store.size;
+			// the predators in a corner and the preys in the other one
+			int animals = nbElements / 2 - 10;
+			for (int i = 0; i < animals; i++) {
+				append(store, w, PREDATOR, half + half * nextDouble(w), half + half * nextDouble(w));
+			}
+			for (int i = 0; i < animals; i++) {
+				append(store, w, PREY, half * nextDouble(w), half * nextDouble(w));
+			}
+			for (int i = 2 * animals; i < nbElements; i++) {
+				append(store, w, PLANT, s * nextDouble(w), s * nextDouble(w));
+			}
+			count(w, store, start[w], store.size);
+		}
+		start[worlds] = store.size;
+	}
+
+	/**
+	 * Advances every running world by one tick
+	 *
+	 * @return True if worlds are still running
+	 */
+	public boolean tick() {
+		next.size = 0;
+		for (int w = 0; w < worlds; w++) {
+			nextStart[w] = next.size;
+			if (!terminated[w]) {
+				step(w);
+			}
+		}
+		nextStart[worlds] = next.size;
+
+		Store swap = store;
+		store = next;
+		next = swap;
+		System.arraycopy(nextStart, 0, start, 0, worlds + 1);
+		return running > 0;
+	}
+
+	/**
+	 * Returns the number of worlds of the batch
+	 *
+	 * @return The number of worlds
+	 */
+	public int getWorlds() {
+		return worlds;
+	}
+
+	/**
+	 * Returns the number of worlds still running
+	 *
+	 * @return The number of worlds not terminated
+	 */
+	public int getRunning() {
+		return running;
+	}
+
+	/**
+	 * Returns the number of elements of the running worlds
+	 *
+	 * @return The size of the store
+	 */
+	public int getSize() {
+		return store.size;
+	}
+
+	/**
+	 * Tells if a world stopped
+	 *
+	 * @param w
+	 *            The world
+	 *
+	 * @return True if the world reached its number of ticks or its animals are
+	 *         extinct
+	 */
+	public boolean isTerminated(int w) {
+		return terminated[w];
+	}
+
+	/**
+	 * Returns the number of ticks of a world
+	 *
+	 * @param w
+	 *            The world
+	 *
+	 * @return The number of ticks done
+	 */
+	public int getTicks(int w) {
+		return ticks[w];
+	}
+
+	/**
+	 * Returns the number of preys of a world
+	 *
+	 * @param w
+	 *            The world
+	 *
+	 * @return The number of preys after the last tick of the world
+	 */
+	public int getPreys(int w) {
+		return nbPreys[w];
+	}
+
+	/**
+	 * Returns the number of predators of a world
+	 *
+	 * @param w
+	 *            The world
+	 *
+	 * @return The number of predators after the last tick of the world
+	 */
+	public int getPredators(int w) {
+		return nbPredators[w];
+	}
+
+	/**
+	 * Returns the number of plants of a world
+	 *
+	 * @param w
+	 *            The world
+	 *
+	 * @return The number of plants after the last tick of the world
+	 */
+	public int getPlants(int w) {
+		return nbPlants[w];
+	}
+
+	/**
+	 * Updates world w in the scratch columns and writes it in the next store
+	 */
+	private void step(int w) {
+		int n = load(w);
+
+		// Spawns alive/50 new plants every PLANT updates, counted from 1
+		if ((ticks[w] + 1) % Simulation.PLANT == 0) {
+			int plants = n / 50;
+			ensure(n + plants);
+			for (int i = 0; i < plants; i++) {
+				born(n++, PLANT, Simulation.SPACE_SIZE * nextDouble(w), Simulation.SPACE_SIZE * nextDouble(w));
+			}
+		}
+
+		move(w, n);
+		feed(n);
+
+		int preys = 0;
+		int predators = 0;
+		for (int i = 0; i < n; i++) {
+			if (!eaten[i] && kind[i] != PLANT) {
+				lastate[i]++;
+				if (kind[i] == PREY) {
+					preys++;
+				} else {
+					predators++;
+				}
+			}
+		}
+
+		n = mate(w, n, Math.exp(-0.016 * preys), Math.exp(-0.008 * predators));
+
+		ticks[w]++;
+		store(w, n);
+		if (ticks[w] >= limits[w] || nbPreys[w] + nbPredators[w] == 0) {
+			terminated[w] = true;
+			running--;
+			next.size = nextStart[w];
+		}
+	}
+
+	/**
+	 * Copies the elements of world w which don't die of age or hunger into the
+	 * scratch columns, and returns their number
+	 */
+	private int load(int w) {
+		Store s = store;
+		ensure(start[w + 1] - start[w]);
+		int n = 0;
+		for (int i = start[w]; i < start[w + 1]; i++) {
+			byte k = s.kind[i];
+			if (k == PREY && s.age[i] > Simulation.AGE_PREY) {
+				continue;
+			}
+			if (k == PREDATOR && (s.age[i] > Simulation.AGE_PRED || s.lastate[i] > Simulation.LASTMEAL_PRED)) {
+				continue;
+			}
+			kind[n] = k;
+			x[n] = s.x[i];
+			y[n] = s.y[i];
+			heading[n] = s.heading[i];
+			age[n] = s.age[i];
+			lastate[n] = s.lastate[i];
+			atePlant[n] = s.atePlant[i];
+			reproduced[n] = false;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Moves the animals, the predators chasing the closest prey and the preys
+	 * fleeing the closest predator they see
+	 */
+	private void move(int w, int n) {
+		System.arraycopy(x, 0, seenX, 0, n);
+		System.arraycopy(y, 0, seenY, 0, n);
+		index(n, seenX, seenY);
+
+		for (int i = 0; i < n; i++) {
+			double speed;
+			double theta;
+			double d;
+			if (kind[i] == PREDATOR) {
+				if (lastate[i] < Simulation.FED_DURATION) {
+					speed = Simulation.FED_SPEED;
+				} else if (lastate[i] < Simulation.TIRED_AGE) {
+					speed = Simulation.SPEED;
+				} else {
+					speed = Simulation.TIRED_SPEED;
+				}
+				if (atePlant[i]) {
+					speed /= 2;
+					atePlant[i] = false;
+				}
+				if (closest(PREY, seenX[i], seenY[i], 2 * speed)) {
+					theta = angle(seenX[i], seenY[i], seenX[found], seenY[found]);
+					d = 2 * speed;
+				} else if (Double.isNaN(heading[i])) {
+					theta = 2 * Math.PI * nextDouble(w);
+					d = speed;
+				} else {
+					// from its previous position, like ChaseBehavior
+					theta = Math.PI + angle(0, 0, -Math.cos(heading[i]), -Math.sin(heading[i]));
+					d = speed;
+				}
+			} else if (kind[i] == PREY) {
+				speed = Simulation.SPEED;
+				if (atePlant[i]) {
+					speed /= 2;
+					atePlant[i] = false;
+				}
+				if (closest(PREDATOR, seenX[i], seenY[i], 2 * speed)) {
+					theta = Math.PI + angle(seenX[i], seenY[i], seenX[found], seenY[found]);
+					d = 2 * speed;
+					reproduced[i] = true;
+				} else {
+					theta = 2 * Math.PI * nextDouble(w);
+					d = speed;
+				}
+			} else {
+				continue;
+			}
+			if (Double.isNaN(theta)) {
+				// on the animal it sees, which has no direction
+				continue;
+			}
+			double nx = x[i] + d * Math.cos(theta);
+			double ny = y[i] + d * Math.sin(theta);
+			heading[i] = theta;
+			// the exiting animals come back on the other side, as new animals without
+			// a previous position
+			if (nx < 0 || ny < 0 || nx > Simulation.SPACE_SIZE || ny > Simulation.SPACE_SIZE) {
+				heading[i] = Double.NaN;
+			}
+			x[i] = wrap(nx);
+			y[i] = wrap(ny);
+		}
+	}
+
+	/**
+	 * Returns the direction from a position to another one like Position.angle(),
+	 * which only knows it up to a half turn : the animals following it go the
+	 * other way when the target is on their left
+	 */
+	private static double angle(double fromX, double fromY, double toX, double toY) {
+		return Math.atan((toY - fromY) / (toX - fromX));
+	}
+
+	/**
+	 * Feeds the animals like the PredationStage : the predators eat the preys
+	 * within PRED, then the predators and the preys still alive at their turn
+	 * eat the plants within PRED, an element being eaten by the first eater
+	 * reaching it
+	 */
+	private void feed(int n) {
+		index(n, x, y);
+		Arrays.fill(claim, 0, n, NONE);
+		for (int i = 0; i < n; i++) {
+			if (kind[i] == PREDATOR) {
+				claim(PREY, i);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			// a prey eaten by a predator coming before it never ate
+			if (kind[i] == PREDATOR || (kind[i] == PREY && claim[i] > i)) {
+				claim(PLANT, i);
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			eaten[i] = claim[i] != NONE;
+			if (eaten[i]) {
+				lastate[claim[i]] = -1;
+				if (kind[i] == PLANT) {
+					atePlant[claim[i]] = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Claims the elements of a kind within PRED of an eater which nobody
+	 * claimed yet, the eaters coming in order
+	 */
+	private void claim(byte k, int eater) {
+		int nbHits = gather(k, x[eater], y[eater], Simulation.PRED, x, y);
+		for (int h = 0; h < nbHits; h++) {
+			if (claim[hits[h]] == NONE) {
+				claim[hits[h]] = eater;
+			}
+		}
+	}
+
+	/**
+	 * Pairs the animals like the MateMatcher and adds the newborns after the
+	 * elements, returning the new number of elements. The eaten elements are
+	 * left out, and the animals get one update older.
+	 */
+	private int mate(int w, int n, double alphaPrey, double alphaPred) {
+		double preyLogRefusal = 2 * Math.log1p(-alphaPrey);
+		double predLogRefusal = 2 * Math.log1p(-alphaPred);
+		int births = n;
+
+		for (int i = 0; i < n; i++) {
+			if (eaten[i] || kind[i] == PLANT || reproduced[i] || age[i] <= Simulation.REPROD_AGE) {
+				continue;
+			}
+			// the candidates after it in the order of the elements
+			int nbCandidates = 0;
+			int nbHits = gather(kind[i], x[i], y[i], Simulation.REPROD, x, y);
+			for (int h = 0; h < nbHits; h++) {
+				int e = hits[h];
+				if (e > i && !eaten[e] && !reproduced[e] && age[e] > Simulation.REPROD_AGE) {
+					hits[nbCandidates++] = e;
+				}
+			}
+			if (nbCandidates == 0) {
+				continue;
+			}
+			// number of candidates refusing before one accepts
+			double refused = Math.floor(
+					Math.log(1 - nextDouble(w)) / (kind[i] == PREY ? preyLogRefusal : predLogRefusal));
+			if (refused >= 0 && refused < nbCandidates) {
+				Arrays.sort(hits, 0, nbCandidates);
+				int e = hits[(int) refused];
+				reproduced[i] = true;
+				reproduced[e] = true;
+				ensure(births + 1);
+				born(births++, kind[i], x[i], y[i]);
+				eaten[births - 1] = false;
+			}
+		}
+		for (int i = 0; i < births; i++) {
+			age[i]++;
+		}
+		return births;
+	}
+
+	/**
+	 * Writes the elements of world w left in the scratch columns in the next
+	 * store and counts them
+	 */
+	private void store(int w, int n) {
+		Store s = next;
+		s.ensure(s.size + n);
+		int from = s.size;
+		for (int i = 0; i < n; i++) {
+			if (eaten[i]) {
+				continue;
+			}
+			int j = s.size++;
+			s.world[j] = w;
+			s.kind[j] = kind[i];
+			s.x[j] = x[i];
+			s.y[j] = y[i];
+			s.heading[j] = heading[i];
+			s.age[j] = age[i];
+			s.lastate[j] = lastate[i];
+			s.atePlant[j] = atePlant[i];
+		}
+		count(w, s, from, s.size);
+	}
+
+	private void count(int w, Store s, int from, int to) {
+		int preys = 0;
+		int predators = 0;
+		for (int i = from; i < to; i++) {
+			if (s.kind[i] == PREY) {
+				preys++;
+			} else if (s.kind[i] == PREDATOR) {
+				predators++;
+			}
+		}
+		nbPreys[w] = preys;
+		nbPredators[w] = predators;
+		nbPlants[w] = to - from - preys - predators;
+	}
+
+	/**
+	 * Sorts the n first elements by kind and cell of their position (counting
+	 * sort)
+	 */
+	private void index(int n, double[] xs, double[] ys) {
+		Arrays.fill(first, 0);
+		for (int i = 0; i < n; i++) {
+			keys[i] = kind[i] * CELLS + cell(ys[i]) * SIDE + cell(xs[i]);
+			first[keys[i] + 1]++;
+		}
+		for (int c = 0; c < KINDS * CELLS; c++) {
+			first[c + 1] += first[c];
+		}
+		for (int i = 0; i < n; i++) {
+			sorted[first[keys[i]]++] = i;
+		}
+		// the filling moved every start to the next one
+		System.arraycopy(first, 0, first, 1, KINDS * CELLS);
+		first[0] = 0;
+	}
+
+	/**
+	 * Looks for the closest animal of a kind, the animal being seen if it is
+	 * within the square range, like Vision.closest() : the distances are not
+	 * measured across the sides of the world, so an animal never sees across
+	 * them
+	 */
+	private boolean closest(byte k, double fromX, double fromY, double range) {
+		// the closest animal is only seen if closer than sqrt(2) range
+		double reach = range * Math.sqrt(2);
+		int nbHits = gather(k, fromX, fromY, reach, seenX, seenY);
+		found = -1;
+		double distMin = reach;
+		for (int h = 0; h < nbHits; h++) {
+			int e = hits[h];
+			double dx = seenX[e] - fromX;
+			double dy = seenY[e] - fromY;
+			double dist = Math.sqrt(dx * dx + dy * dy);
+			if (dist < distMin || (dist == distMin && e < found)) {
+				distMin = dist;
+				found = e;
+			}
+		}
+		return found >= 0 && delta(seenX[found], fromX) <= range && delta(seenY[found], fromY) <= range;
+	}
+
+	/**
+	 * Collects in hits the elements of a kind within a square range of a
+	 * position, across the sides of the world, and returns their number
+	 */
+	private int gather(byte k, double fromX, double fromY, double range, double[] xs, double[] ys) {
+		int x0 = (int) Math.floor((fromX - range) / CELL);
+		int y0 = (int) Math.floor((fromY - range) / CELL);
+		int spanX = Math.min(SIDE, (int) Math.floor((fromX + range) / CELL) - x0 + 1);
+		int spanY = Math.min(SIDE, (int) Math.floor((fromY + range) / CELL) - y0 + 1);
+		int nbHits = 0;
+		for (int j = 0; j < spanY; j++) {
+			int base = k * CELLS + Math.floorMod(y0 + j, SIDE) * SIDE;
+			for (int i = 0; i < spanX; i++) {
+				int c = base + Math.floorMod(x0 + i, SIDE);
+				for (int s = first[c]; s < first[c + 1]; s++) {
+					int e = sorted[s];
+					if (delta(xs[e], fromX) <= range && delta(ys[e], fromY) <= range) {
+						if (nbHits == hits.length) {
+							hits = Arrays.copyOf(hits, 2 * nbHits);
+						}
+						hits[nbHits++] = e;
+					}
+				}
+			}
+		}
+		return nbHits;
+	}
+
+	private static int cell(double v) {
+		return Math.min(SIDE - 1, (int) (v / CELL));
+	}
+
+	/**
+	 * Returns the distance between two coordinates across the sides of the world
+	 */
+	private static double delta(double a, double b) {
+		double d = Math.abs(a - b);
+		return Math.min(d, Simulation.SPACE_SIZE - d);
+	}
+
+	private static double wrap(double v) {
+		double s = Simulation.SPACE_SIZE;
+		return v - s * Math.floor(v / s);
+	}
+
+	/**
+	 * Sets the scratch columns of a new element
+	 */
+	private void born(int i, byte k, double bx, double by) {
+		kind[i] = k;
+		x[i] = bx;
+		y[i] = by;
+		heading[i] = Double.NaN;
+		age[i] = 0;
+		lastate[i] = 0;
+		atePlant[i] = false;
+		reproduced[i] = false;
+		eaten[i] = false;
+	}
+
+	private static void append(Store s, int w, byte k, double ex, double ey) {
+		s.ensure(s.size + 1);
+		int i = s.size++;
+		s.world[i] = w;
+		s.kind[i] = k;
+		s.x[i] = ex;
+		s.y[i] = ey;
+		s.heading[i] = Double.NaN;
+	}
+
+	/**
+	 * Grows the scratch columns
+	 */
+	private void ensure(int capacity) {
+		if (capacity > kind.length) {
+			int c = Math.max(capacity, 2 * kind.length);
+			kind = Arrays.copyOf(kind, c);
+			x = Arrays.copyOf(x, c);
+			y = Arrays.copyOf(y, c);
+			heading = Arrays.copyOf(heading, c);
+			age = Arrays.copyOf(age, c);
+			lastate = Arrays.copyOf(lastate, c);
+			atePlant = Arrays.copyOf(atePlant, c);
+			reproduced = Arrays.copyOf(reproduced, c);
+			eaten = Arrays.copyOf(eaten, c);
+			claim = Arrays.copyOf(claim, c);
+			seenX = Arrays.copyOf(seenX, c);
+			seenY = Arrays.copyOf(seenY, c);
+			sorted = Arrays.copyOf(sorted, c);
+			keys = Arrays.copyOf(keys, c);
+		}
+	}
+
+	/**
+	 * Returns the next random number of world w, in [0, 1) (SplitMix64)
+	 */
+	private double nextDouble(int w) {
+		random[w] += 0x9E3779B97F4A7C15L;
+		return (mix(random[w]) >>> 11) * 0x1.0p-53;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+}
@@ -0,0 +1,77 @@
+package m13;
+
+/**
+ * Movement of the animals of a species during the movement stage of an
+ * update.
+ *
+ * The simulation holds one behavior per species (see PREDATOR_BEHAVIOR and
+ * PREY_BEHAVIOR) and calls it from two separate call sites, one for the
+ * predators and one for the preys. Each call site thus only ever sees one
+ * class of behavior during a run, so the JIT inlines the movement as if it
+ * were written in the loop : a behavior costs nothing over the code it
+ * replaces, as long as it is not chosen per animal.
+ *
+ * A behavior sees the animals through the Vision of the stage, which holds
+ * their positions before any of them moved.
+ *
+ * @param <A>
+ *            The species moved
+ */
+public interface Behavior<A extends Animal> {
+
+	/**
+	 * Sets the speed of an animal and moves it
+	 *
+	 * @param animal
+	 *            The animal
+	 *
+	 * @param vision
+	 *            The positions of the animals at the beginning of the stage
+	 *
+	 * @return True if the animal got out of the space
+	 */
+	boolean move(A animal, Vision vision);
+
+	/**
+	 * Creates the behavior of the predators
+	 *
+	 * @param name
+	 *            One of "chase", "wander" or "levy"
+	 *
+	 * @return The behavior
+	 */
+	static Behavior<Predator> predator(String name) {
+		switch (name) {
+		case "chase":
+			return new ChaseBehavior();
+		case "wander":
+			return new WanderBehavior<Predator>();
+		case "levy":
+			return new LevyBehavior<Predator>();
+		default:
+			throw new IllegalArgumentException("Unknown predator behavior: " + name);
+		}
+	}
+
+	/**
+	 * Creates the behavior of the preys
+	 *
+	 * @param name
+	 *            One of "flee", "wander" or "levy"
+	 *
+	 * @return The behavior
+	 */
+	static Behavior<Prey> prey(String name) {
+		switch (name) {
+		case "flee":
+			return new FleeBehavior();
+		case "wander":
+			return new WanderBehavior<Prey>();
+		case "levy":
+			return new LevyBehavior<Prey>();
+		default:
+			throw new IllegalArgumentException("Unknown prey behavior: " + name);
+		}
+	}
+
+}
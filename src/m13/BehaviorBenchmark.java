@@ -0,0 +1,227 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the cost of a movement stage done through the Behavior of each
+ * species with the same movement written inline in the loop, as it was before
+ * behaviors existed.
+ *
+ * Three loops move the same population from the same positions, one round of
+ * each in turn :
+ * <ul>
+ * <li>inline : a copy of the former movement code of Simulation,</li>
+ * <li>behavior : the default behaviors, one call site per species like the
+ * simulation,</li>
+ * <li>megamorphic : the default behaviors called from a single call site that
+ * also sees subclasses of them doing the same work, what the simulation
+ * avoids by never choosing a behavior per animal.</li>
+ * </ul>
+ * The movement must not be slower with behaviors than inline.
+ *
+ * Usage: java m13.BehaviorBenchmark [<animals> [<rounds>]]
+ */
+public class BehaviorBenchmark {
+
+	private static final String[] LOOPS = { "inline", "behavior", "megamorphic" };
+
+	private final EntityStore store = new EntityStore(Simulation.RECORD_STORE, 1024);
+	private final ArrayList<Element> animals = new ArrayList<Element>();
+	private double[] xs;
+	private double[] ys;
+	private final Vision vision = new Vision();
+
+	private final Behavior<Predator> predatorBehavior = Behavior.predator("chase");
+	private final Behavior<Prey> preyBehavior = Behavior.prey("flee");
+
+	/**
+	 * Behaviors called from the single call site of the megamorphic loop : the
+	 * default ones and copies of them of other classes, for the predators then
+	 * for the preys
+	 */
+	@SuppressWarnings("rawtypes")
+	private final Behavior[] mixed = { new ChaseBehavior(), new ChaseBehavior() {
+	}, new FleeBehavior(), new FleeBehavior() {
+	} };
+
+	/** Number of animals who got out, so that the loops can't be optimized away */
+	private long out;
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		new BehaviorBenchmark(count).run(rounds);
+	}
+
+	private BehaviorBenchmark(int count) {
+		Random rand = new Random(1);
+		xs = new double[count];
+		ys = new double[count];
+		for (int i = 0; i < count; i++) {
+			xs[i] = Simulation.SPACE_SIZE * rand.nextDouble();
+			ys[i] = Simulation.SPACE_SIZE * rand.nextDouble();
+			Animal a = i % 2 == 0 ? new Predator(store, xs[i], ys[i]) : new Prey(store, xs[i], ys[i]);
+			a.setLastate(rand.nextInt(10));
+			a.setAtePlant(rand.nextInt(4) == 0);
+			animals.add(a);
+		}
+	}
+
+	private void run(int rounds) {
+		double[][] ns = new double[LOOPS.length][rounds];
+		// warmup, then measure
+		for (int pass = 0; pass < 2; pass++) {
+			for (int r = 0; r < rounds; r++) {
+				for (int l = 0; l < LOOPS.length; l++) {
+					reset();
+					long t0 = System.nanoTime();
+					switch (l) {
+					case 0:
+						moveInline();
+						break;
+					case 1:
+						moveBehavior();
+						break;
+					default:
+						moveMegamorphic();
+						break;
+					}
+					ns[l][r] = (double) (System.nanoTime() - t0) / animals.size();
+				}
+			}
+		}
+
+		for (int l = 0; l < LOOPS.length; l++) {
+			Arrays.sort(ns[l]);
+			System.out.printf("%-11s animals=%d median %.1f ns/move (p10 %.1f, p90 %.1f)%n", LOOPS[l], animals.size(),
+					ns[l][rounds / 2], ns[l][rounds / 10], ns[l][rounds * 9 / 10]);
+		}
+		System.out.println("(" + out + " moves out)");
+	}
+
+	/**
+	 * Puts the animals back at their first position and takes the snapshot of
+	 * the vision
+	 */
+	private void reset() {
+		for (int i = 0; i < animals.size(); i++) {
+			Animal a = (Animal) animals.get(i);
+			a.resetPos(xs[i], ys[i]);
+			a.setAtePlant(i % 4 == 0);
+		}
+		vision.look(animals, animals.size());
+	}
+
+	private void moveBehavior() {
+		for (int i = 0; i < animals.size(); i++) {
+			Element a = animals.get(i);
+			boolean gotOut;
+			if (a instanceof Predator) {
+				gotOut = predatorBehavior.move((Predator) a, vision);
+			} else {
+				gotOut = preyBehavior.move((Prey) a, vision);
+			}
+			if (gotOut) {
+				out++;
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void moveMegamorphic() {
+		for (int i = 0; i < animals.size(); i++) {
+			Animal a = (Animal) animals.get(i);
+			int k = (a instanceof Predator ? 0 : 2) + (i / 2) % 2;
+			if (mixed[k].move(a, vision)) {
+				out++;
+			}
+		}
+	}
+
+	/**
+	 * The movement stage of Simulation.update() before behaviors
+	 */
+	private void moveInline() {
+		for (int i = 0; i < animals.size(); i++) {
+
+			Element a = animals.get(i);
+
+			boolean gotOut = false;
+
+			if (a.getType().equals("predator")) {
+
+				if (((Animal) a).getLastate() < Simulation.FED_DURATION) {
+					((Animal) a).setSpeed(Simulation.FED_SPEED);
+				} else if ((((Animal) a).getLastate() >= Simulation.FED_DURATION)
+						&& (((Animal) a).getLastate() < Simulation.TIRED_AGE)) {
+					((Animal) a).setSpeed(Simulation.SPEED);
+				} else {
+					((Animal) a).setSpeed(Simulation.TIRED_SPEED);
+				}
+
+				if (((Animal) a).getAtePlant()) {
+					((Animal) a).setSpeed(((Animal) a).getSpeed() / 2);
+					((Animal) a).setAtePlant(false);
+				}
+
+				double x = a.getX();
+				double y = a.getY();
+
+				double visionRange = 2 * ((Animal) a).getSpeed();
+
+				Position closestPreyPos = vision.closest(true, x, y, visionRange);
+
+				if (closestPreyPos != null) {
+
+					gotOut = ((Predator) a).moveBrownian(2 * ((Animal) a).getSpeed(),
+							Position.angle(x, y, closestPreyPos.getX(), closestPreyPos.getY()));
+
+				} else {
+
+					if (a.hasPrevious()) {
+						double theta = Math.PI + Position.angle(x, y, a.getPreviousX(), a.getPreviousY());
+						gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed(), theta);
+					} else {
+						gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed());
+					}
+
+				}
+
+			}
+
+			if (a.getType().equals("prey")) {
+
+				((Animal) a).setSpeed(Simulation.SPEED);
+
+				if (((Animal) a).getAtePlant()) {
+					((Animal) a).setSpeed(((Animal) a).getSpeed() / 2);
+					((Animal) a).setAtePlant(false);
+
+				}
+
+				double x = a.getX();
+				double y = a.getY();
+
+				double visionRange = 2 * ((Animal) a).getSpeed();
+
+				Position closestPredPos = vision.closest(false, x, y, visionRange);
+
+				if (closestPredPos != null) {
+					gotOut = ((Prey) a).moveBrownian(2 * ((Animal) a).getSpeed(),
+							Math.PI + Position.angle(x, y, closestPredPos.getX(), closestPredPos.getY()));
+					((Animal) a).setHasReproduced(true);
+				} else {
+					gotOut = ((Prey) a).moveBrownian(((Animal) a).getSpeed());
+				}
+
+			}
+
+			if (gotOut) {
+				out++;
+			}
+		}
+	}
+
+}
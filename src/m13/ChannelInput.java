@@ -0,0 +1,52 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Input stream of a transport whose bytes can also be read straight into a
+ * buffer : an OffHeapRecordStore takes its records from the channel under the
+ * stream (the ring of a MappedFileTransport) without copying them to an array
+ * first.
+ */
+public class ChannelInput extends DataInputStream {
+
+	private final ReadableByteChannel channel;
+
+	/**
+	 * Creates a stream over a channel
+	 *
+	 * @param input
+	 *            The stream reading the channel. It must not buffer : the bytes
+	 *            it holds would be read after the ones of the channel.
+	 *
+	 * @param channel
+	 *            The channel
+	 */
+	public ChannelInput(InputStream input, ReadableByteChannel channel) {
+		super(input);
+		this.channel = channel;
+	}
+
+	/**
+	 * Reads bytes until a buffer is full
+	 *
+	 * @param dst
+	 *            The buffer, whose position is advanced to its limit
+	 *
+	 * @throws IOException
+	 *             If the channel fails or ends before the buffer is full
+	 */
+	public void readFully(ByteBuffer dst) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+}
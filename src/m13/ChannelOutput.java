@@ -0,0 +1,72 @@
+package m13;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Output stream of a transport whose bytes can also be taken straight from a
+ * buffer : an OffHeapRecordStore hands its records to the channel under the
+ * stream (a socket, or the ring of a MappedFileTransport) without copying them
+ * to an array first.
+ */
+public class ChannelOutput extends DataOutputStream {
+
+	private final WritableByteChannel channel;
+
+	/**
+	 * Creates a stream over a channel
+	 *
+	 * @param output
+	 *            The stream writing to the channel, possibly buffered
+	 *
+	 * @param channel
+	 *            The channel
+	 */
+	public ChannelOutput(OutputStream output, WritableByteChannel channel) {
+		super(output);
+		this.channel = channel;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, after the bytes written to the
+	 * stream before
+	 *
+	 * @param src
+	 *            The buffer, whose position is advanced to its limit
+	 *
+	 * @throws IOException
+	 *             If the channel fails
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		flush();
+		while (src.hasRemaining()) {
+			channel.write(src);
+		}
+	}
+
+	/**
+	 * Returns a buffered output stream for a connection, taking buffers
+	 * straight to its channel if it has one (see SimpleServer.listen())
+	 *
+	 * @param socket
+	 *            The connection
+	 *
+	 * @return The stream
+	 *
+	 * @throws IOException
+	 *             If the stream of the connection cannot be created
+	 */
+	public static DataOutputStream of(Socket socket) throws IOException {
+		OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+		if (socket.getChannel() == null) {
+			return new DataOutputStream(output);
+		}
+		return new ChannelOutput(output, socket.getChannel());
+	}
+
+}
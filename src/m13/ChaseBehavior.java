@@ -0,0 +1,46 @@
+package m13;
+
+/**
+ * Default behavior of the predators : a predator is fast after eating and
+ * tired when it didn't eat for long, aims for the closest prey it sees at
+ * twice its speed, and otherwise keeps going in the same direction.
+ */
+public class ChaseBehavior implements Behavior<Predator> {
+
+	@Override
+	public boolean move(Predator a, Vision vision) {
+		if (a.getLastate() < Simulation.FED_DURATION) {
+			a.setSpeed(Simulation.FED_SPEED);
+		} else if ((a.getLastate() >= Simulation.FED_DURATION) && (a.getLastate() < Simulation.TIRED_AGE)) {
+			a.setSpeed(Simulation.SPEED);
+		} else {
+			a.setSpeed(Simulation.TIRED_SPEED);
+		}
+
+		if (a.getAtePlant()) {
+			a.setSpeed(a.getSpeed() / 2);
+			a.setAtePlant(false);
+		}
+
+		double x = a.getX();
+		double y = a.getY();
+
+		double visionRange = 2 * a.getSpeed();
+
+		Position closestPreyPos = vision.closest(true, x, y, visionRange);
+
+		// If the closest prey is within range of the predator, the predator aims for
+		// the prey and moves twice as fast; otherwise it just continues in the same
+		// direction at its normal speed
+		if (closestPreyPos != null) {
+			return a.moveBrownian(2 * a.getSpeed(),
+					Position.angle(x, y, closestPreyPos.getX(), closestPreyPos.getY()));
+		}
+		if (a.hasPrevious()) {
+			double theta = Math.PI + Position.angle(x, y, a.getPreviousX(), a.getPreviousY());
+			return a.moveBrownian(a.getSpeed(), theta);
+		}
+		return a.moveBrownian(a.getSpeed());
+	}
+
+}
@@ -0,0 +1,249 @@
+package m13;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * File holding the state of the elements of a simulation, written and read
+ * through a memory mapping.
+ *
+ * The file starts with a header (MAGIC, VERSION, world size, number of
+ * updates, age and hunger counters of the clock, number of elements, number
+ * of slots of the store) followed by the slot and the kind of every element,
+ * in the order of the elements of the simulation, then by the columns of the
+ * EntityStore. The columns are copied from the store to the mapping in bulk,
+ * one copy per column whatever the number of elements ; they are read back by
+ * a store over the mapping, without copying them.
+ */
+public class Checkpoint {
+
+	/** First int of a checkpoint file */
+	public static final int MAGIC = 0xE5C4C4EC;
+
+	/** Version of the file layout */
+	public static final int VERSION = 2;
+
+	/** Kinds of the elements */
+	public static final byte PLANT = 0;
+	public static final byte PREY = 1;
+	public static final byte PREDATOR = 2;
+
+	/** Size of the header (bytes) */
+	private static final int HEADER = 32;
+
+	/** Size of the slot and the kind of an element (bytes) */
+	private static final int ENTRY = 5;
+
+	private final int worldSize;
+	private final int updates;
+	private final int ages;
+	private final int hunger;
+	private final int[] slots;
+	private final byte[] kinds;
+	private final EntityStore store;
+
+	private Checkpoint(int worldSize, int updates, int ages, int hunger, int[] slots, byte[] kinds,
+			EntityStore store) {
+		this.worldSize = worldSize;
+		this.updates = updates;
+		this.ages = ages;
+		this.hunger = hunger;
+		this.slots = slots;
+		this.kinds = kinds;
+		this.store = store;
+	}
+
+	/**
+	 * Writes a checkpoint file, replacing it if it exists
+	 *
+	 * @param file
+	 *            The path of the file
+	 *
+	 * @param updates
+	 *            The number of updates of the simulation
+	 *
+	 * @param clock
+	 *            The clock the stamps of the store refer to
+	 *
+	 * @param store
+	 *            The store holding the elements
+	 *
+	 * @param elements
+	 *            The elements to save, all in the store
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public static void save(String file, int updates, Clock clock, EntityStore store, ArrayList<Element> elements)
+			throws IOException {
+		long size = HEADER + (long) ENTRY * elements.size() + store.getSavedLength();
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			map.putInt(MAGIC);
+			map.putInt(VERSION);
+			map.putInt(Simulation.SPACE_SIZE);
+			map.putInt(updates);
+			map.putInt(clock.getAges());
+			map.putInt(clock.getHunger());
+			map.putInt(elements.size());
+			map.putInt(store.size());
+			for (int i = 0; i < elements.size(); i++) {
+				Element e = elements.get(i);
+				map.putInt(e.slot);
+				map.put(e instanceof Prey ? PREY : e instanceof Predator ? PREDATOR : PLANT);
+			}
+			store.save(map);
+			map.force();
+		}
+	}
+
+	/**
+	 * Reads a checkpoint file
+	 *
+	 * @param file
+	 *            The path of the file
+	 *
+	 * @return The checkpoint, whose store reads the mapping of the file
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static Checkpoint load(String file) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+				throw new IOException("Not a checkpoint: " + file);
+			}
+			int worldSize = map.getInt();
+			int updates = map.getInt();
+			int ages = map.getInt();
+			int hunger = map.getInt();
+			int count = map.getInt();
+			int slots = map.getInt();
+			long length = (long) ENTRY * count + (long) slots * EntityStore.SLOT_LENGTH;
+			if (count < 0 || slots < 0 || map.remaining() != length) {
+				throw new IOException("Truncated checkpoint: " + file);
+			}
+			int[] slotOf = new int[count];
+			byte[] kinds = new byte[count];
+			for (int i = 0; i < count; i++) {
+				slotOf[i] = map.getInt();
+				kinds[i] = map.get();
+				if (slotOf[i] < 0 || slotOf[i] >= slots || kinds[i] < PLANT || kinds[i] > PREDATOR) {
+					throw new IOException("Corrupted checkpoint: " + file);
+				}
+			}
+			EntityStore store = new EntityStore(new OffHeapRecordStore(map.slice()), slots);
+			return new Checkpoint(worldSize, updates, ages, hunger, slotOf, kinds, store);
+		} catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+			throw new IOException("Truncated checkpoint: " + file, e);
+		}
+	}
+
+	/**
+	 * Returns the number of updates of the simulation when it was saved
+	 *
+	 * @return The number of updates
+	 */
+	public int getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * Returns the age counter of the clock the stamps of the store refer to
+	 *
+	 * @return The counter
+	 */
+	public int getAges() {
+		return ages;
+	}
+
+	/**
+	 * Returns the hunger counter of the clock the stamps of the store refer to
+	 *
+	 * @return The counter
+	 */
+	public int getHunger() {
+		return hunger;
+	}
+
+	/**
+	 * Returns the number of elements saved
+	 *
+	 * @return The number of elements
+	 */
+	public int size() {
+		return slots.length;
+	}
+
+	/**
+	 * Returns the kind of an element
+	 *
+	 * @param i
+	 *            The index of the element
+	 *
+	 * @return PLANT, PREY or PREDATOR
+	 */
+	public byte getKind(int i) {
+		return kinds[i];
+	}
+
+	/**
+	 * Returns the slot of an element in getStore()
+	 *
+	 * @param i
+	 *            The index of the element
+	 *
+	 * @return The slot
+	 */
+	public int getSlot(int i) {
+		return slots[i];
+	}
+
+	/**
+	 * Returns the x coordinate of an element, scaled to the world of this
+	 * simulation
+	 *
+	 * @param i
+	 *            The index of the element
+	 *
+	 * @return The x coordinate
+	 */
+	public double getX(int i) {
+		return scale(store.getX(slots[i]));
+	}
+
+	/**
+	 * Returns the y coordinate of an element, scaled to the world of this
+	 * simulation
+	 *
+	 * @param i
+	 *            The index of the element
+	 *
+	 * @return The y coordinate
+	 */
+	public double getY(int i) {
+		return scale(store.getY(slots[i]));
+	}
+
+	/** Scales a coordinate from the saved world to the world of this simulation */
+	private double scale(double coordinate) {
+		return worldSize == Simulation.SPACE_SIZE ? coordinate : coordinate * Simulation.SPACE_SIZE / worldSize;
+	}
+
+	/**
+	 * Returns the store holding the saved elements, over the mapping of the file
+	 *
+	 * @return The store
+	 */
+	public EntityStore getStore() {
+		return store;
+	}
+
+}
@@ -0,0 +1,156 @@
+package m13;
+
+/**
+ * A CHUNK_SIZE x CHUNK_SIZE square of the world, allocated by the ChunkMap
+ * only while something lives in it.
+ *
+ * It counts the elements standing in it and, with PLANT_GRID, holds the
+ * vegetation of its cells once animals have eaten some of it (see PlantField).
+ */
+public class Chunk {
+
+	/** Coordinates of the chunk, in chunks */
+	int cx;
+	int cy;
+
+	/** Number of elements of each kind in the chunk */
+	int preys;
+	int predators;
+	int plants;
+
+	/** First of the elements of the chunk, linked by Element.chunkNext */
+	Element first;
+
+	/** Vegetation of the cells, row by row, null while it is untouched */
+	float[] vegetation;
+
+	/** Regrowth count of the PlantField the vegetation is up to date with */
+	long vegetationTick;
+
+	/**
+	 * Whether the animals of the chunk are only counted by densePreys and
+	 * densePredators (see HybridField)
+	 */
+	boolean dense;
+	double densePreys;
+	double densePredators;
+
+	/** Animals entering the dense chunk from its neighbours during an update */
+	double inPreys;
+	double inPredators;
+
+	/**
+	 * Returns the x coordinate of the chunk
+	 *
+	 * @return The column of the chunk in the world
+	 */
+	public int getX() {
+		return cx;
+	}
+
+	/**
+	 * Returns the y coordinate of the chunk
+	 *
+	 * @return The row of the chunk in the world
+	 */
+	public int getY() {
+		return cy;
+	}
+
+	/**
+	 * Returns the number of preys in the chunk
+	 *
+	 * @return The number of preys
+	 */
+	public int getPreys() {
+		return preys;
+	}
+
+	/**
+	 * Returns the number of predators in the chunk
+	 *
+	 * @return The number of predators
+	 */
+	public int getPredators() {
+		return predators;
+	}
+
+	/**
+	 * Returns the number of plants in the chunk
+	 *
+	 * @return The number of plants
+	 */
+	public int getPlants() {
+		return plants;
+	}
+
+	/**
+	 * Tells if the animals of the chunk are simulated by their density
+	 *
+	 * @return True if the chunk is dense (see HybridField)
+	 */
+	public boolean isDense() {
+		return dense;
+	}
+
+	/**
+	 * Returns the number of preys of a dense chunk
+	 *
+	 * @return The number of preys, not an integer
+	 */
+	public double getDensePreys() {
+		return densePreys;
+	}
+
+	/**
+	 * Returns the number of predators of a dense chunk
+	 *
+	 * @return The number of predators, not an integer
+	 */
+	public double getDensePredators() {
+		return densePredators;
+	}
+
+	/**
+	 * Returns the first element of the chunk, the next ones being given by
+	 * next()
+	 *
+	 * @return The first element, or null if the chunk has none
+	 */
+	public Element first() {
+		return first;
+	}
+
+	/**
+	 * Returns the element following another in the chunk
+	 *
+	 * @param e
+	 *            An element of the chunk
+	 *
+	 * @return The next element, or null if e is the last one
+	 */
+	public Element next(Element e) {
+		return e.chunkNext;
+	}
+
+	/**
+	 * Tells if no animal is in the chunk, in which case nothing happens in it
+	 * during an update
+	 *
+	 * @return True if the chunk has no animal
+	 */
+	public boolean isIdle() {
+		return preys == 0 && predators == 0;
+	}
+
+	/**
+	 * Tells if the chunk holds nothing and can be freed
+	 *
+	 * @return True if the chunk has no element, untouched vegetation and is not
+	 *         dense
+	 */
+	boolean isUnused() {
+		return preys == 0 && predators == 0 && plants == 0 && vegetation == null && !dense;
+	}
+
+}
@@ -0,0 +1,293 @@
+package m13;
+
+/**
+ * Sparse division of the world in chunks of CHUNK_SIZE x CHUNK_SIZE.
+ *
+ * A chunk is only allocated while an element stands in it or while its
+ * vegetation is regrowing, so a world of 10^5 x 10^5 mostly empty costs
+ * nothing for its empty parts. The chunks are found by their coordinates in an
+ * open addressing hash table and recycled when freed, so that moving elements
+ * from chunk to chunk doesn't allocate.
+ *
+ * The simulation tells the map when an element is added, removed or moved ;
+ * each element knows its chunk, and each chunk links its elements in a list,
+ * so that the elements of a part of the world can be found without scanning
+ * the others.
+ */
+public class ChunkMap {
+
+	/** Number of chunks on a side of the world */
+	private final int side;
+
+	/** Hash table of the chunks, null for an empty slot */
+	private Chunk[] table = new Chunk[64];
+	private int size;
+
+	private final FreeList<Chunk> free = new FreeList<Chunk>();
+
+	/** Number of chunks allocated since the creation of the map */
+	private int created;
+
+	/**
+	 * Creates an empty map covering the world
+	 */
+	public ChunkMap() {
+		side = (Simulation.SPACE_SIZE + Simulation.CHUNK_SIZE - 1) / Simulation.CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns the chunk containing (x, y) if it is allocated
+	 *
+	 * @param x
+	 *            The x coordinate
+	 *
+	 * @param y
+	 *            The y coordinate
+	 *
+	 * @return The chunk, or null if nothing is there
+	 */
+	public Chunk get(double x, double y) {
+		return getChunk(column(x), column(y));
+	}
+
+	/**
+	 * Returns the chunk of the given chunk coordinates if it is allocated
+	 *
+	 * @param cx
+	 *            The column of the chunk, between 0 and getSide() - 1
+	 *
+	 * @param cy
+	 *            The row of the chunk, between 0 and getSide() - 1
+	 *
+	 * @return The chunk, or null if nothing is there
+	 */
+	public Chunk getChunk(int cx, int cy) {
+		for (int s = slot(cx, cy);; s = (s + 1) & (table.length - 1)) {
+			Chunk c = table[s];
+			if (c == null || (c.cx == cx && c.cy == cy)) {
+				return c;
+			}
+		}
+	}
+
+	/**
+	 * Returns the chunk containing (x, y), allocating it if needed
+	 *
+	 * @param x
+	 *            The x coordinate
+	 *
+	 * @param y
+	 *            The y coordinate
+	 *
+	 * @return The chunk
+	 */
+	public Chunk obtain(double x, double y) {
+		int cx = column(x);
+		int cy = column(y);
+		int s = slot(cx, cy);
+		for (;; s = (s + 1) & (table.length - 1)) {
+			Chunk c = table[s];
+			if (c == null) {
+				break;
+			}
+			if (c.cx == cx && c.cy == cy) {
+				return c;
+			}
+		}
+
+		Chunk c = free.poll();
+		if (c == null) {
+			created++;
+			c = new Chunk();
+		}
+		c.cx = cx;
+		c.cy = cy;
+		c.preys = 0;
+		c.predators = 0;
+		c.plants = 0;
+		c.first = null;
+		c.vegetation = null;
+		c.dense = false;
+		c.densePreys = 0;
+		c.densePredators = 0;
+		c.inPreys = 0;
+		c.inPredators = 0;
+		table[s] = c;
+		if (++size * 2 > table.length) {
+			resize();
+		}
+		return c;
+	}
+
+	/**
+	 * Counts a new element in its chunk
+	 *
+	 * @param e
+	 *            The element, at its current position
+	 */
+	public void enter(Element e) {
+		Chunk c = obtain(e.getX(), e.getY());
+		count(c, e, 1);
+		e.setChunk(c);
+		e.chunkPrev = null;
+		e.chunkNext = c.first;
+		if (c.first != null) {
+			c.first.chunkPrev = e;
+		}
+		c.first = e;
+	}
+
+	/**
+	 * Stops counting an element leaving the world, and frees its chunk if it was
+	 * the last thing in it
+	 *
+	 * @param e
+	 *            The element
+	 */
+	public void leave(Element e) {
+		Chunk c = e.getChunk();
+		if (c != null) {
+			count(c, e, -1);
+			e.setChunk(null);
+			if (e.chunkPrev != null) {
+				e.chunkPrev.chunkNext = e.chunkNext;
+			} else {
+				c.first = e.chunkNext;
+			}
+			if (e.chunkNext != null) {
+				e.chunkNext.chunkPrev = e.chunkPrev;
+			}
+			e.chunkPrev = null;
+			e.chunkNext = null;
+			release(c);
+		}
+	}
+
+	/**
+	 * Moves an element to the chunk of its current position if it changed
+	 *
+	 * @param e
+	 *            The element that moved
+	 */
+	public void moved(Element e) {
+		Chunk c = e.getChunk();
+		if (c == null || c.cx != column(e.getX()) || c.cy != column(e.getY())) {
+			leave(e);
+			enter(e);
+		}
+	}
+
+	/**
+	 * Frees a chunk if nothing is left in it
+	 *
+	 * @param c
+	 *            The chunk
+	 */
+	public void release(Chunk c) {
+		if (!c.isUnused()) {
+			return;
+		}
+		int mask = table.length - 1;
+		int s = slot(c.cx, c.cy);
+		while (table[s] != c) {
+			s = (s + 1) & mask;
+		}
+		// backward shift deletion : move back the following chunks of the cluster
+		// that are not at their own slot
+		int hole = s;
+		for (int next = (s + 1) & mask; table[next] != null; next = (next + 1) & mask) {
+			int home = slot(table[next].cx, table[next].cy);
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				table[hole] = table[next];
+				hole = next;
+			}
+		}
+		table[hole] = null;
+		size--;
+		free.push(c);
+	}
+
+	/**
+	 * Returns the number of allocated chunks
+	 *
+	 * @return The number of chunks
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots of the table, to iterate over the chunks with
+	 * slot()
+	 *
+	 * @return The number of slots
+	 */
+	public int capacity() {
+		return table.length;
+	}
+
+	/**
+	 * Returns the chunk of a slot of the table
+	 *
+	 * @param s
+	 *            The slot, between 0 and capacity() - 1
+	 *
+	 * @return The chunk, or null for an empty slot
+	 */
+	public Chunk slot(int s) {
+		return table[s];
+	}
+
+	/**
+	 * Returns the number of chunks allocated plus the number of slots of the
+	 * table and of the free list : it only changes when the map allocates
+	 *
+	 * @return The capacity of the map
+	 */
+	public int getCapacity() {
+		return created + table.length + free.getCapacity();
+	}
+
+	/**
+	 * Returns the number of chunks on a side of the world
+	 *
+	 * @return The number of chunks per row and per column
+	 */
+	public int getSide() {
+		return side;
+	}
+
+	private int column(double v) {
+		return Math.min(side - 1, Math.max(0, (int) (v / Simulation.CHUNK_SIZE)));
+	}
+
+	private int slot(int cx, int cy) {
+		int h = cx * 0x9E3779B1 + cy * 0x85EBCA77;
+		return (h ^ (h >>> 15)) & (table.length - 1);
+	}
+
+	private static void count(Chunk c, Element e, int delta) {
+		if (e instanceof Prey) {
+			c.preys += delta;
+		} else if (e instanceof Predator) {
+			c.predators += delta;
+		} else {
+			c.plants += delta;
+		}
+	}
+
+	private void resize() {
+		Chunk[] old = table;
+		table = new Chunk[old.length * 2];
+		for (Chunk c : old) {
+			if (c != null) {
+				int s = slot(c.cx, c.cy);
+				while (table[s] != null) {
+					s = (s + 1) & (table.length - 1);
+				}
+				table[s] = c;
+			}
+		}
+	}
+
+}
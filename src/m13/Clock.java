@@ -0,0 +1,118 @@
+package m13;
+
+/**
+ * Counts the updates of a simulation. The age and the lastate of its animals
+ * are not incremented at every update but computed from the stamps they keep
+ * (see Animal) and the counters of the clock :
+ * <ul>
+ * <li>ages, incremented at the end of every update,</li>
+ * <li>hunger, incremented right after the feeding stage.</li>
+ * </ul>
+ * Since these values only grow until the animal eats again, the update at which
+ * an animal will die is known in advance : the clock schedules it in a
+ * DeathWheel, and the death check of an update only reads the animals dying
+ * then.
+ */
+public class Clock {
+
+	/** Number of the current update, 0 before the first one */
+	private int update;
+
+	/** Number of end of updates, when the ages grow */
+	private int ages;
+
+	/** Number of feeding stages, after which the lastates grow */
+	private int hunger;
+
+	/** Deaths to come */
+	private final DeathWheel deaths = new DeathWheel();
+
+	/**
+	 * Starts a new update
+	 *
+	 * @return The number of the update
+	 */
+	public int startUpdate() {
+		return ++update;
+	}
+
+	/**
+	 * Makes the lastates grow, at the end of the feeding stage
+	 */
+	public void hunger() {
+		hunger++;
+	}
+
+	/**
+	 * Makes the ages grow, and forgets who reproduced, at the end of an update
+	 */
+	public void endUpdate() {
+		ages++;
+	}
+
+	/**
+	 * Sets the clock between two updates
+	 *
+	 * @param updates
+	 *            The number of updates done
+	 */
+	public void set(int updates) {
+		update = updates;
+		ages = updates;
+		hunger = updates;
+		deaths.clear();
+	}
+
+	/**
+	 * Returns the number of the current update
+	 *
+	 * @return The number of the update, 0 before the first one
+	 */
+	public int getUpdate() {
+		return update;
+	}
+
+	/**
+	 * Returns the number of times the ages grew
+	 *
+	 * @return The age counter
+	 */
+	public int getAges() {
+		return ages;
+	}
+
+	/**
+	 * Returns the number of times the lastates grew
+	 *
+	 * @return The hunger counter
+	 */
+	public int getHunger() {
+		return hunger;
+	}
+
+	/**
+	 * Schedules the death of an animal at the first update whose death check will
+	 * find it too old or too hungry, or at the next death check if it already is
+	 *
+	 * @param a
+	 *            The animal, whose age or lastate changed
+	 */
+	public void schedule(Animal a) {
+		long tick = Math.max(update + 1L, a.getDeathUpdate());
+		if (tick >= Integer.MAX_VALUE) {
+			deaths.cancel(a);
+		} else {
+			deaths.schedule(a, (int) tick);
+		}
+	}
+
+	/**
+	 * Returns the deaths to come
+	 *
+	 * @return The timing wheel of the deaths
+	 */
+	public DeathWheel getDeaths() {
+		return deaths;
+	}
+
+}
@@ -0,0 +1,86 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the cost of the creature exchange done by CreatureCodec against an
+ * embedded SimpleServer : time and bytes allocated by the simulation thread
+ * per creature.
+ *
+ * Usage: java m13.CodecBenchmark [<creatures per update> [<ext length>]]
+ *
+ * The program exits with status 1 if the steady-state exchange allocates
+ * anything.
+ */
+public class CodecBenchmark {
+
+	private static final int WARMUP_UPDATES = 20_000;
+	private static final int MEASURED_UPDATES = 20_000;
+
+	public static void main(String[] args) throws IOException {
+		int creatures = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int extLength = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		InProcessTransport transport = new InProcessTransport();
+		DataInputStream input = transport.getInput();
+		DataOutputStream output = transport.getOutput();
+		CreatureCodec codec = new CreatureCodec(input, output);
+		MigrationBatch batch = new MigrationBatch(extLength);
+
+		output.writeInt(extLength);
+		output.writeInt(extLength);
+		output.flush();
+
+		run(input, output, codec, batch, creatures, WARMUP_UPDATES);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long bytesBefore = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+
+		run(input, output, codec, batch, creatures, MEASURED_UPDATES);
+
+		long elapsed = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+		double total = (double) creatures * MEASURED_UPDATES;
+
+		System.out.println();
+		System.out.printf("creatures/update=%d ext=%dB  %.1f ns/creature  %.3f B/creature%n", creatures, extLength,
+				elapsed / total, allocated / total);
+		transport.close();
+
+		if (allocated > 0) {
+			System.err.println("FAILED: the exchange allocated " + allocated + " bytes");
+			System.exit(1);
+		}
+	}
+
+	private static void run(DataInputStream input, DataOutputStream output, CreatureCodec codec, MigrationBatch batch,
+			int creatures, int updates) throws IOException {
+		for (int u = 0; u < updates; u++) {
+			batch.clear();
+			for (int c = 0; c < creatures; c++) {
+				int i = batch.add(1.0 + c * 1e-3, 0.5);
+				if (batch.getExtLength() >= 8) {
+					batch.putInt(i, 0, u);
+					batch.putInt(i, 4, c);
+				}
+			}
+
+			output.writeInt(0);
+			output.writeInt(0);
+			output.writeInt(creatures);
+			output.writeInt(0);
+			output.flush();
+			input.readInt();
+			input.readInt();
+
+			codec.exchange(batch);
+		}
+	}
+
+}
@@ -0,0 +1,403 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compact encoding of the migrating creatures, an alternative to the plain
+ * doubles and fixed-size extended data of the original protocol. It is chosen
+ * per connection during the schema handshake (see SchemaRegistry).
+ *
+ * Each normalized coordinate c is written relative to the nearest boundary b
+ * (the nearest integer) as the fixed-point value q = (c - b) * SCALE, packed
+ * with b into a varint. A creature that just crossed a border has one
+ * coordinate very close to it, so it usually takes one or two bytes. The fields
+ * of the extended data are written according to the schema : ints as zigzag
+ * varints (age and lastate take one byte), the other types as is.
+ *
+ * Both lists of a message are encoded in one frame, which is then compressed
+ * as an LZ4 block : int raw length, int stored length, stored bytes. The frame
+ * is sent uncompressed, with stored length equal to raw length, when LZ4
+ * doesn't make it smaller.
+ *
+ * The buffers only grow, so a codec doesn't allocate once it has seen the
+ * largest frame. A codec is bound to one connection and is not thread safe.
+ */
+public class CompactCodec {
+
+	/** Fixed-point scale of the coordinates : 1/SCALE of the square side */
+	public static final double SCALE = 1 << 20;
+
+	/** Largest frame read from the wire (bytes), whatever the number of creatures */
+	public static final int MAX_FRAME = 64 << 20;
+
+	private final ExtSchema preySchema;
+	private final ExtSchema predSchema;
+	private final Lz4Block lz4 = new Lz4Block();
+
+	/** Uncompressed frame being decoded or encoded */
+	private byte[] raw = new byte[1024];
+	private int rawPos;
+
+	/** Second uncompressed frame, used by the server to re-encode */
+	private byte[] relayed = new byte[1024];
+
+	/** Frame as stored on the wire */
+	private byte[] stored = new byte[Lz4Block.maxCompressedLength(1024)];
+
+	/** Size of the last frame encoded or decoded */
+	private int lastFrameLength;
+
+	/**
+	 * Creates a codec for a connection
+	 *
+	 * @param preySchema
+	 *            Layout of the extended data of the preys
+	 *
+	 * @param predSchema
+	 *            Layout of the extended data of the predators
+	 */
+	public CompactCodec(ExtSchema preySchema, ExtSchema predSchema) {
+		this.preySchema = preySchema;
+		this.predSchema = predSchema;
+	}
+
+	/**
+	 * Simulation side : sends both batches to the server in one frame and
+	 * replaces their content by the creatures sent back
+	 *
+	 * @param input
+	 *            The stream carrying the data sent by the server
+	 *
+	 * @param output
+	 *            The stream carrying the data sent to the server
+	 *
+	 * @param preys
+	 *            The exiting preys, replaced by the entering ones
+	 *
+	 * @param enteringPreys
+	 *            Number of entering preys announced by the server
+	 *
+	 * @param preds
+	 *            The exiting predators, replaced by the entering ones
+	 *
+	 * @param enteringPreds
+	 *            Number of entering predators announced by the server
+	 *
+	 * @throws IOException
+	 *             If the exchange fails
+	 */
+	public void exchange(DataInputStream input, DataOutputStream output, MigrationBatch preys, int enteringPreys,
+			MigrationBatch preds, int enteringPreds) throws IOException {
+		writeFrame(output, encode(preys, preds));
+		output.flush();
+		readFrame(input, enteringPreys, enteringPreds);
+		decode(preys, enteringPreys, preds, enteringPreds);
+	}
+
+	/**
+	 * Server side : reads a frame of exiting creatures, wraps their coordinates on
+	 * the torus and sends them back. The extended data is copied without being
+	 * decoded, the schemas only give the size of each field.
+	 *
+	 * @param input
+	 *            The stream carrying the data sent by the client
+	 *
+	 * @param output
+	 *            The stream carrying the data sent to the client
+	 *
+	 * @param preys
+	 *            Number of exiting preys in the frame
+	 *
+	 * @param preds
+	 *            Number of exiting predators in the frame
+	 *
+	 * @throws IOException
+	 *             If the exchange fails or the frame is malformed
+	 */
+	public void relay(DataInputStream input, DataOutputStream output, int preys, int preds) throws IOException {
+		int length = readFrame(input, preys, preds);
+		rawPos = 0;
+		int out = 0;
+		try {
+			for (int i = 0; i < preys + preds; i++) {
+				ExtSchema schema = i < preys ? preySchema : predSchema;
+				int needed = out + 20 + schema.length() + 5 * schema.fieldCount();
+				if (relayed.length < needed) {
+					relayed = Arrays.copyOf(relayed, Math.max(needed, 2 * relayed.length));
+				}
+				for (int c = 0; c < 2; c++) {
+					double coordinate = decodeCoordinate(readVarLong());
+					out = writeVarLong(relayed, out, encodeCoordinate(coordinate - Math.floor(coordinate)));
+				}
+				int start = rawPos;
+				rawPos = skipExt(schema, raw, rawPos);
+				System.arraycopy(raw, start, relayed, out, rawPos - start);
+				out += rawPos - start;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed compact frame", e);
+		}
+		if (rawPos != length) {
+			throw new IOException("Malformed compact frame");
+		}
+
+		byte[] swap = raw;
+		raw = relayed;
+		relayed = swap;
+		writeFrame(output, out);
+	}
+
+	/**
+	 * Encodes both batches in the raw frame
+	 *
+	 * @param preys
+	 *            The preys to encode
+	 *
+	 * @param preds
+	 *            The predators to encode
+	 *
+	 * @return The size of the raw frame (bytes)
+	 */
+	public int encode(MigrationBatch preys, MigrationBatch preds) {
+		rawPos = 0;
+		encode(preys, preySchema);
+		encode(preds, predSchema);
+		lastFrameLength = rawPos;
+		return rawPos;
+	}
+
+	private void encode(MigrationBatch batch, ExtSchema schema) {
+		for (int i = 0; i < batch.size(); i++) {
+			ensureRaw(rawPos + 20 + schema.length() + 5 * schema.fieldCount());
+			rawPos = writeVarLong(raw, rawPos, encodeCoordinate(batch.getX(i)));
+			rawPos = writeVarLong(raw, rawPos, encodeCoordinate(batch.getY(i)));
+			for (int f = 0; f < schema.fieldCount(); f++) {
+				int offset = schema.offset(f);
+				if (schema.type(f) == ExtSchema.INT) {
+					int v = batch.getInt(i, offset);
+					rawPos = writeVarLong(raw, rawPos, ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+				} else {
+					batch.getExt(i, offset, raw, rawPos, schema.size(f));
+					rawPos += schema.size(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decodes the raw frame into both batches
+	 *
+	 * @param preys
+	 *            Receives the preys
+	 *
+	 * @param preyCount
+	 *            Number of preys in the frame
+	 *
+	 * @param preds
+	 *            Receives the predators
+	 *
+	 * @param predCount
+	 *            Number of predators in the frame
+	 *
+	 * @throws IOException
+	 *             If the frame is malformed
+	 */
+	public void decode(MigrationBatch preys, int preyCount, MigrationBatch preds, int predCount) throws IOException {
+		rawPos = 0;
+		try {
+			decode(preys, preyCount, preySchema);
+			decode(preds, predCount, predSchema);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed compact frame", e);
+		}
+		if (rawPos != lastFrameLength) {
+			throw new IOException("Malformed compact frame");
+		}
+	}
+
+	private void decode(MigrationBatch batch, int count, ExtSchema schema) {
+		batch.clear();
+		for (int n = 0; n < count; n++) {
+			double x = decodeCoordinate(readVarLong());
+			double y = decodeCoordinate(readVarLong());
+			int i = batch.add(x, y);
+			for (int f = 0; f < schema.fieldCount(); f++) {
+				int offset = schema.offset(f);
+				if (schema.type(f) == ExtSchema.INT) {
+					int v = (int) readVarLong();
+					batch.putInt(i, offset, (v >>> 1) ^ -(v & 1));
+				} else {
+					batch.putExt(i, offset, raw, rawPos, schema.size(f));
+					rawPos += schema.size(f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compresses the raw frame
+	 *
+	 * @param length
+	 *            Size of the raw frame (bytes)
+	 *
+	 * @return The size of the frame as stored on the wire (bytes)
+	 */
+	public int compress(int length) {
+		if (stored.length < Lz4Block.maxCompressedLength(length)) {
+			stored = new byte[Lz4Block.maxCompressedLength(2 * length)];
+		}
+		int compressed = lz4.compress(raw, length, stored);
+		if (compressed >= length) {
+			System.arraycopy(raw, 0, stored, 0, length);
+			return length;
+		}
+		return compressed;
+	}
+
+	/**
+	 * Restores the raw frame from the stored one
+	 *
+	 * @param storedLength
+	 *            Size of the stored frame (bytes)
+	 *
+	 * @param rawLength
+	 *            Size of the raw frame (bytes)
+	 *
+	 * @throws IOException
+	 *             If the frame is malformed
+	 */
+	public void decompress(int storedLength, int rawLength) throws IOException {
+		ensureRaw(rawLength);
+		if (storedLength == rawLength) {
+			System.arraycopy(stored, 0, raw, 0, rawLength);
+		} else {
+			Lz4Block.decompress(stored, storedLength, raw, rawLength);
+		}
+		lastFrameLength = rawLength;
+	}
+
+	private void writeFrame(DataOutputStream output, int length) throws IOException {
+		int storedLength = compress(length);
+		output.writeInt(length);
+		output.writeInt(storedLength);
+		output.write(stored, 0, storedLength);
+		output.flush();
+	}
+
+	/**
+	 * Reads a frame of creatures, whose announced sizes are checked before
+	 * anything is allocated : the raw frame cannot be longer than the largest
+	 * encoding of the creatures, nor than MAX_FRAME
+	 */
+	private int readFrame(DataInputStream input, int preys, int preds) throws IOException {
+		int rawLength = input.readInt();
+		int storedLength = input.readInt();
+		long limit = preys < 0 || preds < 0 ? -1
+				: Math.min(MAX_FRAME, preys * maxRecord(preySchema) + preds * maxRecord(predSchema));
+		if (rawLength < 0 || rawLength > limit) {
+			throw new IOException("Compact frame of " + rawLength + " bytes, at most " + limit + " expected");
+		}
+		if (storedLength < 0 || storedLength > Lz4Block.maxCompressedLength(rawLength)) {
+			throw new IOException("Malformed compact frame");
+		}
+		if (stored.length < storedLength) {
+			stored = new byte[Lz4Block.maxCompressedLength(rawLength)];
+		}
+		input.readFully(stored, 0, storedLength);
+		decompress(storedLength, rawLength);
+		return rawLength;
+	}
+
+	/**
+	 * Returns the largest size of an encoded creature : two coordinates of at
+	 * most 10 bytes, and the fields, the varints taking up to 5 bytes
+	 */
+	private static long maxRecord(ExtSchema schema) {
+		return 20 + schema.length() + 5L * schema.fieldCount();
+	}
+
+	private void ensureRaw(int length) {
+		if (raw.length < length) {
+			raw = Arrays.copyOf(raw, Math.max(length, 2 * raw.length));
+		}
+	}
+
+	/**
+	 * Returns the position after the extended data starting at pos
+	 */
+	private static int skipExt(ExtSchema schema, byte[] b, int pos) {
+		for (int f = 0; f < schema.fieldCount(); f++) {
+			if (schema.type(f) == ExtSchema.INT) {
+				while (b[pos++] < 0) {
+					// continuation bytes
+				}
+			} else {
+				pos += schema.size(f);
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Packs a normalized coordinate : zigzag fixed-point offset to the nearest
+	 * boundary b in the high bits, b + 1 (b being -1, 0, 1 or 2) in the two low
+	 * bits
+	 */
+	static long encodeCoordinate(double c) {
+		long boundary = Math.round(c);
+		if (boundary < -1 || boundary > 2) {
+			throw new IllegalArgumentException("Coordinate too far from the square: " + c);
+		}
+		long q = Math.round((c - boundary) * SCALE);
+		return ((q << 1) ^ (q >> 63)) << 2 | (boundary + 1);
+	}
+
+	static double decodeCoordinate(long v) {
+		long zigzag = v >>> 2;
+		long q = (zigzag >>> 1) ^ -(zigzag & 1);
+		return (v & 3) - 1 + q / SCALE;
+	}
+
+	private static int writeVarLong(byte[] b, int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			b[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		b[pos++] = (byte) v;
+		return pos;
+	}
+
+	private long readVarLong() {
+		long v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = raw[rawPos++];
+			v |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return v;
+	}
+
+	/**
+	 * Returns the size of the last frame encoded or decoded
+	 *
+	 * @return The size of the raw frame (bytes)
+	 */
+	public int getLastFrameLength() {
+		return lastFrameLength;
+	}
+
+	/**
+	 * Returns the size of the frames the codec can hold without growing
+	 *
+	 * @return The capacity of the codec (bytes)
+	 */
+	public int getCapacity() {
+		return raw.length + relayed.length + stored.length;
+	}
+
+}
@@ -0,0 +1,92 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Sends the creatures of a MigrationBatch to the server and reads back their
+ * re-entering positions and extended data, in place.
+ *
+ * The records of the batch are already laid out as on the wire (two doubles
+ * then the extended data for each creature), so they are handed to the stream
+ * as they are, without any encoding buffer, by chunks of at most CHUNK_SIZE
+ * bytes : a chunk is written, then its answer is read back in place before the
+ * next one is sent. Only the number of system calls differs from sending the
+ * creatures one by one.
+ */
+public class CreatureCodec {
+
+	/**
+	 * Size of a chunk (bytes). It must stay well below the buffering of the
+	 * transports, otherwise the server could block on its answer while we still
+	 * write the chunk.
+	 */
+	public static final int CHUNK_SIZE = 8192;
+
+	private final DataInputStream input;
+	private final DataOutputStream output;
+
+	/**
+	 * Creates a codec for a connection
+	 *
+	 * @param input
+	 *            The stream carrying the data sent by the server
+	 *
+	 * @param output
+	 *            The stream carrying the data sent to the server
+	 */
+	public CreatureCodec(DataInputStream input, DataOutputStream output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	/**
+	 * Exchanges the creatures of the batch with the server. On return, the batch
+	 * holds the creatures as sent back by the server.
+	 *
+	 * @param batch
+	 *            The creatures to send
+	 *
+	 * @throws IOException
+	 *             If the exchange with the server fails
+	 */
+	public void exchange(MigrationBatch batch) throws IOException {
+		int perChunk = Math.max(1, CHUNK_SIZE / batch.getRecordLength());
+
+		for (int first = 0; first < batch.size(); first += perChunk) {
+			int last = Math.min(batch.size(), first + perChunk);
+			batch.write(output, first, last);
+			output.flush();
+			batch.read(input, first, last);
+		}
+	}
+
+	/**
+	 * Exchanges the creatures of the batch with the server, which announced how
+	 * many creatures enter. When it is not the number of creatures sent, the
+	 * server is a broker (see RelocationPolicy) : it reads all the creatures
+	 * before answering, so they are all written before the entering ones are
+	 * read.
+	 *
+	 * @param batch
+	 *            The creatures to send, replaced by the entering ones
+	 *
+	 * @param entering
+	 *            The number of entering creatures announced by the server
+	 *
+	 * @throws IOException
+	 *             If the exchange with the server fails
+	 */
+	public void exchange(MigrationBatch batch, int entering) throws IOException {
+		if (entering == batch.size()) {
+			exchange(batch);
+			return;
+		}
+		batch.write(output, 0, batch.size());
+		output.flush();
+		batch.setSize(entering);
+		batch.read(input, 0, entering);
+	}
+
+}
@@ -0,0 +1,193 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reusable list of the tags of migrating creatures. The tag of a creature is
+ * the session of the client which first sent it, the sequence number of that
+ * message and its index in the message (see index()) : it stays the same when
+ * the client sends the creature again, so that a broker can tell the copies
+ * of a creature it already delivered (see DeliveryLog).
+ */
+public class CreatureTags {
+
+	private long[] sessions = new long[16];
+	private int[] messages = new int[16];
+	private int[] indexes = new int[16];
+	private int size;
+
+	/**
+	 * Returns the index of a creature in the tags of its message, the preys
+	 * and the predators of a message having distinct indexes
+	 *
+	 * @param prey
+	 *            True for a prey, false for a predator
+	 *
+	 * @param i
+	 *            The index of the creature in the list of its species
+	 *
+	 * @return The index of the tag
+	 */
+	public static int index(boolean prey, int i) {
+		return prey ? i : ~i;
+	}
+
+	/**
+	 * Appends a tag
+	 *
+	 * @param session
+	 *            The session of the client which first sent the creature
+	 *
+	 * @param message
+	 *            The sequence number of that message
+	 *
+	 * @param index
+	 *            The index of the creature in the message
+	 */
+	public void add(long session, int message, int index) {
+		if (size == sessions.length) {
+			sessions = Arrays.copyOf(sessions, 2 * size);
+			messages = Arrays.copyOf(messages, 2 * size);
+			indexes = Arrays.copyOf(indexes, 2 * size);
+		}
+		sessions[size] = session;
+		messages[size] = message;
+		indexes[size] = index;
+		size++;
+	}
+
+	/**
+	 * Appends a tag of another list
+	 *
+	 * @param other
+	 *            The list holding the tag
+	 *
+	 * @param i
+	 *            The index of the tag in the other list
+	 */
+	public void add(CreatureTags other, int i) {
+		add(other.sessions[i], other.messages[i], other.indexes[i]);
+	}
+
+	/**
+	 * Appends all the tags of another list
+	 *
+	 * @param other
+	 *            The tags appended
+	 */
+	public void addAll(CreatureTags other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other, i);
+		}
+	}
+
+	/**
+	 * Removes the first tags, the next ones moving to the front
+	 *
+	 * @param count
+	 *            The number of tags removed
+	 */
+	public void removeFirst(int count) {
+		System.arraycopy(sessions, count, sessions, 0, size - count);
+		System.arraycopy(messages, count, messages, 0, size - count);
+		System.arraycopy(indexes, count, indexes, 0, size - count);
+		size -= count;
+	}
+
+	/**
+	 * Empties the list, keeping its storage
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of tags
+	 *
+	 * @return The number of creatures
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the session of the client which first sent creature i
+	 *
+	 * @param i
+	 *            The index of the tag
+	 *
+	 * @return The session, 0 if the client had none
+	 */
+	public long getSession(int i) {
+		return sessions[i];
+	}
+
+	/**
+	 * Returns the message which first sent creature i
+	 *
+	 * @param i
+	 *            The index of the tag
+	 *
+	 * @return The sequence number of the message
+	 */
+	public int getMessage(int i) {
+		return messages[i];
+	}
+
+	/**
+	 * Returns the index of creature i in the message which first sent it
+	 *
+	 * @param i
+	 *            The index of the tag
+	 *
+	 * @return The index of the creature, see index()
+	 */
+	public int getIndex(int i) {
+		return indexes[i];
+	}
+
+	/**
+	 * Writes a range of tags
+	 *
+	 * @param output
+	 *            The stream
+	 *
+	 * @param from
+	 *            The index of the first tag written
+	 *
+	 * @param to
+	 *            The index after the last tag written
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	public void write(DataOutputStream output, int from, int to) throws IOException {
+		for (int i = from; i < to; i++) {
+			output.writeLong(sessions[i]);
+			output.writeInt(messages[i]);
+			output.writeInt(indexes[i]);
+		}
+	}
+
+	/**
+	 * Reads tags, appended to the list
+	 *
+	 * @param input
+	 *            The stream
+	 *
+	 * @param count
+	 *            The number of tags read
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	public void read(DataInputStream input, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			add(input.readLong(), input.readInt(), input.readInt());
+		}
+	}
+
+}
@@ -0,0 +1,173 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Timing wheel of the deaths of the animals : SLOTS lists of animals, the
+ * animals dying at update u being in the list u % SLOTS.
+ *
+ * An animal is in at most one list : it keeps the update of its scheduled
+ * death and its index in the list, so that when its death is postponed (when
+ * it eats) its entry is moved to the new list, the last entry of the old list
+ * taking its place. An animal leaving the simulation stays in its list, and is
+ * dropped when its turn comes. Deaths more than SLOTS updates away stay in
+ * their list until their turn comes.
+ *
+ * The lists only grow, so once each of them has reached the largest number of
+ * deaths scheduled in its updates, scheduling does not allocate anything.
+ * getCapacity() tells when they grow.
+ */
+public class DeathWheel {
+
+	/** Number of lists, larger than the lifespan of the animals */
+	public static final int SLOTS = 64;
+
+	/** Update of the death of an animal not scheduled */
+	public static final int NONE = -1;
+
+	private final Animal[][] slots = new Animal[SLOTS][];
+	private final int[] sizes = new int[SLOTS];
+
+	/** Animals dying at the last update given to expire() */
+	private Animal[] due = new Animal[16];
+
+	/**
+	 * Creates an empty wheel
+	 */
+	public DeathWheel() {
+		for (int s = 0; s < SLOTS; s++) {
+			slots[s] = new Animal[16];
+		}
+	}
+
+	/**
+	 * Schedules the death of an animal, replacing the previous one
+	 *
+	 * @param a
+	 *            The animal
+	 *
+	 * @param update
+	 *            The update of its death
+	 */
+	public void schedule(Animal a, int update) {
+		if (a.getScheduledDeath() == update && isEntry(a)) {
+			return;
+		}
+		cancel(a);
+		a.setDeathUpdate(update);
+		int s = update & (SLOTS - 1);
+		if (sizes[s] == slots[s].length) {
+			slots[s] = Arrays.copyOf(slots[s], 2 * sizes[s]);
+		}
+		a.setDeathIndex(sizes[s]);
+		slots[s][sizes[s]++] = a;
+	}
+
+	/**
+	 * Removes the scheduled death of an animal, if any
+	 *
+	 * @param a
+	 *            The animal
+	 */
+	public void cancel(Animal a) {
+		if (isEntry(a)) {
+			int s = a.getScheduledDeath() & (SLOTS - 1);
+			Animal[] slot = slots[s];
+			int last = --sizes[s];
+			Animal moved = slot[last];
+			slot[a.getDeathIndex()] = moved;
+			moved.setDeathIndex(a.getDeathIndex());
+			slot[last] = null;
+		}
+		a.setDeathUpdate(NONE);
+	}
+
+	/**
+	 * Tells if the scheduled death of an animal is in this wheel, where it says
+	 */
+	private boolean isEntry(Animal a) {
+		int death = a.getScheduledDeath();
+		if (death == NONE) {
+			return false;
+		}
+		int s = death & (SLOTS - 1);
+		int k = a.getDeathIndex();
+		return k < sizes[s] && slots[s][k] == a;
+	}
+
+	/**
+	 * Finds the animals of the simulation dying at an update, see getDue()
+	 *
+	 * @param update
+	 *            The update
+	 *
+	 * @return The number of animals dying
+	 */
+	public int expire(int update) {
+		int s = update & (SLOTS - 1);
+		Animal[] slot = slots[s];
+		int kept = 0;
+		int count = 0;
+		for (int k = 0; k < sizes[s]; k++) {
+			Animal a = slot[k];
+			int death = a.getScheduledDeath();
+			if (death == update) {
+				// its only entry is dropped below, so it has no death scheduled
+				a.setDeathUpdate(NONE);
+				if (a.getChunk() != null) {
+					if (count == due.length) {
+						due = Arrays.copyOf(due, 2 * count);
+					}
+					due[count++] = a;
+				}
+			} else if (death > update && (death & (SLOTS - 1)) == s) {
+				a.setDeathIndex(kept);
+				slot[kept++] = a;
+			}
+		}
+		Arrays.fill(slot, kept, sizes[s], null);
+		sizes[s] = kept;
+		Arrays.fill(due, count, due.length, null);
+		return count;
+	}
+
+	/**
+	 * Returns an animal dying at the last update given to expire()
+	 *
+	 * @param k
+	 *            Index of the animal, lower than the value returned by expire()
+	 *
+	 * @return The animal
+	 */
+	public Animal getDue(int k) {
+		return due[k];
+	}
+
+	/**
+	 * Returns the number of entries the lists and the animals due can hold
+	 * without growing
+	 *
+	 * @return The capacity of the wheel
+	 */
+	public int getCapacity() {
+		int capacity = due.length;
+		for (int s = 0; s < SLOTS; s++) {
+			capacity += slots[s].length;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Forgets all the deaths
+	 */
+	public void clear() {
+		for (int s = 0; s < SLOTS; s++) {
+			for (int k = 0; k < sizes[s]; k++) {
+				slots[s][k].setDeathUpdate(NONE);
+			}
+			Arrays.fill(slots[s], 0, sizes[s], null);
+			sizes[s] = 0;
+		}
+	}
+
+}
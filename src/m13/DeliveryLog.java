@@ -0,0 +1,789 @@
+package m13;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Where the creatures taken by a broker went, by tag (see CreatureTags), so
+ * that the copies a client sends again once the broker forgot its session,
+ * e.g. after a restart, don't enter twice.
+ *
+ * A client keeps a copy of the creatures it sent until the broker tells they
+ * were read by their target (see ServerSession). The copies it sends again
+ * carry the tags of the first message, and the log tells what became of each
+ * one :
+ * <ul>
+ * <li>a creature held, or delivered to a client, is not taken again,</li>
+ * <li>one the broker never took, or lost, is taken as a new one,</li>
+ * <li>one delivered in the last answer of a client, before a restart, is in
+ * doubt until that client comes back and tells the last answer it read
+ * entirely : it may have been lost with the answer.</li>
+ * </ul>
+ *
+ * With a file, every delivery is appended before the answer carrying the
+ * creatures is sent, and the file is replayed when the broker starts. The
+ * records reach the file before the answer, but are not forced to the disk :
+ * the log survives the loss of the broker process, not of its machine. The
+ * file is rewritten with the live entries only when the log is opened and
+ * once it doubled since.
+ *
+ * An entry is forgotten once its source client was told the creature was read
+ * and acknowledged it, the client then dropping its copy, and the entries of a
+ * session the client replaced once it sent all its copies again. The log
+ * remembers the SOURCES clients which sent creatures most recently.
+ */
+public class DeliveryLog implements Closeable {
+
+	/** Fates of the creatures of a message, see take() */
+	public static final int NEW = 0;
+	public static final int DELIVERED = 1;
+	public static final int DOUBTFUL = 2;
+
+	/** Largest number of source clients remembered */
+	private static final int SOURCES = 1024;
+
+	/** Size of the file below which it is never rewritten (bytes) */
+	private static final long MIN_COMPACTION = 1 << 20;
+
+	/** Records of the file */
+	private static final int ANSWER = 'A', ENTRY = 'E', LAST = 'Q', SETTLED = 'S', REKEY = 'K', RETIRE = 'T',
+			RESTORED = 'P', RESOLVED = 'R', DISCARD = 'D';
+
+	/** Tag of a creature, as a key */
+	private static final class Tag {
+		private final long session;
+		private final int message;
+		private final int index;
+
+		private Tag(long session, int message, int index) {
+			this.session = session;
+			this.message = message;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Tag))
+				return false;
+			Tag t = (Tag) o;
+			return session == t.session && message == t.message && index == t.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(session) * 31 * 31 + message * 31 + index;
+		}
+	}
+
+	/**
+	 * Where a creature is : held, or in an answer of a target, and the message
+	 * of its source client which last sent it, which settles it
+	 */
+	private static final class Entry {
+		private long source;
+		private int message;
+		private boolean held;
+		private long target;
+		private int answer;
+
+		private Entry(long source, int message) {
+			this.source = source;
+			this.message = message;
+		}
+	}
+
+	/** The entries settled by each message of a source client */
+	private static final class Source {
+		private final TreeMap<Integer, ArrayList<Tag>> messages = new TreeMap<Integer, ArrayList<Tag>>();
+		private int settled = Integer.MIN_VALUE;
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final HashMap<Tag, Entry> entries = new HashMap<Tag, Entry>();
+
+	/** The source clients, the least recently active first */
+	private final LinkedHashMap<Long, Source> sources = new LinkedHashMap<Long, Source>(16, 0.75f, true);
+
+	/** Last answer of each target which delivered creatures */
+	private final HashMap<Long, Integer> answers = new HashMap<Long, Integer>();
+
+	/** Targets whose last answer was delivered before a restart and is in doubt */
+	private final HashSet<Long> doubtful = new HashSet<Long>();
+
+	/** Sessions replaced by each session, whose copies it is sending again */
+	private final HashMap<Long, ArrayList<Long>> replaced = new HashMap<Long, ArrayList<Long>>();
+
+	private final Path file;
+	private final long graceNs;
+	private final long opened = System.nanoTime();
+	private DataOutputStream out;
+	private long written, compacted;
+	private IOException failure;
+
+	/**
+	 * Creates an empty log kept in memory
+	 */
+	public DeliveryLog() {
+		this(null, 0);
+	}
+
+	private DeliveryLog(Path file, long graceMs) {
+		this.file = file;
+		this.graceNs = graceMs * 1_000_000L;
+	}
+
+	/**
+	 * Opens a log kept in a file, replaying it if it exists
+	 *
+	 * @param file
+	 *            The path of the file
+	 *
+	 * @param graceMs
+	 *            Time the targets of the answers in doubt have to come back,
+	 *            after which these answers are taken as read (ms)
+	 *
+	 * @return The log, with the deliveries of the file in it
+	 *
+	 * @throws IOException
+	 *             If the file cannot be read or written
+	 */
+	public static DeliveryLog open(String file, long graceMs) throws IOException {
+		DeliveryLog log = new DeliveryLog(Paths.get(file), graceMs);
+		if (Files.exists(log.file)) {
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+				log.replay(input);
+			}
+		}
+		// the broker lost the answers it sent last
+		log.doubtful.addAll(log.answers.keySet());
+		log.lock.lock();
+		try {
+			log.compact();
+		} finally {
+			log.lock.unlock();
+		}
+		return log;
+	}
+
+	/**
+	 * Records the creatures of a message, held from now on, except the copies
+	 * of creatures the broker already took : these now settle with this
+	 * message, and their fate tells what to do with them
+	 *
+	 * @param tags
+	 *            The tags of the creatures, those without a session being
+	 *            ignored
+	 *
+	 * @param source
+	 *            The session of the client which sent them
+	 *
+	 * @param message
+	 *            The message which sent them
+	 *
+	 * @param fates
+	 *            Receives the fate of each creature : NEW if it must be
+	 *            taken, DELIVERED if it was already, DOUBTFUL if it was in an
+	 *            answer in doubt (see getDoubtfulTarget())
+	 */
+	public void take(CreatureTags tags, long source, int message, int[] fates) {
+		lock.lock();
+		try {
+			for (int i = 0; i < tags.size(); i++) {
+				fates[i] = NEW;
+				if (tags.getSession(i) == 0)
+					continue;
+				Tag tag = tag(tags, i);
+				Entry entry = new Entry(source, message);
+				entry.held = true;
+				Entry known = entries.put(tag, entry);
+				index(source, message, tag);
+				if (known == null)
+					continue;
+				// a copy sent again
+				entries.put(tag, known);
+				fates[i] = inDoubt(known) ? DOUBTFUL : DELIVERED;
+				known.source = source;
+				known.message = message;
+				if (out != null && !known.held) {
+					try {
+						out.writeByte(REKEY);
+						tags.write(out, i, i + 1);
+						out.writeLong(source);
+						out.writeInt(message);
+						written += 29;
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a creature held which the broker dropped
+	 *
+	 * @param session
+	 *            The session of the client which first sent it
+	 *
+	 * @param message
+	 *            The message which first sent it
+	 *
+	 * @param index
+	 *            Its index in that message
+	 */
+	public void dropped(long session, int message, int index) {
+		if (session == 0)
+			return;
+		lock.lock();
+		try {
+			Tag tag = new Tag(session, message, index);
+			Entry entry = entries.get(tag);
+			if (entry != null && entry.held)
+				entries.remove(tag);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records the creatures of an answer, before it is sent
+	 *
+	 * @param target
+	 *            The session of the client answered, 0 if it has none
+	 *
+	 * @param answer
+	 *            The sequence number of the message answered
+	 *
+	 * @param origins
+	 *            The origins of the creatures of the answer
+	 *
+	 * @throws IOException
+	 *             If the file failed since the last answer
+	 */
+	public void delivered(long target, int answer, HoldingQueue.Origins origins) throws IOException {
+		CreatureTags tags = origins.getTags();
+		int count = 0;
+		for (int i = 0; i < tags.size(); i++) {
+			if (tags.getSession(i) != 0)
+				count++;
+		}
+		lock.lock();
+		try {
+			if (count > 0) {
+				for (int i = 0; i < tags.size(); i++) {
+					if (tags.getSession(i) == 0)
+						continue;
+					Tag tag = tag(tags, i);
+					Entry entry = entries.get(tag);
+					if (entry == null) {
+						entry = new Entry(origins.getSession(i), origins.getMessage(i));
+						entries.put(tag, entry);
+						index(entry.source, entry.message, tag);
+					}
+					entry.held = false;
+					entry.target = target;
+					entry.answer = answer;
+				}
+				if (target != 0)
+					answers.put(target, answer);
+				if (out != null) {
+					try {
+						out.writeByte(ANSWER);
+						out.writeLong(target);
+						out.writeInt(answer);
+						out.writeInt(count);
+						for (int i = 0; i < tags.size(); i++) {
+							if (tags.getSession(i) == 0)
+								continue;
+							// the message which settles it may be a later one
+							Entry entry = entries.get(tag(tags, i));
+							tags.write(out, i, i + 1);
+							out.writeLong(entry.source);
+							out.writeInt(entry.message);
+						}
+						written += 17 + 28L * count;
+					} catch (IOException e) {
+						fail(e);
+					}
+				}
+			}
+			if (out != null) {
+				try {
+					out.flush();
+					if (written > Math.max(MIN_COMPACTION, compacted))
+						compact();
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+			if (failure != null)
+				throw new IOException("The delivery log " + file + " failed", failure);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the fate of a creature sent again, see take()
+	 *
+	 * @param tags
+	 *            The tags holding the one of the creature
+	 *
+	 * @param i
+	 *            The index of the tag
+	 *
+	 * @return NEW, DELIVERED or DOUBTFUL
+	 */
+	public int getFate(CreatureTags tags, int i) {
+		lock.lock();
+		try {
+			Entry entry = entries.get(tag(tags, i));
+			return entry == null ? NEW : inDoubt(entry) ? DOUBTFUL : DELIVERED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the target of the answer in doubt which delivered a creature
+	 * sent again
+	 *
+	 * @param tags
+	 *            The tags holding the one of the creature
+	 *
+	 * @param i
+	 *            The index of the tag
+	 *
+	 * @return The session of the target, or 0 if the creature isn't in doubt
+	 */
+	public long getDoubtfulTarget(CreatureTags tags, int i) {
+		lock.lock();
+		try {
+			Entry entry = entries.get(tag(tags, i));
+			return entry != null && inDoubt(entry) ? entry.target : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean inDoubt(Entry entry) {
+		Integer last = answers.get(entry.target);
+		return !entry.held && doubtful.contains(entry.target) && last != null && last == entry.answer;
+	}
+
+	/**
+	 * Forgets the creatures a client no longer keeps a copy of
+	 *
+	 * @param source
+	 *            The session of the client
+	 *
+	 * @param settled
+	 *            The last message whose creatures the client knows were all
+	 *            read, as told by the broker
+	 */
+	public void settled(long source, int settled) {
+		lock.lock();
+		try {
+			Source s = source(source);
+			if (settled <= s.settled)
+				return;
+			s.settled = settled;
+			Map<Integer, ArrayList<Tag>> done = s.messages.headMap(settled, true);
+			for (ArrayList<Tag> tags : done.values()) {
+				for (Tag tag : tags) {
+					Entry entry = entries.get(tag);
+					if (entry != null && !entry.held && entry.source == source && entry.message <= settled)
+						entries.remove(tag);
+				}
+			}
+			done.clear();
+			if (out != null) {
+				try {
+					out.writeByte(SETTLED);
+					out.writeLong(source);
+					out.writeInt(settled);
+					written += 13;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Records a client starting a new session in place of the one the broker
+	 * forgot : it sends again the creatures it kept, those of the old
+	 * session being remembered until it sent them all
+	 *
+	 * @param old
+	 *            The session the client had
+	 *
+	 * @param session
+	 *            Its new session
+	 */
+	public void replace(long old, long session) {
+		lock.lock();
+		try {
+			ArrayList<Long> sessions = replaced.computeIfAbsent(session, s -> new ArrayList<Long>());
+			sessions.add(old);
+			ArrayList<Long> older = replaced.remove(old);
+			if (older != null)
+				sessions.addAll(older);
+			if (out != null) {
+				try {
+					out.writeByte(RETIRE);
+					out.writeLong(old);
+					out.writeLong(session);
+					written += 17;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the sessions a client replaced, once it sent again all the
+	 * creatures it kept
+	 *
+	 * @param session
+	 *            The session of the client
+	 */
+	public void restored(long session) {
+		lock.lock();
+		try {
+			ArrayList<Long> sessions = replaced.remove(session);
+			if (sessions == null)
+				return;
+			for (long old : sessions)
+				forget(old);
+			if (out != null) {
+				try {
+					out.writeByte(RESTORED);
+					out.writeLong(session);
+					written += 9;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Settles the answer in doubt of a target which came back
+	 *
+	 * @param target
+	 *            The session the target had
+	 *
+	 * @param lastRead
+	 *            The last message whose answer it read entirely
+	 *
+	 * @return 1 if the answer was read, 0 if it was lost, its creatures being
+	 *         forgotten, or -1 if no answer of the target was in doubt
+	 */
+	public int resolve(long target, int lastRead) {
+		lock.lock();
+		try {
+			if (!doubtful.remove(target))
+				return -1;
+			int answer = answers.get(target);
+			boolean read = answer <= lastRead;
+			if (!read) {
+				entries.values().removeIf(e -> !e.held && e.target == target && e.answer == answer);
+				answers.remove(target);
+			}
+			if (out != null) {
+				try {
+					out.writeByte(RESOLVED);
+					out.writeLong(target);
+					out.writeInt(lastRead);
+					written += 13;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+			return read ? 1 : 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the answers in doubt as read once their targets had the grace
+	 * period to come back
+	 *
+	 * @return The sessions of the targets, or null if none
+	 */
+	public long[] expire() {
+		if (graceNs == 0 || System.nanoTime() - opened < graceNs)
+			return null;
+		lock.lock();
+		try {
+			if (doubtful.isEmpty())
+				return null;
+			long[] targets = doubtful.stream().mapToLong(Long::longValue).toArray();
+			for (long target : targets)
+				resolve(target, Integer.MAX_VALUE);
+			return targets;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a client gone for good
+	 *
+	 * @param session
+	 *            The session of the client
+	 */
+	public void discard(long session) {
+		lock.lock();
+		try {
+			forget(session);
+			replaced.remove(session);
+			if (out != null) {
+				try {
+					out.writeByte(DISCARD);
+					out.writeLong(session);
+					written += 9;
+				} catch (IOException e) {
+					fail(e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of creatures the log knows the fate of
+	 *
+	 * @return The number of entries
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static Tag tag(CreatureTags tags, int i) {
+		return new Tag(tags.getSession(i), tags.getMessage(i), tags.getIndex(i));
+	}
+
+	/** Returns a source client, remembered as the most recent one */
+	private Source source(long session) {
+		Source source = sources.get(session);
+		if (source == null) {
+			source = new Source();
+			sources.put(session, source);
+			while (sources.size() > SOURCES) {
+				Iterator<Long> eldest = sources.keySet().iterator();
+				long gone = eldest.next();
+				forget(gone);
+			}
+		}
+		return source;
+	}
+
+	/** Files an entry under the message of its source which settles it */
+	private void index(long source, int message, Tag tag) {
+		source(source).messages.computeIfAbsent(message, m -> new ArrayList<Tag>()).add(tag);
+	}
+
+	/** Forgets the entries a source client settles */
+	private void forget(long session) {
+		Source source = sources.remove(session);
+		if (source != null) {
+			for (ArrayList<Tag> tags : source.messages.values()) {
+				for (Tag tag : tags) {
+					Entry entry = entries.get(tag);
+					if (entry != null && !entry.held && entry.source == session)
+						entries.remove(tag);
+				}
+			}
+		}
+		answers.remove(session);
+		doubtful.remove(session);
+	}
+
+	/** Keeps the first failure of the file, thrown by the next delivered() */
+	private void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+	}
+
+	/** Applies the records of the file, up to the first incomplete one */
+	private void replay(DataInputStream input) throws IOException {
+		HoldingQueue.Origins origins = new HoldingQueue.Origins();
+		CreatureTags tags = new CreatureTags();
+		try {
+			while (true) {
+				int record = input.read();
+				switch (record) {
+				case -1:
+					return;
+				case ANSWER: {
+					long target = input.readLong();
+					int answer = input.readInt();
+					int count = input.readInt();
+					origins.clear();
+					for (int i = 0; i < count; i++) {
+						tags.clear();
+						tags.read(input, 1);
+						origins.add(input.readLong(), input.readInt(), tags, 0);
+					}
+					delivered(target, answer, origins);
+					break;
+				}
+				case ENTRY: {
+					tags.clear();
+					tags.read(input, 1);
+					Entry entry = new Entry(input.readLong(), input.readInt());
+					entry.target = input.readLong();
+					entry.answer = input.readInt();
+					Tag tag = tag(tags, 0);
+					entries.put(tag, entry);
+					index(entry.source, entry.message, tag);
+					break;
+				}
+				case LAST:
+					answers.put(input.readLong(), input.readInt());
+					break;
+				case SETTLED:
+					settled(input.readLong(), input.readInt());
+					break;
+				case REKEY: {
+					tags.clear();
+					tags.read(input, 1);
+					Entry entry = entries.get(tag(tags, 0));
+					long source = input.readLong();
+					int message = input.readInt();
+					if (entry != null) {
+						entry.source = source;
+						entry.message = message;
+						index(source, message, tag(tags, 0));
+					}
+					break;
+				}
+				case RETIRE:
+					replace(input.readLong(), input.readLong());
+					break;
+				case RESTORED:
+					restored(input.readLong());
+					break;
+				case RESOLVED: {
+					long target = input.readLong();
+					int lastRead = input.readInt();
+					// the answer was in doubt when the target came back
+					if (answers.containsKey(target)) {
+						doubtful.add(target);
+						resolve(target, lastRead);
+					}
+					break;
+				}
+				case DISCARD:
+					discard(input.readLong());
+					break;
+				default:
+					throw new IOException("Corrupted delivery log: " + file);
+				}
+			}
+		} catch (EOFException e) {
+			// the broker stopped while appending the last record
+		}
+	}
+
+	/**
+	 * Rewrites the file with the live entries, then appends to it. Called
+	 * with the lock held.
+	 */
+	private void compact() throws IOException {
+		if (out != null)
+			out.close();
+		Path tmp = Paths.get(file + ".tmp");
+		try (DataOutputStream rewrite = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			HashSet<Long> targets = new HashSet<Long>();
+			CreatureTags tags = new CreatureTags();
+			for (Map.Entry<Tag, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				if (entry.held)
+					continue;
+				Tag tag = e.getKey();
+				tags.clear();
+				tags.add(tag.session, tag.message, tag.index);
+				rewrite.writeByte(ENTRY);
+				tags.write(rewrite, 0, 1);
+				rewrite.writeLong(entry.source);
+				rewrite.writeInt(entry.message);
+				rewrite.writeLong(entry.target);
+				rewrite.writeInt(entry.answer);
+				if (entry.target != 0)
+					targets.add(entry.target);
+			}
+			for (long target : targets) {
+				Integer answer = answers.get(target);
+				if (answer != null) {
+					rewrite.writeByte(LAST);
+					rewrite.writeLong(target);
+					rewrite.writeInt(answer);
+				}
+			}
+			for (Map.Entry<Long, ArrayList<Long>> e : replaced.entrySet()) {
+				for (long old : e.getValue()) {
+					rewrite.writeByte(RETIRE);
+					rewrite.writeLong(old);
+					rewrite.writeLong(e.getKey());
+				}
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		compacted = Files.size(file);
+		written = 0;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+	}
+
+}
@@ -1,37 +1,96 @@
 package m13;
 
-import java.util.ArrayList;
-
 /**
  * Master class of all the elements in the simulation
  * 
+ * The position of an element, and the previous one which gives the direction
+ * of its last move, are held in a slot of the EntityStore of its simulation.
+ * 
  * @author j.leflour
  */
 public class Element {
 
-	/**
-	 * List of all the positions the element has had, the last one being the current
-	 * one
-	 */
-	private ArrayList<Position> pos;
+	/** Store holding the state of the element */
+	final EntityStore store;
+
+	/** Slot of the element in the store */
+	final int slot;
 
 	/** Type of the element (plant, prey, predator) */
 	private String type;
 
+	/** Chunk of the world the element is counted in, see ChunkMap */
+	private Chunk chunk;
+
+	/** Neighbours of the element in the list of the elements of its chunk */
+	Element chunkPrev;
+	Element chunkNext;
+
+	/** Whether the element leaves the model at the end of the current stage */
+	boolean leaving;
+
+	/**
+	 * Creates a new element at (x, y), in a new slot of the store
+	 * 
+	 * @param store
+	 *            The store of the simulation of the element
+	 * 
+	 * @param x
+	 *            The x coordinate of the element
+	 * 
+	 * @param y
+	 *            The y coordinate of the element
+	 */
+	public Element(EntityStore store, double x, double y) {
+		this.store = store;
+		this.slot = store.add();
+		store.place(slot, x, y);
+	}
+
+	/**
+	 * Returns the x coordinate of the current position
+	 * 
+	 * @return The x coordinate
+	 */
+	public double getX() {
+		return store.getX(slot);
+	}
+
+	/**
+	 * Returns the y coordinate of the current position
+	 * 
+	 * @return The y coordinate
+	 */
+	public double getY() {
+		return store.getY(slot);
+	}
+
+	/**
+	 * Tells if the element moved since it was placed, i.e. if it has a previous
+	 * position
+	 * 
+	 * @return True if the previous position is known
+	 */
+	public boolean hasPrevious() {
+		return store.getFlag(slot, EntityStore.PREVIOUS);
+	}
+
 	/**
-	 * Creates a new element with an empty list of positions
+	 * Returns the x coordinate of the previous position
+	 * 
+	 * @return The x coordinate, meaningless if hasPrevious() is false
 	 */
-	public Element() {
-		pos = new ArrayList<Position>();
+	public double getPreviousX() {
+		return store.getPreviousX(slot);
 	}
 
 	/**
-	 * Returns the list of positions
+	 * Returns the y coordinate of the previous position
 	 * 
-	 * @return list of positions
+	 * @return The y coordinate, meaningless if hasPrevious() is false
 	 */
-	public ArrayList<Position> getPos() {
-		return this.pos;
+	public double getPreviousY() {
+		return store.getPreviousY(slot);
 	}
 
 	/**
@@ -54,33 +113,50 @@ public class Element {
 	}
 
 	/**
-	 * Adds a position to the list of positions
+	 * Moves the element to (x, y), the current position becoming the previous
+	 * one
+	 * 
+	 * @param x
+	 *            The x coordinate of the new position
+	 * 
+	 * @param y
+	 *            The y coordinate of the new position
+	 */
+	public void moveTo(double x, double y) {
+		store.move(slot, x, y);
+	}
+
+	/**
+	 * Returns the chunk the element is counted in
 	 * 
-	 * @param p
-	 *            Position to add
+	 * @return The chunk, null if the element is not in the world
 	 */
-	public void addPos(Position p) {
-		pos.add(p);
+	public Chunk getChunk() {
+		return chunk;
 	}
 
 	/**
-	 * Removes a position from the list of positions
+	 * Sets the chunk the element is counted in
 	 * 
-	 * @param p
-	 *            Position to remove
+	 * @param chunk
+	 *            The chunk
 	 */
-	public void removePos(Position p) {
-		pos.remove(p);
+	public void setChunk(Chunk chunk) {
+		this.chunk = chunk;
 	}
 
 	/**
-	 * Removes a position from the list of positions
+	 * Forgets the previous position and sets the current one to (x, y). Used
+	 * when a pooled element is brought back to life.
+	 * 
+	 * @param x
+	 *            The x coordinate of the position
 	 * 
-	 * @param i
-	 *            Index of the position to remove
+	 * @param y
+	 *            The y coordinate of the position
 	 */
-	public void removePos(int i) {
-		pos.remove(i);
+	public void resetPos(double x, double y) {
+		store.place(slot, x, y);
 	}
 
 }
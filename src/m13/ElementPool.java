@@ -0,0 +1,184 @@
+package m13;
+
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Circle;
+
+/**
+ * Free lists of dead elements and of their circles, so that births, plant
+ * spawns and entering animals reuse them instead of allocating new objects.
+ *
+ * An element must only be released once it is no longer referenced by the
+ * simulation (e.g. after an exiting animal has been sent to the server).
+ */
+public class ElementPool {
+
+	private final FreeList<Prey> preys = new FreeList<Prey>();
+	private final FreeList<Predator> predators = new FreeList<Predator>();
+	private final FreeList<Plant> plants = new FreeList<Plant>();
+	private final FreeList<Circle> circles = new FreeList<Circle>();
+
+	/** Clock of the simulation the animals live in */
+	private final Clock clock;
+
+	/** Store of the simulation, holding the state of the new elements */
+	private final EntityStore store;
+
+	/** Number of objects allocated because a free list was empty */
+	private long created;
+
+	/**
+	 * Creates empty free lists
+	 *
+	 * @param clock
+	 *            The clock of the simulation, given to the new animals
+	 *
+	 * @param store
+	 *            The store of the simulation, holding the new elements
+	 */
+	public ElementPool(Clock clock, EntityStore store) {
+		this.clock = clock;
+		this.store = store;
+	}
+
+	/**
+	 * Returns a newborn prey at (x, y)
+	 *
+	 * @param x
+	 *            The x coordinate of the prey
+	 *
+	 * @param y
+	 *            The y coordinate of the prey
+	 *
+	 * @return A prey, recycled if possible
+	 */
+	public Prey obtainPrey(double x, double y) {
+		Prey p = preys.poll();
+		if (p == null) {
+			created++;
+			p = new Prey(store, x, y);
+			p.setClock(clock);
+			return p;
+		}
+		p.reset(x, y);
+		return p;
+	}
+
+	/**
+	 * Returns a newborn predator at (x, y)
+	 *
+	 * @param x
+	 *            The x coordinate of the predator
+	 *
+	 * @param y
+	 *            The y coordinate of the predator
+	 *
+	 * @return A predator, recycled if possible
+	 */
+	public Predator obtainPredator(double x, double y) {
+		Predator p = predators.poll();
+		if (p == null) {
+			created++;
+			p = new Predator(store, x, y);
+			p.setClock(clock);
+			return p;
+		}
+		p.reset(x, y);
+		return p;
+	}
+
+	/**
+	 * Returns a plant at (x, y)
+	 *
+	 * @param x
+	 *            The x coordinate of the plant
+	 *
+	 * @param y
+	 *            The y coordinate of the plant
+	 *
+	 * @return A plant, recycled if possible
+	 */
+	public Plant obtainPlant(double x, double y) {
+		Plant p = plants.poll();
+		if (p == null) {
+			created++;
+			return new Plant(store, x, y);
+		}
+		p.resetPos(x, y);
+		return p;
+	}
+
+	/**
+	 * Returns a circle of the given color
+	 *
+	 * @param color
+	 *            The color of the circle
+	 *
+	 * @return A circle, recycled if possible
+	 */
+	public Circle obtainCircle(Color color) {
+		Circle c = circles.poll();
+		if (c == null) {
+			created++;
+			return new Circle(Simulation.ELEMENT_RADIUS, color);
+		}
+		c.setFill(color);
+		return c;
+	}
+
+	/**
+	 * Gives a dead element back to the pool
+	 *
+	 * @param e
+	 *            The element
+	 */
+	public void release(Element e) {
+		if (e instanceof Prey) {
+			preys.push((Prey) e);
+		} else if (e instanceof Predator) {
+			predators.push((Predator) e);
+		} else if (e instanceof Plant) {
+			plants.push((Plant) e);
+		}
+	}
+
+	/**
+	 * Gives the circle of a dead element back to the pool
+	 *
+	 * @param c
+	 *            The circle
+	 */
+	public void release(Circle c) {
+		circles.push(c);
+	}
+
+	/**
+	 * Returns the number of dead elements and circles waiting to be reused
+	 *
+	 * @return The number of free objects
+	 */
+	public int getFree() {
+		return preys.size() + predators.size() + plants.size() + circles.size();
+	}
+
+	/**
+	 * Returns the number of objects the pool had to allocate
+	 *
+	 * @return The number of allocations
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Returns the number of objects allocated by the pool plus the number of
+	 * free objects its lists can hold without growing : it only changes when
+	 * the pool allocates
+	 *
+	 * @return The capacity of the pool
+	 */
+	public long getCapacity() {
+		return created + preys.getCapacity() + predators.getCapacity() + plants.getCapacity()
+				+ circles.getCapacity();
+	}
+
+}
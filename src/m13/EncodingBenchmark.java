@@ -0,0 +1,94 @@
+package m13;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the raw and compact encodings of a migration : bytes per creature
+ * on the wire and encode/decode time per creature.
+ *
+ * The creatures look like the ones leaving a simulation square : one
+ * coordinate slightly outside the square, the other anywhere, age and lastate
+ * in their usual ranges.
+ *
+ * Usage: java m13.EncodingBenchmark [<creatures per update>]
+ */
+public class EncodingBenchmark {
+
+	private static final int ROUNDS = 20_000;
+
+	public static void main(String[] args) throws IOException {
+		int creatures = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+		ExtSchema schema = SchemaRegistry.schema("age,lastate");
+		MigrationBatch preys = new MigrationBatch(schema.length());
+		MigrationBatch preds = new MigrationBatch(schema.length());
+		fill(preys, creatures / 2, schema, new Random(1));
+		fill(preds, creatures - creatures / 2, schema, new Random(2));
+
+		CompactCodec codec = new CompactCodec(schema, schema);
+		MigrationBatch preysOut = new MigrationBatch(schema.length());
+		MigrationBatch predsOut = new MigrationBatch(schema.length());
+
+		// correctness, and warmup of the measured code
+		int rawLength = 0;
+		int storedLength = 0;
+		for (int r = 0; r < ROUNDS; r++) {
+			rawLength = codec.encode(preys, preds);
+			storedLength = codec.compress(rawLength);
+			codec.decompress(storedLength, rawLength);
+			codec.decode(preysOut, preys.size(), predsOut, preds.size());
+		}
+		check(preys, preysOut, schema);
+		check(preds, predsOut, schema);
+
+		long start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++) {
+			rawLength = codec.encode(preys, preds);
+			storedLength = codec.compress(rawLength);
+		}
+		double encodeNs = (System.nanoTime() - start) / ((double) ROUNDS * creatures);
+
+		start = System.nanoTime();
+		for (int r = 0; r < ROUNDS; r++) {
+			codec.decompress(storedLength, rawLength);
+			codec.decode(preysOut, preys.size(), predsOut, preds.size());
+		}
+		double decodeNs = (System.nanoTime() - start) / ((double) ROUNDS * creatures);
+
+		System.out.printf("creatures/update=%d%n", creatures);
+		System.out.printf("raw      : %.2f B/creature%n", 16.0 + schema.length());
+		System.out.printf("varint   : %.2f B/creature%n", (double) rawLength / creatures);
+		System.out.printf("varint+lz4: %.2f B/creature (frame header included)%n",
+				(8.0 + storedLength) / creatures);
+		System.out.printf("encode   : %.1f ns/creature%n", encodeNs);
+		System.out.printf("decode   : %.1f ns/creature%n", decodeNs);
+	}
+
+	private static void fill(MigrationBatch batch, int count, ExtSchema schema, Random rand) {
+		int ageOffset = schema.offsetOf("age");
+		int lastateOffset = schema.offsetOf("lastate");
+		double step = (double) Simulation.FED_SPEED / Simulation.SPACE_SIZE;
+		for (int n = 0; n < count; n++) {
+			double inside = rand.nextDouble();
+			double outside = rand.nextBoolean() ? -step * rand.nextDouble() : 1 + step * rand.nextDouble();
+			int i = rand.nextBoolean() ? batch.add(outside, inside) : batch.add(inside, outside);
+			batch.putInt(i, ageOffset, rand.nextInt((int) Simulation.AGE_PREY));
+			batch.putInt(i, lastateOffset, rand.nextInt((int) Simulation.LASTMEAL_PREY));
+		}
+	}
+
+	private static void check(MigrationBatch expected, MigrationBatch actual, ExtSchema schema) {
+		for (int i = 0; i < expected.size(); i++) {
+			boolean same = Math.abs(expected.getX(i) - actual.getX(i)) <= 1 / CompactCodec.SCALE
+					&& Math.abs(expected.getY(i) - actual.getY(i)) <= 1 / CompactCodec.SCALE;
+			for (int f = 0; f < schema.fieldCount(); f++) {
+				same &= expected.getInt(i, schema.offset(f)) == actual.getInt(i, schema.offset(f));
+			}
+			if (!same) {
+				throw new IllegalStateException("Creature " + i + " differs after decoding");
+			}
+		}
+	}
+
+}
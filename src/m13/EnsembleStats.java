@@ -0,0 +1,360 @@
+package m13;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Statistics of an ensemble of runs of the simulation, aggregated online : the
+ * runs report their counts tick by tick, possibly from several threads, and
+ * every tick keeps the running mean and variance (Welford), the extremes and
+ * the quantiles (QuantileDigest) of each series. The memory depends on the
+ * number of ticks, not on the number of runs, and the statistics can be
+ * queried while the runs go on.
+ *
+ * Besides the numbers of preys and predators, each run follows the
+ * oscillations of both populations : a peak (or a trough) is confirmed once
+ * the count has moved away from it by more than SWING of it, the period being
+ * the time between the last two peaks and the amplitude half the height of
+ * the last peak above the trough before it. Every tick then aggregates the
+ * last estimates of the runs which already have one.
+ *
+ * Usage, to run an ensemble of simulations and print the statistics every 100
+ * ticks : java m13.EnsembleStats [<runs> [<threads> [<ticks> [<elements>]]]]
+ */
+public class EnsembleStats {
+
+	/** Series aggregated at every tick */
+	public static final int PREYS = 0;
+	public static final int PREDATORS = 1;
+	public static final int PREY_PERIOD = 2;
+	public static final int PREY_AMPLITUDE = 3;
+	public static final int PREDATOR_PERIOD = 4;
+	public static final int PREDATOR_AMPLITUDE = 5;
+
+	private static final String[] SERIES = { "preys", "predators", "preyPeriod", "preyAmplitude", "predatorPeriod",
+			"predatorAmplitude" };
+
+	/** Relative move confirming a peak or a trough, and its smallest value */
+	private static final double SWING = 0.1;
+	private static final double MIN_SWING = 5;
+
+	/** Compression of the quantile digests of the counts */
+	private static final double COMPRESSION = 50;
+
+	/** Statistics of a series at a tick */
+	private static class Cell {
+		private long count;
+		private double mean;
+		private double m2;
+		private QuantileDigest digest;
+
+		private synchronized void add(double value) {
+			count++;
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+			if (digest != null) {
+				digest.add(value);
+			}
+		}
+	}
+
+	/**
+	 * A run feeding the statistics, to be used by one thread. It only keeps the
+	 * state of the oscillation estimates of the run.
+	 */
+	public class Run {
+
+		private final Oscillation preys = new Oscillation();
+		private final Oscillation predators = new Oscillation();
+		private boolean finished;
+
+		private Run() {
+		}
+
+		/**
+		 * Records the counts of a tick
+		 *
+		 * @param tick
+		 *            The tick, from 0, ignored beyond the ticks of the statistics
+		 *
+		 * @param nbPreys
+		 *            The number of preys
+		 *
+		 * @param nbPredators
+		 *            The number of predators
+		 */
+		public void record(int tick, int nbPreys, int nbPredators) {
+			preys.update(tick, nbPreys);
+			predators.update(tick, nbPredators);
+			if (tick < 0 || tick >= ticks) {
+				return;
+			}
+			cell(PREYS, tick).add(nbPreys);
+			cell(PREDATORS, tick).add(nbPredators);
+			if (preys.period > 0) {
+				cell(PREY_PERIOD, tick).add(preys.period);
+				cell(PREY_AMPLITUDE, tick).add(preys.amplitude);
+			}
+			if (predators.period > 0) {
+				cell(PREDATOR_PERIOD, tick).add(predators.period);
+				cell(PREDATOR_AMPLITUDE, tick).add(predators.amplitude);
+			}
+		}
+
+		/**
+		 * Tells the statistics that the run is over
+		 */
+		public void finish() {
+			if (!finished) {
+				finished = true;
+				finishedRuns.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Peaks and troughs of the count of a run
+	 */
+	private static class Oscillation {
+		private boolean rising = true;
+		private double extremum = -1;
+		private int extremumTick;
+		private double trough = Double.NaN;
+		private int peakTick = -1;
+
+		/** Last estimates, 0 until two peaks were seen */
+		private int period;
+		private double amplitude;
+
+		private void update(int tick, double value) {
+			if (extremum < 0) {
+				extremum = value;
+				extremumTick = tick;
+			} else if (rising ? value >= extremum : value <= extremum) {
+				extremum = value;
+				extremumTick = tick;
+			} else if (Math.abs(value - extremum) > Math.max(MIN_SWING, SWING * extremum)) {
+				if (rising) {
+					if (peakTick >= 0 && !Double.isNaN(trough)) {
+						period = extremumTick - peakTick;
+						amplitude = (extremum - trough) / 2;
+					}
+					peakTick = extremumTick;
+				} else {
+					trough = extremum;
+				}
+				rising = !rising;
+				extremum = value;
+				extremumTick = tick;
+			}
+		}
+	}
+
+	private final int ticks;
+	private final Cell[] cells;
+	private final AtomicInteger runs = new AtomicInteger();
+	private final AtomicInteger finishedRuns = new AtomicInteger();
+
+	/**
+	 * Creates the statistics of an ensemble
+	 *
+	 * @param ticks
+	 *            The number of ticks aggregated
+	 */
+	public EnsembleStats(int ticks) {
+		this.ticks = ticks;
+		cells = new Cell[SERIES.length * ticks];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new Cell();
+			// the quantiles of the counts only
+			if (i / ticks <= PREDATORS) {
+				cells[i].digest = new QuantileDigest(COMPRESSION);
+			}
+		}
+	}
+
+	/**
+	 * Starts a run
+	 *
+	 * @return The run, recording its counts
+	 */
+	public Run newRun() {
+		runs.incrementAndGet();
+		return new Run();
+	}
+
+	/**
+	 * Returns the number of runs started
+	 *
+	 * @return The number of runs
+	 */
+	public int getRuns() {
+		return runs.get();
+	}
+
+	/**
+	 * Returns the number of runs over
+	 *
+	 * @return The number of finished runs
+	 */
+	public int getFinishedRuns() {
+		return finishedRuns.get();
+	}
+
+	/**
+	 * Returns the number of ticks aggregated
+	 *
+	 * @return The number of ticks
+	 */
+	public int getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * Returns the number of values of a series at a tick
+	 *
+	 * @param series
+	 *            The series, e.g. PREYS
+	 *
+	 * @param tick
+	 *            The tick
+	 *
+	 * @return The number of runs which recorded a value
+	 */
+	public long getCount(int series, int tick) {
+		Cell c = cell(series, tick);
+		synchronized (c) {
+			return c.count;
+		}
+	}
+
+	/**
+	 * Returns the mean of a series at a tick
+	 *
+	 * @param series
+	 *            The series, e.g. PREYS
+	 *
+	 * @param tick
+	 *            The tick
+	 *
+	 * @return The mean, NaN without values
+	 */
+	public double getMean(int series, int tick) {
+		Cell c = cell(series, tick);
+		synchronized (c) {
+			return c.count == 0 ? Double.NaN : c.mean;
+		}
+	}
+
+	/**
+	 * Returns the variance of a series at a tick
+	 *
+	 * @param series
+	 *            The series, e.g. PREYS
+	 *
+	 * @param tick
+	 *            The tick
+	 *
+	 * @return The sample variance, NaN with less than two values
+	 */
+	public double getVariance(int series, int tick) {
+		Cell c = cell(series, tick);
+		synchronized (c) {
+			return c.count < 2 ? Double.NaN : c.m2 / (c.count - 1);
+		}
+	}
+
+	/**
+	 * Returns a quantile of the counts at a tick
+	 *
+	 * @param series
+	 *            PREYS or PREDATORS
+	 *
+	 * @param tick
+	 *            The tick
+	 *
+	 * @param q
+	 *            The quantile, between 0 and 1
+	 *
+	 * @return The approximate quantile, NaN without values or for the
+	 *         oscillation series
+	 */
+	public double getQuantile(int series, int tick, double q) {
+		Cell c = cell(series, tick);
+		synchronized (c) {
+			return c.digest == null ? Double.NaN : c.digest.quantile(q);
+		}
+	}
+
+	private Cell cell(int series, int tick) {
+		return cells[series * ticks + tick];
+	}
+
+	/**
+	 * Prints the statistics of a tick on one line
+	 */
+	private void print(int tick) {
+		StringBuilder line = new StringBuilder();
+		line.append(String.format("%5d", tick));
+		for (int s = PREYS; s <= PREDATORS; s++) {
+			line.append(String.format(" %s %.1f+-%.1f [%.0f %.0f %.0f]", SERIES[s], getMean(s, tick),
+					Math.sqrt(getVariance(s, tick)), getQuantile(s, tick, 0.1), getQuantile(s, tick, 0.5),
+					getQuantile(s, tick, 0.9)));
+		}
+		for (int s = PREY_PERIOD; s < SERIES.length; s++) {
+			line.append(String.format(" %s %.1f", SERIES[s], getMean(s, tick)));
+		}
+		System.out.println(line);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int nbRuns = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int nbTicks = args.length > 2 ? Integer.parseInt(args[2]) : Simulation.DURATION_S * Simulation.UPDATE_RATE_HZ;
+		int nbElements = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+		// must be set before the Simulation class is initialized : every run has
+		// its own embedded server
+		System.setProperty("m13.verbose", "false");
+		if (System.getProperty("m13.transport") == null) {
+			System.setProperty("m13.transport", "inprocess");
+		}
+
+		EnsembleStats stats = new EnsembleStats(nbTicks);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (int r = 0; r < nbRuns; r++) {
+			executor.execute(() -> {
+				Run run = stats.newRun();
+				Simulation simulation = new Simulation(nbElements);
+				try {
+					for (int t = 0; t < nbTicks; t++) {
+						simulation.update();
+						run.record(t, simulation.getPreys(), simulation.getPredators());
+					}
+				} finally {
+					simulation.close();
+					run.finish();
+				}
+			});
+		}
+		executor.shutdown();
+
+		// the statistics are available while the runs go on
+		long start = System.nanoTime();
+		while (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+			int last = nbTicks - 1;
+			System.out.printf("%.0f s: %d/%d runs over, preys at the last tick %.1f (%d runs)%n",
+					(System.nanoTime() - start) / 1e9, stats.getFinishedRuns(), nbRuns, stats.getMean(PREYS, last),
+					stats.getCount(PREYS, last));
+		}
+
+		for (int t = 0; t < nbTicks; t += 100) {
+			stats.print(t);
+		}
+		stats.print(nbTicks - 1);
+	}
+
+}
@@ -0,0 +1,379 @@
+package m13;
+
+import java.nio.ByteBuffer;
+
+/**
+ * State of the elements of a simulation, one slot per element, stored by
+ * columns in a single RecordStore : the x coordinates of all the slots, then
+ * their y coordinates, and so on (see the column constants). With
+ * -Dm13.recordStore=offheap the store is a direct buffer, outside of the heap,
+ * so the garbage collector neither scans nor copies the state of the
+ * population, whatever its size ; on the heap it is a single byte array, which
+ * the collector doesn't scan either.
+ *
+ * An Element only keeps its slot and the links the model needs (type, chunk,
+ * scheduled death). A slot is taken when an element is created and kept for
+ * its whole life : the ElementPool recycles dead elements with their slots, so
+ * slots are never freed.
+ *
+ * Ages and lastates are stored as stamps of the Clock (see Animal).
+ */
+public class EntityStore {
+
+	/** Flag of a slot whose previous position is known */
+	public static final byte PREVIOUS = 1;
+
+	/** Flag of an animal which ate a plant in the last update */
+	public static final byte ATE_PLANT = 2;
+
+	/**
+	 * Offsets of the columns for one slot (bytes) : the column of a field
+	 * starts at its offset times the capacity of the store
+	 */
+	private static final int X = 0;
+	private static final int Y = 8;
+	private static final int PREVIOUS_X = 16;
+	private static final int PREVIOUS_Y = 24;
+	private static final int SPEED = 32;
+	private static final int BIRTH = 40;
+	private static final int MEAL = 44;
+	private static final int REPRODUCED = 48;
+	private static final int FLAGS = 52;
+
+	/** Size of the fields of a slot (bytes) */
+	public static final int SLOT_LENGTH = 53;
+
+	/** Widths of the columns, in the order they are stored */
+	private static final int[] WIDTHS = { 8, 8, 8, 8, 8, 4, 4, 4, 1 };
+
+	private final String kind;
+	private RecordStore records;
+	private int capacity;
+	private int size;
+
+	/**
+	 * Creates an empty store
+	 *
+	 * @param kind
+	 *            The kind of RecordStore holding the columns : "heap" or
+	 *            "offheap"
+	 *
+	 * @param capacity
+	 *            The initial number of slots
+	 */
+	public EntityStore(String kind, int capacity) {
+		this.kind = kind;
+		this.capacity = Math.max(1, capacity);
+		this.records = RecordStore.create(kind, this.capacity * SLOT_LENGTH);
+	}
+
+	/**
+	 * Reads the columns of slots slots written by save(), see Checkpoint
+	 *
+	 * @param records
+	 *            The columns
+	 *
+	 * @param slots
+	 *            The number of slots of the columns
+	 */
+	EntityStore(RecordStore records, int slots) {
+		this.kind = null;
+		this.records = records;
+		this.capacity = slots;
+		this.size = slots;
+	}
+
+	/**
+	 * Takes a new slot, with all its fields at zero
+	 *
+	 * @return The slot
+	 */
+	public int add() {
+		if (size == capacity) {
+			grow();
+		}
+		int slot = size++;
+		for (int c = 0, offset = 0; c < WIDTHS.length; offset += WIDTHS[c++]) {
+			for (int b = 0; b < WIDTHS[c]; b++) {
+				records.putByte(capacity * offset + WIDTHS[c] * slot + b, (byte) 0);
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns the number of slots taken
+	 *
+	 * @return The number of slots
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of slots the store can hold without growing
+	 *
+	 * @return The capacity of the store
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the x coordinate of a slot
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The x coordinate
+	 */
+	public double getX(int slot) {
+		return records.getDouble(capacity * X + 8 * slot);
+	}
+
+	/**
+	 * Returns the y coordinate of a slot
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The y coordinate
+	 */
+	public double getY(int slot) {
+		return records.getDouble(capacity * Y + 8 * slot);
+	}
+
+	/**
+	 * Returns the x coordinate of the previous position of a slot
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The x coordinate, meaningless if the flag PREVIOUS is not set
+	 */
+	public double getPreviousX(int slot) {
+		return records.getDouble(capacity * PREVIOUS_X + 8 * slot);
+	}
+
+	/**
+	 * Returns the y coordinate of the previous position of a slot
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The y coordinate, meaningless if the flag PREVIOUS is not set
+	 */
+	public double getPreviousY(int slot) {
+		return records.getDouble(capacity * PREVIOUS_Y + 8 * slot);
+	}
+
+	/**
+	 * Sets the position of a slot, forgetting its previous one
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param x
+	 *            The x coordinate
+	 *
+	 * @param y
+	 *            The y coordinate
+	 */
+	public void place(int slot, double x, double y) {
+		records.putDouble(capacity * X + 8 * slot, x);
+		records.putDouble(capacity * Y + 8 * slot, y);
+		setFlag(slot, PREVIOUS, false);
+	}
+
+	/**
+	 * Moves a slot to (x, y), its current position becoming the previous one
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param x
+	 *            The x coordinate
+	 *
+	 * @param y
+	 *            The y coordinate
+	 */
+	public void move(int slot, double x, double y) {
+		records.putDouble(capacity * PREVIOUS_X + 8 * slot, getX(slot));
+		records.putDouble(capacity * PREVIOUS_Y + 8 * slot, getY(slot));
+		records.putDouble(capacity * X + 8 * slot, x);
+		records.putDouble(capacity * Y + 8 * slot, y);
+		setFlag(slot, PREVIOUS, true);
+	}
+
+	/**
+	 * Returns the speed of an animal
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The speed
+	 */
+	public double getSpeed(int slot) {
+		return records.getDouble(capacity * SPEED + 8 * slot);
+	}
+
+	/**
+	 * Sets the speed of an animal
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param speed
+	 *            The speed
+	 */
+	public void setSpeed(int slot, double speed) {
+		records.putDouble(capacity * SPEED + 8 * slot, speed);
+	}
+
+	/**
+	 * Returns the age counter of the clock when an animal was born
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The stamp
+	 */
+	public int getBirth(int slot) {
+		return records.getInt(capacity * BIRTH + 4 * slot);
+	}
+
+	/**
+	 * Sets the age counter of the clock when an animal was born
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param birth
+	 *            The stamp
+	 */
+	public void setBirth(int slot, int birth) {
+		records.putInt(capacity * BIRTH + 4 * slot, birth);
+	}
+
+	/**
+	 * Returns the hunger counter of the clock when an animal last ate, see Animal
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The stamp
+	 */
+	public int getMeal(int slot) {
+		return records.getInt(capacity * MEAL + 4 * slot);
+	}
+
+	/**
+	 * Sets the hunger counter of the clock when an animal last ate
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param meal
+	 *            The stamp
+	 */
+	public void setMeal(int slot, int meal) {
+		records.putInt(capacity * MEAL + 4 * slot, meal);
+	}
+
+	/**
+	 * Returns the age counter of the clock when an animal last reproduced
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @return The stamp
+	 */
+	public int getReproduced(int slot) {
+		return records.getInt(capacity * REPRODUCED + 4 * slot);
+	}
+
+	/**
+	 * Sets the age counter of the clock when an animal last reproduced
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param reproduced
+	 *            The stamp
+	 */
+	public void setReproduced(int slot, int reproduced) {
+		records.putInt(capacity * REPRODUCED + 4 * slot, reproduced);
+	}
+
+	/**
+	 * Tells if a flag of a slot is set
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param flag
+	 *            PREVIOUS or ATE_PLANT
+	 *
+	 * @return True if the flag is set
+	 */
+	public boolean getFlag(int slot, byte flag) {
+		return (records.getByte(capacity * FLAGS + slot) & flag) != 0;
+	}
+
+	/**
+	 * Sets or clears a flag of a slot
+	 *
+	 * @param slot
+	 *            The slot
+	 *
+	 * @param flag
+	 *            PREVIOUS or ATE_PLANT
+	 *
+	 * @param set
+	 *            True to set the flag, false to clear it
+	 */
+	public void setFlag(int slot, byte flag, boolean set) {
+		int offset = capacity * FLAGS + slot;
+		byte flags = records.getByte(offset);
+		records.putByte(offset, (byte) (set ? flags | flag : flags & ~flag));
+	}
+
+	/**
+	 * Returns the number of bytes save() writes
+	 *
+	 * @return The size of the columns of the slots taken
+	 */
+	public long getSavedLength() {
+		return (long) size * SLOT_LENGTH;
+	}
+
+	/**
+	 * Copies the columns of the slots taken to a buffer, such as a mapped
+	 * file, column by column : they can be read back by a store over the same
+	 * bytes.
+	 *
+	 * @param buffer
+	 *            The buffer, written from its position, which is advanced
+	 */
+	public void save(ByteBuffer buffer) {
+		for (int c = 0, offset = 0; c < WIDTHS.length; offset += WIDTHS[c++]) {
+			buffer.put(records.slice(capacity * offset, size * WIDTHS[c]));
+		}
+	}
+
+	/**
+	 * Doubles the capacity, moving every column to its new offset
+	 */
+	private void grow() {
+		if ((long) 2 * capacity * SLOT_LENGTH > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many elements: " + size);
+		}
+		RecordStore grown = RecordStore.create(kind, 2 * capacity * SLOT_LENGTH);
+		for (int c = 0, offset = 0; c < WIDTHS.length; offset += WIDTHS[c++]) {
+			grown.slice(2 * capacity * offset, size * WIDTHS[c]).put(records.slice(capacity * offset, size * WIDTHS[c]));
+		}
+		records = grown;
+		capacity *= 2;
+	}
+
+}
@@ -0,0 +1,246 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Layout of the extended data carried by the creatures of one species.
+ *
+ * The fields are laid out one after the other at fixed offsets, so that the
+ * server can find a field of a creature (e.g. its age) by its offset without
+ * decoding the other ones. A schema is sent by the simulation to the server
+ * during the handshake, see SchemaRegistry.
+ *
+ * On the simulation side each field also has an accessor reading and writing
+ * it in an Animal. Schemas read from the wire by the server have no accessors.
+ */
+public class ExtSchema {
+
+	/** Type code of a big-endian 4-byte int field */
+	public static final byte INT = 1;
+
+	/** Type code of a big-endian 8-byte double field */
+	public static final byte DOUBLE = 2;
+
+	/** Type code of a single byte field */
+	public static final byte BYTE = 3;
+
+	/** Type code of an opaque field of any size */
+	public static final byte BYTES = 4;
+
+	private final String[] names;
+	private final byte[] types;
+	private final int[] sizes;
+	private final int[] offsets;
+	private final SchemaRegistry.Accessor[] accessors;
+	private final int length;
+
+	/**
+	 * Creates a schema
+	 *
+	 * @param names
+	 *            Names of the fields, in wire order
+	 *
+	 * @param types
+	 *            Type codes of the fields
+	 *
+	 * @param sizes
+	 *            Sizes of the fields (bytes)
+	 *
+	 * @param accessors
+	 *            Accessors of the fields, or null for a schema only used to route
+	 *            creatures
+	 */
+	public ExtSchema(String[] names, byte[] types, int[] sizes, SchemaRegistry.Accessor[] accessors) {
+		this.names = names;
+		this.types = types;
+		this.sizes = sizes;
+		this.accessors = accessors;
+		this.offsets = new int[names.length];
+		int offset = 0;
+		for (int f = 0; f < names.length; f++) {
+			offsets[f] = offset;
+			offset += sizes[f];
+		}
+		this.length = offset;
+	}
+
+	/**
+	 * Returns the size of the extended data of a creature
+	 *
+	 * @return The size of the extended data (bytes)
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of fields
+	 *
+	 * @return The number of fields
+	 */
+	public int fieldCount() {
+		return names.length;
+	}
+
+	/**
+	 * Returns the name of field f
+	 *
+	 * @param f
+	 *            Index of the field
+	 *
+	 * @return The name of the field
+	 */
+	public String name(int f) {
+		return names[f];
+	}
+
+	/**
+	 * Returns the type code of field f
+	 *
+	 * @param f
+	 *            Index of the field
+	 *
+	 * @return The type code of the field
+	 */
+	public byte type(int f) {
+		return types[f];
+	}
+
+	/**
+	 * Returns the offset of field f in the extended data
+	 *
+	 * @param f
+	 *            Index of the field
+	 *
+	 * @return The offset of the field
+	 */
+	public int offset(int f) {
+		return offsets[f];
+	}
+
+	/**
+	 * Returns the size of field f
+	 *
+	 * @param f
+	 *            Index of the field
+	 *
+	 * @return The size of the field (bytes)
+	 */
+	public int size(int f) {
+		return sizes[f];
+	}
+
+	/**
+	 * Returns the offset of the field called name
+	 *
+	 * @param name
+	 *            Name of the field
+	 *
+	 * @return The offset of the field, -1 if the schema has no such field
+	 */
+	public int offsetOf(String name) {
+		for (int f = 0; f < names.length; f++) {
+			if (names[f].equals(name)) {
+				return offsets[f];
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes the fields of animal a in the extended data of creature i
+	 *
+	 * @param a
+	 *            The animal
+	 *
+	 * @param batch
+	 *            The batch holding the creature
+	 *
+	 * @param i
+	 *            Index of the creature in the batch
+	 */
+	public void encode(Animal a, MigrationBatch batch, int i) {
+		for (int f = 0; f < accessors.length; f++) {
+			accessors[f].write(a, batch, i, offsets[f]);
+		}
+	}
+
+	/**
+	 * Sets the fields of animal a from the extended data of creature i
+	 *
+	 * @param batch
+	 *            The batch holding the creature
+	 *
+	 * @param i
+	 *            Index of the creature in the batch
+	 *
+	 * @param a
+	 *            The animal
+	 */
+	public void decode(MigrationBatch batch, int i, Animal a) {
+		for (int f = 0; f < accessors.length; f++) {
+			accessors[f].read(a, batch, i, offsets[f]);
+		}
+	}
+
+	/**
+	 * Writes the schema : the number of fields, then the name, type code and size
+	 * of each field
+	 *
+	 * @param output
+	 *            The stream to write to
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	public void write(DataOutputStream output) throws IOException {
+		output.writeShort(names.length);
+		for (int f = 0; f < names.length; f++) {
+			output.writeUTF(names[f]);
+			output.writeByte(types[f]);
+			output.writeShort(sizes[f]);
+		}
+	}
+
+	/**
+	 * Reads a schema written by write()
+	 *
+	 * @param input
+	 *            The stream to read from
+	 *
+	 * @return A schema without accessors
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	public static ExtSchema read(DataInputStream input) throws IOException {
+		int count = input.readUnsignedShort();
+		String[] names = new String[count];
+		byte[] types = new byte[count];
+		int[] sizes = new int[count];
+		for (int f = 0; f < count; f++) {
+			names[f] = input.readUTF();
+			types[f] = input.readByte();
+			sizes[f] = input.readUnsignedShort();
+		}
+		return new ExtSchema(names, types, sizes, null);
+	}
+
+	/**
+	 * Returns a readable description of the schema, e.g. "age:0+4 lastate:4+4"
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int f = 0; f < names.length; f++) {
+			if (f > 0) {
+				sb.append(' ');
+			}
+			sb.append(names[f]).append(':').append(offsets[f]).append('+').append(sizes[f]);
+		}
+		return sb.toString();
+	}
+
+}
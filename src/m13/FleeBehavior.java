@@ -0,0 +1,38 @@
+package m13;
+
+/**
+ * Default behavior of the preys : a prey flees the closest predator it sees
+ * at twice its speed, and then can't reproduce during the update, and
+ * otherwise moves randomly.
+ */
+public class FleeBehavior implements Behavior<Prey> {
+
+	@Override
+	public boolean move(Prey a, Vision vision) {
+		a.setSpeed(Simulation.SPEED);
+
+		if (a.getAtePlant()) {
+			a.setSpeed(a.getSpeed() / 2);
+			a.setAtePlant(false);
+		}
+
+		double x = a.getX();
+		double y = a.getY();
+
+		double visionRange = 2 * a.getSpeed();
+
+		Position closestPredPos = vision.closest(false, x, y, visionRange);
+
+		// If the closest predator is within range of the prey, the prey flees from the
+		// predator twice as fast; otherwise it just moves randomly
+		if (closestPredPos != null) {
+			boolean gotOut = a.moveBrownian(2 * a.getSpeed(),
+					Math.PI + Position.angle(x, y, closestPredPos.getX(), closestPredPos.getY()));
+			// Preys can't reproduce when a predator is nearby
+			a.setHasReproduced(true);
+			return gotOut;
+		}
+		return a.moveBrownian(a.getSpeed());
+	}
+
+}
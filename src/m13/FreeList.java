@@ -0,0 +1,65 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Stack of free objects waiting to be reused, such as the dead elements of the
+ * ElementPool. Unlike an ArrayDeque, it tells the number of objects it can
+ * hold without growing, so that the updates which grow it can be told apart
+ * (see Simulation.getCapacity()).
+ *
+ * @param <T>
+ *            The type of the objects
+ */
+public class FreeList<T> {
+
+	private Object[] items = new Object[16];
+	private int size;
+
+	/**
+	 * Pushes a free object
+	 *
+	 * @param item
+	 *            The object
+	 */
+	public void push(T item) {
+		if (size == items.length) {
+			items = Arrays.copyOf(items, 2 * size);
+		}
+		items[size++] = item;
+	}
+
+	/**
+	 * Takes the last object pushed
+	 *
+	 * @return The object, or null if the list is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		if (size == 0) {
+			return null;
+		}
+		T item = (T) items[--size];
+		items[size] = null;
+		return item;
+	}
+
+	/**
+	 * Returns the number of free objects
+	 *
+	 * @return The number of objects
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of objects the list can hold without growing
+	 *
+	 * @return The capacity of the list
+	 */
+	public int getCapacity() {
+		return items.length;
+	}
+
+}
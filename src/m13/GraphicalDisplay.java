@@ -35,6 +35,16 @@ public class GraphicalDisplay extends Application {
 	/** Serves as a clock that periodically triggers simulation updates */
 	private Timeline timeline;
 
+	/** Part of the world shown, moved with the mouse */
+	private Viewport viewport;
+
+	/** Builds the content of the scene from the part of the world shown */
+	private ViewRenderer renderer;
+
+	/** Last position of the mouse while dragging (pixels) */
+	private double mouseX;
+	private double mouseY;
+
 	/**
 	 * Initialize the graphical display.
 	 * 
@@ -46,6 +56,10 @@ public class GraphicalDisplay extends Application {
 		// method.
 		root = new Group();
 
+		// The camera first shows the whole space, whatever its size
+		viewport = new Viewport(Simulation.VIEW_SIZE);
+		renderer = new ViewRenderer(viewport);
+
 		// Create a simulation with 220 elements
 		simulation = new Simulation(220);
 
@@ -56,7 +70,25 @@ public class GraphicalDisplay extends Application {
 		timeline.play();
 
 		// Show a graphical window with all the graph scene content
-		primaryStage.setScene(new Scene(root, Simulation.SPACE_SIZE, Simulation.SPACE_SIZE, Simulation.BACKGROUND));
+		Scene scene = new Scene(root, Simulation.VIEW_SIZE, Simulation.VIEW_SIZE, Simulation.BACKGROUND);
+
+		// Dragging the mouse pans the camera, the wheel zooms around the mouse
+		scene.setOnMousePressed(e -> {
+			mouseX = e.getX();
+			mouseY = e.getY();
+		});
+		scene.setOnMouseDragged(e -> {
+			viewport.pan(e.getX() - mouseX, e.getY() - mouseY);
+			mouseX = e.getX();
+			mouseY = e.getY();
+			render();
+		});
+		scene.setOnScroll(e -> {
+			viewport.zoom(Math.pow(1.1, e.getDeltaY() / 40), e.getX(), e.getY());
+			render();
+		});
+
+		primaryStage.setScene(scene);
 		primaryStage.setTitle("Swaggest Animation Ever");
 		primaryStage.setResizable(false);
 		primaryStage.show();
@@ -74,12 +106,19 @@ public class GraphicalDisplay extends Application {
 			// first update the elements coordinates
 			simulation.update();
 
-			// then update the scene graph (in a rather brutal way)
-			root.getChildren().clear();
-			root.getChildren().addAll(simulation.getElements());
+			// then update the scene graph with what the camera shows
+			render();
 		}
 	}
 
+	/**
+	 * Shows the part of the world seen by the camera : the elements in it, or a
+	 * heatmap of their density when there are too many of them
+	 */
+	private void render() {
+		root.getChildren().setAll(renderer.render(simulation.getChunks()));
+	}
+
 	/**
 	 * Application main method: launch() creates an instance of this class and calls
 	 * start().
@@ -0,0 +1,195 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * SpatialIndex dividing the torus in a grid of square cells.
+ *
+ * build() sorts the points by cell with a counting sort, so the points of a
+ * cell are contiguous in the arrays and a query only reads the cells
+ * overlapping its range. The cells are at least as large as the distance the
+ * index is made for, so that a query of that distance reads 9 cells. Building
+ * and querying don't allocate once the arrays are large enough.
+ *
+ * The cells are not stored in an array of the whole grid, which would not fit
+ * in memory for a large world, but hashed into as many buckets as points : a
+ * bucket may hold the points of several cells, told apart by their cell key.
+ * The memory of the index is thus proportional to the number of points,
+ * whatever the size of the world.
+ */
+public class GridIndex implements SpatialIndex {
+
+	/** Side of the torus */
+	private final double space;
+
+	/** Number of cells on a side of the torus */
+	private final int side;
+
+	/** Side of a cell */
+	private final double width;
+
+	/** Inserted points, in insertion order */
+	private int[] ids = new int[64];
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private int count;
+
+	/** Points sorted by bucket, with the key of their cell */
+	private int[] sortedIds = new int[64];
+	private double[] sortedXs = new double[64];
+	private double[] sortedYs = new double[64];
+	private long[] sortedKeys = new long[64];
+
+	/** Index of the first point of each bucket in the sorted arrays */
+	private int[] bucketStart = new int[65];
+
+	/** Number of buckets of the last build, a power of two */
+	private int buckets;
+
+	/** Bucket of each inserted point */
+	private int[] cells = new int[64];
+
+	/**
+	 * Creates an empty grid
+	 *
+	 * @param space
+	 *            The side of the torus
+	 *
+	 * @param dist
+	 *            The usual distance of the queries, the minimum side of a cell
+	 */
+	public GridIndex(double space, double dist) {
+		this.space = space;
+		this.side = Math.max(1, (int) (space / dist));
+		this.width = space / side;
+	}
+
+	@Override
+	public void clear() {
+		count = 0;
+	}
+
+	@Override
+	public void insert(int id, double x, double y) {
+		if (count == ids.length) {
+			grow();
+		}
+		ids[count] = id;
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+
+	@Override
+	public void build() {
+		buckets = Integer.highestOneBit(Math.max(16, count - 1) << 1);
+		if (bucketStart.length < buckets + 1) {
+			bucketStart = new int[buckets + 1];
+		}
+		int[] start = bucketStart;
+		Arrays.fill(start, 0, buckets + 1, 0);
+		for (int k = 0; k < count; k++) {
+			int b = bucket(key(column(xs[k]), column(ys[k])));
+			cells[k] = b;
+			start[b + 1]++;
+		}
+		for (int b = 0; b < buckets; b++) {
+			start[b + 1] += start[b];
+		}
+		// start[b] is used as the insertion point of bucket b, then shifted back
+		for (int k = 0; k < count; k++) {
+			int s = start[cells[k]]++;
+			sortedIds[s] = ids[k];
+			sortedXs[s] = xs[k];
+			sortedYs[s] = ys[k];
+			sortedKeys[s] = key(column(xs[k]), column(ys[k]));
+		}
+		for (int b = buckets; b > 0; b--) {
+			start[b] = start[b - 1];
+		}
+		start[0] = 0;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public int getCapacity() {
+		return ids.length + bucketStart.length;
+	}
+
+	@Override
+	public void query(double x, double y, double dist, Visitor visitor) {
+		int reach = (int) Math.ceil(dist / width);
+		int span = Math.min(side, 2 * reach + 1);
+
+		// reading more cells than there are points : checking every point is faster
+		if ((long) span * span > count) {
+			for (int k = 0; k < count; k++) {
+				visit(k, x, y, dist, visitor);
+			}
+			return;
+		}
+
+		int firstColumn = span == side ? 0 : column(x) - reach;
+		int firstRow = span == side ? 0 : column(y) - reach;
+		for (int i = 0; i < span; i++) {
+			int cx = Math.floorMod(firstColumn + i, side);
+			for (int j = 0; j < span; j++) {
+				long key = key(cx, Math.floorMod(firstRow + j, side));
+				int b = bucket(key);
+				for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+					if (sortedKeys[k] == key) {
+						visit(k, x, y, dist, visitor);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Visits the sorted point k if it is within the range
+	 */
+	private void visit(int k, double x, double y, double dist, Visitor visitor) {
+		double half = space / 2;
+		double dx = Math.abs(sortedXs[k] - x);
+		double dy = Math.abs(sortedYs[k] - y);
+		if (dx > half) {
+			dx = space - dx;
+		}
+		if (dy > half) {
+			dy = space - dy;
+		}
+		if (dx <= dist && dy <= dist) {
+			visitor.visit(sortedIds[k]);
+		}
+	}
+
+	private int column(double v) {
+		return Math.min(side - 1, Math.max(0, (int) (v / width)));
+	}
+
+	private long key(int cx, int cy) {
+		return (long) cy * side + cx;
+	}
+
+	private int bucket(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & (buckets - 1);
+	}
+
+	private void grow() {
+		int capacity = ids.length * 2;
+		ids = Arrays.copyOf(ids, capacity);
+		xs = Arrays.copyOf(xs, capacity);
+		ys = Arrays.copyOf(ys, capacity);
+		cells = Arrays.copyOf(cells, capacity);
+		sortedIds = new int[capacity];
+		sortedXs = new double[capacity];
+		sortedYs = new double[capacity];
+		sortedKeys = new long[capacity];
+	}
+
+}
@@ -0,0 +1,98 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * RecordStore in a byte array. Streams read and write the array directly.
+ */
+public class HeapRecordStore implements RecordStore {
+
+	private byte[] bytes;
+
+	/** View over bytes, reading and writing the fields */
+	private ByteBuffer view;
+
+	/**
+	 * Creates an empty storage
+	 *
+	 * @param capacity
+	 *            The initial capacity (bytes)
+	 */
+	public HeapRecordStore(int capacity) {
+		bytes = new byte[capacity];
+		view = ByteBuffer.wrap(bytes);
+	}
+
+	@Override
+	public int capacity() {
+		return bytes.length;
+	}
+
+	@Override
+	public void ensureCapacity(int capacity) {
+		if (capacity > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(capacity, 2 * bytes.length));
+			view = ByteBuffer.wrap(bytes);
+		}
+	}
+
+	@Override
+	public double getDouble(int offset) {
+		return view.getDouble(offset);
+	}
+
+	@Override
+	public void putDouble(int offset, double value) {
+		view.putDouble(offset, value);
+	}
+
+	@Override
+	public int getInt(int offset) {
+		return view.getInt(offset);
+	}
+
+	@Override
+	public void putInt(int offset, int value) {
+		view.putInt(offset, value);
+	}
+
+	@Override
+	public byte getByte(int offset) {
+		return bytes[offset];
+	}
+
+	@Override
+	public void putByte(int offset, byte value) {
+		bytes[offset] = value;
+	}
+
+	@Override
+	public void get(int offset, byte[] dst, int dstOffset, int length) {
+		System.arraycopy(bytes, offset, dst, dstOffset, length);
+	}
+
+	@Override
+	public void put(int offset, byte[] src, int srcOffset, int length) {
+		System.arraycopy(src, srcOffset, bytes, offset, length);
+	}
+
+	@Override
+	public void write(OutputStream output, int offset, int length) throws IOException {
+		output.write(bytes, offset, length);
+	}
+
+	@Override
+	public void read(DataInputStream input, int offset, int length) throws IOException {
+		input.readFully(bytes, offset, length);
+	}
+
+	@Override
+	public ByteBuffer slice(int offset, int length) {
+		return ByteBuffer.wrap(bytes, offset, length).slice();
+	}
+
+}
@@ -0,0 +1,625 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Creatures held by a broker SimpleServer (see RelocationPolicy) until they
+ * enter their target client, keyed by the target and by the update of the
+ * target they are released at.
+ *
+ * Each target has its own queue, ordered by release update then by arrival,
+ * and locked alone : the connections only contend when they send creatures to
+ * the same target. The lock is a ReentrantLock rather than a monitor, so that
+ * a virtual thread waiting for it doesn't pin its carrier thread. The number
+ * of creatures held is bounded : a creature which doesn't fit is refused, and
+ * its connection sends it back to its source at the next update.
+ *
+ * The queue also keeps the ledger of the clients with a session (see
+ * ServerSession) : how many of the creatures each message of a client sent
+ * are not yet read by their target, i.e. held, or in an answer the target
+ * didn't acknowledge by its next message. The client keeps a copy of these
+ * creatures, sent again if the broker stops, and drops it once the broker
+ * tells all the creatures of the message were read. The DeliveryLog of the
+ * queue tells which of the copies sent again the broker already delivered :
+ * these are settled at once, and the ones which were in an answer in doubt
+ * wait for the target of that answer to tell whether it read it.
+ */
+public class HoldingQueue {
+
+	/**
+	 * Origins of the creatures of a batch : the session of their source client
+	 * (0 if it has none) and the message which sent them, to settle them in the
+	 * ledger once read by their target, and their tags
+	 */
+	public static class Origins {
+		private long[] sessions = new long[16];
+		private int[] messages = new int[16];
+		private final CreatureTags tags = new CreatureTags();
+		private int size;
+
+		/**
+		 * Appends the origin of a creature
+		 *
+		 * @param session
+		 *            The session of the source client, 0 if none
+		 *
+		 * @param message
+		 *            The sequence number of the message which sent it
+		 *
+		 * @param tags
+		 *            The tags holding the one of the creature
+		 *
+		 * @param i
+		 *            The index of the tag
+		 */
+		public void add(long session, int message, CreatureTags tags, int i) {
+			add(session, message, tags.getSession(i), tags.getMessage(i), tags.getIndex(i));
+		}
+
+		private void add(long session, int message, long tagSession, int tagMessage, int tagIndex) {
+			if (size == sessions.length) {
+				sessions = Arrays.copyOf(sessions, 2 * size);
+				messages = Arrays.copyOf(messages, 2 * size);
+			}
+			sessions[size] = session;
+			messages[size] = message;
+			tags.add(tagSession, tagMessage, tagIndex);
+			size++;
+		}
+
+		/**
+		 * Appends the origins of another batch
+		 *
+		 * @param other
+		 *            The origins appended
+		 */
+		public void addAll(Origins other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.sessions[i], other.messages[i], other.tags, i);
+			}
+		}
+
+		/**
+		 * Returns the session of the source client of creature i
+		 *
+		 * @param i
+		 *            The index of the creature
+		 *
+		 * @return The session, 0 if none
+		 */
+		public long getSession(int i) {
+			return sessions[i];
+		}
+
+		/**
+		 * Returns the message which sent creature i
+		 *
+		 * @param i
+		 *            The index of the creature
+		 *
+		 * @return The sequence number of the message
+		 */
+		public int getMessage(int i) {
+			return messages[i];
+		}
+
+		/**
+		 * Returns the tags of the creatures
+		 *
+		 * @return The tags, in the order of the creatures
+		 */
+		public CreatureTags getTags() {
+			return tags;
+		}
+
+		/**
+		 * Returns the number of origins
+		 *
+		 * @return The number of creatures
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Empties the list, keeping its storage
+		 */
+		public void clear() {
+			size = 0;
+			tags.clear();
+		}
+	}
+
+	/** A creature held, with its record as on the wire */
+	private static class Held implements Comparable<Held> {
+		private final int release;
+		private final long arrival;
+		private final boolean prey;
+		private final MigrationBatch record;
+		private final long session;
+		private final int message;
+		private final long tagSession;
+		private final int tagMessage;
+		private final int tagIndex;
+
+		private Held(int release, long arrival, boolean prey, MigrationBatch record, long session, int message,
+				long tagSession, int tagMessage, int tagIndex) {
+			this.release = release;
+			this.arrival = arrival;
+			this.prey = prey;
+			this.record = record;
+			this.session = session;
+			this.message = message;
+			this.tagSession = tagSession;
+			this.tagMessage = tagMessage;
+			this.tagIndex = tagIndex;
+		}
+
+		@Override
+		public int compareTo(Held o) {
+			return release != o.release ? Integer.compare(release, o.release) : Long.compare(arrival, o.arrival);
+		}
+	}
+
+	/** The creatures held for a target, and their lock */
+	private static class Target {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final PriorityQueue<Held> queue = new PriorityQueue<Held>();
+	}
+
+	/** The number of creatures of each message of a client not yet read, and their lock */
+	private static class Ledger {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final TreeMap<Integer, Integer> owed = new TreeMap<Integer, Integer>();
+	}
+
+	private final int capacity;
+	private final DeliveryLog log;
+	private final ConcurrentHashMap<Integer, Target> targets = new ConcurrentHashMap<Integer, Target>();
+	private final ConcurrentHashMap<Long, Ledger> ledgers = new ConcurrentHashMap<Long, Ledger>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong arrivals = new AtomicLong();
+
+	/**
+	 * Copies sent again which were in an answer in doubt, by the target of
+	 * that answer, and their lock, taken before the one of the log
+	 */
+	private final ReentrantLock parkLock = new ReentrantLock();
+	private final HashMap<Long, ArrayList<Held>> parked = new HashMap<Long, ArrayList<Held>>();
+
+	/**
+	 * Creates an empty queue, whose deliveries are kept in memory
+	 *
+	 * @param capacity
+	 *            The largest number of creatures held
+	 */
+	public HoldingQueue(int capacity) {
+		this(capacity, new DeliveryLog());
+	}
+
+	/**
+	 * Creates an empty queue
+	 *
+	 * @param capacity
+	 *            The largest number of creatures held
+	 *
+	 * @param log
+	 *            Where the deliveries are kept, e.g. a file surviving a
+	 *            restart of the broker
+	 */
+	public HoldingQueue(int capacity, DeliveryLog log) {
+		this.capacity = capacity;
+		this.log = log;
+	}
+
+	/**
+	 * Holds a creature of a batch
+	 *
+	 * @param target
+	 *            The id of the client it enters
+	 *
+	 * @param release
+	 *            The update of the target it enters at
+	 *
+	 * @param prey
+	 *            True for a prey, false for a predator
+	 *
+	 * @param batch
+	 *            The batch holding the creature, whose record is copied
+	 *
+	 * @param i
+	 *            The index of the creature in the batch
+	 *
+	 * @param session
+	 *            The session of the source client, 0 if none
+	 *
+	 * @param message
+	 *            The sequence number of the message which sent it
+	 *
+	 * @param tags
+	 *            The tags holding the one of the creature
+	 *
+	 * @param t
+	 *            The index of the tag
+	 *
+	 * @return False if the queue is full, the creature not being held
+	 */
+	public boolean hold(int target, int release, boolean prey, MigrationBatch batch, int i, long session,
+			int message, CreatureTags tags, int t) {
+		return hold(target, copy(prey, batch, i, release, session, message, tags.getSession(t), tags.getMessage(t),
+				tags.getIndex(t)));
+	}
+
+	/** Copies the record of a creature */
+	private Held copy(boolean prey, MigrationBatch batch, int i, int release, long session, int message,
+			long tagSession, int tagMessage, int tagIndex) {
+		MigrationBatch record = new MigrationBatch(batch.getExtLength(), new HeapRecordStore(batch.getRecordLength()));
+		record.add(batch, i);
+		return new Held(release, arrivals.incrementAndGet(), prey, record, session, message, tagSession, tagMessage,
+				tagIndex);
+	}
+
+	private boolean hold(int target, Held held) {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			return false;
+		}
+		Target entry = targets.computeIfAbsent(target, t -> new Target());
+		entry.lock.lock();
+		try {
+			entry.queue.add(held);
+		} finally {
+			entry.lock.unlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Releases the creatures due for a target at an update, appending them to
+	 * the batches of entering creatures
+	 *
+	 * @param target
+	 *            The id of the client
+	 *
+	 * @param update
+	 *            The current update of the client
+	 *
+	 * @param max
+	 *            The largest number of creatures of each species released, the
+	 *            other ones staying held
+	 *
+	 * @param preys
+	 *            Receives the entering preys
+	 *
+	 * @param preds
+	 *            Receives the entering predators
+	 *
+	 * @param origins
+	 *            Receives the origins of the entering creatures
+	 */
+	public void release(int target, int update, int max, MigrationBatch preys, MigrationBatch preds,
+			Origins origins) {
+		Target entry = targets.get(target);
+		if (entry == null) {
+			return;
+		}
+		int nbPreys = preys.size();
+		int nbPreds = preds.size();
+		PriorityQueue<Held> queue = entry.queue;
+		entry.lock.lock();
+		try {
+			// the creatures over the limit are put back once the due ones are seen
+			ArrayList<Held> over = null;
+			while (!queue.isEmpty() && queue.peek().release <= update) {
+				Held held = queue.poll();
+				MigrationBatch batch = held.prey ? preys : preds;
+				if (batch.size() - (held.prey ? nbPreys : nbPreds) < max) {
+					batch.add(held.record, 0);
+					origins.add(held.session, held.message, held.tagSession, held.tagMessage, held.tagIndex);
+					size.decrementAndGet();
+				} else {
+					if (over == null) {
+						over = new ArrayList<Held>();
+					}
+					over.add(held);
+				}
+			}
+			if (over != null) {
+				queue.addAll(over);
+			}
+		} finally {
+			entry.lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets a target whose client is gone, moving its creatures to another
+	 * client, released at once
+	 *
+	 * @param target
+	 *            The id of the client gone
+	 *
+	 * @param heir
+	 *            The id of the client receiving its creatures, or -1 to drop
+	 *            them
+	 *
+	 * @return The number of creatures dropped, settled in the ledger
+	 */
+	public int forget(int target, int heir) {
+		Target entry = targets.remove(target);
+		if (entry == null) {
+			return 0;
+		}
+		ArrayList<Held> orphans;
+		entry.lock.lock();
+		try {
+			orphans = new ArrayList<Held>(entry.queue);
+			entry.queue.clear();
+		} finally {
+			entry.lock.unlock();
+		}
+		// held again outside of the lock, which is never taken with another one
+		int dropped = 0;
+		for (Held held : orphans) {
+			size.decrementAndGet();
+			if (heir < 0 || !hold(heir, copy(held.prey, held.record, 0, 0, held.session, held.message,
+					held.tagSession, held.tagMessage, held.tagIndex))) {
+				settle(held.session, held.message);
+				log.dropped(held.tagSession, held.tagMessage, held.tagIndex);
+				dropped++;
+			}
+		}
+		return dropped;
+	}
+
+	/**
+	 * Counts the creatures a message of a client sent in the ledger, once
+	 *
+	 * @param session
+	 *            The session of the client, ignored if 0
+	 *
+	 * @param message
+	 *            The sequence number of the message
+	 *
+	 * @param creatures
+	 *            The number of creatures it sent
+	 */
+	public void owe(long session, int message, int creatures) {
+		if (session == 0 || creatures == 0) {
+			return;
+		}
+		Ledger ledger = ledgers.computeIfAbsent(session, s -> new Ledger());
+		ledger.lock.lock();
+		try {
+			ledger.owed.merge(message, creatures, Integer::sum);
+		} finally {
+			ledger.lock.unlock();
+		}
+	}
+
+	/**
+	 * Settles a creature in the ledger of its source client, once read by its
+	 * target or dropped
+	 *
+	 * @param session
+	 *            The session of the source client, ignored if 0
+	 *
+	 * @param message
+	 *            The sequence number of the message which sent it
+	 */
+	public void settle(long session, int message) {
+		Ledger ledger = session != 0 ? ledgers.get(session) : null;
+		if (ledger == null) {
+			return;
+		}
+		ledger.lock.lock();
+		try {
+			Integer owed = ledger.owed.get(message);
+			if (owed == null) {
+				return;
+			}
+			if (owed > 1) {
+				ledger.owed.put(message, owed - 1);
+			} else {
+				ledger.owed.remove(message);
+			}
+		} finally {
+			ledger.lock.unlock();
+		}
+	}
+
+	/**
+	 * Settles the creatures of a batch
+	 *
+	 * @param origins
+	 *            The origins of the creatures
+	 */
+	public void settle(Origins origins) {
+		for (int i = 0; i < origins.size; i++) {
+			settle(origins.sessions[i], origins.messages[i]);
+		}
+	}
+
+	/**
+	 * Returns the last message of a client whose creatures, and the ones of
+	 * all the messages before, were read by their target
+	 *
+	 * @param session
+	 *            The session of the client
+	 *
+	 * @param message
+	 *            The last message whose creatures are counted
+	 *
+	 * @return The sequence number of the message, at most the given one
+	 */
+	public int settled(long session, int message) {
+		Ledger ledger = ledgers.get(session);
+		if (ledger == null) {
+			return message;
+		}
+		ledger.lock.lock();
+		try {
+			return ledger.owed.isEmpty() ? message : Math.min(message, ledger.owed.firstKey() - 1);
+		} finally {
+			ledger.lock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets the ledger of a client gone for good
+	 *
+	 * @param session
+	 *            The session of the client
+	 */
+	public void discard(long session) {
+		ledgers.remove(session);
+		log.discard(session);
+	}
+
+	/**
+	 * Parks a copy sent again which was in an answer in doubt, until the
+	 * target of the answer tells whether it read it, see resolve(). The
+	 * answer may have been settled since the copy was taken.
+	 *
+	 * @param tags
+	 *            The tags holding the one of the creature
+	 *
+	 * @param t
+	 *            The index of the tag
+	 *
+	 * @param prey
+	 *            True for a prey, false for a predator
+	 *
+	 * @param batch
+	 *            The batch holding the creature, whose record is copied
+	 *
+	 * @param i
+	 *            The index of the creature in the batch
+	 *
+	 * @param session
+	 *            The session of the client which sent it again
+	 *
+	 * @param message
+	 *            The sequence number of the message which sent it again
+	 *
+	 * @return DeliveryLog.DOUBTFUL if the creature was parked, otherwise its
+	 *         fate now, see DeliveryLog.take()
+	 */
+	public int park(CreatureTags tags, int t, boolean prey, MigrationBatch batch, int i, long session,
+			int message) {
+		parkLock.lock();
+		try {
+			int fate = log.getFate(tags, t);
+			if (fate == DeliveryLog.DOUBTFUL) {
+				parked.computeIfAbsent(log.getDoubtfulTarget(tags, t), s -> new ArrayList<Held>())
+						.add(copy(prey, batch, i, 0, session, message, tags.getSession(t), tags.getMessage(t),
+								tags.getIndex(t)));
+			}
+			return fate;
+		} finally {
+			parkLock.unlock();
+		}
+	}
+
+	/**
+	 * Settles the answer in doubt of a target which came back : the copies
+	 * parked for it are dropped if it read the answer, and released to the
+	 * client at once otherwise
+	 *
+	 * @param target
+	 *            The session the target had
+	 *
+	 * @param lastRead
+	 *            The last message whose answer it read entirely
+	 *
+	 * @param id
+	 *            The id of the client taking the copies of an answer lost
+	 *
+	 * @param extPreyLength
+	 *            The extended data size of the preys of the client
+	 *
+	 * @param extPredLength
+	 *            The extended data size of the predators of the client
+	 *
+	 * @return The number of copies dropped : the target read them, or, if it
+	 *         didn't, cannot take them (other extended data sizes, or a full
+	 *         queue)
+	 */
+	public int resolve(long target, int lastRead, int id, int extPreyLength, int extPredLength) {
+		parkLock.lock();
+		try {
+			int read = log.resolve(target, lastRead);
+			ArrayList<Held> copies = parked.remove(target);
+			if (copies == null) {
+				return 0;
+			}
+			int dropped = 0;
+			for (Held held : copies) {
+				int extLength = held.prey ? extPreyLength : extPredLength;
+				if (read != 0 || held.record.getExtLength() != extLength || !hold(id, held)) {
+					settle(held.session, held.message);
+					dropped++;
+				}
+			}
+			return dropped;
+		} finally {
+			parkLock.unlock();
+		}
+	}
+
+	/**
+	 * Drops the copies parked for the targets which didn't come back within
+	 * the grace period of the log, their answers being taken as read
+	 *
+	 * @return The number of copies dropped
+	 */
+	public int expire() {
+		parkLock.lock();
+		try {
+			long[] targets = log.expire();
+			if (targets == null) {
+				return 0;
+			}
+			int dropped = 0;
+			for (long target : targets) {
+				ArrayList<Held> copies = parked.remove(target);
+				if (copies != null) {
+					for (Held held : copies) {
+						settle(held.session, held.message);
+					}
+					dropped += copies.size();
+				}
+			}
+			return dropped;
+		} finally {
+			parkLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns where the deliveries of the queue are kept
+	 *
+	 * @return The log
+	 */
+	public DeliveryLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Returns the number of creatures held
+	 *
+	 * @return The number of creatures held for all the targets
+	 */
+	public int size() {
+		return size.get();
+	}
+
+}
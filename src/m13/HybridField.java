@@ -0,0 +1,306 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Hybrid agent and density model of the animals (see Simulation.HYBRID) : the
+ * chunks where the animals are sparse keep them as agents, while the chunks
+ * crowded with more than HYBRID_DENSITY animals only count them, and advance
+ * the counts with the mean-field equations of the chunk (see MeanField)
+ * instead of moving, feeding and mating every animal.
+ *
+ * At every update :
+ * <ol>
+ * <li>a chunk reaching HYBRID_DENSITY animals becomes dense, and the agents of
+ * a dense chunk, including those who just walked in, are absorbed in its
+ * counts,</li>
+ * <li>the counts of every dense chunk are integrated over one update, with the
+ * reproduction probabilities of the whole simulation,</li>
+ * <li>the animals of a dense chunk spread to its neighbours : a Brownian step
+ * of length SPEED crosses a side of the chunk with probability SPEED /
+ * (pi CHUNK_SIZE). They are added to the counts of a dense neighbour, or come
+ * out as agents near the side of a sparse one. The sides of the world
+ * reflect them,</li>
+ * <li>a dense chunk left with less than half of HYBRID_DENSITY animals is made
+ * sparse again, its animals coming out as agents spread over it.</li>
+ * </ol>
+ * The animals coming out are recorded as spawns, added by the simulation as
+ * newborns. The agents don't see the animals of the dense chunks : the two
+ * populations only meet through these transfers.
+ */
+public class HybridField {
+
+	/** Number of animals above which a chunk becomes dense */
+	private static final int DENSE = Simulation.HYBRID_DENSITY;
+
+	/** Fraction of the animals of a chunk crossing one of its sides per update */
+	private static final double SPREAD = Simulation.SPEED / (Math.PI * Simulation.CHUNK_SIZE);
+
+	private final ChunkMap chunks;
+	private final Random rand;
+
+	/** Dense chunks, in the order they became dense, and their capacity */
+	private final ArrayList<Chunk> dense = new ArrayList<Chunk>(16);
+	private int denseCapacity = 16;
+
+	/** Equations of a chunk, mixed in the whole chunk, and their solver */
+	private final MeanField equations;
+	private final Rk45 solver = new Rk45(3, 1e-4);
+	private final double[] y = new double[3];
+
+	/** Animals coming out as agents during the last advance() */
+	private double[] spawnX = new double[16];
+	private double[] spawnY = new double[16];
+	private boolean[] spawnPrey = new boolean[16];
+	private int spawns;
+
+	/**
+	 * Creates a field without dense chunks
+	 *
+	 * @param chunks
+	 *            The chunks of the world, holding the counts
+	 *
+	 * @param rand
+	 *            Random number generator placing the animals coming out
+	 */
+	public HybridField(ChunkMap chunks, Random rand) {
+		this.chunks = chunks;
+		this.rand = rand;
+		// the chunk is the herd : its animals are as crowded as in a mixed area
+		equations = new MeanField((double) Simulation.CHUNK_SIZE * Simulation.CHUNK_SIZE,
+				Simulation.MEAN_FIELD_CONTACT, 1);
+	}
+
+	/**
+	 * Makes the crowded chunks dense and marks the agents of the dense chunks as
+	 * leaving, counting them in their chunk. The simulation then removes them.
+	 *
+	 * @return The number of agents absorbed
+	 */
+	public int absorb() {
+		for (int s = 0; s < chunks.capacity(); s++) {
+			Chunk c = chunks.slot(s);
+			if (c != null && !c.dense && c.preys + c.predators >= DENSE) {
+				c.dense = true;
+				if (dense.size() == denseCapacity) {
+					denseCapacity *= 2;
+					dense.ensureCapacity(denseCapacity);
+				}
+				dense.add(c);
+			}
+		}
+
+		int absorbed = 0;
+		for (int k = 0; k < dense.size(); k++) {
+			Chunk c = dense.get(k);
+			for (Element e = c.first(); e != null; e = c.next(e)) {
+				if (e instanceof Prey) {
+					c.densePreys++;
+				} else if (e instanceof Predator) {
+					c.densePredators++;
+				} else {
+					continue;
+				}
+				e.leaving = true;
+				absorbed++;
+			}
+		}
+		return absorbed;
+	}
+
+	/**
+	 * Advances the dense chunks by one update, see getSpawnX(), getSpawnY() and
+	 * isPreySpawn() for the animals coming out as agents
+	 *
+	 * @param alphaPrey
+	 *            The reproduction probability of the preys
+	 *
+	 * @param alphaPred
+	 *            The reproduction probability of the predators
+	 *
+	 * @return The number of animals coming out
+	 */
+	public int advance(double alphaPrey, double alphaPred) {
+		spawns = 0;
+		equations.setAlphas(alphaPrey, alphaPred);
+
+		for (int k = 0; k < dense.size(); k++) {
+			Chunk c = dense.get(k);
+			y[0] = c.densePreys;
+			y[1] = c.densePredators;
+			y[2] = c.plants;
+			solver.integrate(equations, 0, 1, y);
+			c.densePreys = y[0];
+			c.densePredators = y[1];
+		}
+
+		// the flows are computed from the counts before any of them is applied
+		for (int k = 0; k < dense.size(); k++) {
+			Chunk c = dense.get(k);
+			spread(c, c.densePreys * SPREAD, c.densePredators * SPREAD);
+		}
+
+		int kept = 0;
+		for (int k = 0; k < dense.size(); k++) {
+			Chunk c = dense.get(k);
+			c.densePreys = Math.max(0, c.densePreys + c.inPreys);
+			c.densePredators = Math.max(0, c.densePredators + c.inPredators);
+			c.inPreys = 0;
+			c.inPredators = 0;
+			if (c.densePreys + c.densePredators < DENSE / 2) {
+				double x = c.cx * Simulation.CHUNK_SIZE;
+				double y = c.cy * Simulation.CHUNK_SIZE;
+				spawn(c.densePreys, true, x, y, Simulation.CHUNK_SIZE, Simulation.CHUNK_SIZE);
+				spawn(c.densePredators, false, x, y, Simulation.CHUNK_SIZE, Simulation.CHUNK_SIZE);
+				c.dense = false;
+				c.densePreys = 0;
+				c.densePredators = 0;
+				chunks.release(c);
+			} else {
+				dense.set(kept++, c);
+			}
+		}
+		while (dense.size() > kept) {
+			dense.remove(dense.size() - 1);
+		}
+		return spawns;
+	}
+
+	/**
+	 * Returns the number of preys of the dense chunks
+	 *
+	 * @return The number of preys, not an integer
+	 */
+	public double getPreys() {
+		double n = 0;
+		for (int k = 0; k < dense.size(); k++) {
+			n += dense.get(k).densePreys;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of predators of the dense chunks
+	 *
+	 * @return The number of predators, not an integer
+	 */
+	public double getPredators() {
+		double n = 0;
+		for (int k = 0; k < dense.size(); k++) {
+			n += dense.get(k).densePredators;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the number of dense chunks
+	 *
+	 * @return The number of chunks simulated by their density
+	 */
+	public int getDenseChunks() {
+		return dense.size();
+	}
+
+	/**
+	 * Returns the number of dense chunks and of spawns the field can hold
+	 * without growing
+	 *
+	 * @return The capacity of the field
+	 */
+	public int getCapacity() {
+		return denseCapacity + spawnX.length;
+	}
+
+	/**
+	 * Returns the x coordinate of an animal coming out
+	 *
+	 * @param s
+	 *            The index of the animal
+	 *
+	 * @return The x coordinate
+	 */
+	public double getSpawnX(int s) {
+		return spawnX[s];
+	}
+
+	/**
+	 * Returns the y coordinate of an animal coming out
+	 *
+	 * @param s
+	 *            The index of the animal
+	 *
+	 * @return The y coordinate
+	 */
+	public double getSpawnY(int s) {
+		return spawnY[s];
+	}
+
+	/**
+	 * Tells if an animal coming out is a prey
+	 *
+	 * @param s
+	 *            The index of the animal
+	 *
+	 * @return True for a prey, false for a predator
+	 */
+	public boolean isPreySpawn(int s) {
+		return spawnPrey[s];
+	}
+
+	/**
+	 * Moves the animals crossing each side of a dense chunk to the neighbour
+	 */
+	private void spread(Chunk c, double preys, double predators) {
+		int side = chunks.getSide();
+		int size = Simulation.CHUNK_SIZE;
+		double depth = Math.min(Simulation.SPEED, size);
+		for (int d = 0; d < 4; d++) {
+			int nx = c.cx + (d == 0 ? 1 : d == 1 ? -1 : 0);
+			int ny = c.cy + (d == 2 ? 1 : d == 3 ? -1 : 0);
+			if (nx < 0 || ny < 0 || nx >= side || ny >= side) {
+				continue;
+			}
+			Chunk n = chunks.getChunk(nx, ny);
+			if (n != null && n.dense) {
+				n.inPreys += preys;
+				n.inPredators += predators;
+				c.inPreys -= preys;
+				c.inPredators -= predators;
+				continue;
+			}
+			// a strip along the side, inside the neighbour
+			double x = d == 0 ? nx * size : d == 1 ? (nx + 1) * size - depth : nx * size;
+			double y = d == 2 ? ny * size : d == 3 ? (ny + 1) * size - depth : ny * size;
+			double w = d < 2 ? depth : size;
+			double h = d < 2 ? size : depth;
+			c.inPreys -= spawn(preys, true, x, y, w, h);
+			c.inPredators -= spawn(predators, false, x, y, w, h);
+		}
+	}
+
+	/**
+	 * Records animals coming out in a rectangle, the fractional part of their
+	 * number being rounded at random, and returns how many
+	 */
+	private int spawn(double amount, boolean prey, double x, double y, double w, double h) {
+		int count = (int) amount;
+		if (rand.nextDouble() < amount - count) {
+			count++;
+		}
+		for (int i = 0; i < count; i++) {
+			if (spawns == spawnX.length) {
+				spawnX = Arrays.copyOf(spawnX, 2 * spawns);
+				spawnY = Arrays.copyOf(spawnY, 2 * spawns);
+				spawnPrey = Arrays.copyOf(spawnPrey, 2 * spawns);
+			}
+			spawnX[spawns] = Math.min(Simulation.SPACE_SIZE, x + w * rand.nextDouble());
+			spawnY[spawns] = Math.min(Simulation.SPACE_SIZE, y + h * rand.nextDouble());
+			spawnPrey[spawns] = prey;
+			spawns++;
+		}
+		return count;
+	}
+
+}
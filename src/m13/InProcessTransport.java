@@ -0,0 +1,215 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport to a SimpleServer embedded in the same JVM.
+ *
+ * The server runs in a daemon thread and both directions are in-memory pipes,
+ * so no system call is made for the exchange.
+ */
+public class InProcessTransport implements Transport {
+
+	/** Size of the buffer of each pipe (bytes) */
+	public static final int PIPE_SIZE = 1 << 16;
+
+	private DataInputStream input;
+	private DataOutputStream output;
+	private Thread serverThread;
+	private SimpleServer server;
+
+	/**
+	 * Creates the pipes and starts the embedded server
+	 */
+	public InProcessTransport() {
+		this(null, null);
+	}
+
+	/**
+	 * Creates the pipes and starts an embedded server, which is a broker if a
+	 * policy is given (see SimpleServer.setPolicy())
+	 *
+	 * @param policy
+	 *            Decides where and when the exiting creatures re-enter, null to
+	 *            send them straight back
+	 *
+	 * @param held
+	 *            Holds the creatures until they enter, shared with the other
+	 *            connections of the broker
+	 */
+	public InProcessTransport(RelocationPolicy policy, HoldingQueue held) {
+		Pipe toServer = new Pipe(PIPE_SIZE);
+		Pipe fromServer = new Pipe(PIPE_SIZE);
+		output = new DataOutputStream(toServer.out);
+		input = new DataInputStream(fromServer.in);
+
+		server = new SimpleServer(new DataInputStream(toServer.in), new DataOutputStream(fromServer.out));
+		server.setQuiet(!Simulation.VERBOSE);
+		if (policy != null) {
+			server.setPolicy(policy, held);
+		}
+		serverThread = new Thread(server::run, "embedded-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+	}
+
+	/**
+	 * Returns the embedded server
+	 *
+	 * @return The server at the other end of the pipes
+	 */
+	public SimpleServer getServer() {
+		return server;
+	}
+
+	@Override
+	public DataInputStream getInput() {
+		return input;
+	}
+
+	@Override
+	public DataOutputStream getOutput() {
+		return output;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// Closing our end makes the server read an end of stream and terminate
+		output.close();
+		input.close();
+	}
+
+	/**
+	 * Bounded byte queue between one writer thread and one reader thread.
+	 *
+	 * Unlike java.io.PipedInputStream, the reader is woken up by every write and
+	 * not only by flush(), which matters since the protocol is a lock-step
+	 * exchange.
+	 */
+	static class Pipe {
+
+		private final byte[] data;
+		private long written;
+		private long read;
+		private boolean closed;
+
+		final InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				synchronized (Pipe.this) {
+					if (!awaitData()) {
+						return -1;
+					}
+					int b = data[(int) (read % data.length)] & 0xFF;
+					read++;
+					Pipe.this.notifyAll();
+					return b;
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				synchronized (Pipe.this) {
+					if (!awaitData()) {
+						return -1;
+					}
+					int n = (int) Math.min(len, written - read);
+					for (int i = 0; i < n; i++) {
+						b[off + i] = data[(int) ((read + i) % data.length)];
+					}
+					read += n;
+					Pipe.this.notifyAll();
+					return n;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				synchronized (Pipe.this) {
+					awaitSpace();
+					data[(int) (written % data.length)] = (byte) b;
+					written++;
+					Pipe.this.notifyAll();
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (Pipe.this) {
+					while (len > 0) {
+						awaitSpace();
+						int n = (int) Math.min(len, data.length - (written - read));
+						for (int i = 0; i < n; i++) {
+							data[(int) ((written + i) % data.length)] = b[off + i];
+						}
+						written += n;
+						off += n;
+						len -= n;
+						Pipe.this.notifyAll();
+					}
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		Pipe(int size) {
+			data = new byte[size];
+		}
+
+		private synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		/** Returns false if the pipe is closed and drained */
+		private boolean awaitData() throws IOException {
+			while (written == read) {
+				if (closed) {
+					return false;
+				}
+				waitQuietly();
+			}
+			return true;
+		}
+
+		private void awaitSpace() throws IOException {
+			while (written - read == data.length) {
+				if (closed) {
+					throw new IOException("Pipe closed");
+				}
+				waitQuietly();
+			}
+			if (closed) {
+				throw new IOException("Pipe closed");
+			}
+		}
+
+		private void waitQuietly() throws IOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", e);
+			}
+		}
+	}
+
+}
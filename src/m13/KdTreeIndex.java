@@ -0,0 +1,205 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * SpatialIndex rebuilt as a k-d tree at every build().
+ *
+ * The tree is implicit : build() reorders the arrays of coordinates so that
+ * the point in the middle of every range is the median of the range along x
+ * (at even depths) or y (at odd depths), the points before it being lower and
+ * the points after it higher. Ranges of at most LEAF points are not split.
+ * Unlike a grid, the depth adapts to the density, so a herd of thousands of
+ * animals in a few cells costs a few levels more instead of a scan of the
+ * whole herd.
+ *
+ * A query range folding on the sides of the torus is split into up to four
+ * rectangles inside the square.
+ */
+public class KdTreeIndex implements SpatialIndex {
+
+	/** Maximum number of points of a range that is not split */
+	private static final int LEAF = 8;
+
+	/** Side of the torus */
+	private final double space;
+
+	private int[] ids = new int[64];
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+	private int count;
+
+	/**
+	 * Creates an empty tree
+	 *
+	 * @param space
+	 *            The side of the torus
+	 */
+	public KdTreeIndex(double space) {
+		this.space = space;
+	}
+
+	@Override
+	public void clear() {
+		count = 0;
+	}
+
+	@Override
+	public void insert(int id, double x, double y) {
+		if (count == ids.length) {
+			ids = Arrays.copyOf(ids, 2 * count);
+			xs = Arrays.copyOf(xs, 2 * count);
+			ys = Arrays.copyOf(ys, 2 * count);
+		}
+		ids[count] = id;
+		xs[count] = x;
+		ys[count] = y;
+		count++;
+	}
+
+	@Override
+	public void build() {
+		build(0, count, false);
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public int getCapacity() {
+		return ids.length;
+	}
+
+	@Override
+	public void query(double x, double y, double dist, Visitor visitor) {
+		double xmin = x - dist;
+		double xmax = x + dist;
+		double ymin = y - dist;
+		double ymax = y + dist;
+		boolean allX = xmax - xmin >= space;
+		boolean allY = ymax - ymin >= space;
+		if (allX) {
+			xmin = 0;
+			xmax = space;
+		}
+		if (allY) {
+			ymin = 0;
+			ymax = space;
+		}
+
+		// the part of the range inside the square, then the parts folded on the
+		// opposite sides
+		query(0, count, false, xmin, xmax, ymin, ymax, visitor);
+		if (!allX && (xmin < 0 || xmax > space)) {
+			double fxmin = xmin < 0 ? xmin + space : 0;
+			double fxmax = xmin < 0 ? space : xmax - space;
+			query(0, count, false, fxmin, fxmax, ymin, ymax, visitor);
+			if (!allY && (ymin < 0 || ymax > space)) {
+				double fymin = ymin < 0 ? ymin + space : 0;
+				double fymax = ymin < 0 ? space : ymax - space;
+				query(0, count, false, fxmin, fxmax, fymin, fymax, visitor);
+			}
+		}
+		if (!allY && (ymin < 0 || ymax > space)) {
+			double fymin = ymin < 0 ? ymin + space : 0;
+			double fymax = ymin < 0 ? space : ymax - space;
+			query(0, count, false, xmin, xmax, fymin, fymax, visitor);
+		}
+	}
+
+	/**
+	 * Visits the points of the range [lo, hi) of the tree inside a rectangle.
+	 * The part of the rectangle outside the square matches nothing, so it does
+	 * not need to be clipped.
+	 */
+	private void query(int lo, int hi, boolean yAxis, double xmin, double xmax, double ymin, double ymax,
+			Visitor visitor) {
+		while (hi - lo > LEAF) {
+			int m = (lo + hi) >>> 1;
+			double px = xs[m];
+			double py = ys[m];
+			if (xmin <= px && px <= xmax && ymin <= py && py <= ymax) {
+				visitor.visit(ids[m]);
+			}
+			double v = yAxis ? py : px;
+			boolean left = (yAxis ? ymin : xmin) <= v;
+			boolean right = v <= (yAxis ? ymax : xmax);
+			if (left && right) {
+				query(lo, m, !yAxis, xmin, xmax, ymin, ymax, visitor);
+				lo = m + 1;
+			} else if (left) {
+				hi = m;
+			} else {
+				lo = m + 1;
+			}
+			yAxis = !yAxis;
+		}
+		for (int k = lo; k < hi; k++) {
+			double px = xs[k];
+			double py = ys[k];
+			if (xmin <= px && px <= xmax && ymin <= py && py <= ymax) {
+				visitor.visit(ids[k]);
+			}
+		}
+	}
+
+	/**
+	 * Reorders the range [lo, hi) around its median, then its two halves
+	 */
+	private void build(int lo, int hi, boolean yAxis) {
+		while (hi - lo > LEAF) {
+			int m = (lo + hi) >>> 1;
+			select(lo, hi - 1, m, yAxis ? ys : xs);
+			build(lo, m, !yAxis);
+			lo = m + 1;
+			yAxis = !yAxis;
+		}
+	}
+
+	/**
+	 * Moves the k-th point of [low, high] along an axis to index k, the lower
+	 * ones before and the higher ones after (quickselect)
+	 */
+	private void select(int low, int high, int k, double[] axis) {
+		while (low < high) {
+			double pivot = axis[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (axis[i] < pivot) {
+					i++;
+				}
+				while (axis[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				high = j;
+			} else if (k >= i) {
+				low = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double x = xs[i];
+		xs[i] = xs[j];
+		xs[j] = x;
+		double y = ys[i];
+		ys[i] = ys[j];
+		ys[j] = y;
+	}
+
+}
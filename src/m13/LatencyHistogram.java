@@ -0,0 +1,135 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations with a bounded relative error, used to report
+ * latency percentiles.
+ *
+ * Values below 2^SUB_BITS have their own bucket; above, each power of two is
+ * split into 2^SUB_BITS buckets, so a reported percentile is within about 3%
+ * of the recorded value. Recording is a few shifts and an array increment. An
+ * instance is not thread safe : use one per thread and merge them.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB = 1 << SUB_BITS;
+
+	private final long[] counts = new long[SUB + (64 - SUB_BITS) * SUB];
+	private long count;
+	private long sum;
+	private long max;
+
+	/**
+	 * Records a value
+	 *
+	 * @param value
+	 *            The value to record, e.g. a duration in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[index(value)]++;
+		count++;
+		sum += value;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds the values recorded by another histogram to this one
+	 *
+	 * @param other
+	 *            The histogram to merge
+	 */
+	public void merge(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		max = Math.max(max, other.max);
+	}
+
+	/**
+	 * Forgets all the recorded values
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * Returns the value below which a fraction p of the recorded values fall
+	 *
+	 * @param p
+	 *            The fraction, e.g. 0.99 for the 99th percentile
+	 *
+	 * @return The upper bound of the bucket holding the percentile, 0 if nothing
+	 *         was recorded
+	 */
+	public long percentile(double p) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(1, rank)) {
+				return Math.min(max, upper(i));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Returns the number of recorded values
+	 *
+	 * @return The number of values
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the mean of the recorded values
+	 *
+	 * @return The mean, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * Returns the largest recorded value
+	 *
+	 * @return The maximum
+	 */
+	public long getMax() {
+		return max;
+	}
+
+	private static int index(long value) {
+		if (value < SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return SUB + shift * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	private static long upper(int index) {
+		if (index < SUB) {
+			return index;
+		}
+		int shift = (index - SUB) / SUB;
+		long sub = SUB + (index - SUB) % SUB;
+		return ((sub + 1) << shift) - 1;
+	}
+
+}
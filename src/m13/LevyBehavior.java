@@ -0,0 +1,38 @@
+package m13;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Behavior of animals searching by Levy flights : they move in a random
+ * direction, most steps being short and a few very long. The length of a step
+ * follows a Pareto law of exponent MU from the basic speed, capped at
+ * MAX_STEPS times the speed. Such searches find scarce and scattered food
+ * faster than a Brownian walk.
+ *
+ * @param <A>
+ *            The species moved
+ */
+public class LevyBehavior<A extends Animal> implements Behavior<A> {
+
+	/** Exponent of the law of the steps, between 1 and 3 */
+	private static final double MU = 2;
+
+	/** Longest step, in speeds */
+	private static final double MAX_STEPS = 10;
+
+	@Override
+	public boolean move(A a, Vision vision) {
+		a.setSpeed(Simulation.SPEED);
+
+		if (a.getAtePlant()) {
+			a.setSpeed(a.getSpeed() / 2);
+			a.setAtePlant(false);
+		}
+
+		// inverse of the Pareto distribution function, u in (0, 1]
+		double u = 1 - ThreadLocalRandom.current().nextDouble();
+		double steps = Math.min(MAX_STEPS, Math.pow(u, -1 / (MU - 1)));
+		return a.moveBrownian(steps * a.getSpeed());
+	}
+
+}
@@ -0,0 +1,334 @@
+package m13;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for SimpleServer.
+ *
+ * Opens many connections that speak the same protocol as Simulation (ext
+ * lengths, then for every update the four counts and the exiting creatures),
+ * and reports the throughput, the round-trip latency percentiles of an update
+ * and, when the server is embedded in this JVM, the server CPU time per
+ * relayed creature.
+ *
+ * Usage: java m13.LoadGenerator [-host h] [-port p | -embedded] [-threads
+ * platform|virtual] [-connections n] [-updates n] [-migrants n] [-rate hz]
+ * [-ext bytes] [-jitter us] [-slack k [-timeout ms]]
+ *
+ * -migrants is the number of creatures leaving per update and per connection,
+ * -rate the number of updates per second of each connection (0 : as fast as
+ * possible), -threads the threads running the connections of the embedded
+ * server. Running 1000 connections with each shows what virtual threads save :
+ * the peak number of platform threads of the JVM is printed, and the server
+ * CPU time can only be measured on platform threads. A separate server started
+ * with -multi prints its own CPU time per creature.
+ *
+ * For instance on one CPU with Java 21, 1000 connections at 15 Hz for 300
+ * updates, both runs being CPU bound : the peak number of platform threads is
+ * 1012 with virtual server threads against 2007, and the throughput 7700 to
+ * 8300 updates/s against 6200 to 6300. The median round trip is shorter on
+ * platform threads (13 to 16 ms against 41 to 60 ms), but a few of their
+ * connections wait for tens of seconds (p999 of 27 to 32 s against about 1 s).
+ *
+ * -jitter adds a random computation time of up to that many microseconds to
+ * every update, as the ticks of real simulations differ : the client keeps
+ * its CPU busy meanwhile, which an embedded server shares. -slack keeps the
+ * connections of the embedded server on a global tick (see TickBarrier),
+ * starting once all of them are connected : the waits at the barrier are
+ * printed, to choose the slack against the
+ * throughput.
+ */
+public class LoadGenerator {
+
+	private String host = "127.0.0.1";
+	private int port = 6789;
+	private boolean embedded;
+	private boolean virtual;
+	private int connections = 64;
+	private int updates = 1000;
+	private int migrants = 50;
+	private int rate = Simulation.UPDATE_RATE_HZ;
+	private int extLength = 8;
+	private int jitter;
+	private int slack = -1;
+	private int timeout;
+	private TickBarrier barrier;
+
+	/** Result of the computations of the connections */
+	static volatile double sink;
+
+	/** Threads of the embedded server, to measure their CPU time */
+	private final List<Thread> serverThreads = new ArrayList<Thread>();
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-host":
+				generator.host = args[++i];
+				break;
+			case "-port":
+				generator.port = Integer.parseInt(args[++i]);
+				break;
+			case "-embedded":
+				generator.embedded = true;
+				break;
+			case "-threads":
+				generator.virtual = args[++i].equals("virtual");
+				break;
+			case "-connections":
+				generator.connections = Integer.parseInt(args[++i]);
+				break;
+			case "-updates":
+				generator.updates = Integer.parseInt(args[++i]);
+				break;
+			case "-migrants":
+				generator.migrants = Integer.parseInt(args[++i]);
+				break;
+			case "-rate":
+				generator.rate = Integer.parseInt(args[++i]);
+				break;
+			case "-ext":
+				generator.extLength = Integer.parseInt(args[++i]);
+				break;
+			case "-jitter":
+				generator.jitter = Integer.parseInt(args[++i]);
+				break;
+			case "-slack":
+				generator.slack = Integer.parseInt(args[++i]);
+				break;
+			case "-timeout":
+				generator.timeout = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(1);
+			}
+		}
+		generator.run();
+	}
+
+	private void run() throws Exception {
+		ServerSocket listenSocket = null;
+		if (embedded) {
+			listenSocket = SimpleServer.listen(0, connections);
+			port = listenSocket.getLocalPort();
+			ServerSocket socket = listenSocket;
+			ThreadFactory virtualThreads = virtual ? SimpleServer.virtualThreads() : null;
+			if (virtual && virtualThreads == null) {
+				System.err.println("No virtual threads in this JVM, using platform threads.");
+				virtual = false;
+			}
+			ThreadFactory threads = virtual ? virtualThreads : runnable -> {
+				Thread thread = new Thread(runnable, "server");
+				synchronized (serverThreads) {
+					serverThreads.add(thread);
+				}
+				return thread;
+			};
+			barrier = slack >= 0 ? new TickBarrier(connections, slack, timeout) : null;
+			Thread acceptor = new Thread(() -> {
+				try {
+					SimpleServer.serve(socket, threads, null, null, barrier);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+		}
+
+		CountDownLatch finished = new CountDownLatch(connections);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Connection> clients = new ArrayList<Connection>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int c = 0; c < connections; c++) {
+			Connection client = new Connection(c, finished, release);
+			clients.add(client);
+			threads.add(new Thread(client, "client-" + c));
+		}
+
+		long relayedBefore = SimpleServer.getRelayedCreatures();
+		long start = System.nanoTime();
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		finished.await();
+		long elapsed = System.nanoTime() - start;
+		long relayed = SimpleServer.getRelayedCreatures() - relayedBefore;
+		long serverCpu = serverCpuTime();
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (listenSocket != null) {
+			listenSocket.close();
+		}
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long creatures = 0;
+		int failed = 0;
+		for (Connection client : clients) {
+			latency.merge(client.latency);
+			creatures += client.creatures;
+			if (client.error != null) {
+				failed++;
+			}
+		}
+
+		double seconds = elapsed / 1e9;
+		System.out.printf("connections=%d updates=%d migrants/update=%d rate=%s ext=%dB%s%n", connections, updates,
+				migrants, rate > 0 ? rate + "Hz" : "max", extLength,
+				embedded ? " server threads=" + (virtual ? "virtual" : "platform") : "");
+		if (failed > 0) {
+			System.out.println(failed + " connections failed");
+		}
+		System.out.printf("throughput: %.0f updates/s, %.0f creatures/s%n", latency.getCount() / seconds,
+				creatures / seconds);
+		System.out.printf("round trip (us): p50=%.1f p99=%.1f p999=%.1f max=%.1f mean=%.1f%n",
+				latency.percentile(0.50) / 1e3, latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3,
+				latency.getMax() / 1e3, latency.getMean() / 1e3);
+		System.out.printf("platform threads: peak %d%n", ManagementFactory.getThreadMXBean().getPeakThreadCount());
+		if (embedded && virtual) {
+			System.out.println("server CPU: n/a on virtual threads");
+		} else if (embedded && relayed > 0) {
+			System.out.printf("server CPU: %.0f ns/creature (%d creatures relayed)%n", (double) serverCpu / relayed,
+					relayed);
+		} else if (!embedded) {
+			System.out.println("server CPU: see the reports of the -multi server, or run with -embedded");
+		}
+		if (barrier != null) {
+			System.out.println(barrier.report());
+		}
+	}
+
+	private long serverCpuTime() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long total = 0;
+		synchronized (serverThreads) {
+			for (Thread thread : serverThreads) {
+				long cpu = bean.getThreadCpuTime(thread.getId());
+				if (cpu > 0) {
+					total += cpu;
+				}
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * One simulated client
+	 */
+	private class Connection implements Runnable {
+
+		private final Random rand;
+		private final CountDownLatch finished;
+		private final CountDownLatch release;
+		final LatencyHistogram latency = new LatencyHistogram();
+		long creatures;
+		Exception error;
+
+		/** Result of the computations, so that they are not optimized away */
+		private double work = 1;
+
+		Connection(int id, CountDownLatch finished, CountDownLatch release) {
+			this.rand = new Random(id);
+			this.finished = finished;
+			this.release = release;
+		}
+
+		@Override
+		public void run() {
+			Socket socket = null;
+			try {
+				socket = new Socket(host, port);
+				socket.setTcpNoDelay(true);
+				DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+				CreatureCodec codec = new CreatureCodec(input, output);
+				MigrationBatch preys = new MigrationBatch(extLength);
+				MigrationBatch preds = new MigrationBatch(extLength);
+
+				output.writeInt(extLength);
+				output.writeInt(extLength);
+				output.flush();
+
+				long period = rate > 0 ? 1_000_000_000L / rate : 0;
+				long next = System.nanoTime() + (period > 0 ? (long) (rand.nextDouble() * period) : 0);
+
+				for (int u = 0; u < updates; u++) {
+					if (period > 0) {
+						LockSupport.parkNanos(next - System.nanoTime());
+						next += period;
+					}
+					if (jitter > 0) {
+						// the computation of the tick, not part of the round trip
+						compute(rand.nextInt(jitter) * 1000L);
+					}
+					preys.clear();
+					preds.clear();
+					for (int m = 0; m < migrants; m++) {
+						MigrationBatch batch = (m & 1) == 0 ? preys : preds;
+						double outside = rand.nextBoolean() ? -0.05 * rand.nextDouble() : 1 + 0.05 * rand.nextDouble();
+						batch.add(outside, rand.nextDouble());
+					}
+
+					long t0 = System.nanoTime();
+					output.writeInt(1000);
+					output.writeInt(1000);
+					output.writeInt(preys.size());
+					output.writeInt(preds.size());
+					output.flush();
+					int enteringPreys = input.readInt();
+					int enteringPreds = input.readInt();
+					codec.exchange(preys, enteringPreys);
+					codec.exchange(preds, enteringPreds);
+					latency.record(System.nanoTime() - t0);
+					creatures += migrants;
+				}
+				sink = work;
+			} catch (IOException e) {
+				error = e;
+				System.err.println(Thread.currentThread().getName() + ": " + e);
+			} finally {
+				finished.countDown();
+				try {
+					release.await();
+					if (socket != null) {
+						socket.close();
+					}
+				} catch (InterruptedException | IOException e) {
+					// closing anyway
+				}
+			}
+		}
+
+		/**
+		 * Keeps the CPU busy for the given time, like the update of a real
+		 * simulation moving its animals
+		 */
+		private void compute(long nanos) {
+			long end = System.nanoTime() + nanos;
+			do {
+				for (int i = 0; i < 64; i++) {
+					work = work * 0.999 + Math.sqrt(work + i);
+				}
+			} while (System.nanoTime() - end < 0);
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package m13;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressor for the LZ4 block format, greedy and single-probe : fast rather
+ * than tight, which suits the short-lived migration frames.
+ *
+ * A compressed block is a list of sequences. Each sequence is a token (high
+ * nibble : literal count, low nibble : match length - 4, 15 meaning that more
+ * length bytes follow), the literals, then the 2-byte little endian offset of
+ * the match. The last sequence only has literals.
+ *
+ * An instance keeps its hash table between calls and is not thread safe.
+ */
+public class Lz4Block {
+
+	private static final int MIN_MATCH = 4;
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_LOG = 12;
+
+	private final int[] table = new int[1 << HASH_LOG];
+
+	/**
+	 * Returns the largest size a block of length bytes can be compressed to
+	 *
+	 * @param length
+	 *            Size of the uncompressed data (bytes)
+	 *
+	 * @return The size to reserve for the compressed block (bytes)
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	/**
+	 * Compresses src[0, length) into dst
+	 *
+	 * @param src
+	 *            The data to compress
+	 *
+	 * @param length
+	 *            Size of the data to compress (bytes)
+	 *
+	 * @param dst
+	 *            The destination, at least maxCompressedLength(length) long
+	 *
+	 * @return The size of the compressed block (bytes)
+	 */
+	public int compress(byte[] src, int length, byte[] dst) {
+		int anchor = 0;
+		int op = 0;
+
+		if (length > MF_LIMIT) {
+			Arrays.fill(table, -1);
+			int limit = length - MF_LIMIT;
+			int matchLimit = length - LAST_LITERALS;
+			int ip = 0;
+
+			while (ip < limit) {
+				int sequence = readInt(src, ip);
+				int h = hash(sequence);
+				int ref = table[h];
+				table[h] = ip;
+
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					ip++;
+					continue;
+				}
+
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+					matchLength++;
+				}
+
+				op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		return writeSequence(src, anchor, length - anchor, dst, op, 0, 0);
+	}
+
+	/**
+	 * Decompresses a block
+	 *
+	 * @param src
+	 *            The compressed block
+	 *
+	 * @param srcLength
+	 *            Size of the compressed block (bytes)
+	 *
+	 * @param dst
+	 *            The destination
+	 *
+	 * @param dstLength
+	 *            Size of the uncompressed data (bytes)
+	 *
+	 * @throws IOException
+	 *             If the block is malformed
+	 */
+	public static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) throws IOException {
+		try {
+			decompressUnchecked(src, srcLength, dst, dstLength);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Malformed LZ4 block", e);
+		}
+	}
+
+	private static void decompressUnchecked(byte[] src, int srcLength, byte[] dst, int dstLength)
+			throws IOException {
+		int ip = 0;
+		int op = 0;
+
+		while (ip < srcLength) {
+			int token = src[ip++] & 0xFF;
+
+			int literals = token >>> 4;
+			if (literals == 15) {
+				int b;
+				do {
+					b = src[ip++] & 0xFF;
+					literals += b;
+				} while (b == 255);
+			}
+			if (ip + literals > srcLength || op + literals > dstLength) {
+				throw new IOException("Malformed LZ4 block");
+			}
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+
+			if (ip == srcLength) {
+				break;
+			}
+
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			int matchLength = token & 15;
+			if (matchLength == 15) {
+				int b;
+				do {
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+				} while (b == 255);
+			}
+			matchLength += MIN_MATCH;
+			if (offset == 0 || offset > op || op + matchLength > dstLength) {
+				throw new IOException("Malformed LZ4 block");
+			}
+			// the match may overlap the bytes being written
+			for (int i = 0; i < matchLength; i++) {
+				dst[op + i] = dst[op - offset + i];
+			}
+			op += matchLength;
+		}
+
+		if (op != dstLength) {
+			throw new IOException("Malformed LZ4 block");
+		}
+	}
+
+	/**
+	 * Writes a sequence, or the last literals if matchLength is 0, and returns the
+	 * new position in dst
+	 */
+	private static int writeSequence(byte[] src, int anchor, int literals, byte[] dst, int op, int offset,
+			int matchLength) {
+		int tokenPos = op++;
+		int token = Math.min(literals, 15) << 4;
+		if (literals >= 15) {
+			op = writeLength(dst, op, literals - 15);
+		}
+		System.arraycopy(src, anchor, dst, op, literals);
+		op += literals;
+
+		if (matchLength > 0) {
+			dst[op++] = (byte) offset;
+			dst[op++] = (byte) (offset >>> 8);
+			int extra = matchLength - MIN_MATCH;
+			token |= Math.min(extra, 15);
+			if (extra >= 15) {
+				op = writeLength(dst, op, extra - 15);
+			}
+		}
+
+		dst[tokenPos] = (byte) token;
+		return op;
+	}
+
+	private static int writeLength(byte[] dst, int op, int length) {
+		while (length >= 255) {
+			dst[op++] = (byte) 255;
+			length -= 255;
+		}
+		dst[op++] = (byte) length;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+}
@@ -0,0 +1,456 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport between two processes of the same host through a memory-mapped
+ * file.
+ *
+ * The file holds two single-producer single-consumer ring buffers, one per
+ * direction. The server creates and initializes the file, the simulation then
+ * connects to it. Layout of the file :
+ *
+ * - [0, 64) : magic number, capacity of each ring, epoch, then the pid and
+ * heartbeat of the server and of the simulation - [64, 192) : header of the
+ * ring simulation to server - [192, 320) : header of the ring server to
+ * simulation - then the data of both rings, capacity bytes each
+ *
+ * A ring header holds the write counter, the closed flag of the writer and, on
+ * another cache line, the read counter. Counters only grow and are published
+ * with release/acquire semantics.
+ *
+ * Each side stamps its heartbeat every HEARTBEAT_MS from a daemon thread. A
+ * side waiting for its peer gives up with an IOException once the heartbeat of
+ * the peer is older than PEER_TIMEOUT_MS, e.g. because it was killed, or once
+ * a new server reset the file (the epoch changed). A simulation only connects
+ * to a file whose server is alive, so a file left by a killed server is not
+ * mistaken for a server, and only to a file no live simulation is connected
+ * to. The server deletes the file when it closes.
+ *
+ * The streams of the transport are also channels (see ChannelInput and
+ * ChannelOutput) : the records of an OffHeapRecordStore are copied between
+ * their buffer and the rings without going through an array.
+ */
+public class MappedFileTransport implements Transport {
+
+	/** Capacity of each ring (bytes), a power of two */
+	public static final int RING_SIZE = 1 << 20;
+
+	private static final int MAGIC = 0x4D313352;
+	private static final int EPOCH = 8;
+	private static final int SERVER_PID = 16;
+	private static final int SERVER_BEAT = 24;
+	private static final int CLIENT_PID = 32;
+	private static final int CLIENT_BEAT = 40;
+	private static final int HEADER_SIZE = 64;
+	private static final int RING_HEADER_SIZE = 128;
+	private static final int WRITE_POS = 0;
+	private static final int CLOSED = 8;
+	private static final int READ_POS = 64;
+
+	/** Number of busy spins before a waiting side starts parking */
+	private static final int SPINS = 1000;
+
+	/** How long the simulation waits for the server to create the file (ms) */
+	private static final long CONNECT_TIMEOUT_MS = 5000;
+
+	/** Period of the heartbeat of each side, and the silence after which a peer is dead (ms) */
+	private static final long HEARTBEAT_MS = 100;
+	private static final long PEER_TIMEOUT_MS = 2000;
+
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.nativeOrder());
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private DataInputStream input;
+	private DataOutputStream output;
+
+	/** The file, deleted by the server when it closes */
+	private final Path path;
+	private final boolean server;
+	private final long epoch;
+	private final Thread heartbeat;
+	private volatile boolean closed;
+
+	private MappedFileTransport(Path path, FileChannel channel, MappedByteBuffer buffer, boolean server) {
+		this.path = path;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.server = server;
+		this.epoch = (long) LONG.getAcquire(buffer, EPOCH);
+		RingInput in = new RingInput(server ? 0 : 1);
+		RingOutput out = new RingOutput(server ? 1 : 0);
+		this.input = new ChannelInput(in, in);
+		this.output = new ChannelOutput(out, out);
+		if (server) {
+			// the simulation claimed its slot in connect()
+			LONG.setRelease(buffer, SERVER_PID, ProcessHandle.current().pid());
+		}
+		LONG.setRelease(buffer, server ? SERVER_BEAT : CLIENT_BEAT, System.currentTimeMillis());
+		heartbeat = new Thread(() -> {
+			while (!closed) {
+				LONG.setRelease(buffer, server ? SERVER_BEAT : CLIENT_BEAT, System.currentTimeMillis());
+				try {
+					Thread.sleep(HEARTBEAT_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "mapped-heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+
+	/**
+	 * Creates the exchange file and returns the server side of the transport
+	 *
+	 * @param file
+	 *            Path of the file to create (an existing file is reset)
+	 *
+	 * @return The server side of the transport
+	 *
+	 * @throws IOException
+	 *             If the file cannot be created or mapped
+	 */
+	public static MappedFileTransport serve(String file) throws IOException {
+		Path path = Paths.get(file);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize());
+
+		// a simulation still mapping the file of a previous server sees the
+		// epoch change and gives up
+		INT.setRelease(buffer, 0, 0);
+		LONG.setRelease(buffer, EPOCH, System.nanoTime() ^ ProcessHandle.current().pid() << 32);
+		LONG.setRelease(buffer, CLIENT_PID, 0L);
+		LONG.setRelease(buffer, CLIENT_BEAT, 0L);
+		for (int ring = 0; ring < 2; ring++) {
+			LONG.setRelease(buffer, header(ring) + WRITE_POS, 0L);
+			INT.setRelease(buffer, header(ring) + CLOSED, 0);
+			LONG.setRelease(buffer, header(ring) + READ_POS, 0L);
+		}
+		buffer.putInt(4, RING_SIZE);
+		MappedFileTransport transport = new MappedFileTransport(path, channel, buffer, true);
+		INT.setRelease(buffer, 0, MAGIC);
+		return transport;
+	}
+
+	/**
+	 * Opens an exchange file created by a server and returns the simulation side
+	 * of the transport
+	 *
+	 * @param file
+	 *            Path of the file created by the server
+	 *
+	 * @return The simulation side of the transport
+	 *
+	 * @throws IOException
+	 *             If the server does not create the file in time, if the file
+	 *             cannot be mapped or if a live simulation is connected to it
+	 */
+	public static MappedFileTransport connect(String file) throws IOException {
+		Path path = Paths.get(file);
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+
+		while (!Files.exists(path) || Files.size(path) < fileSize()) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IOException("No server on " + file);
+			}
+			LockSupport.parkNanos(1_000_000L);
+		}
+
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize());
+
+		// the file of a killed server keeps its magic number, but not its heartbeat
+		while ((int) INT.getAcquire(buffer, 0) != MAGIC || !alive(buffer, SERVER_PID, SERVER_BEAT)) {
+			if (System.currentTimeMillis() > deadline) {
+				channel.close();
+				throw new IOException("No server on " + file);
+			}
+			LockSupport.parkNanos(1_000_000L);
+		}
+		if (buffer.getInt(4) != RING_SIZE) {
+			channel.close();
+			throw new IOException("Ring size mismatch in " + file);
+		}
+
+		// each ring has a single producer and a single consumer : the slot of
+		// the simulation is claimed atomically, and only taken over from a dead
+		// process
+		long pid = ProcessHandle.current().pid();
+		while (true) {
+			long owner = (long) LONG.getAcquire(buffer, CLIENT_PID);
+			if (owner != 0 && ProcessHandle.of(owner).map(ProcessHandle::isAlive).orElse(false)) {
+				channel.close();
+				throw new IOException("Ring already in use in " + file + " by process " + owner);
+			}
+			// the server must not see the new owner with the heartbeat of the old one
+			LONG.setRelease(buffer, CLIENT_BEAT, System.currentTimeMillis());
+			if (LONG.compareAndSet(buffer, CLIENT_PID, owner, pid)) {
+				break;
+			}
+		}
+
+		return new MappedFileTransport(path, channel, buffer, false);
+	}
+
+	/**
+	 * Tells whether the process stamping a heartbeat is alive
+	 */
+	private static boolean alive(MappedByteBuffer buffer, int pid, int beat) {
+		long owner = (long) LONG.getAcquire(buffer, pid);
+		if (owner == 0 || System.currentTimeMillis() - (long) LONG.getAcquire(buffer, beat) > PEER_TIMEOUT_MS) {
+			return false;
+		}
+		return ProcessHandle.of(owner).map(ProcessHandle::isAlive).orElse(false);
+	}
+
+	/**
+	 * Throws if the peer died or the file was reset by a new server. A server
+	 * waits for a simulation which didn't connect yet.
+	 */
+	private void checkPeer() throws IOException {
+		if (closed) {
+			throw new IOException("Transport closed");
+		}
+		if ((long) LONG.getAcquire(buffer, EPOCH) != epoch || (int) INT.getAcquire(buffer, 0) != MAGIC) {
+			throw new IOException("Exchange file " + path + " reset by another server");
+		}
+		if (server && (long) LONG.getAcquire(buffer, CLIENT_PID) == 0) {
+			return;
+		}
+		if (!alive(buffer, server ? CLIENT_PID : SERVER_PID, server ? CLIENT_BEAT : SERVER_BEAT)) {
+			throw new IOException("No heartbeat from the " + (server ? "simulation" : "server") + " for "
+					+ PEER_TIMEOUT_MS + " ms");
+		}
+	}
+
+	private static long fileSize() {
+		return HEADER_SIZE + 2 * RING_HEADER_SIZE + 2L * RING_SIZE;
+	}
+
+	private static int header(int ring) {
+		return HEADER_SIZE + ring * RING_HEADER_SIZE;
+	}
+
+	private static int data(int ring) {
+		return HEADER_SIZE + 2 * RING_HEADER_SIZE + ring * RING_SIZE;
+	}
+
+	/** Spins then parks, checking the peer every 1024 parks (about 50 ms) */
+	private void pause(int spins) throws IOException {
+		if (spins < SPINS) {
+			Thread.onSpinWait();
+		} else {
+			if ((spins - SPINS) % 1024 == 0) {
+				checkPeer();
+			}
+			LockSupport.parkNanos(50_000L);
+		}
+	}
+
+	@Override
+	public DataInputStream getInput() {
+		return input;
+	}
+
+	@Override
+	public DataOutputStream getOutput() {
+		return output;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		output.close();
+		closed = true;
+		heartbeat.interrupt();
+		if (server) {
+			// the file no longer designates a server, even if it cannot be deleted
+			INT.setRelease(buffer, 0, 0);
+			LONG.setRelease(buffer, SERVER_PID, 0L);
+		} else {
+			LONG.setRelease(buffer, CLIENT_PID, 0L);
+		}
+		channel.close();
+		if (server) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Consumer side of a ring
+	 */
+	private class RingInput extends InputStream implements ReadableByteChannel {
+
+		private final int header;
+		private final int data;
+		private long read;
+
+		RingInput(int ring) {
+			header = header(ring);
+			data = data(ring);
+			read = (long) LONG.getAcquire(buffer, header + READ_POS);
+		}
+
+		/** Returns the number of readable bytes, 0 if the writer closed the ring */
+		private long await() throws IOException {
+			int spins = 0;
+			long available;
+			while ((available = (long) LONG.getAcquire(buffer, header + WRITE_POS) - read) == 0) {
+				if ((int) INT.getAcquire(buffer, header + CLOSED) != 0) {
+					return 0;
+				}
+				pause(spins++);
+			}
+			return available;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (await() == 0) {
+				return -1;
+			}
+			int b = buffer.get(data + (int) (read & (RING_SIZE - 1))) & 0xFF;
+			read++;
+			LONG.setRelease(buffer, header + READ_POS, read);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long available = await();
+			if (available == 0) {
+				return -1;
+			}
+			int index = (int) (read & (RING_SIZE - 1));
+			int n = (int) Math.min(Math.min(len, available), RING_SIZE - index);
+			buffer.get(data + index, b, off, n);
+			read += n;
+			LONG.setRelease(buffer, header + READ_POS, read);
+			return n;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!dst.hasRemaining()) {
+				return 0;
+			}
+			long available = await();
+			if (available == 0) {
+				return -1;
+			}
+			int index = (int) (read & (RING_SIZE - 1));
+			int n = (int) Math.min(Math.min(dst.remaining(), available), RING_SIZE - index);
+			dst.put(dst.position(), buffer, data + index, n);
+			dst.position(dst.position() + n);
+			read += n;
+			LONG.setRelease(buffer, header + READ_POS, read);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+	}
+
+	/**
+	 * Producer side of a ring
+	 */
+	private class RingOutput extends OutputStream implements WritableByteChannel {
+
+		private final int header;
+		private final int data;
+		private long written;
+
+		RingOutput(int ring) {
+			header = header(ring);
+			data = data(ring);
+			written = (long) LONG.getAcquire(buffer, header + WRITE_POS);
+		}
+
+		/** Returns the number of writable bytes */
+		private long await() throws IOException {
+			int spins = 0;
+			long free;
+			while ((free = RING_SIZE - (written - (long) LONG.getAcquire(buffer, header + READ_POS))) == 0) {
+				pause(spins++);
+			}
+			return free;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			await();
+			buffer.put(data + (int) (written & (RING_SIZE - 1)), (byte) b);
+			written++;
+			LONG.setRelease(buffer, header + WRITE_POS, written);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				long free = await();
+				int index = (int) (written & (RING_SIZE - 1));
+				int n = (int) Math.min(Math.min(len, free), RING_SIZE - index);
+				buffer.put(data + index, b, off, n);
+				written += n;
+				off += n;
+				len -= n;
+				LONG.setRelease(buffer, header + WRITE_POS, written);
+			}
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int length = src.remaining();
+			while (src.hasRemaining()) {
+				long free = await();
+				int index = (int) (written & (RING_SIZE - 1));
+				int n = (int) Math.min(Math.min(src.remaining(), free), RING_SIZE - index);
+				buffer.put(data + index, src, src.position(), n);
+				src.position(src.position() + n);
+				written += n;
+				LONG.setRelease(buffer, header + WRITE_POS, written);
+			}
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return !closed;
+		}
+
+		@Override
+		public void close() {
+			INT.setRelease(buffer, header + CLOSED, 1);
+		}
+	}
+
+}
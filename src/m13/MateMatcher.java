@@ -0,0 +1,228 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Reproduction stage of an update.
+ *
+ * The animals able to reproduce (older than REPROD_AGE, not reproduced yet
+ * this update) are put in one SpatialIndex per species. Then, in a single pass
+ * in the order of the list of elements, every animal still alone looks at the
+ * animals of its species within REPROD after it in the list, lowest index
+ * first, and pairs with the first one that accepts. The births are only
+ * recorded : the simulation adds them after the stage, so the newborns are
+ * never scanned.
+ *
+ * Each pair of animals is considered once instead of twice (a with e, then e
+ * with a) by the previous all-pairs loop, so it accepts with probability
+ * 1 - (1 - alpha)^2 to keep the same birth rate. Rather than drawing a number
+ * for every candidate, the number of refusals before the first acceptance is
+ * drawn once from the matching geometric distribution, and the partner is
+ * found with a selection instead of a sort.
+ */
+public class MateMatcher implements SpatialIndex.Visitor {
+
+	private final SpatialIndex preys = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE,
+			Simulation.REPROD);
+	private final SpatialIndex predators = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE,
+			Simulation.REPROD);
+
+	/** Indices of the animals able to reproduce, in increasing order */
+	private int[] eligible = new int[64];
+	private int nbEligible;
+
+	/** Animals found by the current query, after the current one in the list */
+	private int[] candidates = new int[16];
+	private int nbCandidates;
+	private ArrayList<Element> elements;
+	private int current;
+
+	/** Births recorded by the last match() */
+	private double[] birthX = new double[16];
+	private double[] birthY = new double[16];
+	private boolean[] birthPrey = new boolean[16];
+	private int births;
+
+	/**
+	 * Pairs the animals able to reproduce and marks the parents as reproduced
+	 *
+	 * @param elements
+	 *            The elements of the simulation
+	 *
+	 * @param size
+	 *            The number of elements to consider
+	 *
+	 * @param alphaPrey
+	 *            The reproduction probability of the preys
+	 *
+	 * @param alphaPred
+	 *            The reproduction probability of the predators
+	 *
+	 * @return The number of births, see getBirthX(), getBirthY() and
+	 *         isPreyBirth()
+	 */
+	public int match(ArrayList<Element> elements, int size, double alphaPrey, double alphaPred) {
+		preys.clear();
+		predators.clear();
+		nbEligible = 0;
+		births = 0;
+
+		for (int i = 0; i < size; i++) {
+			Element e = elements.get(i);
+			if (e instanceof Animal) {
+				Animal a = (Animal) e;
+				if (a.getAge() > Simulation.REPROD_AGE && !a.getHasReproduced()) {
+					(a instanceof Prey ? preys : predators).insert(i, a.getX(), a.getY());
+					if (nbEligible == eligible.length) {
+						eligible = Arrays.copyOf(eligible, nbEligible * 2);
+					}
+					eligible[nbEligible++] = i;
+				}
+			}
+		}
+		preys.build();
+		predators.build();
+
+		// log(1 - chance), the chance of a pair being 1 - (1 - alpha)^2
+		double preyLogRefusal = 2 * Math.log1p(-alphaPrey);
+		double predLogRefusal = 2 * Math.log1p(-alphaPred);
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		this.elements = elements;
+
+		for (int n = 0; n < nbEligible; n++) {
+			int i = eligible[n];
+			Animal a = (Animal) elements.get(i);
+			if (a.getHasReproduced()) {
+				continue;
+			}
+			boolean prey = a instanceof Prey;
+
+			current = i;
+			nbCandidates = 0;
+			(prey ? preys : predators).query(a.getX(), a.getY(), Simulation.REPROD, this);
+			if (nbCandidates == 0) {
+				continue;
+			}
+
+			// number of candidates refusing before one accepts
+			double refused = Math.floor(Math.log(1 - rand.nextDouble()) / (prey ? preyLogRefusal : predLogRefusal));
+			if (refused >= 0 && refused < nbCandidates) {
+				Animal e = (Animal) elements.get(select(candidates, nbCandidates, (int) refused));
+				a.setHasReproduced(true);
+				e.setHasReproduced(true);
+				addBirth(a.getX(), a.getY(), prey);
+			}
+		}
+		this.elements = null;
+		return births;
+	}
+
+	@Override
+	public void visit(int id) {
+		if (id <= current || ((Animal) elements.get(id)).getHasReproduced()) {
+			return;
+		}
+		if (nbCandidates == candidates.length) {
+			candidates = Arrays.copyOf(candidates, nbCandidates * 2);
+		}
+		candidates[nbCandidates++] = id;
+	}
+
+	/**
+	 * Returns the x coordinate of a newborn of the last match()
+	 *
+	 * @param b
+	 *            The index of the birth
+	 *
+	 * @return The x coordinate of the newborn
+	 */
+	public double getBirthX(int b) {
+		return birthX[b];
+	}
+
+	/**
+	 * Returns the y coordinate of a newborn of the last match()
+	 *
+	 * @param b
+	 *            The index of the birth
+	 *
+	 * @return The y coordinate of the newborn
+	 */
+	public double getBirthY(int b) {
+		return birthY[b];
+	}
+
+	/**
+	 * Returns the species of a newborn of the last match()
+	 *
+	 * @param b
+	 *            The index of the birth
+	 *
+	 * @return True for a prey, false for a predator
+	 */
+	public boolean isPreyBirth(int b) {
+		return birthPrey[b];
+	}
+
+	/**
+	 * Returns the number of animals, candidates, births and index entries the
+	 * stage can hold without growing
+	 *
+	 * @return The capacity of the stage
+	 */
+	public int getCapacity() {
+		return eligible.length + candidates.length + birthX.length + preys.getCapacity() + predators.getCapacity();
+	}
+
+	/**
+	 * Returns the k-th smallest of the n first values of an array, reordering
+	 * them (quickselect)
+	 */
+	private static int select(int[] values, int n, int k) {
+		int low = 0;
+		int high = n - 1;
+		while (low < high) {
+			int pivot = values[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					int tmp = values[i];
+					values[i] = values[j];
+					values[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				high = j;
+			} else if (k >= i) {
+				low = i;
+			} else {
+				break;
+			}
+		}
+		return values[k];
+	}
+
+	private void addBirth(double x, double y, boolean prey) {
+		if (births == birthX.length) {
+			birthX = Arrays.copyOf(birthX, births * 2);
+			birthY = Arrays.copyOf(birthY, births * 2);
+			birthPrey = Arrays.copyOf(birthPrey, births * 2);
+		}
+		birthX[births] = x;
+		birthY[births] = y;
+		birthPrey[births] = prey;
+		births++;
+	}
+
+}
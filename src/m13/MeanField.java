@@ -0,0 +1,167 @@
+package m13;
+
+/**
+ * Mean-field approximation of the simulation : the numbers of preys N, of
+ * predators P and of plants V of a well-mixed area, following ordinary
+ * differential equations whose rates are derived from the rules of the
+ * agents, one unit of time being one update.
+ *
+ * With the elements spread uniformly, the number of elements of a density d
+ * in the square range of side 2r around an animal follows a Poisson law of
+ * mean d (2r)^2, so :
+ * <ul>
+ * <li>a prey is eaten when a predator is within PRED of it, with probability
+ * 1 - exp(-c (2 PRED)^2 P / area) per update,</li>
+ * <li>a plant is eaten when an animal is within PRED of it, and size/50 plants
+ * spawn every PLANT updates,</li>
+ * <li>a predator eats when a prey or a plant is within PRED of it, and starves
+ * after LASTMEAL_PRED updates without eating,</li>
+ * <li>an adult pairs with one of the k adults within REPROD of it, each of them
+ * accepting with probability 1 - (1 - alpha)^2 like in the MateMatcher, alpha
+ * being exp(-0.008 P) for the predators and exp(-0.016 N) for the preys like
+ * in the Simulation,</li>
+ * <li>the animals die of old age after AGE_PREY and AGE_PRED updates.</li>
+ * </ul>
+ * Like in the simulation, the preys don't die of hunger and eating doesn't
+ * make the predators reproduce : they only live long enough to.
+ *
+ * The animals are not well-mixed though : the preys flee, and both species
+ * live in separate herds. The contact efficiency c is the fraction of the
+ * encounters of a well-mixed area that actually happen between predators and
+ * preys, and the crowding k is how many more animals of its species an
+ * animal has around it than in a well-mixed area, both fitted on runs of the
+ * agents (MEAN_FIELD_CONTACT and MEAN_FIELD_CROWDING).
+ *
+ * Usage, to integrate the equations for a whole world : java m13.MeanField
+ * [<preys> [<predators> [<plants> [<updates>]]]]
+ */
+public class MeanField implements Rk45.Equations {
+
+	/** Area of the square range of predation and of reproduction */
+	private static final double PRED_AREA = 4.0 * Simulation.PRED * Simulation.PRED;
+	private static final double REPROD_AREA = 4.0 * Simulation.REPROD * Simulation.REPROD;
+
+	/** Fraction of the animals of an age class reaching the reproduction age */
+	private static final double PREY_ADULTS = 1 - (Simulation.REPROD_AGE + 1) / Simulation.AGE_PREY;
+	private static final double PRED_ADULTS = 1 - (Simulation.REPROD_AGE + 1) / Simulation.AGE_PRED;
+
+	/** Area the animals are mixed in */
+	private final double area;
+
+	/** Contact efficiency between the predators and the preys, see above */
+	private final double contact;
+
+	/** Crowding of the animals of a species, see above */
+	private final double crowding;
+
+	/** Reproduction probabilities, NaN to derive them from the state */
+	private double alphaPrey = Double.NaN;
+	private double alphaPred = Double.NaN;
+
+	/**
+	 * Creates the equations of an area
+	 *
+	 * @param area
+	 *            The area the animals are mixed in
+	 *
+	 * @param contact
+	 *            The contact efficiency between the predators and the preys
+	 *
+	 * @param crowding
+	 *            The crowding of the animals of a species
+	 */
+	public MeanField(double area, double contact, double crowding) {
+		this.area = area;
+		this.contact = contact;
+		this.crowding = crowding;
+	}
+
+	/**
+	 * Sets the reproduction probabilities, when they depend on more animals than
+	 * those of the area
+	 *
+	 * @param alphaPrey
+	 *            The reproduction probability of the preys, NaN to derive it from
+	 *            the number of preys of the area
+	 *
+	 * @param alphaPred
+	 *            The reproduction probability of the predators, NaN to derive it
+	 *            from the number of predators of the area
+	 */
+	public void setAlphas(double alphaPrey, double alphaPred) {
+		this.alphaPrey = alphaPrey;
+		this.alphaPred = alphaPred;
+	}
+
+	@Override
+	public void derivatives(double t, double[] y, double[] dydt) {
+		double n = y[0];
+		double p = y[1];
+		double v = y[2];
+
+		double ap = Double.isNaN(alphaPrey) ? Math.exp(-0.016 * n) : alphaPrey;
+		double aq = Double.isNaN(alphaPred) ? Math.exp(-0.008 * p) : alphaPred;
+
+		double eaten = n * -Math.expm1(-contact * PRED_AREA * p / area);
+		double grazed = v * -Math.expm1(-PRED_AREA * (n + p) / area);
+		double fed = -Math.expm1(-PRED_AREA * (contact * n + v) / area);
+		// a predator starves if it didn't eat during LASTMEAL_PRED updates
+		double starving = p * Math.pow(1 - fed, Simulation.LASTMEAL_PRED) / Simulation.LASTMEAL_PRED;
+
+		double preyBirths = births(PREY_ADULTS * n, ap);
+		double predBirths = births(PRED_ADULTS * p, aq);
+
+		dydt[0] = preyBirths - n / Simulation.AGE_PREY - eaten;
+		dydt[1] = predBirths - p / Simulation.AGE_PRED - starving;
+		dydt[2] = (n + p + v) / 50 / Simulation.PLANT - grazed;
+	}
+
+	/**
+	 * Returns the number of births of a species per update, from its number of
+	 * adults and its reproduction probability : an adult accepted by one of the
+	 * Poisson number of candidates around it makes a pair, which counts two
+	 * adults
+	 */
+	private double births(double adults, double alpha) {
+		double chance = 1 - (1 - alpha) * (1 - alpha);
+		return 0.5 * adults * -Math.expm1(-crowding * REPROD_AREA * adults / area * chance);
+	}
+
+	public static void main(String[] args) {
+		Trajectory.print(args);
+	}
+
+	/**
+	 * Trajectory printed by main(). Its text is kept out of the constant pool of
+	 * MeanField : the first time the JIT compiles a method of a class, it
+	 * resolves the string constants of the class on the calling thread, which
+	 * would make an update of the HybridField allocate.
+	 */
+	private static class Trajectory {
+
+		static void print(String[] args) {
+			double preys = args.length > 0 ? Double.parseDouble(args[0]) : 490;
+			double predators = args.length > 1 ? Double.parseDouble(args[1]) : 490;
+			double plants = args.length > 2 ? Double.parseDouble(args[2]) : 20;
+			int updates = args.length > 3 ? Integer.parseInt(args[3])
+					: Simulation.DURATION_S * Simulation.UPDATE_RATE_HZ;
+
+			MeanField equations = new MeanField((double) Simulation.SPACE_SIZE * Simulation.SPACE_SIZE,
+					Simulation.MEAN_FIELD_CONTACT, Simulation.MEAN_FIELD_CROWDING);
+			Rk45 solver = new Rk45(3, 1e-6);
+			double[] y = { preys, predators, plants };
+
+			long start = System.nanoTime();
+			System.out.println("update preys predators plants");
+			System.out.printf("%d %.1f %.1f %.1f%n", 0, y[0], y[1], y[2]);
+			for (int u = 1; u <= updates; u++) {
+				solver.integrate(equations, u - 1, u, y);
+				System.out.printf("%d %.1f %.1f %.1f%n", u, y[0], y[1], y[2]);
+			}
+			System.out.printf("%d updates in %.1f ms, %d steps (%d rejected)%n", updates,
+					(System.nanoTime() - start) / 1e6, solver.getSteps(), solver.getRejected());
+		}
+
+	}
+
+}
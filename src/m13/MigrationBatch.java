@@ -0,0 +1,392 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reusable storage for a list of creatures crossing the border of the
+ * simulation square, in the form they take on the wire : a normalized position
+ * and extLength bytes of extended data per creature.
+ *
+ * The creatures are records of a RecordStore, laid out exactly as on the wire
+ * (two doubles then the extended data), so a batch is written to and read
+ * from a stream as a single block of bytes. The storage only grows, so once
+ * the batch has reached the largest migration seen, filling and reading it
+ * does not allocate anything.
+ */
+public class MigrationBatch {
+
+	/** Records of the creatures */
+	private final RecordStore store;
+
+	/** Size of the extended data of one creature (bytes) */
+	private int extLength;
+
+	/** Size of the record of one creature (bytes) */
+	private int recordLength;
+
+	/** Number of creatures in the batch */
+	private int count;
+
+	/**
+	 * Creates an empty batch
+	 *
+	 * @param extLength
+	 *            Size of the extended data of one creature (bytes)
+	 */
+	public MigrationBatch(int extLength) {
+		this(extLength, RecordStore.create(Simulation.RECORD_STORE, 16 * (16 + extLength)));
+	}
+
+	/**
+	 * Creates an empty batch in a given storage
+	 *
+	 * @param extLength
+	 *            Size of the extended data of one creature (bytes)
+	 *
+	 * @param store
+	 *            The storage of the records, overwritten by the batch
+	 */
+	public MigrationBatch(int extLength, RecordStore store) {
+		this.extLength = extLength;
+		this.recordLength = 16 + extLength;
+		this.store = store;
+	}
+
+	/**
+	 * Empties the batch, keeping its storage
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * Appends a creature to the batch
+	 *
+	 * @param x0
+	 *            Normalized x coordinate of the creature
+	 *
+	 * @param y0
+	 *            Normalized y coordinate of the creature
+	 *
+	 * @return The index of the creature in the batch
+	 */
+	public int add(double x0, double y0) {
+		store.ensureCapacity((count + 1) * recordLength);
+		setPos(count, x0, y0);
+		return count++;
+	}
+
+	/**
+	 * Returns the number of creatures in the batch
+	 *
+	 * @return The number of creatures
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Returns the size of the records the batch can hold without growing
+	 *
+	 * @return The capacity of the batch (bytes)
+	 */
+	public int getCapacity() {
+		return store.capacity();
+	}
+
+	/**
+	 * Returns the size of the extended data of one creature
+	 *
+	 * @return The size of the extended data (bytes)
+	 */
+	public int getExtLength() {
+		return extLength;
+	}
+
+	/**
+	 * Returns the size of the record of one creature, as sent on the wire
+	 *
+	 * @return The size of the position and extended data (bytes)
+	 */
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	/**
+	 * Returns the normalized x coordinate of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @return The normalized x coordinate
+	 */
+	public double getX(int i) {
+		return store.getDouble(i * recordLength);
+	}
+
+	/**
+	 * Returns the normalized y coordinate of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @return The normalized y coordinate
+	 */
+	public double getY(int i) {
+		return store.getDouble(i * recordLength + 8);
+	}
+
+	/**
+	 * Sets the normalized position of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param x0
+	 *            Normalized x coordinate
+	 *
+	 * @param y0
+	 *            Normalized y coordinate
+	 */
+	public void setPos(int i, double x0, double y0) {
+		store.putDouble(i * recordLength, x0);
+		store.putDouble(i * recordLength + 8, y0);
+	}
+
+	/**
+	 * Copies bytes of the extended data of creature i to an array
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the extended data
+	 *
+	 * @param dst
+	 *            The array receiving the bytes
+	 *
+	 * @param dstOffset
+	 *            Offset of the first byte in the array
+	 *
+	 * @param length
+	 *            Number of bytes
+	 */
+	public void getExt(int i, int offset, byte[] dst, int dstOffset, int length) {
+		store.get(i * recordLength + 16 + offset, dst, dstOffset, length);
+	}
+
+	/**
+	 * Copies bytes of an array to the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the extended data
+	 *
+	 * @param src
+	 *            The array holding the bytes
+	 *
+	 * @param srcOffset
+	 *            Offset of the first byte in the array
+	 *
+	 * @param length
+	 *            Number of bytes
+	 */
+	public void putExt(int i, int offset, byte[] src, int srcOffset, int length) {
+		store.put(i * recordLength + 16 + offset, src, srcOffset, length);
+	}
+
+	/**
+	 * Writes the records of creatures first to last - 1 to a stream, as they
+	 * are sent on the wire
+	 *
+	 * @param output
+	 *            The stream
+	 *
+	 * @param first
+	 *            Index of the first creature
+	 *
+	 * @param last
+	 *            Index following the last creature
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	public void write(OutputStream output, int first, int last) throws IOException {
+		store.write(output, first * recordLength, (last - first) * recordLength);
+	}
+
+	/**
+	 * Reads the records of creatures first to last - 1 from a stream, replacing
+	 * them
+	 *
+	 * @param input
+	 *            The stream
+	 *
+	 * @param first
+	 *            Index of the first creature
+	 *
+	 * @param last
+	 *            Index following the last creature
+	 *
+	 * @throws IOException
+	 *             If the stream fails or ends too early
+	 */
+	public void read(DataInputStream input, int first, int last) throws IOException {
+		store.read(input, first * recordLength, (last - first) * recordLength);
+	}
+
+	/**
+	 * Changes the number of creatures of the batch, the records of the new ones
+	 * being undefined until they are read or set
+	 *
+	 * @param creatures
+	 *            The number of creatures
+	 */
+	public void setSize(int creatures) {
+		store.ensureCapacity(creatures * recordLength);
+		count = creatures;
+	}
+
+	/**
+	 * Removes the first creatures of the batch, the next ones moving to the
+	 * front
+	 *
+	 * @param creatures
+	 *            The number of creatures removed
+	 */
+	public void removeFirst(int creatures) {
+		int length = (count - creatures) * recordLength;
+		store.slice(0, length).put(store.slice(creatures * recordLength, length));
+		count -= creatures;
+	}
+
+	/**
+	 * Copies the record of a creature of another batch, with the same extended
+	 * data length, at the end of this one
+	 *
+	 * @param other
+	 *            The batch holding the creature
+	 *
+	 * @param i
+	 *            Index of the creature in the other batch
+	 *
+	 * @return The index of the creature in this batch
+	 */
+	public int add(MigrationBatch other, int i) {
+		int j = add(other.getX(i), other.getY(i));
+		store.slice(j * recordLength + 16, extLength).put(other.store.slice(i * recordLength + 16, extLength));
+		return j;
+	}
+
+	/**
+	 * Copies the records of all the creatures of another batch, with the same
+	 * extended data length, at the end of this one
+	 *
+	 * @param other
+	 *            The batch holding the creatures
+	 */
+	public void addAll(MigrationBatch other) {
+		int length = other.count * recordLength;
+		store.ensureCapacity(count * recordLength + length);
+		store.slice(count * recordLength, length).put(other.store.slice(0, length));
+		count += other.count;
+	}
+
+	/**
+	 * Writes an int in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @param value
+	 *            Value of the field
+	 */
+	public void putInt(int i, int offset, int value) {
+		store.putInt(i * recordLength + 16 + offset, value);
+	}
+
+	/**
+	 * Reads an int in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @return The value of the field
+	 */
+	public int getInt(int i, int offset) {
+		return store.getInt(i * recordLength + 16 + offset);
+	}
+
+	/**
+	 * Writes a double in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @param value
+	 *            Value of the field
+	 */
+	public void putDouble(int i, int offset, double value) {
+		store.putDouble(i * recordLength + 16 + offset, value);
+	}
+
+	/**
+	 * Reads a double in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @return The value of the field
+	 */
+	public double getDouble(int i, int offset) {
+		return store.getDouble(i * recordLength + 16 + offset);
+	}
+
+	/**
+	 * Writes a byte in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @param value
+	 *            Value of the field
+	 */
+	public void putByte(int i, int offset, byte value) {
+		store.putByte(i * recordLength + 16 + offset, value);
+	}
+
+	/**
+	 * Reads a byte in the extended data of creature i
+	 *
+	 * @param i
+	 *            Index of the creature
+	 *
+	 * @param offset
+	 *            Offset of the field in the extended data
+	 *
+	 * @return The value of the field
+	 */
+	public byte getByte(int i, int offset) {
+		return store.getByte(i * recordLength + 16 + offset);
+	}
+
+}
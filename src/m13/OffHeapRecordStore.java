@@ -0,0 +1,153 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * RecordStore in a direct buffer, outside of the heap.
+ *
+ * The records are written straight from the buffer to a ChannelOutput, and
+ * read straight into it from a ChannelInput (see TcpTransport and
+ * MappedFileTransport). Other streams only take arrays, so the bytes written
+ * to or read from them go through a small transfer array, by bulk copies of at
+ * most TRANSFER bytes. Copies to other buffers such as a mapped file are done
+ * by slice() without it.
+ *
+ * The memory of a direct buffer is freed when the buffer is collected, so a
+ * store that grew keeps its previous memory until the next garbage
+ * collections.
+ */
+public class OffHeapRecordStore implements RecordStore {
+
+	/** Size of the transfer array (bytes) */
+	public static final int TRANSFER = 8192;
+
+	private ByteBuffer buffer;
+
+	/** View of the buffer handed to the channels, see window() */
+	private ByteBuffer window;
+
+	/** Bytes going to or coming from a stream */
+	private final byte[] transfer = new byte[TRANSFER];
+
+	/**
+	 * Creates an empty storage
+	 *
+	 * @param capacity
+	 *            The initial capacity (bytes)
+	 */
+	public OffHeapRecordStore(int capacity) {
+		buffer = ByteBuffer.allocateDirect(capacity);
+		window = buffer.duplicate();
+	}
+
+	/**
+	 * Creates a storage over the content of a buffer, such as a mapped file
+	 *
+	 * @param buffer
+	 *            The buffer, from position 0 to its capacity, big-endian
+	 */
+	OffHeapRecordStore(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.window = buffer.duplicate();
+	}
+
+	@Override
+	public int capacity() {
+		return buffer.capacity();
+	}
+
+	@Override
+	public void ensureCapacity(int capacity) {
+		if (capacity > buffer.capacity()) {
+			ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(capacity, 2 * buffer.capacity()));
+			grown.put(0, buffer, 0, buffer.capacity());
+			buffer = grown;
+			window = buffer.duplicate();
+		}
+	}
+
+	@Override
+	public double getDouble(int offset) {
+		return buffer.getDouble(offset);
+	}
+
+	@Override
+	public void putDouble(int offset, double value) {
+		buffer.putDouble(offset, value);
+	}
+
+	@Override
+	public int getInt(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	@Override
+	public void putInt(int offset, int value) {
+		buffer.putInt(offset, value);
+	}
+
+	@Override
+	public byte getByte(int offset) {
+		return buffer.get(offset);
+	}
+
+	@Override
+	public void putByte(int offset, byte value) {
+		buffer.put(offset, value);
+	}
+
+	@Override
+	public void get(int offset, byte[] dst, int dstOffset, int length) {
+		buffer.get(offset, dst, dstOffset, length);
+	}
+
+	@Override
+	public void put(int offset, byte[] src, int srcOffset, int length) {
+		buffer.put(offset, src, srcOffset, length);
+	}
+
+	@Override
+	public void write(OutputStream output, int offset, int length) throws IOException {
+		if (output instanceof ChannelOutput) {
+			((ChannelOutput) output).write(window(offset, length));
+			return;
+		}
+		for (int done = 0; done < length; done += TRANSFER) {
+			int n = Math.min(TRANSFER, length - done);
+			buffer.get(offset + done, transfer, 0, n);
+			output.write(transfer, 0, n);
+		}
+	}
+
+	@Override
+	public void read(DataInputStream input, int offset, int length) throws IOException {
+		if (input instanceof ChannelInput) {
+			((ChannelInput) input).readFully(window(offset, length));
+			return;
+		}
+		for (int done = 0; done < length; done += TRANSFER) {
+			int n = Math.min(TRANSFER, length - done);
+			input.readFully(transfer, 0, n);
+			buffer.put(offset + done, transfer, 0, n);
+		}
+	}
+
+	@Override
+	public ByteBuffer slice(int offset, int length) {
+		return buffer.slice(offset, length);
+	}
+
+	/**
+	 * Returns the view of a part of the buffer handed to a channel. Unlike
+	 * slice(), it allocates nothing : the view is reused by every call.
+	 */
+	private ByteBuffer window(int offset, int length) {
+		window.limit(offset + length);
+		window.position(offset);
+		return window;
+	}
+
+}
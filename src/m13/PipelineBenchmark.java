@@ -0,0 +1,89 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Measures the time per update of the staged and the fused pipelines (see
+ * Simulation.FUSED_PIPELINE) on a Simulation connected to an embedded server.
+ *
+ * The pipeline is chosen when the Simulation class is initialized, so a run
+ * measures one of them : run it once with "staged" and once with "fused" on
+ * the same population. With a large population the list of elements no longer
+ * fits in the caches, and every pass over it reads the elements, their
+ * positions and their circles from memory : the time per element shows how
+ * much of an update was spent streaming the list.
+ *
+ * The JIT is warmed up first on a small simulation of its own. While the JIT
+ * compiles in the background, its threads take the CPU whenever the update
+ * thread waits for the embedded server : on a machine with few CPUs, this
+ * delays the exchange by a scheduler time slice (a few ms) in about a third of
+ * the updates of the first thousands, in both pipelines.
+ *
+ * The population of a new simulation collapses within a few tens of updates,
+ * so the updates of the measured simulation are reported in two groups : the
+ * ones starting with at least half of the initial population, and the other
+ * ones.
+ *
+ * Usage: java m13.PipelineBenchmark staged|fused [<elements> [<updates>]]
+ */
+public class PipelineBenchmark {
+
+	private static final int WARMUP_ELEMENTS = 2_000;
+	private static final int WARMUP_UPDATES = 3_000;
+
+	public static void main(String[] args) {
+		String pipeline = args.length > 0 ? args[0] : "fused";
+		int nbElements = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+		int updates = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+		// must be set before the Simulation class is initialized
+		System.setProperty("m13.pipeline", pipeline);
+		System.setProperty("m13.transport", "inprocess");
+		System.setProperty("m13.verbose", "false");
+
+		Simulation warmup = new Simulation(WARMUP_ELEMENTS);
+		for (int u = 0; u < WARMUP_UPDATES; u++) {
+			warmup.update();
+		}
+		warmup.close();
+
+		// the population changes from update to update, so every update is
+		// measured per element, and the median is kept against the noise
+		Simulation simulation = new Simulation(nbElements);
+		double[] large = new double[updates];
+		double[] small = new double[updates];
+		int nbLarge = 0;
+		int nbSmall = 0;
+		long start = System.nanoTime();
+		for (int u = 0; u < updates; u++) {
+			int size = Math.max(1, simulation.getElements().size());
+			long t0 = System.nanoTime();
+			simulation.update();
+			double perElement = (double) (System.nanoTime() - t0) / size;
+			if (2 * size >= nbElements) {
+				large[nbLarge++] = perElement;
+			} else {
+				small[nbSmall++] = perElement;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("pipeline=%s elements=%d updates=%d%n", pipeline, nbElements, updates);
+		System.out.printf("time: %.1f us/update, %d elements at the end%n", elapsed / (updates * 1e3),
+				simulation.getElements().size());
+		print("large population", large, nbLarge);
+		print("small population", small, nbSmall);
+		simulation.close();
+	}
+
+	private static void print(String name, double[] perElement, int count) {
+		if (count == 0) {
+			System.out.printf("%s: no update%n", name);
+			return;
+		}
+		Arrays.sort(perElement, 0, count);
+		System.out.printf("%s: %d updates, median %.1f ns/element (p10 %.1f, p90 %.1f)%n", name, count,
+				perElement[count / 2], perElement[count / 10], perElement[count * 9 / 10]);
+	}
+
+}
@@ -12,14 +12,17 @@ public class Plant extends Element {
 	/**
 	 * Creates a new plant
 	 * 
+	 * @param store
+	 *            The store of the simulation of the plant
+	 * 
 	 * @param x
 	 *            The x coordinate of the plant
 	 * 
 	 * @param y
 	 *            The y coordinate of the plant
 	 */
-	public Plant(double x, double y) {
-		this.addPos(new Position(x, y));
+	public Plant(EntityStore store, double x, double y) {
+		super(store, x, y);
 		this.setType("plant");
 	}
 
@@ -0,0 +1,264 @@
+package m13;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Vegetation represented as a density grid over the world, an alternative to
+ * discrete Plant elements (see Simulation.PLANT_GRID).
+ *
+ * Each cell holds an amount of vegetation, one unit being worth one plant. It
+ * grows back by REGROWTH units per update up to CAPACITY. An animal eats the
+ * whole units of the cell it stands in, which is an O(1) operation instead of
+ * a scan of all the plants.
+ *
+ * The grid is sparse : the cells are stored in the chunks of the world (see
+ * ChunkMap), and only where the vegetation differs from the untouched one,
+ * which started empty and grew back at every update. The vegetation of the
+ * chunks where animals are grows back at every update ; the other chunks catch
+ * up when they are accessed, and are freed by a periodic sweep once full.
+ */
+public class PlantField {
+
+	/** Side of a cell, equal to the predation distance */
+	public static final int CELL = Simulation.PRED;
+
+	/** Vegetation grown back in a cell at each update (plant units) */
+	public static final float REGROWTH = 0.02f;
+
+	/** Maximum vegetation of a cell (plant units) */
+	public static final float CAPACITY = 3;
+
+	/** Number of cells on a side of a chunk */
+	private static final int CHUNK_CELLS = (Simulation.CHUNK_SIZE + CELL - 1) / CELL;
+
+	/** Number of updates between two sweeps of the idle chunks */
+	private static final int SWEEP = 50;
+
+	/** Number of cells on a side of the world */
+	private final int side;
+
+	private final ChunkMap chunks;
+
+	/** Number of regrowths since the creation of the field */
+	private long tick;
+
+	/** Vegetation arrays of the freed chunks, for reuse */
+	private final FreeList<float[]> free = new FreeList<float[]>();
+
+	/** Number of vegetation arrays allocated since the creation of the field */
+	private int created;
+
+	/**
+	 * Creates an empty field covering the world
+	 *
+	 * @param chunks
+	 *            The chunks of the world, holding the vegetation
+	 */
+	public PlantField(ChunkMap chunks) {
+		this.chunks = chunks;
+		side = (Simulation.SPACE_SIZE + CELL - 1) / CELL;
+	}
+
+	/**
+	 * Adds one plant unit in the cells of nb random positions
+	 *
+	 * @param nb
+	 *            Number of plant units to sow
+	 *
+	 * @param rand
+	 *            Random number generator
+	 */
+	public void sow(int nb, Random rand) {
+		boolean full = untouched() >= CAPACITY;
+		for (int i = 0; i < nb; i++) {
+			double x = Simulation.SPACE_SIZE * rand.nextDouble();
+			double y = Simulation.SPACE_SIZE * rand.nextDouble();
+			// a unit sown in an untouched full cell is lost anyway
+			if (!full || chunks.get(x, y) != null) {
+				float[] v = vegetation(chunks.obtain(x, y));
+				int c = cell(x, y);
+				v[c] = Math.min(CAPACITY, v[c] + 1);
+			}
+		}
+	}
+
+	/**
+	 * Grows the vegetation of the chunks where animals are back, and
+	 * periodically catches up the other ones, freeing them once full
+	 */
+	public void regrow() {
+		tick++;
+		boolean sweep = tick % SWEEP == 0;
+		for (int s = 0; s < chunks.capacity(); s++) {
+			Chunk c = chunks.slot(s);
+			if (c != null && c.vegetation != null && (sweep || !c.isIdle())) {
+				catchUp(c);
+				if (c.isUnused()) {
+					chunks.release(c);
+					// the release moved the next chunk of the cluster to this slot
+					s--;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Eats the whole plant units of the cell containing (x, y)
+	 *
+	 * @param x
+	 *            The x coordinate of the animal
+	 *
+	 * @param y
+	 *            The y coordinate of the animal
+	 *
+	 * @return The number of plant units eaten
+	 */
+	public int eatAt(double x, double y) {
+		float[] v = vegetation(chunks.obtain(x, y));
+		int c = cell(x, y);
+		int eaten = (int) v[c];
+		v[c] -= eaten;
+		return eaten;
+	}
+
+	/**
+	 * Returns the vegetation of the cell containing (x, y)
+	 *
+	 * @param x
+	 *            The x coordinate
+	 *
+	 * @param y
+	 *            The y coordinate
+	 *
+	 * @return The vegetation of the cell (plant units)
+	 */
+	public float densityAt(double x, double y) {
+		Chunk chunk = chunks.get(x, y);
+		if (chunk != null && chunk.vegetation != null) {
+			catchUp(chunk);
+		}
+		if (chunk == null || chunk.vegetation == null) {
+			return untouched();
+		}
+		return chunk.vegetation[cell(x, y)];
+	}
+
+	/**
+	 * Returns the total vegetation of the field
+	 *
+	 * @return The sum of the vegetation of all cells (plant units)
+	 */
+	public double total() {
+		double untouched = untouched();
+		double sum = untouched * side * side;
+		for (int s = 0; s < chunks.capacity(); s++) {
+			Chunk c = chunks.slot(s);
+			if (c == null || c.vegetation == null) {
+				continue;
+			}
+			catchUp(c);
+			float[] v = c.vegetation;
+			if (v == null) {
+				continue;
+			}
+			// only the cells of the chunk inside the world
+			int rows = Math.min(CHUNK_CELLS, side - c.cy * CHUNK_CELLS);
+			int columns = Math.min(CHUNK_CELLS, side - c.cx * CHUNK_CELLS);
+			for (int j = 0; j < rows; j++) {
+				for (int i = 0; i < columns; i++) {
+					sum += v[j * CHUNK_CELLS + i] - untouched;
+				}
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the number of chunks holding their own vegetation
+	 *
+	 * @return The number of chunks whose vegetation is not the untouched one
+	 */
+	public int getTouchedChunks() {
+		int touched = 0;
+		for (int s = 0; s < chunks.capacity(); s++) {
+			Chunk c = chunks.slot(s);
+			if (c != null && c.vegetation != null) {
+				touched++;
+			}
+		}
+		return touched;
+	}
+
+	/**
+	 * Returns the number of vegetation arrays allocated plus the number of
+	 * slots of their free list : it only changes when the field allocates
+	 *
+	 * @return The capacity of the field
+	 */
+	public int getCapacity() {
+		return created + free.getCapacity();
+	}
+
+	/**
+	 * Returns the vegetation of the cells never eaten nor sown
+	 */
+	private float untouched() {
+		return Math.min(CAPACITY, tick * REGROWTH);
+	}
+
+	/**
+	 * Returns the up to date vegetation of a chunk, allocating it if it was
+	 * untouched
+	 */
+	private float[] vegetation(Chunk chunk) {
+		if (chunk.vegetation != null) {
+			catchUp(chunk);
+		}
+		if (chunk.vegetation == null) {
+			float[] v = free.poll();
+			if (v == null) {
+				created++;
+				v = new float[CHUNK_CELLS * CHUNK_CELLS];
+			}
+			Arrays.fill(v, untouched());
+			chunk.vegetation = v;
+			chunk.vegetationTick = tick;
+		}
+		return chunk.vegetation;
+	}
+
+	/**
+	 * Applies the regrowths a chunk missed, and frees its vegetation once it is
+	 * back to the untouched one
+	 */
+	private void catchUp(Chunk chunk) {
+		long missed = tick - chunk.vegetationTick;
+		if (missed == 0) {
+			return;
+		}
+		float[] v = chunk.vegetation;
+		float growth = missed * REGROWTH;
+		boolean full = true;
+		for (int i = 0; i < v.length; i++) {
+			v[i] = Math.min(CAPACITY, v[i] + growth);
+			full &= v[i] >= CAPACITY;
+		}
+		chunk.vegetationTick = tick;
+		if (full && untouched() >= CAPACITY) {
+			chunk.vegetation = null;
+			free.push(v);
+		}
+	}
+
+	/**
+	 * Returns the index of the cell containing (x, y) in the vegetation of its
+	 * chunk
+	 */
+	private int cell(double x, double y) {
+		int cx = Math.min(side - 1, Math.max(0, (int) (x / CELL)));
+		int cy = Math.min(side - 1, Math.max(0, (int) (y / CELL)));
+		return (cy % CHUNK_CELLS) * CHUNK_CELLS + cx % CHUNK_CELLS;
+	}
+
+}
@@ -52,6 +52,19 @@ public class Position {
 		return y;
 	}
 
+	/**
+	 * Moves the position, so that it can be reused instead of allocating a new one
+	 * 
+	 * @param x0
+	 *            Cartesian coordinate x
+	 * @param y0
+	 *            Cartesian coordinate y
+	 */
+	public void set(double x0, double y0) {
+		this.x = x0;
+		this.y = y0;
+	}
+
 	/**
 	 * Checks if the position is within dist range of pos.
 	 * 
@@ -67,10 +80,35 @@ public class Position {
 	 * @return True if the pos belongs to the range, false if it doesn't
 	 */
 	public boolean withinRange(Position pos, double dist) {
-		double xmoins = this.x - dist;
-		double xplus = this.x + dist;
-		double ymoins = this.y - dist;
-		double yplus = this.y + dist;
+		return withinRange(this.x, this.y, pos.x, pos.y, dist);
+	}
+
+	/**
+	 * Checks if (px, py) is within dist range of (x, y), see withinRange(Position,
+	 * double)
+	 * 
+	 * @param x
+	 *            Cartesian coordinate x of the center of the range
+	 * 
+	 * @param y
+	 *            Cartesian coordinate y of the center of the range
+	 * 
+	 * @param px
+	 *            Cartesian coordinate x of the position being tested
+	 * 
+	 * @param py
+	 *            Cartesian coordinate y of the position being tested
+	 * 
+	 * @param dist
+	 *            Half of the size of a side of the square range
+	 * 
+	 * @return True if the position belongs to the range, false if it doesn't
+	 */
+	public static boolean withinRange(double x, double y, double px, double py, double dist) {
+		double xmoins = x - dist;
+		double xplus = x + dist;
+		double ymoins = y - dist;
+		double yplus = y + dist;
 
 		double resx = -1;
 		double resy = -1;
@@ -105,15 +143,15 @@ public class Position {
 
 		if (resx == -1) {
 
-			exprx = (xmoins <= pos.x) && (pos.x <= xplus);
+			exprx = (xmoins <= px) && (px <= xplus);
 
 			if (resy == -1) {
-				expry = (ymoins <= pos.y) && (pos.y <= yplus);
+				expry = (ymoins <= py) && (py <= yplus);
 			} else {
 				if (foldplusy) {
-					expry = ((ymoins <= pos.y) && (pos.y <= yplus)) || ((0 <= pos.y) && (pos.y <= resy));
+					expry = ((ymoins <= py) && (py <= yplus)) || ((0 <= py) && (py <= resy));
 				} else {
-					expry = ((0 <= pos.y) && (pos.y <= yplus)) || ((resy <= pos.y) && (pos.y <= Simulation.SPACE_SIZE));
+					expry = ((0 <= py) && (py <= yplus)) || ((resy <= py) && (py <= Simulation.SPACE_SIZE));
 				}
 			}
 
@@ -121,31 +159,29 @@ public class Position {
 
 			if (foldplusx) {
 
-				exprx = ((xmoins <= pos.x) && (pos.x <= xplus)) || ((0 <= pos.x) && (pos.x <= resx));
+				exprx = ((xmoins <= px) && (px <= xplus)) || ((0 <= px) && (px <= resx));
 
 				if (resy == -1) {
-					expry = (ymoins <= pos.y) && (pos.y <= yplus);
+					expry = (ymoins <= py) && (py <= yplus);
 				} else {
 					if (foldplusy) {
-						expry = ((ymoins <= pos.y) && (pos.y <= yplus)) || ((0 <= pos.y) && (pos.y <= resy));
+						expry = ((ymoins <= py) && (py <= yplus)) || ((0 <= py) && (py <= resy));
 					} else {
-						expry = ((0 <= pos.y) && (pos.y <= yplus))
-								|| ((resy <= pos.y) && (pos.y <= Simulation.SPACE_SIZE));
+						expry = ((0 <= py) && (py <= yplus)) || ((resy <= py) && (py <= Simulation.SPACE_SIZE));
 					}
 				}
 
 			} else {
 
-				exprx = ((0 <= pos.x) && (pos.x <= xplus)) || ((resx <= pos.x) && (pos.x <= Simulation.SPACE_SIZE));
+				exprx = ((0 <= px) && (px <= xplus)) || ((resx <= px) && (px <= Simulation.SPACE_SIZE));
 
 				if (resy == -1) {
-					expry = (ymoins <= pos.y) && (pos.y <= yplus);
+					expry = (ymoins <= py) && (py <= yplus);
 				} else {
 					if (foldplusy) {
-						expry = ((ymoins <= pos.y) && (pos.y <= yplus)) || ((0 <= pos.y) && (pos.y <= resy));
+						expry = ((ymoins <= py) && (py <= yplus)) || ((0 <= py) && (py <= resy));
 					} else {
-						expry = ((0 <= pos.y) && (pos.y <= yplus))
-								|| ((resy <= pos.y) && (pos.y <= Simulation.SPACE_SIZE));
+						expry = ((0 <= py) && (py <= yplus)) || ((resy <= py) && (py <= Simulation.SPACE_SIZE));
 					}
 				}
 			}
@@ -184,8 +220,31 @@ public class Position {
 	 * @return The norm of the vector (this - pos)
 	 */
 	public double angle(Position pos) {
-		double sinTheta = (pos.y - this.y) / this.norme(pos);// cross product between Ox and AB
-		double cosTheta = (pos.x - this.x) / this.norme(pos);// dot product between Ox and AB
+		return angle(this.x, this.y, pos.x, pos.y);
+	}
+
+	/**
+	 * Computes the theta = (Ox, AB) angle, AB being the vector from (x, y) to
+	 * (px, py), see angle(Position)
+	 * 
+	 * @param x
+	 *            Cartesian coordinate x of A
+	 * 
+	 * @param y
+	 *            Cartesian coordinate y of A
+	 * 
+	 * @param px
+	 *            Cartesian coordinate x of B
+	 * 
+	 * @param py
+	 *            Cartesian coordinate y of B
+	 * 
+	 * @return The angle
+	 */
+	public static double angle(double x, double y, double px, double py) {
+		double norme = Math.sqrt(Math.pow(x - px, 2) + Math.pow(y - py, 2));
+		double sinTheta = (py - y) / norme;// cross product between Ox and AB
+		double cosTheta = (px - x) / norme;// dot product between Ox and AB
 
 		double theta = Math.atan(sinTheta / cosTheta);
 
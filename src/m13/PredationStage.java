@@ -0,0 +1,400 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeding stage of an update : the predators eat the preys and plants within
+ * PRED, the preys eat the plants within PRED.
+ *
+ * The previous loop let every eater, in the order of the list of elements, eat
+ * everything it could reach that had not been eaten yet. The same result is
+ * obtained without ordering the eaters : each eater proposes itself for all
+ * the targets in its range, and a target keeps the lowest index proposed,
+ * written with a compare-and-set in an AtomicIntegerArray. This is done in two
+ * rounds, since a prey eaten by a predator coming before it in the list never
+ * got its turn to eat plants :
+ * <ol>
+ * <li>the predators claim the preys,</li>
+ * <li>the predators and the preys still alive at their turn claim the plants.</li>
+ * </ol>
+ * Both rounds are split among PREDATION_THREADS threads without any lock. The
+ * winners are then updated and the eaten elements marked in a sequential
+ * commit step.
+ *
+ * The calling thread starts a round by incrementing a volatile generation,
+ * which the workers wait for, and waits for the count of the workers still
+ * busy to fall to zero. A waiting thread spins a little when other
+ * processors may wake it soon, then parks : unlike a Phaser, which allocates
+ * a node every time a thread blocks, the rounds don't allocate anything.
+ *
+ * With a PlantField, the second round is done by the commit step instead : the
+ * eaters eat the cell they stand in, in the order of the list, the first one
+ * getting its whole units. This touches only the chunks where animals are.
+ *
+ * A failure of a worker is thrown again by run() in the calling thread, once
+ * all the workers finished the round. close() stops the workers.
+ */
+public class PredationStage {
+
+	/** Claim of a target nobody can reach */
+	private static final int NONE = Integer.MAX_VALUE;
+
+	/** Iterations of a waiting thread before it parks, with several CPUs */
+	private static final int SPINS = 1 << 12;
+
+	private final SpatialIndex preyIndex = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE,
+			Simulation.PRED);
+	private final SpatialIndex plantIndex = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE,
+			Simulation.PRED);
+
+	/** Lowest index of the eaters reaching each element */
+	private AtomicIntegerArray claims = new AtomicIntegerArray(64);
+
+	/** Elements eaten during the last run() */
+	private boolean[] eaten = new boolean[64];
+
+	/** Indices of the predators and of the preys */
+	private int[] predators = new int[64];
+	private int nbPredators;
+	private int[] preys = new int[64];
+	private int nbPreys;
+
+	/** State of the current run, published to the workers by the generation */
+	private ArrayList<Element> elements;
+	private PlantField plantField;
+	private int round;
+
+	private final Worker[] workers;
+	private final Thread[] threads;
+
+	/** Number of rounds started, the workers waiting for the next one */
+	private volatile int generation;
+
+	/** Number of workers, the calling thread excluded, busy with the round */
+	private final AtomicInteger busy = new AtomicInteger();
+
+	/** Thread running the current round, waiting for the workers */
+	private volatile Thread caller;
+
+	private volatile boolean closed;
+
+	/** Iterations of a waiting thread before it parks */
+	private final int spins;
+
+	/** First failure of a worker during the current round */
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+	/**
+	 * Creates the stage and starts its worker threads
+	 *
+	 * @param threads
+	 *            The number of threads sharing the work, the calling thread
+	 *            included
+	 */
+	public PredationStage(int threads) {
+		workers = new Worker[Math.max(1, threads)];
+		this.threads = new Thread[workers.length];
+		// spinning only delays the thread that would wake us on a single CPU
+		spins = Runtime.getRuntime().availableProcessors() > 1 ? SPINS : 0;
+		for (int w = 0; w < workers.length; w++) {
+			workers[w] = new Worker(w);
+			if (w > 0) {
+				this.threads[w] = new Thread(workers[w], "predation-" + w);
+				this.threads[w].setDaemon(true);
+				this.threads[w].start();
+			}
+		}
+	}
+
+	/**
+	 * Finds what every animal eats, updates the lastate and atePlant of the
+	 * animals that ate, and eats the vegetation of the PlantField
+	 *
+	 * @param elements
+	 *            The elements of the simulation
+	 *
+	 * @param size
+	 *            The number of elements to consider
+	 *
+	 * @param plantField
+	 *            The vegetation grid, or null if the plants are elements
+	 *
+	 * @return The number of elements eaten, see isEaten()
+	 *
+	 * @throws IllegalStateException
+	 *             If the stage is closed, or a worker failed
+	 */
+	public int run(ArrayList<Element> elements, int size, PlantField plantField) {
+		this.elements = elements;
+		this.plantField = plantField;
+		try {
+			prepare(size);
+
+			round = 0;
+			runRound();
+			if (plantField == null) {
+				round = 1;
+				runRound();
+			}
+
+			return commit(size);
+		} finally {
+			this.elements = null;
+			this.plantField = null;
+		}
+	}
+
+	/**
+	 * Stops the worker threads. The stage can't run anymore.
+	 */
+	public void close() {
+		closed = true;
+		for (Thread thread : threads) {
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	/**
+	 * Tells if an element was eaten during the last run()
+	 *
+	 * @param i
+	 *            The index of the element
+	 *
+	 * @return True if the element was eaten
+	 */
+	public boolean isEaten(int i) {
+		return eaten[i];
+	}
+
+	/**
+	 * Returns the number of elements, animals and index entries the stage can
+	 * hold without growing
+	 *
+	 * @return The capacity of the stage
+	 */
+	public int getCapacity() {
+		return claims.length() + predators.length + preys.length + preyIndex.getCapacity()
+				+ plantIndex.getCapacity();
+	}
+
+	private void prepare(int size) {
+		if (claims.length() < size) {
+			claims = new AtomicIntegerArray(Math.max(size, 2 * claims.length()));
+			eaten = new boolean[claims.length()];
+		}
+		// plain writes, published to the workers by the generation
+		for (int i = 0; i < size; i++) {
+			claims.setPlain(i, NONE);
+			eaten[i] = false;
+		}
+
+		preyIndex.clear();
+		plantIndex.clear();
+		nbPredators = 0;
+		nbPreys = 0;
+		for (int i = 0; i < size; i++) {
+			Element e = elements.get(i);
+			if (e instanceof Predator) {
+				if (nbPredators == predators.length) {
+					predators = Arrays.copyOf(predators, 2 * nbPredators);
+				}
+				predators[nbPredators++] = i;
+			} else if (e instanceof Prey) {
+				if (nbPreys == preys.length) {
+					preys = Arrays.copyOf(preys, 2 * nbPreys);
+				}
+				preys[nbPreys++] = i;
+				preyIndex.insert(i, e.getX(), e.getY());
+			} else {
+				plantIndex.insert(i, e.getX(), e.getY());
+			}
+		}
+		preyIndex.build();
+		plantIndex.build();
+	}
+
+	/**
+	 * Runs the current round on all the workers, the calling thread being the
+	 * first one
+	 */
+	private void runRound() {
+		if (workers.length == 1) {
+			workers[0].work();
+			return;
+		}
+		if (closed) {
+			throw new IllegalStateException("The predation stage is closed");
+		}
+		caller = Thread.currentThread();
+		busy.set(workers.length - 1);
+		generation++;
+		for (int w = 1; w < threads.length; w++) {
+			LockSupport.unpark(threads[w]);
+		}
+		try {
+			workers[0].work();
+		} catch (Throwable t) {
+			// thrown once the other workers finished the round
+			failure.compareAndSet(null, t);
+		}
+		for (int s = 0; busy.get() != 0; s++) {
+			if (s < spins) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		Throwable failed = failure.getAndSet(null);
+		if (failed != null) {
+			throw new IllegalStateException("A predation worker failed", failed);
+		}
+	}
+
+	/**
+	 * Applies the claims : the winners ate, the targets are eaten
+	 */
+	private int commit(int size) {
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			int winner = claims.getPlain(i);
+			if (winner != NONE) {
+				Animal eater = (Animal) elements.get(winner);
+				eater.setLastate(-1);
+				if (elements.get(i) instanceof Plant) {
+					eater.setAtePlant(true);
+				}
+				eaten[i] = true;
+				count++;
+			}
+		}
+		if (plantField != null) {
+			eatVegetation();
+		}
+		return count;
+	}
+
+	/**
+	 * Lets the predators and the preys still alive at their turn eat the
+	 * vegetation of their cell, merging both lists in the order of the elements
+	 */
+	private void eatVegetation() {
+		int k = 0;
+		int l = 0;
+		while (k < nbPredators || l < nbPreys) {
+			int i;
+			if (l == nbPreys || (k < nbPredators && predators[k] < preys[l])) {
+				i = predators[k++];
+			} else {
+				i = preys[l++];
+				// a prey eaten by a predator coming before it never ate
+				if (claims.getPlain(i) < i) {
+					continue;
+				}
+			}
+			Animal eater = (Animal) elements.get(i);
+			if (plantField.eatAt(eater.getX(), eater.getY()) > 0) {
+				eater.setLastate(-1);
+				eater.setAtePlant(true);
+			}
+		}
+	}
+
+	/**
+	 * Lowers the claim of a target to the index of an eater, unless a lower
+	 * index already claimed it
+	 */
+	private static void claim(AtomicIntegerArray claims, int target, int eater) {
+		int current = claims.get(target);
+		while (eater < current && !claims.compareAndSet(target, current, eater)) {
+			current = claims.get(target);
+		}
+	}
+
+	/**
+	 * Share of the work of one thread
+	 */
+	private class Worker implements Runnable, SpatialIndex.Visitor {
+
+		private final int id;
+
+		/** Eater of the current query */
+		private int eater;
+
+		Worker(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public void run() {
+			int done = 0;
+			while (awaitRound(done)) {
+				done++;
+				try {
+					work();
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				}
+				if (busy.decrementAndGet() == 0) {
+					LockSupport.unpark(caller);
+				}
+			}
+		}
+
+		/**
+		 * Waits for the round following the done first ones, returns false once
+		 * the stage is closed
+		 */
+		private boolean awaitRound(int done) {
+			for (int s = 0; generation == done; s++) {
+				if (closed) {
+					return false;
+				}
+				if (s < spins) {
+					Thread.onSpinWait();
+				} else {
+					LockSupport.park(this);
+				}
+			}
+			return !closed;
+		}
+
+		void work() {
+			int n = workers.length;
+			for (int k = id * nbPredators / n; k < (id + 1) * nbPredators / n; k++) {
+				eat(predators[k]);
+			}
+			if (round == 1) {
+				for (int k = id * nbPreys / n; k < (id + 1) * nbPreys / n; k++) {
+					int p = preys[k];
+					// a prey eaten by a predator coming before it never ate
+					if (claims.get(p) > p) {
+						eat(p);
+					}
+				}
+			}
+		}
+
+		private void eat(int i) {
+			eater = i;
+			Element e = elements.get(i);
+			if (round == 0) {
+				preyIndex.query(e.getX(), e.getY(), Simulation.PRED, this);
+			} else {
+				plantIndex.query(e.getX(), e.getY(), Simulation.PRED, this);
+			}
+		}
+
+		@Override
+		public void visit(int target) {
+			claim(claims, target, eater);
+		}
+	}
+
+}
@@ -10,20 +10,26 @@ public class Predator extends Animal {
 	/**
 	 * Creates a new predator
 	 * 
+	 * @param store
+	 *            The store of the simulation of the predator
+	 * 
 	 * @param x
 	 *            The x coordinate of the predator
 	 * 
 	 * @param y
 	 *            The y coordinate of the predator
 	 */
-	public Predator(double x, double y) {
+	public Predator(EntityStore store, double x, double y) {
+		super(store, x, y);
 		this.setType("predator");
-		this.addPos(new Position(x, y));
 	}
 
 	/**
 	 * Creates a new predator
 	 * 
+	 * @param store
+	 *            The store of the simulation of the predator
+	 * 
 	 * @param x
 	 *            The x coordinate of the predator
 	 * 
@@ -36,11 +42,21 @@ public class Predator extends Animal {
 	 * @param lastate
 	 *            The last time the predator ate
 	 */
-	public Predator(double x, double y, int age, int lastate) {
+	public Predator(EntityStore store, double x, double y, int age, int lastate) {
+		super(store, x, y);
 		this.setType("predator");
-		this.addPos(new Position(x, y));
 		this.setLastate(lastate);
 		this.setAge(age);
 	}
 
+	@Override
+	protected double getMaxAge() {
+		return Simulation.AGE_PRED;
+	}
+
+	@Override
+	protected double getMaxLastate() {
+		return Simulation.LASTMEAL_PRED;
+	}
+
 }
@@ -10,20 +10,26 @@ public class Prey extends Animal {
 	/**
 	 * Creates a new prey
 	 * 
+	 * @param store
+	 *            The store of the simulation of the prey
+	 * 
 	 * @param x
 	 *            The x coordinate of the prey
 	 * 
 	 * @param y
 	 *            The y coordinate of the prey
 	 */
-	public Prey(double x, double y) {
+	public Prey(EntityStore store, double x, double y) {
+		super(store, x, y);
 		this.setType("prey");
-		this.addPos(new Position(x, y));
 	}
 
 	/**
 	 * Creates a new prey
 	 * 
+	 * @param store
+	 *            The store of the simulation of the prey
+	 * 
 	 * @param x
 	 *            The x coordinate of the prey
 	 * 
@@ -36,11 +42,31 @@ public class Prey extends Animal {
 	 * @param lastate
 	 *            The last time the prey ate
 	 */
-	public Prey(double x, double y, int age, int lastate) {
+	public Prey(EntityStore store, double x, double y, int age, int lastate) {
+		super(store, x, y);
 		this.setType("prey");
-		this.addPos(new Position(x, y));
 		this.setAge(age);
 		this.setLastate(lastate);
 	}
 
+	@Override
+	protected double getMaxAge() {
+		return Simulation.AGE_PREY;
+	}
+
+	@Override
+	protected double getMaxLastate() {
+		return Simulation.LASTMEAL_PREY;
+	}
+
+	/**
+	 * The lastate of the preys never grew : the update loop incrementing it only
+	 * tested for predators, so a prey only dies of hunger if it entered the
+	 * simulation already starving
+	 */
+	@Override
+	protected boolean getsHungry() {
+		return false;
+	}
+
 }
@@ -0,0 +1,198 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * Approximate quantiles of a stream of values in a constant memory, after the
+ * merging t-digest of Dunning : the values are summarized by centroids (a
+ * mean and a weight), small near the extreme quantiles and large near the
+ * median, so that the tails stay accurate.
+ *
+ * The values are buffered, and the buffer is merged with the centroids when
+ * full : the sorted values and centroids are swept in order, and merged into
+ * the current centroid as long as it stays within one unit of the scale k(q)
+ * = compression / (2 pi) asin(2q - 1), q being the fraction of the weight
+ * below. A digest keeps fewer than compression centroids, whatever the
+ * number of values. An instance is not thread safe.
+ */
+public class QuantileDigest {
+
+	private final double compression;
+
+	/** Centroids sorted by mean, then the buffered values of weight 1 */
+	private final double[] means;
+	private final double[] weights;
+	private int centroids;
+	private int buffered;
+
+	/** Work arrays of the merge */
+	private final double[] mergedMeans;
+	private final double[] mergedWeights;
+
+	private double total;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Creates an empty digest
+	 *
+	 * @param compression
+	 *            The accuracy : the digest keeps fewer than compression
+	 *            centroids, and a quantile q is within about q (1 - q) / compression
+	 *            of its rank
+	 */
+	public QuantileDigest(double compression) {
+		this.compression = compression;
+		int capacity = (int) Math.ceil(compression) + 1;
+		means = new double[2 * capacity];
+		weights = new double[2 * capacity];
+		mergedMeans = new double[2 * capacity];
+		mergedWeights = new double[2 * capacity];
+	}
+
+	/**
+	 * Adds a value
+	 *
+	 * @param value
+	 *            The value
+	 */
+	public void add(double value) {
+		if (centroids + buffered == means.length) {
+			merge();
+		}
+		means[centroids + buffered] = value;
+		weights[centroids + buffered] = 1;
+		buffered++;
+		total++;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Returns the number of values added
+	 *
+	 * @return The number of values
+	 */
+	public long size() {
+		return (long) total;
+	}
+
+	/**
+	 * Returns an approximate quantile of the values
+	 *
+	 * @param q
+	 *            The quantile, between 0 and 1
+	 *
+	 * @return The value with a fraction q of the values below, NaN without
+	 *         values
+	 */
+	public double quantile(double q) {
+		if (total == 0) {
+			return Double.NaN;
+		}
+		merge();
+		if (q <= 0) {
+			return min;
+		}
+		if (q >= 1) {
+			return max;
+		}
+
+		// the weight of a centroid is spread around its mean : interpolate between
+		// the means, and between the extremes and the first and last means
+		double rank = q * total;
+		double cumulative = 0;
+		double previousMean = min;
+		double previousCenter = 0;
+		for (int i = 0; i < centroids; i++) {
+			double center = cumulative + weights[i] / 2;
+			if (rank < center) {
+				return interpolate(previousMean, previousCenter, means[i], center, rank);
+			}
+			cumulative += weights[i];
+			previousMean = means[i];
+			previousCenter = center;
+		}
+		return interpolate(previousMean, previousCenter, max, total, rank);
+	}
+
+	/**
+	 * Returns the smallest value
+	 *
+	 * @return The smallest value, infinite without values
+	 */
+	public double getMin() {
+		return min;
+	}
+
+	/**
+	 * Returns the largest value
+	 *
+	 * @return The largest value, infinite without values
+	 */
+	public double getMax() {
+		return max;
+	}
+
+	private static double interpolate(double m0, double r0, double m1, double r1, double rank) {
+		return r1 == r0 ? m1 : m0 + (m1 - m0) * (rank - r0) / (r1 - r0);
+	}
+
+	/**
+	 * Merges the buffered values into the centroids
+	 */
+	private void merge() {
+		if (buffered == 0) {
+			return;
+		}
+		Arrays.sort(means, centroids, centroids + buffered);
+
+		// merge the two sorted runs
+		int a = 0;
+		int b = centroids;
+		int end = centroids + buffered;
+		for (int n = 0; n < end; n++) {
+			if (b == end || (a < centroids && means[a] <= means[b])) {
+				mergedMeans[n] = means[a];
+				mergedWeights[n] = weights[a++];
+			} else {
+				mergedMeans[n] = means[b];
+				mergedWeights[n] = weights[b++];
+			}
+		}
+
+		// sweep them, merging into the current centroid while its weight allows
+		centroids = 0;
+		double below = 0;
+		double limit = total * quantileOf(scaleOf(0) + 1);
+		means[0] = mergedMeans[0];
+		weights[0] = mergedWeights[0];
+		for (int n = 1; n < end; n++) {
+			double w = mergedWeights[n];
+			if (below + weights[centroids] + w <= limit) {
+				weights[centroids] += w;
+				means[centroids] += (mergedMeans[n] - means[centroids]) * w / weights[centroids];
+			} else {
+				below += weights[centroids];
+				limit = total * quantileOf(scaleOf(below / total) + 1);
+				centroids++;
+				means[centroids] = mergedMeans[n];
+				weights[centroids] = w;
+			}
+		}
+		centroids++;
+		buffered = 0;
+	}
+
+	private double scaleOf(double q) {
+		return compression / (2 * Math.PI) * Math.asin(2 * Math.min(1, q) - 1);
+	}
+
+	private double quantileOf(double k) {
+		if (k >= compression / 4) {
+			return 1;
+		}
+		return (Math.sin(k * 2 * Math.PI / compression) + 1) / 2;
+	}
+
+}
@@ -0,0 +1,207 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Raw storage of creature records, addressed by byte offset.
+ *
+ * The records are laid out as they travel on the wire : big-endian fields one
+ * after the other. The storage can live on the heap or outside of it (see
+ * HeapRecordStore and OffHeapRecordStore) ; off the heap, millions of records
+ * cost nothing to the garbage collector and don't count in the heap size.
+ * Either way the records can be handed to a stream or copied to a file in bulk,
+ * without decoding them field by field.
+ *
+ * The creatures of the MigrationBatches exchanged with the server are records,
+ * and so are the columns of the state of the elements of a Simulation (see
+ * EntityStore).
+ */
+public interface RecordStore {
+
+	/**
+	 * Returns the size of the storage
+	 *
+	 * @return The number of bytes that can be read and written
+	 */
+	int capacity();
+
+	/**
+	 * Grows the storage, keeping its content
+	 *
+	 * @param bytes
+	 *            The minimum number of bytes needed
+	 */
+	void ensureCapacity(int bytes);
+
+	/**
+	 * Reads a double
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @return The value of the field
+	 */
+	double getDouble(int offset);
+
+	/**
+	 * Writes a double
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @param value
+	 *            The value of the field
+	 */
+	void putDouble(int offset, double value);
+
+	/**
+	 * Reads an int
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @return The value of the field
+	 */
+	int getInt(int offset);
+
+	/**
+	 * Writes an int
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @param value
+	 *            The value of the field
+	 */
+	void putInt(int offset, int value);
+
+	/**
+	 * Reads a byte
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @return The value of the field
+	 */
+	byte getByte(int offset);
+
+	/**
+	 * Writes a byte
+	 *
+	 * @param offset
+	 *            Offset of the field (bytes)
+	 *
+	 * @param value
+	 *            The value of the field
+	 */
+	void putByte(int offset, byte value);
+
+	/**
+	 * Copies bytes of the storage to an array
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the storage
+	 *
+	 * @param dst
+	 *            The array receiving the bytes
+	 *
+	 * @param dstOffset
+	 *            Offset of the first byte in the array
+	 *
+	 * @param length
+	 *            Number of bytes
+	 */
+	void get(int offset, byte[] dst, int dstOffset, int length);
+
+	/**
+	 * Copies bytes of an array to the storage
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the storage
+	 *
+	 * @param src
+	 *            The array holding the bytes
+	 *
+	 * @param srcOffset
+	 *            Offset of the first byte in the array
+	 *
+	 * @param length
+	 *            Number of bytes
+	 */
+	void put(int offset, byte[] src, int srcOffset, int length);
+
+	/**
+	 * Writes bytes of the storage to a stream
+	 *
+	 * @param output
+	 *            The stream
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the storage
+	 *
+	 * @param length
+	 *            Number of bytes
+	 *
+	 * @throws IOException
+	 *             If the stream fails
+	 */
+	void write(OutputStream output, int offset, int length) throws IOException;
+
+	/**
+	 * Reads exactly length bytes of a stream into the storage
+	 *
+	 * @param input
+	 *            The stream
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the storage
+	 *
+	 * @param length
+	 *            Number of bytes
+	 *
+	 * @throws IOException
+	 *             If the stream fails or ends before length bytes
+	 */
+	void read(DataInputStream input, int offset, int length) throws IOException;
+
+	/**
+	 * Returns a view of a part of the storage, for bulk copies to and from other
+	 * buffers such as a mapped file. The view shares the content of the storage
+	 * until it grows.
+	 *
+	 * @param offset
+	 *            Offset of the first byte in the storage
+	 *
+	 * @param length
+	 *            Number of bytes
+	 *
+	 * @return A buffer of length bytes, positioned at 0
+	 */
+	ByteBuffer slice(int offset, int length);
+
+	/**
+	 * Creates an empty storage of the given kind
+	 *
+	 * @param name
+	 *            One of "heap" or "offheap"
+	 *
+	 * @param bytes
+	 *            The initial capacity (bytes)
+	 *
+	 * @return The storage
+	 */
+	static RecordStore create(String name, int bytes) {
+		switch (name) {
+		case "heap":
+			return new HeapRecordStore(bytes);
+		case "offheap":
+			return new OffHeapRecordStore(bytes);
+		default:
+			throw new IllegalArgumentException("Unknown record store: " + name);
+		}
+	}
+
+}
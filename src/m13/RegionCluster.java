@@ -0,0 +1,395 @@
+package m13;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * A world of cols x rows regions, each one a Simulation, advanced by a few
+ * worker threads under a global tick barrier, the regions moving between the
+ * workers to even out their tick times.
+ *
+ * The creatures leaving a region enter the neighbour on that side, the grid
+ * being a torus, through a broker SimpleServer embedded in the JVM (see
+ * RelocationPolicy). The regions advance in lockstep : a creature leaving at
+ * tick t enters at t + 1 whatever the order the regions were updated in, and
+ * a region only reaches the barrier once the creatures it sent are held.
+ *
+ * Every tick, each worker updates the regions it owns, and reports for each
+ * of them its populations and the time it took (the CPU time of the worker if
+ * the JVM measures it, so that the workers sharing a processor don't inflate
+ * each other's times). Every REBALANCE ticks, the coordinator, running as the
+ * barrier action while no region runs, smooths the times of the regions and
+ * moves regions from the slowest worker to the fastest, as long as the
+ * slowest one gains more than HYSTERESIS. A region moves as a snapshot (see
+ * Simulation.checkpoint()) restored by a new Simulation on the connection of
+ * the region (see Simulation.fromCheckpoint()), as a worker in another process
+ * would : the creatures held for the region are not affected. The vegetation of a PlantField and the dense
+ * chunks of the hybrid model are not part of a snapshot.
+ *
+ * The regions are first given to the workers by blocks of columns, like
+ * tiles : the workers are unbalanced as soon as they don't divide the columns,
+ * or the populations of the regions differ.
+ *
+ * Usage, to compare the static assignment with the balanced one : java
+ * m13.RegionCluster [<cols> [<rows> [<workers> [<ticks> [<elements>
+ * [static]]]]]]
+ */
+public class RegionCluster {
+
+	/** Number of ticks between two balancing rounds */
+	public static final int REBALANCE = Integer.getInteger("m13.rebalance", 50);
+
+	/** Smallest relative gain of the slowest worker for a region to move */
+	public static final double HYSTERESIS = 0.05;
+
+	/** Weight of the last tick in the smoothed time of a region */
+	private static final double SMOOTHING = 0.1;
+
+	/** A region and its last report */
+	private static class Region {
+		private final int index;
+		private final InProcessTransport transport;
+		private final SimpleServer server;
+		private Simulation simulation;
+
+		private long tickNanos;
+		private double cost;
+		private int preys;
+		private int predators;
+
+		private Region(int index, int nbElements, RelocationPolicy policy, HoldingQueue held) throws IOException {
+			this.index = index;
+			transport = new InProcessTransport(policy, held);
+			server = transport.getServer();
+			simulation = new Simulation(nbElements, transport, false);
+			simulation.connect();
+		}
+
+		private void update(ThreadMXBean cpu) throws InterruptedException {
+			boolean measured = cpu != null;
+			long t0 = measured ? cpu.getCurrentThreadCpuTime() : System.nanoTime();
+			simulation.update();
+			// the creatures sent must be held before the barrier
+			if (!server.awaitUpdates(simulation.getUpdates())) {
+				throw new IllegalStateException("The broker of region " + index + " stopped");
+			}
+			tickNanos = (measured ? cpu.getCurrentThreadCpuTime() : System.nanoTime()) - t0;
+			preys = simulation.getPreys();
+			predators = simulation.getPredators();
+		}
+	}
+
+	/**
+	 * Sends the creatures leaving a region to its neighbour
+	 */
+	private class Routing implements RelocationPolicy {
+		@Override
+		public void relocate(Relocation r) {
+			int from = regionOf.get(r.getSource());
+			for (int i = 0; i < r.size(); i++) {
+				int col = Math.floorMod(from % cols + (int) Math.floor(r.getX(i)), cols);
+				int row = Math.floorMod(from / cols + (int) Math.floor(r.getY(i)), rows);
+				r.setTarget(i, regions[row * cols + col].server.getId());
+			}
+		}
+
+		@Override
+		public boolean lockstep() {
+			return true;
+		}
+	}
+
+	private final int cols;
+	private final int rows;
+	private final int workers;
+	private final boolean balancing;
+	private final Region[] regions;
+	private final ConcurrentHashMap<Integer, Integer> regionOf = new ConcurrentHashMap<Integer, Integer>();
+	private final HoldingQueue held = new HoldingQueue(Integer.MAX_VALUE);
+
+	/** Worker of each region, only changed by the coordinator */
+	private final int[] owner;
+
+	private final CyclicBarrier barrier;
+	private final ThreadMXBean cpu;
+	private volatile Throwable failure;
+
+	/** Statistics of the coordinator */
+	private int ticks;
+	private int migrations;
+	private long snapshotNanos;
+	private double slowestSum;
+	private double meanSum;
+
+	/**
+	 * Creates the regions, given to the workers by blocks of columns
+	 *
+	 * @param cols
+	 *            The number of columns of regions
+	 *
+	 * @param rows
+	 *            The number of rows of regions
+	 *
+	 * @param workers
+	 *            The number of worker threads
+	 *
+	 * @param nbElements
+	 *            The number of elements of each region
+	 *
+	 * @param balancing
+	 *            True to move the regions between the workers
+	 *
+	 * @throws IOException
+	 *             If a region cannot connect to the broker
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while the regions connect
+	 */
+	public RegionCluster(int cols, int rows, int workers, int nbElements, boolean balancing)
+			throws IOException, InterruptedException {
+		this.cols = cols;
+		this.rows = rows;
+		this.workers = workers;
+		this.balancing = balancing;
+		regions = new Region[cols * rows];
+		owner = new int[regions.length];
+		RelocationPolicy routing = new Routing();
+		for (int r = 0; r < regions.length; r++) {
+			regions[r] = new Region(r, nbElements, routing, held);
+			regionOf.put(regions[r].server.getId(), r);
+			owner[r] = r % cols * workers / cols;
+		}
+		// a broker only sends creatures to the clients whose sizes it knows
+		for (Region region : regions) {
+			if (!region.server.awaitConnected()) {
+				throw new IOException("Region " + region.index + " cannot connect to the broker");
+			}
+		}
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		cpu = threads.isCurrentThreadCpuTimeSupported() ? threads : null;
+		barrier = new CyclicBarrier(workers, this::coordinate);
+	}
+
+	/**
+	 * Advances all the regions
+	 *
+	 * @param nbTicks
+	 *            The number of ticks
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the workers
+	 */
+	public void run(int nbTicks) throws InterruptedException {
+		Thread[] threads = new Thread[workers];
+		for (int w = 0; w < workers; w++) {
+			int worker = w;
+			threads[w] = new Thread(() -> work(worker, nbTicks), "region-worker-" + w);
+			threads[w].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		if (failure != null) {
+			throw new IllegalStateException("A worker failed", failure);
+		}
+	}
+
+	/**
+	 * Loop of a worker, updating the regions it owns at every tick
+	 */
+	private void work(int worker, int nbTicks) {
+		try {
+			for (int t = 0; t < nbTicks; t++) {
+				for (int r = 0; r < regions.length; r++) {
+					if (owner[r] == worker) {
+						regions[r].update(cpu);
+					}
+				}
+				barrier.await();
+			}
+		} catch (InterruptedException | BrokenBarrierException e) {
+			// another worker failed
+		} catch (RuntimeException | Error e) {
+			failure = e;
+			barrier.reset();
+		}
+	}
+
+	/**
+	 * Barrier action : gathers the reports of the tick, and moves regions every
+	 * REBALANCE ticks
+	 */
+	private void coordinate() {
+		ticks++;
+		double[] times = new double[workers];
+		for (Region region : regions) {
+			times[owner[region.index]] += region.tickNanos;
+			region.cost = region.cost == 0 ? region.tickNanos : region.cost + SMOOTHING * (region.tickNanos - region.cost);
+		}
+		double slowest = 0;
+		double mean = 0;
+		for (double time : times) {
+			slowest = Math.max(slowest, time);
+			mean += time / workers;
+		}
+		slowestSum += slowest;
+		meanSum += mean;
+
+		if (ticks % REBALANCE == 0) {
+			if (balancing) {
+				rebalance();
+			}
+			System.out.println(report());
+		}
+	}
+
+	/**
+	 * Moves regions from the slowest worker to the fastest while the slowest one
+	 * gains enough
+	 */
+	private void rebalance() {
+		double[] loads = new double[workers];
+		for (Region region : regions) {
+			loads[owner[region.index]] += region.cost;
+		}
+		for (int moves = 0; moves < regions.length; moves++) {
+			int slowest = 0;
+			int fastest = 0;
+			for (int w = 1; w < workers; w++) {
+				if (loads[w] > loads[slowest]) {
+					slowest = w;
+				}
+				if (loads[w] < loads[fastest]) {
+					fastest = w;
+				}
+			}
+			// the region leaving the lowest time on the slower of the two workers
+			Region best = null;
+			double bestTime = loads[slowest] * (1 - HYSTERESIS);
+			for (Region region : regions) {
+				if (owner[region.index] == slowest) {
+					double time = Math.max(loads[slowest] - region.cost, loads[fastest] + region.cost);
+					if (time < bestTime) {
+						best = region;
+						bestTime = time;
+					}
+				}
+			}
+			if (best == null) {
+				return;
+			}
+			loads[slowest] -= best.cost;
+			loads[fastest] += best.cost;
+			migrate(best, fastest);
+		}
+	}
+
+	/**
+	 * Gives a region to another worker through a snapshot of its simulation
+	 */
+	private void migrate(Region region, int worker) {
+		long t0 = System.nanoTime();
+		try {
+			Path snapshot = Files.createTempFile("m13-region", ".ckpt");
+			try {
+				region.simulation.checkpoint(snapshot.toString());
+				Simulation moved = Simulation.fromCheckpoint(snapshot.toString(), region.transport, true);
+				// the connection to the broker goes on with the new simulation
+				region.simulation.detach();
+				region.simulation = moved;
+			} finally {
+				Files.delete(snapshot);
+			}
+		} catch (IOException e) {
+			// the region stays where it is
+			System.err.println("Cannot move region " + region.index + ": " + e);
+			return;
+		}
+		owner[region.index] = worker;
+		migrations++;
+		snapshotNanos += System.nanoTime() - t0;
+	}
+
+	/**
+	 * Returns a line describing the state of the cluster
+	 */
+	private String report() {
+		StringBuilder line = new StringBuilder();
+		double[] loads = new double[workers];
+		int preys = 0;
+		int predators = 0;
+		for (Region region : regions) {
+			loads[owner[region.index]] += region.cost;
+			preys += region.preys;
+			predators += region.predators;
+		}
+		line.append(String.format("%5d preys %d predators %d held %d workers (ms)", ticks, preys, predators,
+				held.size()));
+		for (double load : loads) {
+			line.append(String.format(" %.2f", load / 1e6));
+		}
+		line.append(String.format(" imbalance %.2f migrations %d", getImbalance(), migrations));
+		return line.toString();
+	}
+
+	/**
+	 * Returns the mean ratio of the time of the slowest worker to the mean time
+	 * of the workers, which a perfect balance brings to 1
+	 *
+	 * @return The imbalance since the start
+	 */
+	public double getImbalance() {
+		return meanSum == 0 ? 1 : slowestSum / meanSum;
+	}
+
+	/**
+	 * Returns the number of regions moved to another worker
+	 *
+	 * @return The number of migrations
+	 */
+	public int getMigrations() {
+		return migrations;
+	}
+
+	/**
+	 * Stops the regions
+	 */
+	public void close() {
+		for (Region region : regions) {
+			region.simulation.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int cols = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int workers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int nbTicks = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		int nbElements = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+		boolean balancing = !(args.length > 5 && args[5].equals("static"));
+
+		// must be set before the Simulation class is initialized
+		System.setProperty("m13.verbose", "false");
+
+		RegionCluster cluster = new RegionCluster(cols, rows, Math.max(1, workers), nbElements, balancing);
+		long start = System.nanoTime();
+		cluster.run(nbTicks);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		cluster.close();
+
+		System.out.printf("%d regions on %d workers (%s): %.1f ticks/s, imbalance %.2f, %d migrations", cols * rows,
+				workers, balancing ? "balanced" : "static", nbTicks / seconds, cluster.getImbalance(),
+				cluster.getMigrations());
+		if (cluster.migrations > 0) {
+			System.out.printf(", %.2f ms per snapshot", cluster.snapshotNanos / 1e6 / cluster.migrations);
+		}
+		System.out.println();
+	}
+
+}
@@ -0,0 +1,180 @@
+package m13;
+
+import java.util.Arrays;
+
+/**
+ * A batch of creatures of a species leaving a client of a SimpleServer, with
+ * the decisions of the RelocationPolicy about each of them : the client it
+ * enters, the number of updates it is held, and its position, normalized.
+ *
+ * Before the policy runs, every creature goes back to its source one update
+ * later, at the position it left by. The positions outside the square are
+ * wrapped on the torus once the policy ran, so a policy only sets the ones it
+ * cares about.
+ */
+public class Relocation {
+
+	private MigrationBatch batch;
+	private int source;
+	private boolean prey;
+	private HoldingQueue held;
+	private int[] targets = new int[64];
+	private int[] delays = new int[64];
+
+	/**
+	 * Starts the decisions about a batch
+	 */
+	void reset(MigrationBatch batch, int source, boolean prey, HoldingQueue held) {
+		this.batch = batch;
+		this.source = source;
+		this.prey = prey;
+		this.held = held;
+		if (targets.length < batch.size()) {
+			targets = new int[Math.max(batch.size(), 2 * targets.length)];
+			delays = new int[targets.length];
+		}
+		Arrays.fill(targets, 0, batch.size(), source);
+		Arrays.fill(delays, 0, batch.size(), 1);
+	}
+
+	/**
+	 * Returns the client the creatures left
+	 *
+	 * @return The id of the source client
+	 */
+	public int getSource() {
+		return source;
+	}
+
+	/**
+	 * Tells the species of the creatures
+	 *
+	 * @return True for preys, false for predators
+	 */
+	public boolean isPrey() {
+		return prey;
+	}
+
+	/**
+	 * Returns the number of creatures
+	 *
+	 * @return The number of creatures of the batch
+	 */
+	public int size() {
+		return batch.size();
+	}
+
+	/**
+	 * Returns the normalized x coordinate of a creature
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @return The x coordinate, outside [0, 1] when it just left
+	 */
+	public double getX(int i) {
+		return batch.getX(i);
+	}
+
+	/**
+	 * Returns the normalized y coordinate of a creature
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @return The y coordinate, outside [0, 1] when it just left
+	 */
+	public double getY(int i) {
+		return batch.getY(i);
+	}
+
+	/**
+	 * Sets the position a creature enters at
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @param x
+	 *            The normalized x coordinate
+	 *
+	 * @param y
+	 *            The normalized y coordinate
+	 */
+	public void setPos(int i, double x, double y) {
+		batch.setPos(i, x, y);
+	}
+
+	/**
+	 * Returns the client a creature enters
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @return The id of the target client
+	 */
+	public int getTarget(int i) {
+		return targets[i];
+	}
+
+	/**
+	 * Sets the client a creature enters, which must be one of getClients()
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @param client
+	 *            The id of the target client
+	 */
+	public void setTarget(int i, int client) {
+		targets[i] = client;
+	}
+
+	/**
+	 * Returns the number of updates of its target a creature is held
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @return The delay, at least 1
+	 */
+	public int getDelay(int i) {
+		return delays[i];
+	}
+
+	/**
+	 * Sets the number of updates of its target a creature is held
+	 *
+	 * @param i
+	 *            The index of the creature
+	 *
+	 * @param delay
+	 *            The delay, raised to 1
+	 */
+	public void setDelay(int i, int delay) {
+		delays[i] = Math.max(1, delay);
+	}
+
+	/**
+	 * Returns the clients the creatures can enter : the running connections of
+	 * the broker whose creatures of this species have the same extended data
+	 *
+	 * @return The ids of the clients
+	 */
+	public int[] getClients() {
+		return SimpleServer.compatibleClients(held, prey, batch.getExtLength());
+	}
+
+	/**
+	 * Returns the number of animals of a client
+	 *
+	 * @param client
+	 *            The id of the client
+	 *
+	 * @return The number of preys and predators it reported at its last update,
+	 *         0 if it is gone
+	 */
+	public int getLoad(int client) {
+		return SimpleServer.getLoad(client);
+	}
+
+}
@@ -0,0 +1,190 @@
+package m13;
+
+/**
+ * Decides where and when the creatures leaving a client of a SimpleServer
+ * re-enter, making the server a migration broker : the creatures are held in
+ * a HoldingQueue until their release tick, then sent to their target client
+ * in the answer to one of its updates.
+ *
+ * The policy is evaluated once per batch of exiting creatures of a species,
+ * on the Relocation describing it : by default every creature goes back to
+ * its source on the opposite side, one update later. The policy may change
+ * the target, the delay and the position of each creature. A creature leaving
+ * during an update of its target can only enter at the next one, since the
+ * number of entering creatures is sent before the exiting ones are read.
+ */
+public interface RelocationPolicy {
+
+	/**
+	 * Decides the target, delay and position of the creatures of a batch
+	 *
+	 * @param r
+	 *            The batch, whose decisions are changed in place
+	 */
+	void relocate(Relocation r);
+
+	/**
+	 * Returns how many creatures may enter a client at an update, to protect an
+	 * overloaded client. The other ones stay held until the next update.
+	 *
+	 * @param client
+	 *            The id of the client
+	 *
+	 * @param load
+	 *            The number of animals the client reported at the update
+	 *
+	 * @return The largest number of entering creatures of each species
+	 */
+	default int inflow(int client, int load) {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Tells whether the clients advance in lockstep, e.g. the regions of a
+	 * RegionCluster. The delays then count the updates of the source, the same
+	 * for every client, so a creature enters at the same tick whatever the
+	 * order the clients were answered in.
+	 *
+	 * @return True for clients in lockstep, false by default
+	 */
+	default boolean lockstep() {
+		return false;
+	}
+
+	/**
+	 * Returns the creatures to their source on the opposite side, like the
+	 * server without policy, after a delay
+	 *
+	 * @param delay
+	 *            The number of updates of the source a creature is held
+	 *
+	 * @return The policy
+	 */
+	static RelocationPolicy torus(int delay) {
+		return r -> {
+			for (int i = 0; i < r.size(); i++) {
+				r.setDelay(i, delay);
+			}
+		};
+	}
+
+	/**
+	 * Returns the creatures to their source through the side they left by, as
+	 * if it reflected them, after a delay
+	 *
+	 * @param delay
+	 *            The number of updates of the source a creature is held
+	 *
+	 * @return The policy
+	 */
+	static RelocationPolicy bounce(int delay) {
+		return r -> {
+			for (int i = 0; i < r.size(); i++) {
+				r.setPos(i, reflect(r.getX(i)), reflect(r.getY(i)));
+				r.setDelay(i, delay);
+			}
+		};
+	}
+
+	/**
+	 * Sends every creature to the client with the fewest animals, counting the
+	 * creatures already sent to it, after a delay. The populations of the
+	 * clients even out.
+	 *
+	 * @param delay
+	 *            The number of updates of the target a creature is held
+	 *
+	 * @return The policy
+	 */
+	static RelocationPolicy balance(int delay) {
+		return r -> {
+			int[] clients = r.getClients();
+			int[] loads = new int[clients.length];
+			for (int c = 0; c < clients.length; c++) {
+				loads[c] = r.getLoad(clients[c]);
+			}
+			for (int i = 0; i < r.size(); i++) {
+				int lightest = 0;
+				for (int c = 1; c < clients.length; c++) {
+					if (loads[c] < loads[lightest]) {
+						lightest = c;
+					}
+				}
+				if (clients.length > 0) {
+					r.setTarget(i, clients[lightest]);
+					loads[lightest]++;
+				}
+				r.setDelay(i, delay);
+			}
+		};
+	}
+
+	/**
+	 * Limits the inflow of the clients of a policy
+	 *
+	 * @param policy
+	 *            The policy
+	 *
+	 * @param max
+	 *            The largest number of creatures of a species entering a client
+	 *            at an update
+	 *
+	 * @return The policy with the limit
+	 */
+	static RelocationPolicy capped(RelocationPolicy policy, int max) {
+		return new RelocationPolicy() {
+			@Override
+			public void relocate(Relocation r) {
+				policy.relocate(r);
+			}
+
+			@Override
+			public int inflow(int client, int load) {
+				return Math.min(max, policy.inflow(client, load));
+			}
+
+			@Override
+			public boolean lockstep() {
+				return policy.lockstep();
+			}
+		};
+	}
+
+	/**
+	 * Returns a policy by name : "torus", "bounce" or "balance"
+	 *
+	 * @param name
+	 *            The name of the policy
+	 *
+	 * @param delay
+	 *            The number of updates a creature is held
+	 *
+	 * @return The policy
+	 */
+	static RelocationPolicy create(String name, int delay) {
+		switch (name) {
+		case "torus":
+			return torus(delay);
+		case "bounce":
+			return bounce(delay);
+		case "balance":
+			return balance(delay);
+		default:
+			throw new IllegalArgumentException("Unknown relocation policy " + name);
+		}
+	}
+
+	/**
+	 * Reflects a normalized coordinate into [0, 1]
+	 */
+	private static double reflect(double v) {
+		if (v < 0) {
+			return Math.min(1, -v);
+		}
+		if (v > 1) {
+			return Math.max(0, 2 - v);
+		}
+		return v;
+	}
+
+}
@@ -0,0 +1,203 @@
+package m13;
+
+/**
+ * Adaptive Runge-Kutta integrator of ordinary differential equations
+ * (Dormand-Prince 5(4) : fifth order steps, whose error is estimated by the
+ * embedded fourth order solution).
+ *
+ * A step whose estimated error is above the tolerance is done again with a
+ * smaller step size ; the size of the next step grows or shrinks with the
+ * error of the last one. The state is never allowed to become negative, since
+ * it holds populations. The integrator keeps its work arrays, so integrating
+ * does not allocate.
+ */
+public class Rk45 {
+
+	/**
+	 * Equations dy/dt = f(t, y)
+	 */
+	public interface Equations {
+
+		/**
+		 * Computes the derivatives of the state
+		 *
+		 * @param t
+		 *            The time
+		 *
+		 * @param y
+		 *            The state
+		 *
+		 * @param dydt
+		 *            Receives the derivatives of the state
+		 */
+		void derivatives(double t, double[] y, double[] dydt);
+	}
+
+	// Dormand-Prince coefficients
+	private static final double A21 = 1.0 / 5;
+	private static final double A31 = 3.0 / 40, A32 = 9.0 / 40;
+	private static final double A41 = 44.0 / 45, A42 = -56.0 / 15, A43 = 32.0 / 9;
+	private static final double A51 = 19372.0 / 6561, A52 = -25360.0 / 2187, A53 = 64448.0 / 6561,
+			A54 = -212.0 / 729;
+	private static final double A61 = 9017.0 / 3168, A62 = -355.0 / 33, A63 = 46732.0 / 5247, A64 = 49.0 / 176,
+			A65 = -5103.0 / 18656;
+	private static final double B1 = 35.0 / 384, B3 = 500.0 / 1113, B4 = 125.0 / 192, B5 = -2187.0 / 6784,
+			B6 = 11.0 / 84;
+	// difference between the fifth and the fourth order weights
+	private static final double E1 = 71.0 / 57600, E3 = -71.0 / 16695, E4 = 71.0 / 1920, E5 = -17253.0 / 339200,
+			E6 = 22.0 / 525, E7 = -1.0 / 40;
+
+	private static final double MIN_STEP = 1e-9;
+
+	private final int n;
+	private final double tolerance;
+	private final double[] k1, k2, k3, k4, k5, k6, k7, tmp, next;
+
+	/** Size of the next step, kept from one integration to the next */
+	private double step = 0.1;
+
+	/** Number of steps done and rejected since the creation */
+	private long steps;
+	private long rejected;
+
+	/**
+	 * Creates an integrator
+	 *
+	 * @param n
+	 *            The number of variables of the state
+	 *
+	 * @param tolerance
+	 *            The largest error allowed per step, relative to the variables
+	 *            (absolute below 1)
+	 */
+	public Rk45(int n, double tolerance) {
+		this.n = n;
+		this.tolerance = tolerance;
+		k1 = new double[n];
+		k2 = new double[n];
+		k3 = new double[n];
+		k4 = new double[n];
+		k5 = new double[n];
+		k6 = new double[n];
+		k7 = new double[n];
+		tmp = new double[n];
+		next = new double[n];
+	}
+
+	/**
+	 * Integrates the equations from t0 to t1
+	 *
+	 * @param f
+	 *            The equations
+	 *
+	 * @param t0
+	 *            The start time
+	 *
+	 * @param t1
+	 *            The end time
+	 *
+	 * @param y
+	 *            The state at t0, replaced by the state at t1
+	 */
+	public void integrate(Equations f, double t0, double t1, double[] y) {
+		double t = t0;
+		f.derivatives(t, y, k1);
+		while (t < t1) {
+			double h = Math.min(step, t1 - t);
+			// a step shortened to end at t1 says nothing about the size to use next
+			boolean truncated = h < step;
+			double error = attempt(f, t, h, y);
+			if (error <= 1 || h <= MIN_STEP) {
+				t += h;
+				for (int i = 0; i < n; i++) {
+					y[i] = Math.max(0, next[i]);
+				}
+				// first same as last : k7 is the derivative at the new state, unless it was
+				// clamped
+				if (clamped(y)) {
+					f.derivatives(t, y, k1);
+				} else {
+					System.arraycopy(k7, 0, k1, 0, n);
+				}
+				steps++;
+			} else {
+				rejected++;
+			}
+			// standard controller, with a safety factor and bounded changes
+			double factor = error == 0 ? 5 : 0.9 * Math.pow(error, -0.2);
+			double size = h * Math.min(5, Math.max(0.2, factor));
+			if (truncated && error <= 1) {
+				step = Math.max(step, size);
+			} else {
+				step = Math.max(MIN_STEP, size);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of accepted steps
+	 *
+	 * @return The number of steps done since the creation of the integrator
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * Returns the number of rejected steps
+	 *
+	 * @return The number of steps done again with a smaller size
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * Computes a step of size h from (t, y) into next, k1 being the derivatives
+	 * at (t, y), and returns its error relative to the tolerance
+	 */
+	private double attempt(Equations f, double t, double h, double[] y) {
+		for (int i = 0; i < n; i++) {
+			tmp[i] = y[i] + h * A21 * k1[i];
+		}
+		f.derivatives(t + h / 5, tmp, k2);
+		for (int i = 0; i < n; i++) {
+			tmp[i] = y[i] + h * (A31 * k1[i] + A32 * k2[i]);
+		}
+		f.derivatives(t + 3 * h / 10, tmp, k3);
+		for (int i = 0; i < n; i++) {
+			tmp[i] = y[i] + h * (A41 * k1[i] + A42 * k2[i] + A43 * k3[i]);
+		}
+		f.derivatives(t + 4 * h / 5, tmp, k4);
+		for (int i = 0; i < n; i++) {
+			tmp[i] = y[i] + h * (A51 * k1[i] + A52 * k2[i] + A53 * k3[i] + A54 * k4[i]);
+		}
+		f.derivatives(t + 8 * h / 9, tmp, k5);
+		for (int i = 0; i < n; i++) {
+			tmp[i] = y[i] + h * (A61 * k1[i] + A62 * k2[i] + A63 * k3[i] + A64 * k4[i] + A65 * k5[i]);
+		}
+		f.derivatives(t + h, tmp, k6);
+		for (int i = 0; i < n; i++) {
+			next[i] = y[i] + h * (B1 * k1[i] + B3 * k3[i] + B4 * k4[i] + B5 * k5[i] + B6 * k6[i]);
+		}
+		f.derivatives(t + h, next, k7);
+
+		double error = 0;
+		for (int i = 0; i < n; i++) {
+			double e = h * (E1 * k1[i] + E3 * k3[i] + E4 * k4[i] + E5 * k5[i] + E6 * k6[i] + E7 * k7[i]);
+			double scale = tolerance * Math.max(1, Math.max(Math.abs(y[i]), Math.abs(next[i])));
+			error = Math.max(error, Math.abs(e) / scale);
+		}
+		return error;
+	}
+
+	private boolean clamped(double[] y) {
+		for (int i = 0; i < n; i++) {
+			if (y[i] != next[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,232 @@
+package m13;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the fields that the creatures can carry in their extended data,
+ * and handshake negotiating the schemas of both species with the server.
+ *
+ * The built-in fields are age, lastate, speed and atePlant. Richer creatures
+ * register their own fields (e.g. energy, genome) with register() and list
+ * them in the m13.preyFields / m13.predFields properties : nothing else
+ * changes in the protocol.
+ *
+ * Handshake : instead of the two ext lengths of the original protocol, the
+ * simulation sends HANDSHAKE, VERSION, the prey and predator schemas and the
+ * encoding it would like to use. The server answers HANDSHAKE, the two ext
+ * lengths it will relay, which must be the lengths of the schemas, and the
+ * encoding of the connection. A server that doesn't know the handshake sees a
+ * negative ext length, so set m13.schemaHandshake=false to talk to it.
+ */
+public class SchemaRegistry {
+
+	/** First int of a schema handshake, negative so it can't be an ext length */
+	public static final int HANDSHAKE = 0xE5C4E3A0;
+
+	/** Version of the handshake, 2 adding the choice of the encoding */
+	public static final int VERSION = 2;
+
+	/** Encoding of the original protocol : doubles and fixed-size extended data */
+	public static final int RAW_ENCODING = 0;
+
+	/** Compressed encoding of CompactCodec */
+	public static final int COMPACT_ENCODING = 1;
+
+	/**
+	 * Reads and writes a field of an animal in the extended data of a creature
+	 */
+	public interface Accessor {
+
+		/**
+		 * Writes the field of animal a in the extended data of creature i
+		 *
+		 * @param a
+		 *            The animal
+		 *
+		 * @param batch
+		 *            The batch holding the creature
+		 *
+		 * @param i
+		 *            Index of the creature in the batch
+		 *
+		 * @param offset
+		 *            Offset of the field in the extended data
+		 */
+		void write(Animal a, MigrationBatch batch, int i, int offset);
+
+		/**
+		 * Sets the field of animal a from the extended data of creature i
+		 *
+		 * @param a
+		 *            The animal
+		 *
+		 * @param batch
+		 *            The batch holding the creature
+		 *
+		 * @param i
+		 *            Index of the creature in the batch
+		 *
+		 * @param offset
+		 *            Offset of the field in the extended data
+		 */
+		void read(Animal a, MigrationBatch batch, int i, int offset);
+	}
+
+	/** A registered field */
+	private static class Field {
+		final byte type;
+		final int size;
+		final Accessor accessor;
+
+		Field(byte type, int size, Accessor accessor) {
+			this.type = type;
+			this.size = size;
+			this.accessor = accessor;
+		}
+	}
+
+	private static final Map<String, Field> FIELDS = new LinkedHashMap<String, Field>();
+
+	static {
+		register("age", ExtSchema.INT, 4, new Accessor() {
+			@Override
+			public void write(Animal a, MigrationBatch batch, int i, int offset) {
+				batch.putInt(i, offset, a.getAge());
+			}
+
+			@Override
+			public void read(Animal a, MigrationBatch batch, int i, int offset) {
+				a.setAge(batch.getInt(i, offset));
+			}
+		});
+		register("lastate", ExtSchema.INT, 4, new Accessor() {
+			@Override
+			public void write(Animal a, MigrationBatch batch, int i, int offset) {
+				batch.putInt(i, offset, a.getLastate());
+			}
+
+			@Override
+			public void read(Animal a, MigrationBatch batch, int i, int offset) {
+				a.setLastate(batch.getInt(i, offset));
+			}
+		});
+		register("speed", ExtSchema.DOUBLE, 8, new Accessor() {
+			@Override
+			public void write(Animal a, MigrationBatch batch, int i, int offset) {
+				batch.putDouble(i, offset, a.getSpeed());
+			}
+
+			@Override
+			public void read(Animal a, MigrationBatch batch, int i, int offset) {
+				a.setSpeed(batch.getDouble(i, offset));
+			}
+		});
+		register("atePlant", ExtSchema.BYTE, 1, new Accessor() {
+			@Override
+			public void write(Animal a, MigrationBatch batch, int i, int offset) {
+				batch.putByte(i, offset, (byte) (a.getAtePlant() ? 1 : 0));
+			}
+
+			@Override
+			public void read(Animal a, MigrationBatch batch, int i, int offset) {
+				a.setAtePlant(batch.getByte(i, offset) != 0);
+			}
+		});
+	}
+
+	/**
+	 * Registers a field that creatures can carry
+	 *
+	 * @param name
+	 *            Name of the field
+	 *
+	 * @param type
+	 *            Type code of the field (see ExtSchema)
+	 *
+	 * @param size
+	 *            Size of the field (bytes)
+	 *
+	 * @param accessor
+	 *            Reads and writes the field in an animal
+	 */
+	public static synchronized void register(String name, byte type, int size, Accessor accessor) {
+		FIELDS.put(name, new Field(type, size, accessor));
+	}
+
+	/**
+	 * Builds the schema of a species from a comma separated list of field names
+	 *
+	 * @param fieldList
+	 *            The names of the fields, in wire order, e.g. "age,lastate"
+	 *
+	 * @return The schema
+	 *
+	 * @throws IllegalArgumentException
+	 *             If a field isn't registered
+	 */
+	public static synchronized ExtSchema schema(String fieldList) {
+		String[] names = fieldList.trim().isEmpty() ? new String[0] : fieldList.split("\\s*,\\s*");
+		byte[] types = new byte[names.length];
+		int[] sizes = new int[names.length];
+		Accessor[] accessors = new Accessor[names.length];
+		for (int f = 0; f < names.length; f++) {
+			Field field = FIELDS.get(names[f].trim());
+			if (field == null) {
+				throw new IllegalArgumentException("Unknown creature field: " + names[f]);
+			}
+			types[f] = field.type;
+			sizes[f] = field.size;
+			accessors[f] = field.accessor;
+		}
+		return new ExtSchema(names, types, sizes, accessors);
+	}
+
+	/**
+	 * Simulation side of the handshake
+	 *
+	 * @param input
+	 *            The stream carrying the data sent by the server
+	 *
+	 * @param output
+	 *            The stream carrying the data sent to the server
+	 *
+	 * @param prey
+	 *            Schema of the preys
+	 *
+	 * @param pred
+	 *            Schema of the predators
+	 *
+	 * @param encoding
+	 *            The encoding requested for the creatures
+	 *
+	 * @return The encoding chosen by the server
+	 *
+	 * @throws IOException
+	 *             If the server refuses the schemas or the stream fails
+	 */
+	public static int negotiate(DataInputStream input, DataOutputStream output, ExtSchema prey, ExtSchema pred,
+			int encoding) throws IOException {
+		output.writeInt(HANDSHAKE);
+		output.writeInt(VERSION);
+		prey.write(output);
+		pred.write(output);
+		output.writeInt(encoding);
+		output.flush();
+
+		if (input.readInt() != HANDSHAKE) {
+			throw new IOException("Server doesn't support schema handshake");
+		}
+		int preyLength = input.readInt();
+		int predLength = input.readInt();
+		if (preyLength != prey.length() || predLength != pred.length()) {
+			throw new IOException("Server relays " + preyLength + "|" + predLength + " bytes instead of "
+					+ prey.length() + "|" + pred.length());
+		}
+		return input.readInt();
+	}
+
+}
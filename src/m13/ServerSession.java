@@ -0,0 +1,569 @@
+package m13;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Connection of a Simulation to a SimpleServer which survives the loss of the
+ * connection, or a restart of the server.
+ *
+ * The connection starts with SESSION, the id of the session to resume (0 for
+ * a new one) and the last message whose answer was read entirely, before the
+ * usual handshake. The server answers with the id of the session, its status
+ * (NEW, RESUMED or EXPIRED) and the sequence number of the last message it
+ * took the creatures of. Each message then starts with its sequence number.
+ * Its counts are followed by the last message the server told settled, the
+ * number of copies sent again of each species, the number of copies still to
+ * send, and the tags of the copies sent again (see CreatureTags).
+ *
+ * The creatures of a message are kept until its answer is read entirely,
+ * which ends once the server took them : when the connection breaks, the
+ * session reconnects with an exponential backoff and sends the message again,
+ * with the same sequence number. A server which already took its creatures
+ * only answers it again, so a creature in transit is neither lost nor
+ * duplicated. Meanwhile the simulation goes on : the creatures exiting while
+ * the server is unreachable wait for the next message, up to RESEND_CAPACITY
+ * of each species. Beyond that, the exiting creatures re-enter at once, as
+ * with an embedded server, and the error stream tells how many did.
+ *
+ * A server keeps a broken session for a grace period, after which the
+ * creatures a broker holds for the client go to another client. The session
+ * itself is resumed as long as the server remembers it. A restarted server
+ * starts a new session : the message in transit is sent again.
+ *
+ * A broker holds the creatures for their target, possibly for several
+ * updates, so the client keeps a copy of the creatures of each message until
+ * the server tells they were all read by their target. It keeps up to
+ * RESEND_CAPACITY copies of each species : the exiting creatures wait for
+ * room before they are sent, none being sent without a copy. When the server
+ * forgot the session, e.g. after a restart, the client sends the copies again
+ * with the tags of their first message. The broker drops the copies of the
+ * creatures it delivered (see DeliveryLog). A copy of a creature delivered in
+ * an answer the broker lost waits for the target of that answer to tell
+ * whether it read it.
+ *
+ * A server which doesn't answer within READ_TIMEOUT_MS is treated as a broken
+ * connection (see TcpTransport).
+ */
+public class ServerSession implements Closeable {
+
+	/** First int of a connection starting or resuming a session */
+	public static final int SESSION = 0xE5C4E3A1;
+
+	/** Status of the session in the answer of the server */
+	public static final int NEW = 0;
+	public static final int RESUMED = 1;
+	public static final int EXPIRED = 2;
+
+	/** The creatures of a species on their way to the server */
+	private static class Outbox {
+
+		/** Species of the creatures */
+		private final boolean prey;
+
+		/** Creatures of the message in transit, until its answer is read */
+		private final MigrationBatch sent;
+
+		/** Creatures exited since the message in transit was sent */
+		private final MigrationBatch pending;
+
+		/** Copy of the message in transit, replaced by the answer */
+		private final MigrationBatch received;
+
+		/** Creatures sent, until read by their target, their messages and tags */
+		private final MigrationBatch kept;
+		private int[] keptMessages = new int[16];
+		private final CreatureTags keptTags = new CreatureTags();
+
+		/**
+		 * Tags of the copies sent again, at the start of the pending creatures
+		 * and of the message in transit
+		 */
+		private final CreatureTags pendingTags = new CreatureTags();
+		private final CreatureTags sentTags = new CreatureTags();
+
+		private Outbox(boolean prey, int extLength) {
+			this.prey = prey;
+			sent = new MigrationBatch(extLength);
+			pending = new MigrationBatch(extLength);
+			received = new MigrationBatch(extLength);
+			kept = new MigrationBatch(extLength);
+		}
+	}
+
+	private final String transportName;
+	private final ExtSchema preySchema;
+	private final ExtSchema predSchema;
+	private final Outbox preys;
+	private final Outbox preds;
+	private final Random rand = new Random();
+
+	/** Current connection, null while disconnected */
+	private Transport transport;
+	private DataInputStream input;
+	private DataOutputStream output;
+	private CreatureCodec codec;
+	private CompactCodec compactCodec;
+
+	/** Id given by the server, 0 before the first connection */
+	private long id;
+
+	/** Sequence number of the last message sent, and whether it is unanswered */
+	private int seq;
+	private boolean unacked;
+
+	/** Last message the server told settled, acknowledged by the next one */
+	private int acked;
+
+	/** Delay before the next connection attempt, and its time (ns) */
+	private long backoffMs = Simulation.RECONNECT_MIN_MS;
+	private long nextAttempt;
+
+	/** Metrics */
+	private int reconnections;
+	private long resent;
+	private long wrapped;
+
+	/**
+	 * Number of creatures which re-entered at once since there is no room, and
+	 * when the last one did : the count is told after a second without any
+	 */
+	private long wrapping;
+	private long lastWrap;
+
+	/**
+	 * Creates a disconnected session, connecting at the first exchange
+	 *
+	 * @param transportName
+	 *            The transport opened at each connection, see Transport.open()
+	 *
+	 * @param preySchema
+	 *            Layout of the extended data of the preys
+	 *
+	 * @param predSchema
+	 *            Layout of the extended data of the predators
+	 */
+	public ServerSession(String transportName, ExtSchema preySchema, ExtSchema predSchema) {
+		this.transportName = transportName;
+		this.preySchema = preySchema;
+		this.predSchema = predSchema;
+		preys = new Outbox(true, preySchema.length());
+		preds = new Outbox(false, predSchema.length());
+	}
+
+	/**
+	 * Opens a connection and starts or resumes the session, unless connected
+	 *
+	 * @throws IOException
+	 *             If the server cannot be reached or doesn't handle sessions
+	 */
+	public void connect() throws IOException {
+		if (transport != null) {
+			return;
+		}
+		Transport transport = Transport.open(transportName);
+		try {
+			DataInputStream input = transport.getInput();
+			DataOutputStream output = transport.getOutput();
+			output.writeInt(SESSION);
+			output.writeLong(id);
+			// a restarted broker learns whether the answer it lost was read
+			output.writeInt(unacked ? seq - 1 : seq);
+			output.flush();
+			if (input.readInt() != SESSION) {
+				throw new IOException("The server doesn't resume sessions");
+			}
+			long session = input.readLong();
+			int status = input.readInt();
+			int taken = input.readInt();
+			compactCodec = Simulation.handshake(input, output, preySchema, predSchema);
+
+			if (id != 0 && status == EXPIRED) {
+				System.err.println("Session " + id + " resumed after it expired, at message " + taken + ".");
+			} else if (id != 0 && status == NEW) {
+				System.err.println("Session " + id + " not resumed by the server, starting session " + session + ".");
+				// a restarted server lost the creatures it held : the ones it
+				// delivered are told by their tags, the ones of this session too
+				if (unacked) {
+					tagSent(preys);
+					tagSent(preds);
+				}
+				int kept = restore(preys) + restore(preds);
+				if (kept > 0) {
+					System.err.println(kept + " creatures not known to be read by their target are sent again.");
+				}
+				resent += kept;
+			}
+			this.id = session;
+			this.transport = transport;
+			this.input = input;
+			this.output = output;
+			codec = new CreatureCodec(input, output);
+			backoffMs = Simulation.RECONNECT_MIN_MS;
+		} catch (IOException e) {
+			transport.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends the creatures exiting at this update and receives the entering
+	 * ones. The creatures of a message whose answer isn't read entirely are
+	 * sent again at the next connection, before the new ones. While
+	 * disconnected, the exiting creatures wait for the server, or re-enter at
+	 * once if too many are waiting, which is told on the error stream.
+	 *
+	 * @param nbPreys
+	 *            The number of preys of the simulation
+	 *
+	 * @param nbPreds
+	 *            The number of predators of the simulation
+	 *
+	 * @param exitingPreys
+	 *            The exiting preys, replaced by the entering ones
+	 *
+	 * @param exitingPreds
+	 *            The exiting predators, replaced by the entering ones
+	 */
+	public void exchange(int nbPreys, int nbPreds, MigrationBatch exitingPreys, MigrationBatch exitingPreds) {
+		int local = queue(exitingPreys, preys) + queue(exitingPreds, preds);
+		if (local > 0) {
+			if (wrapping == 0) {
+				System.err.println("More than " + Simulation.RESEND_CAPACITY
+						+ " creatures of a species waiting for the server, the exiting ones re-enter at once.");
+			}
+			wrapping += local;
+			lastWrap = System.nanoTime();
+		} else if (wrapping > 0 && System.nanoTime() - lastWrap > 1_000_000_000L) {
+			System.err.println(wrapping + " creatures re-entered at once while too many were waiting for the server.");
+			wrapping = 0;
+		}
+		if (!reconnect()) {
+			return;
+		}
+		try {
+			if (unacked) {
+				resent += preys.sent.size() + preds.sent.size();
+				send(nbPreys, nbPreds, exitingPreys, exitingPreds);
+			}
+			next(preys);
+			next(preds);
+			seq++;
+			unacked = true;
+			send(nbPreys, nbPreds, exitingPreys, exitingPreds);
+		} catch (IOException e) {
+			disconnect(e.getMessage());
+		}
+	}
+
+	/**
+	 * Moves the exiting creatures to the pending ones as long as there is room,
+	 * the other ones staying in the batch to re-enter
+	 *
+	 * @return The number of creatures staying in the batch
+	 */
+	private int queue(MigrationBatch exiting, Outbox outbox) {
+		int room = Simulation.RESEND_CAPACITY - outbox.pending.size() - (unacked ? outbox.sent.size() : 0);
+		if (exiting.size() <= room) {
+			outbox.pending.addAll(exiting);
+			exiting.clear();
+			return 0;
+		}
+		int kept = Math.max(0, room);
+		MigrationBatch local = outbox.received;
+		local.clear();
+		for (int i = 0; i < exiting.size(); i++) {
+			if (i < kept) {
+				outbox.pending.add(exiting, i);
+			} else {
+				double x = exiting.getX(i), y = exiting.getY(i);
+				local.setPos(local.add(exiting, i), x - Math.floor(x), y - Math.floor(y));
+			}
+		}
+		wrapped += exiting.size() - kept;
+		exiting.clear();
+		exiting.addAll(local);
+		return local.size();
+	}
+
+	/**
+	 * Makes the pending creatures the ones of the next message, as long as
+	 * there is room to keep their copies, the other ones waiting for room
+	 */
+	private void next(Outbox outbox) {
+		int count = Math.max(0, Math.min(outbox.pending.size(), Simulation.RESEND_CAPACITY - outbox.kept.size()));
+		outbox.sent.clear();
+		if (count == outbox.pending.size()) {
+			outbox.sent.addAll(outbox.pending);
+			outbox.pending.clear();
+		} else {
+			for (int i = 0; i < count; i++) {
+				outbox.sent.add(outbox.pending, i);
+			}
+			outbox.pending.removeFirst(count);
+		}
+		int tagged = Math.min(count, outbox.pendingTags.size());
+		outbox.sentTags.clear();
+		for (int i = 0; i < tagged; i++) {
+			outbox.sentTags.add(outbox.pendingTags, i);
+		}
+		outbox.pendingTags.removeFirst(tagged);
+	}
+
+	/**
+	 * Gives their tags to the creatures of the message in transit which have
+	 * none, before the session changes
+	 */
+	private void tagSent(Outbox outbox) {
+		for (int i = outbox.sentTags.size(); i < outbox.sent.size(); i++) {
+			outbox.sentTags.add(id, seq, CreatureTags.index(outbox.prey, i));
+		}
+	}
+
+	/**
+	 * Sends the message in transit and appends its answer to the entering
+	 * creatures, once read entirely
+	 */
+	private void send(int nbPreys, int nbPreds, MigrationBatch enteringPreys, MigrationBatch enteringPreds)
+			throws IOException {
+		output.writeInt(seq);
+		output.writeInt(nbPreys);
+		output.writeInt(nbPreds);
+		output.writeInt(preys.sent.size());
+		output.writeInt(preds.sent.size());
+		output.writeInt(acked);
+		output.writeInt(preys.sentTags.size());
+		output.writeInt(preds.sentTags.size());
+		output.writeInt(preys.pendingTags.size() + preds.pendingTags.size());
+		preys.sentTags.write(output, 0, preys.sentTags.size());
+		preds.sentTags.write(output, 0, preds.sentTags.size());
+		output.flush();
+
+		int entering = input.readInt();
+		int enteringPred = input.readInt();
+		preys.received.clear();
+		preys.received.addAll(preys.sent);
+		preds.received.clear();
+		preds.received.addAll(preds.sent);
+		if (compactCodec != null) {
+			compactCodec.exchange(input, output, preys.received, entering, preds.received, enteringPred);
+		} else {
+			codec.exchange(preys.received, entering);
+			codec.exchange(preds.received, enteringPred);
+		}
+		// the last message whose creatures were all read by their target
+		int settled = input.readInt();
+		enteringPreys.addAll(preys.received);
+		enteringPreds.addAll(preds.received);
+		unacked = false;
+		// a plain server sent the creatures back in the answer
+		if (settled < seq) {
+			keep(preys);
+			keep(preds);
+		}
+		settle(preys, settled);
+		settle(preds, settled);
+		acked = settled;
+	}
+
+	/**
+	 * Keeps a copy of the creatures of the message in transit until read by
+	 * their target, with their tags. next() left room for them.
+	 */
+	private void keep(Outbox outbox) {
+		MigrationBatch sent = outbox.sent;
+		int first = outbox.kept.size();
+		outbox.kept.addAll(sent);
+		if (outbox.keptMessages.length < first + sent.size()) {
+			outbox.keptMessages = Arrays.copyOf(outbox.keptMessages, Math.max(2 * outbox.keptMessages.length,
+					first + sent.size()));
+		}
+		Arrays.fill(outbox.keptMessages, first, first + sent.size(), seq);
+		for (int i = 0; i < sent.size(); i++) {
+			if (i < outbox.sentTags.size()) {
+				outbox.keptTags.add(outbox.sentTags, i);
+			} else {
+				outbox.keptTags.add(id, seq, CreatureTags.index(outbox.prey, i));
+			}
+		}
+	}
+
+	/**
+	 * Drops the copies of the creatures read by their target
+	 *
+	 * @param settled
+	 *            The last message whose creatures, and the ones of all the
+	 *            messages before, were read
+	 */
+	private void settle(Outbox outbox, int settled) {
+		int count = 0;
+		while (count < outbox.kept.size() && outbox.keptMessages[count] <= settled) {
+			count++;
+		}
+		if (count > 0) {
+			outbox.kept.removeFirst(count);
+			outbox.keptTags.removeFirst(count);
+			System.arraycopy(outbox.keptMessages, count, outbox.keptMessages, 0, outbox.kept.size());
+		}
+	}
+
+	/**
+	 * Sends again the creatures kept, before the pending ones, once the server
+	 * lost them. The copies keep their tags, the ones of the copies already
+	 * waiting to be sent again coming next.
+	 *
+	 * @return The number of creatures sent again
+	 */
+	private int restore(Outbox outbox) {
+		int count = outbox.kept.size();
+		if (count > 0) {
+			MigrationBatch all = outbox.received;
+			all.clear();
+			all.addAll(outbox.kept);
+			all.addAll(outbox.pending);
+			outbox.pending.clear();
+			outbox.pending.addAll(all);
+			outbox.kept.clear();
+			outbox.keptTags.addAll(outbox.pendingTags);
+			outbox.pendingTags.clear();
+			outbox.pendingTags.addAll(outbox.keptTags);
+			outbox.keptTags.clear();
+		}
+		return count;
+	}
+
+	/**
+	 * Tries to connect once the backoff delay is over, unless connected
+	 *
+	 * @return True if connected
+	 */
+	private boolean reconnect() {
+		if (transport != null) {
+			return true;
+		}
+		if (nextAttempt != 0 && System.nanoTime() - nextAttempt < 0) {
+			return false;
+		}
+		try {
+			connect();
+			if (nextAttempt != 0) {
+				reconnections++;
+				System.err.println("Reconnected to the server, session " + id + ".");
+			}
+			nextAttempt = 0;
+			return true;
+		} catch (IOException e) {
+			schedule(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the broken connection, the next attempt waiting for the backoff
+	 * delay
+	 */
+	private void disconnect(String reason) {
+		try {
+			transport.close();
+		} catch (IOException e) {
+			// already broken
+		}
+		transport = null;
+		input = null;
+		output = null;
+		schedule(reason);
+	}
+
+	/**
+	 * Schedules the next connection attempt, with a random jitter so that
+	 * the clients of a restarted server don't all come back at once, then
+	 * doubles the delay
+	 */
+	private void schedule(String reason) {
+		long delay = backoffMs / 2 + (long) (rand.nextDouble() * backoffMs / 2);
+		System.err.println("Server unreachable (" + reason + "), next attempt in " + delay + " ms.");
+		nextAttempt = System.nanoTime() + delay * 1_000_000L;
+		backoffMs = Math.min(Simulation.RECONNECT_MAX_MS, backoffMs * 2);
+	}
+
+	/**
+	 * Tells whether the session is connected
+	 *
+	 * @return True if the last exchange succeeded
+	 */
+	public boolean isConnected() {
+		return transport != null;
+	}
+
+	/**
+	 * Returns the id of the session
+	 *
+	 * @return The id given by the server, 0 before the first connection
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Returns the number of creatures waiting for the server
+	 *
+	 * @return The number of creatures of the message in transit, if
+	 *         unanswered, and of the pending ones
+	 */
+	public int getWaiting() {
+		int waiting = preys.pending.size() + preds.pending.size();
+		return unacked ? waiting + preys.sent.size() + preds.sent.size() : waiting;
+	}
+
+	/**
+	 * Returns the number of creatures kept until read by their target
+	 *
+	 * @return The number of copies kept
+	 */
+	public int getKept() {
+		return preys.kept.size() + preds.kept.size();
+	}
+
+	/**
+	 * Returns the number of successful connections after a broken one or a
+	 * failed attempt
+	 *
+	 * @return The number of reconnections
+	 */
+	public int getReconnections() {
+		return reconnections;
+	}
+
+	/**
+	 * Returns the number of creatures sent again after a broken connection,
+	 * or once a restarted server lost them
+	 *
+	 * @return The number of creatures resent
+	 */
+	public long getResent() {
+		return resent;
+	}
+
+	/**
+	 * Returns the number of creatures which re-entered at once because too
+	 * many were waiting for the server
+	 *
+	 * @return The number of creatures wrapped locally
+	 */
+	public long getWrapped() {
+		return wrapped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (transport != null) {
+			transport.close();
+			transport = null;
+		}
+	}
+
+}
@@ -1,7 +1,19 @@
 package m13;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple Server for the Predators and Preys project.
@@ -42,6 +54,35 @@ import java.net.*;
  * the client, it will not be interpreted by the server, but retransmitted
  * without modification (hence the server parameters that define the size of
  * creatures' extended additional data).
+ * <p>
+ * Instead of the two sizes, the client may send a schema handshake describing
+ * the fields of the extended data of each species (see SchemaRegistry). The
+ * server then answers with the two sizes it will use, and knows the fixed
+ * offset of every field without having to decode the creatures. The client may
+ * also ask for the compact encoding of CompactCodec, in which case both lists
+ * of a message travel in one compressed frame.
+ * <p>
+ * A server serving several clients may also be a migration broker, given a
+ * RelocationPolicy: the exiting creatures are then held and re-enter later,
+ * possibly in another client, so the number of entering creatures announced
+ * in an answer may differ from the number of exiting ones. Brokers only use
+ * the raw encoding.
+ * <p>
+ * A client may also start with a session (see ServerSession), in which case
+ * every message starts with its sequence number. When its connection breaks,
+ * the state of the connection is kept for a grace period, so that the client
+ * can reconnect and send again the message whose answer it didn't get: the
+ * creatures of a message already taken are not taken twice, and the answer
+ * is the same. Once the grace period is over, the creatures a broker holds
+ * for the client go to a similar client, if any, but the session can still be
+ * resumed until the server forgets it, with the answer the client may not have
+ * read. An answer then ends once the creatures of the message are taken, with
+ * the last message of the client whose creatures were all read by their target
+ * (see HoldingQueue) : the client keeps the other ones until then. Its
+ * messages tell the last of these messages it read, and give the tags of the
+ * copies it sends again (see CreatureTags) : a broker drops the copies it
+ * already delivered, which it remembers across a restart in the file given by
+ * -ledger (see DeliveryLog).
  * 
  * 
  * 
@@ -52,6 +93,159 @@ public class SimpleServer {
 	private Socket socket;
 	private DataInputStream input;
 	private DataOutputStream output;
+	private byte[] extData = new byte[0];
+	private ExtSchema preySchema;
+	private ExtSchema predSchema;
+	private CompactCodec compact;
+	private boolean quiet;
+
+	/** Relocation of the exiting creatures, when the server is a broker */
+	private RelocationPolicy policy;
+	private HoldingQueue held;
+	private final Relocation relocation = new Relocation();
+	private MigrationBatch enteringPreys, enteringPreds, exitingPreys, exitingPreds;
+
+	/** Creatures the full holding queue refused, back to the client next update */
+	private MigrationBatch backPreys, backPreds;
+
+	/** Origins of the creatures of the last answer, and of the refused ones */
+	private HoldingQueue.Origins origins, backOrigins;
+
+	/**
+	 * Tags of the copies a client with a session sends again, at the start of
+	 * the list of each species, with the last message it knows settled and the
+	 * number of copies still to send
+	 */
+	private final CreatureTags restored = new CreatureTags();
+	private int restoredPreys, acked, restoring;
+
+	/** Tags of the exiting creatures of the message taken, and their fates */
+	private final CreatureTags exitTags = new CreatureTags();
+	private int[] fates = new int[16];
+
+	/**
+	 * Session of the client which the server didn't know, 0 if none, and the
+	 * last message whose answer the client read
+	 */
+	private long replaced;
+	private int lastRead;
+
+	/** Global tick shared with the other clients, if any */
+	private TickBarrier barrier;
+
+	/** Session of the client, 0 if it doesn't resume its connections */
+	private volatile long session;
+
+	/**
+	 * Sequence number of the last message whose exiting creatures were taken,
+	 * and of the last message answered (or being answered)
+	 */
+	private int taken;
+	private int answered;
+
+	/** Time the connection of the session broke (ns) */
+	private long detachedAt;
+
+	/** The expired session the client resumes, until taken over */
+	private Expired claimed;
+
+	/** Number of updates of the client, its animals, and its extended data sizes */
+	private volatile int updates;
+	private volatile int load;
+	private volatile int extPreyLength = -1;
+	private volatile int extPredLength = -1;
+
+	/**
+	 * Signalled when the client is connected, when a message is answered as a
+	 * broker and when the connection ends, see awaitUpdates()
+	 */
+	private final ReentrantLock progress = new ReentrantLock();
+	private final Condition advanced = progress.newCondition();
+	private volatile boolean ended;
+
+	/** Number of creatures relayed by all the servers of this JVM */
+	private static final LongAdder relayed = new LongAdder();
+
+	/** Number of relocated creatures whose target left without heir */
+	private static final LongAdder lost = new LongAdder();
+
+	/** Number of copies sent again which the brokers had already delivered */
+	private static final LongAdder duplicates = new LongAdder();
+
+	/**
+	 * Servers of this JVM running a connection, by id. The connections only
+	 * meet here and in relayed, both updated without locking the others.
+	 */
+	private static final ConcurrentHashMap<Integer, SimpleServer> connections = new ConcurrentHashMap<Integer, SimpleServer>();
+	private static final AtomicInteger ids = new AtomicInteger();
+
+	/** Id of the connection, the one of the previous connection of a resumed session */
+	private int id = ids.incrementAndGet();
+
+	/** Time a session whose connection broke is kept (ms) */
+	private static final long SESSION_GRACE_MS = Long.getLong("m13.sessionGrace", 30000);
+
+	/** Servers of the sessions whose connection broke, by session */
+	private static final ConcurrentHashMap<Long, SimpleServer> detached = new ConcurrentHashMap<Long, SimpleServer>();
+
+	/** Largest number of expired sessions remembered */
+	private static final int EXPIRED_SESSIONS = 1024;
+
+	/**
+	 * The state of a session once its connection ended : its messages and,
+	 * for a broker, the creatures of its last answer, which the client may not
+	 * have read, and the ones the holding queue refused.
+	 */
+	private static class Expired {
+		private final long session;
+		private final int id;
+		private final int taken, answered, updates, load;
+		private final HoldingQueue held;
+		private final int extPreyLength, extPredLength;
+		private final MigrationBatch preys, preds, exitingPreys, exitingPreds, backPreys, backPreds;
+		private final HoldingQueue.Origins origins, backOrigins;
+
+		private Expired(SimpleServer server) {
+			session = server.session;
+			id = server.id;
+			taken = server.taken;
+			answered = server.answered;
+			updates = server.updates;
+			load = server.load;
+			held = server.held;
+			extPreyLength = server.extPreyLength;
+			extPredLength = server.extPredLength;
+			preys = server.enteringPreys;
+			preds = server.enteringPreds;
+			exitingPreys = server.exitingPreys;
+			exitingPreds = server.exitingPreds;
+			backPreys = server.backPreys;
+			backPreds = server.backPreds;
+			origins = server.origins;
+			backOrigins = server.backOrigins;
+		}
+
+		/**
+		 * Gives up the creatures of the session, the client not coming back
+		 * for them : the held ones go to a similar client, if any
+		 */
+		private void drop() {
+			if (held == null || origins == null)
+				return;
+			lost.add(held.forget(id, heir(held, extPreyLength, extPredLength)));
+			held.settle(origins);
+			held.settle(backOrigins);
+			lost.add(backPreys.size() + backPreds.size());
+		}
+	}
+
+	/**
+	 * The latest sessions which expired, and these sessions from the oldest,
+	 * to forget the oldest ones. Neither locks, so that a virtual thread
+	 * running a connection never pins its carrier.
+	 */
+	private static final ConcurrentHashMap<Long, Expired> expired = new ConcurrentHashMap<Long, Expired>();
+	private static final ConcurrentLinkedQueue<Long> expiredOrder = new ConcurrentLinkedQueue<Long>();
 
 	/**
 	 * Creates a SimpleServer.
@@ -66,21 +260,406 @@ public class SimpleServer {
 	 * 
 	 */
 	public SimpleServer(int port) throws IOException {
-		ServerSocket listenSocket = new ServerSocket(port);
+		ServerSocket listenSocket = listen(port, 0);
 		this.socket = listenSocket.accept();
-		this.input = new DataInputStream(socket.getInputStream());
-		this.output = new DataOutputStream(socket.getOutputStream());
+		this.socket.setTcpNoDelay(true);
+		this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.output = ChannelOutput.of(socket);
 		listenSocket.close();
 	}
 
+	/**
+	 * Creates a SimpleServer working on already opened streams, e.g. the server
+	 * side of an InProcessTransport or of a MappedFileTransport.
+	 * 
+	 * @param input
+	 *            the stream carrying the data sent by the client.
+	 * @param output
+	 *            the stream carrying the data sent to the client.
+	 */
+	public SimpleServer(DataInputStream input, DataOutputStream output) {
+		this.input = input;
+		this.output = output;
+	}
+
+	/**
+	 * Creates a SimpleServer for a connection accepted by serve().
+	 * 
+	 * @param socket
+	 *            the accepted connection.
+	 * @throws IOException
+	 *             if the streams of the connection cannot be created.
+	 */
+	public SimpleServer(Socket socket) throws IOException {
+		this.socket = socket;
+		this.socket.setTcpNoDelay(true);
+		this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.output = ChannelOutput.of(socket);
+		this.quiet = true;
+	}
+
+	/**
+	 * Opens a listening socket whose connections are SocketChannels, so that
+	 * the records of an OffHeapRecordStore are written to them straight from
+	 * their buffer (see ChannelOutput).
+	 * 
+	 * @param port
+	 *            the TCP port, 0 for any free port.
+	 * @param backlog
+	 *            the maximum number of pending connections, 0 for the default.
+	 * @return the listening socket.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public static ServerSocket listen(int port, int backlog) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			// like a ServerSocket, so that a restarted server gets its port back
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.bind(new InetSocketAddress(port), backlog);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
+	}
+
+	/**
+	 * Serves any number of clients: every accepted connection gets its own
+	 * SimpleServer, run by a thread of the given factory. This method only returns
+	 * when the listening socket is closed.
+	 * 
+	 * @param listenSocket
+	 *            the socket on which connections are accepted.
+	 * @param threads
+	 *            creates the thread running each connection.
+	 * @throws IOException
+	 *             if an error occurs when waiting for a connection.
+	 */
+	public static void serve(ServerSocket listenSocket, ThreadFactory threads) throws IOException {
+		serve(listenSocket, threads, null, null);
+	}
+
+	/**
+	 * Serves any number of clients as a migration broker: the creatures leaving a
+	 * client are relocated by the policy, possibly to another client, and held
+	 * in the queue until they enter. This method only returns when the listening
+	 * socket is closed.
+	 * 
+	 * @param listenSocket
+	 *            the socket on which connections are accepted.
+	 * @param threads
+	 *            creates the thread running each connection.
+	 * @param policy
+	 *            decides where and when the creatures re-enter, null to send them
+	 *            straight back like a plain server.
+	 * @param held
+	 *            holds the creatures until they enter, shared by the connections.
+	 * @throws IOException
+	 *             if an error occurs when waiting for a connection.
+	 */
+	public static void serve(ServerSocket listenSocket, ThreadFactory threads, RelocationPolicy policy,
+			HoldingQueue held) throws IOException {
+		serve(listenSocket, threads, policy, held, null);
+	}
+
+	/**
+	 * Serves any number of clients, possibly as a migration broker, keeping them
+	 * within the slack of a global tick. This method only returns when the
+	 * listening socket is closed.
+	 * 
+	 * @param listenSocket
+	 *            the socket on which connections are accepted.
+	 * @param threads
+	 *            creates the thread running each connection.
+	 * @param policy
+	 *            decides where and when the creatures re-enter, null to send them
+	 *            straight back like a plain server.
+	 * @param held
+	 *            holds the creatures until they enter, shared by the connections.
+	 * @param barrier
+	 *            the global tick of the connections, null to let every client
+	 *            run at its own pace.
+	 * @throws IOException
+	 *             if an error occurs when waiting for a connection.
+	 */
+	public static void serve(ServerSocket listenSocket, ThreadFactory threads, RelocationPolicy policy,
+			HoldingQueue held, TickBarrier barrier) throws IOException {
+		while (!listenSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = listenSocket.accept();
+			} catch (SocketException e) {
+				return; // the listening socket was closed
+			}
+			SimpleServer server = new SimpleServer(socket);
+			if (policy != null)
+				server.setPolicy(policy, held);
+			server.setBarrier(barrier);
+			threads.newThread(server::run).start();
+		}
+	}
+
+	/**
+	 * Returns a factory of virtual threads, cheap enough to run one blocking
+	 * connection each by the thousands. Virtual threads are final from Java 21 :
+	 * they are looked up by reflection so that the server still runs on older
+	 * JVMs.
+	 * 
+	 * @return the factory, or null if this JVM has no virtual threads (or only
+	 *         as a preview feature not enabled).
+	 */
+	public static ThreadFactory virtualThreads() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the number of connections running in this JVM.
+	 * 
+	 * @return the number of connections.
+	 */
+	public static int getConnections() {
+		return connections.size();
+	}
+
+	/**
+	 * Returns the number of creatures relayed so far by all the servers of this
+	 * JVM.
+	 * 
+	 * @return the number of relayed creatures.
+	 */
+	public static long getRelayedCreatures() {
+		return relayed.sum();
+	}
+
+	/**
+	 * Returns the CPU time used by this JVM, the whole server process when it
+	 * runs with -multi.
+	 * 
+	 * @return the CPU time (ns), or -1 if the JVM doesn't measure it.
+	 */
+	public static long processCpuTime() {
+		java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+		if (bean instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+		return -1;
+	}
+
+	/**
+	 * Returns the id of the connection, unique in this JVM.
+	 * 
+	 * @return the id, used as target by a RelocationPolicy.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Tells whether the client sent the sizes of its extended data, after which
+	 * a broker can send it creatures.
+	 * 
+	 * @return true once the sizes are known.
+	 */
+	public boolean isConnected() {
+		return extPredLength >= 0;
+	}
+
+	/**
+	 * Returns the number of messages answered as a broker. It is only
+	 * incremented once the exiting creatures of the message are held, so a
+	 * client having done n updates can wait for it to reach n before the
+	 * creatures it sent are visible to the other clients.
+	 * 
+	 * @return the number of updates of the client.
+	 */
+	public int getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * Waits until the client sent the sizes of its extended data, see
+	 * isConnected().
+	 * 
+	 * @return false if the connection ended first.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitConnected() throws InterruptedException {
+		progress.lock();
+		try {
+			while (!isConnected() && !ended)
+				advanced.await();
+			return isConnected();
+		} finally {
+			progress.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a number of messages were answered as a broker, see
+	 * getUpdates().
+	 * 
+	 * @param n
+	 *            the number of messages, e.g. the updates done by the client.
+	 * @return false if the connection ended first.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public boolean awaitUpdates(int n) throws InterruptedException {
+		progress.lock();
+		try {
+			while (updates < n && !ended)
+				advanced.await();
+			return updates >= n;
+		} finally {
+			progress.unlock();
+		}
+	}
+
+	private void signalProgress() {
+		progress.lock();
+		try {
+			advanced.signalAll();
+		} finally {
+			progress.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of held creatures lost so far by all the brokers of this
+	 * JVM, because their target left and no other client could take them.
+	 * 
+	 * @return the number of lost creatures.
+	 */
+	public static long getLostCreatures() {
+		return lost.sum();
+	}
+
+	/**
+	 * Returns the number of copies sent again by clients whose session a broker
+	 * of this JVM forgot, e.g. after a restart, and dropped since the broker had
+	 * already delivered them (see DeliveryLog).
+	 * 
+	 * @return the number of copies dropped.
+	 */
+	public static long getDuplicateCreatures() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * Returns the clients of a broker which can receive creatures of a species.
+	 * 
+	 * @param held
+	 *            the holding queue of the broker.
+	 * @param prey
+	 *            true for the preys, false for the predators.
+	 * @param extLength
+	 *            the size of the extended data of the creatures.
+	 * @return the ids of the running connections with the same size.
+	 */
+	static int[] compatibleClients(HoldingQueue held, boolean prey, int extLength) {
+		return connections.values().stream().filter(s -> s.accepts(held, prey, extLength)).mapToInt(s -> s.id)
+				.toArray();
+	}
+
+	/**
+	 * Returns the number of animals of a client.
+	 * 
+	 * @param client
+	 *            the id of the connection.
+	 * @return the number of preys and predators reported at its last update, 0
+	 *         if it is gone.
+	 */
+	static int getLoad(int client) {
+		SimpleServer server = connections.get(client);
+		return server == null ? 0 : server.load;
+	}
+
+	private boolean accepts(HoldingQueue held, boolean prey, int extLength) {
+		return this.held == held && (prey ? extPreyLength : extPredLength) == extLength;
+	}
+
 	private void echoList(int length, int extDataSize) throws IOException {
+		if (extData.length < extDataSize)
+			extData = new byte[extDataSize];
 		for (int i = 0; i < length; i++) {
+			flushIfStarved(16 + extDataSize);
 			double x = input.readDouble();
 			double y = input.readDouble();
 			output.writeDouble(x - Math.floor(x));
 			output.writeDouble(y - Math.floor(y));
-			for (int n = 0; n < extDataSize; n++)
-				output.write(input.read());
+			input.readFully(extData, 0, extDataSize);
+			output.write(extData, 0, extDataSize);
+		}
+	}
+
+	/**
+	 * Sends the answer written so far when the next record hasn't arrived yet:
+	 * the client exchanges chunk by chunk (see CreatureCodec), and only writes
+	 * the next chunk once it read the answer of the previous one.
+	 */
+	private void flushIfStarved(int recordLength) throws IOException {
+		if (input.available() < recordLength)
+			output.flush();
+	}
+
+	/**
+	 * Enables or disables the messages printed on the console for every update.
+	 * 
+	 * @param quiet
+	 *            true to print nothing.
+	 */
+	public void setQuiet(boolean quiet) {
+		this.quiet = quiet;
+	}
+
+	/**
+	 * Makes the server a migration broker, before it runs. The client must accept
+	 * a number of entering creatures different from the number of exiting ones
+	 * (see CreatureCodec), and the compact encoding is declined.
+	 * 
+	 * @param policy
+	 *            decides where and when the creatures re-enter.
+	 * @param held
+	 *            holds the creatures until they enter, shared with the other
+	 *            connections of the broker.
+	 */
+	public void setPolicy(RelocationPolicy policy, HoldingQueue held) {
+		this.policy = policy;
+		this.held = held;
+	}
+
+	/**
+	 * Makes the server wait for the other clients of a global tick before
+	 * answering each message, before it runs.
+	 * 
+	 * @param barrier
+	 *            the global tick, shared with the other connections, or null.
+	 */
+	public void setBarrier(TickBarrier barrier) {
+		this.barrier = barrier;
+	}
+
+	/**
+	 * Closes the connection, which makes run() return, e.g. when the client
+	 * failed to keep up with the global tick.
+	 */
+	public void stop() {
+		try {
+			if (socket != null) {
+				socket.close();
+			} else {
+				input.close();
+				output.close();
+			}
+		} catch (IOException e) {
+			// already broken
 		}
 	}
 
@@ -92,33 +671,425 @@ public class SimpleServer {
 	 * coordinates as if the normalized square was mapped to a torus.
 	 */
 	public void run() {
+		SimpleServer previous = null;
 		try {
 			int extPreyLength = input.readInt();
-			int extPredLength = input.readInt();
+			int extPredLength;
+			if (extPreyLength == ServerSession.SESSION) {
+				previous = openSession(input.readLong(), input.readInt());
+				extPreyLength = input.readInt();
+			}
+			if (extPreyLength == SchemaRegistry.HANDSHAKE) {
+				// the client describes the layout of its extended data instead of only
+				// giving its size
+				int version = input.readInt();
+				preySchema = ExtSchema.read(input);
+				predSchema = ExtSchema.read(input);
+				int encoding = version >= 2 ? input.readInt() : SchemaRegistry.RAW_ENCODING;
+				if (encoding == SchemaRegistry.COMPACT_ENCODING && policy == null) {
+					compact = new CompactCodec(preySchema, predSchema);
+				} else {
+					encoding = SchemaRegistry.RAW_ENCODING;
+				}
+				extPreyLength = preySchema.length();
+				extPredLength = predSchema.length();
+				output.writeInt(SchemaRegistry.HANDSHAKE);
+				output.writeInt(extPreyLength);
+				output.writeInt(extPredLength);
+				if (version >= 2)
+					output.writeInt(encoding);
+				output.flush();
+			} else {
+				extPredLength = input.readInt();
+			}
+			Expired state = previous != null ? new Expired(previous)
+					: claimed != null && expired.remove(session, claimed) ? claimed : null;
+			claimed = null;
+			if (state != null && state.held == held && state.extPreyLength == extPreyLength
+					&& state.extPredLength == extPredLength) {
+				resume(state);
+			} else {
+				if (previous != null)
+					previous.expire();
+				else if (state != null)
+					state.drop();
+				if (policy != null) {
+					enteringPreys = newBatch(extPreyLength);
+					enteringPreds = newBatch(extPredLength);
+					exitingPreys = newBatch(extPreyLength);
+					exitingPreds = newBatch(extPredLength);
+					backPreys = newBatch(extPreyLength);
+					backPreds = newBatch(extPredLength);
+					origins = new HoldingQueue.Origins();
+					backOrigins = new HoldingQueue.Origins();
+				}
+			}
+			this.extPreyLength = extPreyLength;
+			this.extPredLength = extPredLength;
+			if (replaced != 0 && held != null) {
+				// the client sends again the creatures it kept for the session the
+				// server forgot, and tells whether it read the answer in doubt
+				held.getLog().replace(replaced, session);
+				duplicates.add(held.resolve(replaced, lastRead, id, extPreyLength, extPredLength));
+			}
+			signalProgress();
+			connections.put(id, this);
+			if (barrier != null)
+				barrier.join(id, this::stop);
 
 			while (true) {
+				int seq = session != 0 ? input.readInt() : answered + 1;
 				int preys = input.readInt(), preds = input.readInt();
-				System.out.print("\rRemaining Preys|Predators: " + preys + ":" + preds);
+				if (!quiet)
+					System.out.print("\rRemaining Preys|Predators: " + preys + ":" + preds);
 				int exitPreys = input.readInt(), exitPreds = input.readInt();
+				if (session != 0) {
+					acked = input.readInt();
+					restoredPreys = input.readInt();
+					int restoredPreds = input.readInt();
+					restoring = input.readInt();
+					restored.clear();
+					restored.read(input, restoredPreys + restoredPreds);
+				}
+				// a message sent again after a broken connection only counts once
+				boolean fresh = seq > answered;
+				if (fresh) {
+					answered = seq;
+					// the answer waits for the other clients of the global tick
+					if (barrier != null)
+						barrier.arrive(id);
+				}
+				if (policy != null) {
+					broker(preys + preds, exitPreys, exitPreds, seq, fresh);
+					continue;
+				}
 				// exiting Preys and Predators are re-entered back
 				output.writeInt(exitPreys);
 				output.writeInt(exitPreds);
-				echoList(exitPreys, extPreyLength); // list of exiting preys
-				echoList(exitPreds, extPredLength); // list of exiting predators
+				// the client reads the counts before sending its creatures
+				output.flush();
+				if (compact != null) {
+					compact.relay(input, output, exitPreys, exitPreds);
+				} else {
+					echoList(exitPreys, extPreyLength); // list of exiting preys
+					echoList(exitPreds, extPredLength); // list of exiting predators
+				}
+				// the creatures came back in the answer
+				if (session != 0)
+					output.writeInt(seq);
 				output.flush();
+				if (seq > taken) {
+					taken = seq;
+					relayed.add(exitPreys + exitPreds);
+				}
 			}
 		} catch (IOException e) {
-			System.out.println();
-			System.err.println("Server terminated.");
+			if (!quiet) {
+				System.out.println();
+				System.err.println("Server terminated.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (barrier != null)
+			barrier.leave(id);
+		connections.remove(id, this);
+		ended = true;
+		signalProgress();
+		if (session != 0 && extPredLength >= 0) {
+			// the client may come back for its session
+			detachedAt = System.nanoTime();
+			detached.put(session, this);
+		} else if (previous != null) {
+			// broken before taking over the session, left as it was
+			detached.put(session, previous);
+		} else if (claimed == null) {
+			expire();
+		}
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already broken
+			}
+		}
+	}
+
+	/**
+	 * Answers the start of a session : the session is resumed if its previous
+	 * connection broke less than the grace period ago, or if it expired since
+	 * and is still remembered, in which case it is taken over once the
+	 * connection is set up.
+	 * 
+	 * @param requested
+	 *            the session to resume, 0 for a new one.
+	 * @param lastRead
+	 *            the last message whose answer the client read entirely.
+	 * @return the server of the previous connection of the session, or null.
+	 */
+	private SimpleServer openSession(long requested, int lastRead) throws IOException, InterruptedException {
+		SimpleServer attached = requested == 0 ? null
+				: connections.values().stream().filter(s -> s.session == requested).findFirst().orElse(null);
+		if (attached != null) {
+			// the client saw its connection break before this server did
+			attached.stop();
+			for (int i = 0; i < 100 && !detached.containsKey(requested); i++)
+				Thread.sleep(10);
+		}
+		long now = System.nanoTime();
+		detached.values().removeIf(server -> {
+			if (now - server.detachedAt > SESSION_GRACE_MS * 1_000_000L) {
+				server.expire();
+				return true;
+			}
+			return false;
+		});
+		SimpleServer previous = requested != 0 ? detached.remove(requested) : null;
+		claimed = requested != 0 && previous == null ? expired.get(requested) : null;
+		int status = previous != null ? ServerSession.RESUMED
+				: claimed != null ? ServerSession.EXPIRED : ServerSession.NEW;
+		long id;
+		do {
+			id = ThreadLocalRandom.current().nextLong();
+		} while (id == 0);
+		session = previous != null || claimed != null ? requested : id;
+		replaced = status == ServerSession.NEW ? requested : 0;
+		this.lastRead = lastRead;
+		output.writeInt(ServerSession.SESSION);
+		output.writeLong(session);
+		output.writeInt(status);
+		output.writeInt(previous != null ? previous.taken : claimed != null ? claimed.taken : 0);
+		output.flush();
+		return previous;
+	}
+
+	/**
+	 * Takes over the state of the previous connection of the session : its id,
+	 * its messages and the creatures of its answer, so that a message sent
+	 * again gets the same answer.
+	 */
+	private void resume(Expired previous) {
+		id = previous.id;
+		taken = previous.taken;
+		answered = previous.answered;
+		updates = previous.updates;
+		load = previous.load;
+		enteringPreys = previous.preys;
+		enteringPreds = previous.preds;
+		exitingPreys = previous.exitingPreys;
+		exitingPreds = previous.exitingPreds;
+		backPreys = previous.backPreys;
+		backPreds = previous.backPreds;
+		origins = previous.origins;
+		backOrigins = previous.backOrigins;
+	}
+
+	/**
+	 * Ends the connection for good : the creatures waiting for its client go
+	 * to a similar one, if any. Unless the client has no session, the other
+	 * ones wait with the expired session for the client to come back.
+	 */
+	private void expire() {
+		if (session != 0) {
+			Expired replaced = expired.put(session, new Expired(this));
+			if (replaced != null) {
+				replaced.drop();
+			} else {
+				expiredOrder.add(session);
+			}
+			while (expired.size() > EXPIRED_SESSIONS) {
+				Long oldest = expiredOrder.poll();
+				if (oldest == null)
+					break;
+				Expired gone = expired.remove(oldest);
+				if (gone != null) {
+					gone.drop();
+					if (gone.held != null)
+						gone.held.discard(oldest);
+				}
+			}
+		}
+		if (held != null) {
+			int heir = heir(held, extPreyLength, extPredLength);
+			if (heir >= 0 || session == 0)
+				lost.add(held.forget(id, heir));
+			if (session == 0)
+				new Expired(this).drop();
+		}
+	}
+
+	/**
+	 * Finds a client of a broker taking the creatures of a client gone.
+	 * 
+	 * @return the id of a connection with the same extended data sizes, or -1.
+	 */
+	private static int heir(HoldingQueue held, int extPreyLength, int extPredLength) {
+		return connections.values().stream()
+				.filter(s -> s.accepts(held, true, extPreyLength) && s.accepts(held, false, extPredLength))
+				.mapToInt(s -> s.id).findFirst().orElse(-1);
+	}
+
+	private static MigrationBatch newBatch(int extLength) {
+		return new MigrationBatch(extLength, new HeapRecordStore(16 * (16 + extLength)));
+	}
+
+	/**
+	 * Answers a message of the client as a broker: the creatures due enter, the
+	 * exiting ones are relocated and held. A message sent again gets the same
+	 * entering creatures, and its exiting ones are only held once. The
+	 * creatures of an answer are in the log of the queue before it is sent.
+	 */
+	private void broker(int animals, int exitPreys, int exitPreds, int seq, boolean fresh) throws IOException {
+		int update = updates + 1;
+		DeliveryLog log = held.getLog();
+		if (session != 0)
+			log.settled(session, acked);
+		if (fresh) {
+			// a new message tells the previous answer was read
+			held.settle(origins);
+			origins.clear();
+			load = animals;
+			enteringPreys.clear();
+			enteringPreds.clear();
+			enteringPreys.addAll(backPreys);
+			enteringPreds.addAll(backPreds);
+			origins.addAll(backOrigins);
+			backPreys.clear();
+			backPreds.clear();
+			backOrigins.clear();
+			held.release(id, update, policy.inflow(id, animals), enteringPreys, enteringPreds, origins);
+			// the targets of the answers in doubt which didn't come back had them
+			duplicates.add(held.expire());
+			log.delivered(session, seq, origins);
+		}
+
+		output.writeInt(enteringPreys.size());
+		output.writeInt(enteringPreds.size());
+		// the client reads the counts before sending its creatures
+		output.flush();
+		swap(exitingPreys, exitPreys, enteringPreys);
+		swap(exitingPreds, exitPreds, enteringPreds);
+		if (seq > taken) {
+			taken = seq;
+			relayed.add(exitPreys + exitPreds);
+
+			held.owe(session, seq, exitPreys + exitPreds);
+			tag(exitPreys, exitPreds, seq);
+			log.take(exitTags, session, seq, fates);
+			relocate(exitingPreys, true, backPreys, update, seq, 0);
+			relocate(exitingPreds, false, backPreds, update, seq, exitPreys);
+			// published once the exiting creatures are held, see getUpdates()
+			updates = update;
+			signalProgress();
+		}
+		if (session != 0 && restoring == 0)
+			log.restored(session);
+		// the answer may be shorter than the message : its end tells the
+		// client its creatures were taken
+		if (session != 0) {
+			output.writeInt(held.settled(session, seq));
+			output.flush();
+		}
+	}
+
+	/**
+	 * Reads the exiting creatures of a species and writes the entering ones.
+	 */
+	private void swap(MigrationBatch exiting, int exitCount, MigrationBatch entering) throws IOException {
+		exiting.setSize(exitCount);
+		if (exitCount == entering.size()) {
+			// the client exchanges chunk by chunk, as with a plain server
+			for (int i = 0; i < exitCount; i++) {
+				flushIfStarved(exiting.getRecordLength());
+				exiting.read(input, i, i + 1);
+				entering.write(output, i, i + 1);
+			}
+		} else {
+			// the client writes all its creatures before reading
+			exiting.read(input, 0, exitCount);
+			entering.write(output, 0, entering.size());
+		}
+		output.flush();
+	}
+
+	/**
+	 * Tags the exiting creatures of a message : the copies sent again keep the
+	 * tags the client gave them, the other ones get the tags of this message.
+	 */
+	private void tag(int exitPreys, int exitPreds, int seq) {
+		exitTags.clear();
+		for (int i = 0; i < exitPreys; i++) {
+			if (i < restoredPreys)
+				exitTags.add(restored, i);
+			else
+				exitTags.add(session, seq, CreatureTags.index(true, i));
+		}
+		for (int i = 0; i < exitPreds; i++) {
+			if (restoredPreys + i < restored.size())
+				exitTags.add(restored, restoredPreys + i);
+			else
+				exitTags.add(session, seq, CreatureTags.index(false, i));
+		}
+		if (fates.length < exitTags.size())
+			fates = new int[Math.max(2 * fates.length, exitTags.size())];
+	}
+
+	/**
+	 * Applies the policy to the exiting creatures of a species and holds them.
+	 * The delays count the updates of the target, or of this client when the
+	 * clients advance in lockstep. The copies the broker already delivered are
+	 * dropped, the ones it may have delivered wait for their target.
+	 */
+	private void relocate(MigrationBatch exiting, boolean prey, MigrationBatch back, int update, int seq,
+			int first) {
+		relocation.reset(exiting, id, prey, held);
+		policy.relocate(relocation);
+		for (int i = 0; i < exiting.size(); i++) {
+			double x = exiting.getX(i), y = exiting.getY(i);
+			exiting.setPos(i, x - Math.floor(x), y - Math.floor(y));
+			int fate = fates[first + i];
+			if (fate == DeliveryLog.DOUBTFUL)
+				fate = held.park(exitTags, first + i, prey, exiting, i, session, seq);
+			if (fate == DeliveryLog.DELIVERED) {
+				held.settle(session, seq);
+				duplicates.increment();
+			}
+			if (fate != DeliveryLog.NEW)
+				continue;
+			SimpleServer target = connections.get(relocation.getTarget(i));
+			if (target == null || !target.accepts(held, prey, exiting.getExtLength()))
+				target = this;
+			int base = target == this || policy.lockstep() ? update : target.updates;
+			if (!held.hold(target.id, base + relocation.getDelay(i), prey, exiting, i, session, seq, exitTags,
+					first + i)) {
+				back.add(exiting, i);
+				backOrigins.add(session, seq, exitTags, first + i);
+			}
 		}
 	}
 
 	private static void usage(String msg) {
 		System.err.println(msg);
 		System.err.println();
-		System.err.println("Usage: java fr.isae.project2017.SimpleServer [<port>]");
+		System.err.println(
+				"Usage: java fr.isae.project2017.SimpleServer [[-multi | -virtual] [<options>] <port> | -mapped <file>]");
 		System.err.println();
-		System.err.println("where <port> is a decimal value for the TCP port of the server (default: 6789).");
+		System.err.println("where <port> is a decimal value for the TCP port of the server (default: 6789),");
+		System.err.println("-multi serves any number of clients, one thread per connection,");
+		System.err.println("-virtual does the same with one virtual thread per connection (Java 21),");
+		System.err.println("the broker options relocate the exiting creatures between the clients:");
+		System.err.println("  -policy torus|bounce|balance  where they re-enter (see RelocationPolicy),");
+		System.err.println("  -delay <n>   number of updates of the target a creature is held (default: 1),");
+		System.err.println("  -inflow <n>  largest number of creatures of a species entering a client per update,");
+		System.err.println("  -hold <n>    largest number of creatures held (default: 100000),");
+		System.err.println("  -ledger <file>  file keeping the creatures delivered across a restart, see");
+		System.err.println("               DeliveryLog (default: m13-broker-<port>.ledger in the temporary directory),");
+		System.err.println("the tick options keep the clients on a global tick (see TickBarrier):");
+		System.err.println("  -slack <k>   ticks a client may run ahead of the slowest one (0: lockstep),");
+		System.err.println("  -timeout <ms>  time a client may keep the others waiting before it is");
+		System.err.println("               disconnected (default: 0, waiting forever),");
+		System.err.println("  -clients <n> number of clients to wait for before the first tick (default: 0),");
+		System.err.println("and <file> is the exchange file shared with a simulation started with -Dm13.transport=mapped.");
 		System.exit(1);
 	}
 
@@ -129,23 +1100,160 @@ public class SimpleServer {
 	 * <p>
 	 * java fr.isae.project2017.SimpleServer 6502
 	 * <p>
+	 * This server serves one client at a time, and accepts the next connection
+	 * once the client leaves, e.g. the same client resuming its session.
+	 * <p>
+	 * A simulation on the same host may instead exchange through a memory-mapped
+	 * file, e.g:
+	 * <p>
+	 * java fr.isae.project2017.SimpleServer -mapped /tmp/m13-exchange.ring
+	 * <p>
+	 * Several simulations (or a LoadGenerator) can share one server started with
+	 * -multi, e.g:
+	 * <p>
+	 * java fr.isae.project2017.SimpleServer -multi 6502
+	 * <p>
+	 * A multi server prints every 5 seconds the creatures relayed and the CPU
+	 * time of the server per creature, and the metrics of the global tick if
+	 * any.
+	 * <p>
+	 * With -virtual instead of -multi, every connection runs on a virtual thread,
+	 * if the JVM has them. A multi server becomes a migration broker with
+	 * -policy, e.g. to even out the populations of the clients:
+	 * <p>
+	 * java fr.isae.project2017.SimpleServer -multi -policy balance -delay 5 6502
+	 * <p>
+	 * and keeps its clients within a few ticks of each other with -slack, e.g:
+	 * <p>
+	 * java fr.isae.project2017.SimpleServer -multi -slack 2 -timeout 5000 -clients 4 6502
+	 * <p>
 	 * 
 	 * @param args
 	 *            the arguments on the command line. Should be either an empty array
-	 *            of strings, or an array of a single string giving the decimal
-	 *            representation of the port number. If the array is empty, default
-	 *            value of 6789 will be used for the TCP port.
+	 *            of strings, an array of a single string giving the decimal
+	 *            representation of the port number, optionally preceded by
+	 *            "-multi" or "-virtual" and broker or tick options, or "-mapped"
+	 *            followed by the path of the exchange file.
+	 *            If no port is given, default value of 6789 will be used for the
+	 *            TCP port.
 	 */
 	public static void main(String[] args) {
-		if (args.length > 1)
+		boolean virtual = args.length > 0 && args[0].equals("-virtual");
+		boolean multi = virtual || (args.length > 0 && args[0].equals("-multi"));
+		boolean mapped = args.length > 0 && args[0].equals("-mapped");
+		int first = multi ? 1 : 0;
+		RelocationPolicy policy = null;
+		int delay = 1, inflow = 0, hold = 100000, slack = -1, timeout = 0, clients = 0;
+		String policyName = null, ledger = null;
+		for (; multi && args.length - first > 1 && args[first].startsWith("-"); first += 2) {
+			try {
+				switch (args[first]) {
+				case "-policy":
+					policyName = args[first + 1];
+					break;
+				case "-delay":
+					delay = Integer.parseInt(args[first + 1]);
+					break;
+				case "-inflow":
+					inflow = Integer.parseInt(args[first + 1]);
+					break;
+				case "-hold":
+					hold = Integer.parseInt(args[first + 1]);
+					break;
+				case "-ledger":
+					ledger = args[first + 1];
+					break;
+				case "-slack":
+					slack = Integer.parseInt(args[first + 1]);
+					break;
+				case "-timeout":
+					timeout = Integer.parseInt(args[first + 1]);
+					break;
+				case "-clients":
+					clients = Integer.parseInt(args[first + 1]);
+					break;
+				default:
+					usage("Unknown option " + args[first]);
+				}
+			} catch (NumberFormatException e) {
+				usage("Bad value for " + args[first]);
+			}
+		}
+		if (mapped ? args.length != 2 : args.length - first > 1)
 			usage("Bad number of arguments");
+		if (policyName != null) {
+			try {
+				policy = RelocationPolicy.create(policyName, delay);
+			} catch (IllegalArgumentException e) {
+				usage(e.getMessage());
+			}
+			if (inflow > 0)
+				policy = RelocationPolicy.capped(policy, inflow);
+		}
 		SimpleServer server = null;
 		try {
-			int port = args.length == 1 ? Integer.parseInt(args[0]) : 6789;
-			server = new SimpleServer(port);
+			if (mapped) {
+				MappedFileTransport transport = MappedFileTransport.serve(args[1]);
+				server = new SimpleServer(transport.getInput(), transport.getOutput());
+				server.run();
+				// deletes the exchange file
+				transport.close();
+				return;
+			} else {
+				int port = args.length > first ? Integer.parseInt(args[first]) : 6789;
+				if (multi) {
+					ThreadFactory threads = virtual ? virtualThreads() : null;
+					if (virtual && threads == null) {
+						System.err.println("No virtual threads in this JVM, using platform threads.");
+					}
+					TickBarrier barrier = slack >= 0 ? new TickBarrier(clients, slack, timeout) : null;
+					Thread reporter = new Thread(() -> {
+						try {
+							long lastRelayed = getRelayedCreatures(), lastCpu = processCpuTime();
+							long lastDuplicates = getDuplicateCreatures();
+							while (true) {
+								Thread.sleep(5000);
+								long relayed = getRelayedCreatures(), cpu = processCpuTime();
+								if (relayed > lastRelayed && cpu >= 0)
+									System.out.printf("%d creatures relayed, server CPU %.0f ns/creature%n",
+											relayed - lastRelayed, (double) (cpu - lastCpu) / (relayed - lastRelayed));
+								lastRelayed = relayed;
+								lastCpu = cpu;
+								long duplicates = getDuplicateCreatures();
+								if (duplicates > lastDuplicates)
+									System.out.println(duplicates - lastDuplicates
+											+ " creatures sent again were dropped, already delivered");
+								lastDuplicates = duplicates;
+								if (barrier != null)
+									System.out.println(barrier.report());
+							}
+						} catch (InterruptedException e) {
+							// stopping
+						}
+					}, "report");
+					reporter.setDaemon(true);
+					reporter.start();
+					HoldingQueue held = null;
+					if (policy != null) {
+						if (ledger == null)
+							ledger = Paths.get(System.getProperty("java.io.tmpdir"), "m13-broker-" + port + ".ledger")
+									.toString();
+						held = new HoldingQueue(hold, DeliveryLog.open(ledger, SESSION_GRACE_MS));
+					}
+					serve(listen(port, 0), threads != null ? threads : Thread::new, policy, held, barrier);
+					return;
+				}
+				// one client at a time: once it leaves, the next connection is accepted,
+				// e.g. the same client resuming its session
+				ServerSocket listenSocket = listen(port, 0);
+				while (true) {
+					server = new SimpleServer(listenSocket.accept());
+					server.setQuiet(false);
+					server.run();
+				}
+			}
 		} catch (IOException e) {
 			usage(e.getMessage());
 		}
-		server.run();
 	}
 }
@@ -3,9 +3,6 @@ package m13;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Random;
 
@@ -21,21 +18,41 @@ import javafx.scene.shape.Circle;
  * Every time update() is called, the following sequence happens :
  * 
  * - The animals who are too old or didn't feed for too long die - Every PLANT
- * updates, size/50 new plants spawn - The animals move - The simulation
+ * updates, size/50 new plants spawn (or, with PLANT_GRID, the vegetation grid
+ * grows back a little every update) - The animals move - The simulation
  * connects to the server and exchanges data regarding exiting and entering
  * animals - The predators eat the preys or plants they can eat (no limit on how
  * much they can eat) - The preys eat the plants they can eat (no limit on how
  * much they can eat) - The reproduction probability is updated and the animals
  * reproduce (only once) - The coordinates of the circles are updated
  * 
+ * With FUSED_PIPELINE, the stages walking the whole list of elements are done
+ * in a single pass where possible : the dead animals are removed, the animals
+ * move, the exiting ones are removed and the circles are updated while
+ * walking the list once. The result is the same. It only saves the passes over
+ * the list, a small part of an update next to the neighbour queries (see
+ * PipelineBenchmark).
+ * 
  * @author t.perennou (basic java code)
  * @author j.leflour (enhancements)
  *
  */
 public class Simulation {
 
-	/** The elements are positioned in a SPACE_SIZE x SPACE_SIZE 2D space */
-	public static final int SPACE_SIZE = 400;
+	/**
+	 * The elements are positioned in a SPACE_SIZE x SPACE_SIZE 2D space. It can
+	 * be much larger than the window, most of it staying empty
+	 */
+	public static final int SPACE_SIZE = Integer.getInteger("m13.worldSize", 400);
+
+	/** Side of the window showing the whole space, in pixels */
+	public static final int VIEW_SIZE = Integer.getInteger("m13.viewSize", 400);
+
+	/**
+	 * Side of the chunks the space is divided in (see ChunkMap), a multiple of
+	 * PRED
+	 */
+	public static final int CHUNK_SIZE = Integer.getInteger("m13.chunkSize", 100);
 
 	/** Updates per second (Hz) */
 	public static final int UPDATE_RATE_HZ = 15;
@@ -67,12 +84,6 @@ public class Simulation {
 	/** Reproduction age */
 	public static final int REPROD_AGE = 2;
 
-	/** Reproduction probability for predators (is modified every update) */
-	public static double ALPHA_PRED = 0.5;
-
-	/** Reproduction probability for preys (is modified every update) */
-	public static double ALPHA_PREY = 0.5;
-
 	/** How long can a predator go without eating */
 	public static final double LASTMEAL_PRED = 8;
 
@@ -88,6 +99,19 @@ public class Simulation {
 	/** How long does it take for new plants to grow */
 	public static final double PLANT = 5;
 
+	/**
+	 * Whether the vegetation is a density grid (PlantField) rather than discrete
+	 * Plant elements
+	 */
+	public static final boolean PLANT_GRID = "grid".equals(System.getProperty("m13.plants", "discrete"));
+
+	/**
+	 * Whether an update walks the list of elements once for the deaths, the
+	 * movement, the exits and the circles ("fused") rather than once per stage
+	 * ("staged")
+	 */
+	public static final boolean FUSED_PIPELINE = "fused".equals(System.getProperty("m13.pipeline", "staged"));
+
 	/** The color of the background */
 	public static final Color BACKGROUND = Color.BLACK;
 
@@ -103,6 +127,113 @@ public class Simulation {
 	/** The radius of an element */
 	public static final int ELEMENT_RADIUS = 2;
 
+	/**
+	 * Largest number of elements drawn as dots, the display showing a heatmap
+	 * instead beyond it (see ViewRenderer)
+	 */
+	public static final int MAX_DOTS = Integer.getInteger("m13.maxDots", 5000);
+
+	/**
+	 * Index used to find the neighbours of the animals : "grid" or "kdtree" (see
+	 * SpatialIndex)
+	 */
+	public static final String SPATIAL_INDEX = System.getProperty("m13.spatialIndex", "grid");
+
+	/**
+	 * Fraction of the encounters of well-mixed predators and preys happening in
+	 * the simulation, for the mean-field equations (see MeanField)
+	 */
+	public static final double MEAN_FIELD_CONTACT = Double
+			.parseDouble(System.getProperty("m13.meanFieldContact", "0.05"));
+
+	/**
+	 * How many times more animals of its species an animal has around it than if
+	 * they were well-mixed, for the mean-field equations (see MeanField)
+	 */
+	public static final double MEAN_FIELD_CROWDING = Double
+			.parseDouble(System.getProperty("m13.meanFieldCrowding", "40"));
+
+	/**
+	 * Whether the crowded chunks follow the mean-field equations instead of
+	 * moving their animals one by one (see HybridField) : "agents" or "hybrid"
+	 */
+	public static final boolean HYBRID = "hybrid".equals(System.getProperty("m13.model", "agents"));
+
+	/** Number of animals above which a chunk is simulated by its density */
+	public static final int HYBRID_DENSITY = Integer.getInteger("m13.hybridDensity", 200);
+
+	/** Movement of the predators : "chase", "wander" or "levy" (see Behavior) */
+	public static final String PREDATOR_BEHAVIOR = System.getProperty("m13.predatorBehavior", "chase");
+
+	/** Movement of the preys : "flee", "wander" or "levy" (see Behavior) */
+	public static final String PREY_BEHAVIOR = System.getProperty("m13.preyBehavior", "flee");
+
+	/** Number of threads sharing the feeding stage of an update */
+	public static final int PREDATION_THREADS = Integer.getInteger("m13.predationThreads", 1);
+
+	/** Whether every update is logged on the console */
+	public static final boolean VERBOSE = Boolean.parseBoolean(System.getProperty("m13.verbose", "true"));
+
+	/** Transport used to reach the server : tcp, inprocess or mapped */
+	public static final String TRANSPORT = System.getProperty("m13.transport", "tcp");
+
+	/** Host of the server for the tcp transport */
+	public static final String SERVER_HOST = System.getProperty("m13.host", "127.0.0.1");
+
+	/** Port of the server for the tcp transport */
+	public static final int SERVER_PORT = Integer.getInteger("m13.port", 6789);
+
+	/** Exchange file shared with the server for the mapped transport */
+	public static final String MAPPED_FILE = System.getProperty("m13.mappedFile",
+			System.getProperty("java.io.tmpdir") + "/m13-exchange.ring");
+
+	/**
+	 * Fields sent with an exiting prey. Speed doesn't have to be sent by default
+	 * because it is updated right before it is used
+	 */
+	public static final String PREY_FIELDS = System.getProperty("m13.preyFields", "age,lastate");
+
+	/** Fields sent with an exiting predator */
+	public static final String PRED_FIELDS = System.getProperty("m13.predFields", "age,lastate");
+
+	/** Whether the schemas are negotiated with the server, or only their sizes */
+	public static final boolean SCHEMA_HANDSHAKE = Boolean
+			.parseBoolean(System.getProperty("m13.schemaHandshake", "true"));
+
+	/** Whether the compact encoding is requested (needs the schema handshake) */
+	public static final boolean COMPACT_ENCODING = Boolean.getBoolean("m13.compact");
+
+	/**
+	 * Whether the tcp transport resumes its session after a broken connection
+	 * or a restart of the server (see ServerSession)
+	 */
+	public static final boolean RESUME = Boolean.parseBoolean(System.getProperty("m13.resume", "true"));
+
+	/** First and largest delay between two connection attempts (ms) */
+	public static final long RECONNECT_MIN_MS = Long.getLong("m13.reconnectMin", 100);
+	public static final long RECONNECT_MAX_MS = Long.getLong("m13.reconnectMax", 10000);
+
+	/**
+	 * Largest number of creatures of a species waiting for the server, and
+	 * kept until read by their target
+	 */
+	public static final int RESEND_CAPACITY = Integer.getInteger("m13.resendCapacity", 10000);
+
+	/**
+	 * Longest wait for the answer of a tcp server (ms), after which the
+	 * connection counts as broken, 0 to wait forever
+	 */
+	public static final int READ_TIMEOUT_MS = Integer.getInteger("m13.readTimeout", 30000);
+
+	/** Port of the HTTP telemetry of the updates, 0 for none (see Telemetry) */
+	public static final int TELEMETRY_PORT = Integer.getInteger("m13.telemetryPort", 0);
+
+	/**
+	 * Storage of the state of the elements (see EntityStore) and of the
+	 * migrating creatures : heap or offheap (see RecordStore)
+	 */
+	public static final String RECORD_STORE = System.getProperty("m13.recordStore", "heap");
+
 	/** Basic random number generator */
 	private Random rand;
 
@@ -113,10 +244,81 @@ public class Simulation {
 	private ArrayList<Circle> circles;
 	private ArrayList<Element> elements;
 
+	/**
+	 * Capacity of the lists of the elements, of their circles and of the
+	 * exiting animals, which grow together in add()
+	 */
+	private int capacity;
+
+	/** The vegetation, when PLANT_GRID is set */
+	private PlantField plantField;
+
+	/** The dense chunks, when HYBRID is set */
+	private HybridField hybridField;
+
+	/** Chunks of the space where the elements are */
+	private ChunkMap chunks;
+
+	/** Closest neighbours of the moving animals */
+	private Vision vision;
+
+	/** Movement of each species */
+	private Behavior<Predator> predatorBehavior;
+	private Behavior<Prey> preyBehavior;
+
+	/** Counters of the ages and lastates of the animals, and their deaths */
+	private Clock clock;
+
+	/** Number of preys and predators in the model */
+	private int nbPreys;
+	private int nbPreds;
+
+	/**
+	 * Reproduction probabilities of the predators and the preys (are modified
+	 * every update)
+	 */
+	private double alphaPred = 0.5;
+	private double alphaPrey = 0.5;
+
+	/** State of the elements, see Element */
+	private EntityStore store;
+
+	/** Dead elements and circles, reused for the new ones */
+	private ElementPool pool;
+
+	/** Reproduction stage */
+	private MateMatcher mateMatcher;
+
+	/** Feeding stage */
+	private PredationStage predation;
+
+	/** Animals getting out during the current update, reused every update */
+	private ArrayList<Prey> outPreysList;
+	private ArrayList<Predator> outPredsList;
+
 	/** Server elements */
 	private DataInputStream input;
 	private DataOutputStream output;
-	private Socket socket;
+	private Transport transport;
+	private CreatureCodec codec;
+	private CompactCodec compactCodec;
+
+	/** Resumable connection replacing the transport, if any */
+	private ServerSession session;
+
+	/** Live counts and timings of the updates, if served */
+	private Telemetry telemetry;
+
+	/** Whether the schemas were sent to the server, at the first exchange */
+	private boolean connected;
+
+	/** Layout of the additional data sent with the preys and the predators */
+	private ExtSchema preySchema;
+	private ExtSchema predSchema;
+
+	/** Exiting creatures, reused every update */
+	private MigrationBatch preyBatch;
+	private MigrationBatch predBatch;
 
 	/**
 	 * Returns the list of elements of the model.
@@ -129,11 +331,27 @@ public class Simulation {
 	 * Creates a model with the specified amount of elements.
 	 */
 	public Simulation(int nbElements) {
+		this(nbElements, null, false);
+	}
+
+	/**
+	 * Creates a model with the specified amount of elements, exchanging with the
+	 * server through an already opened transport, e.g. a region of a
+	 * RegionCluster on its connection to the broker.
+	 * 
+	 * @param nbElements
+	 *            The number of elements
+	 * 
+	 * @param transport
+	 *            The channel to the server, null to open the one of TRANSPORT
+	 * 
+	 * @param connected
+	 *            True if another simulation with the same schemas already sent
+	 *            them through the transport, with the raw encoding
+	 */
+	public Simulation(int nbElements, Transport transport, boolean connected) {
+		this(transport, connected);
 		System.out.println("Initializing simulation.");
-		rand = new Random();
-		nbUpdates = 0;
-		circles = new ArrayList<Circle>();
-		elements = new ArrayList<Element>();
 		double x;
 		double y;
 
@@ -149,7 +367,7 @@ public class Simulation {
 			if (y < SPACE_SIZE / 2) {
 				y += SPACE_SIZE / 2;
 			}
-			elements.add(new Predator(x, y));
+			add(pool.obtainPredator(x, y), PREDATOR_COLOR);
 		}
 
 		int nbPreys = nbElements / 2 - 10;
@@ -162,37 +380,116 @@ public class Simulation {
 			if (y > SPACE_SIZE / 2) {
 				y -= SPACE_SIZE / 2;
 			}
-			elements.add(new Prey(x, y));
+			add(pool.obtainPrey(x, y), PREY_COLOR);
 		}
 
 		int nbPlants = nbElements - nbPreys - nbPredators;
-		for (int i = 0; i < nbPlants; i++) {
-			x = SPACE_SIZE * rand.nextDouble();
-			y = SPACE_SIZE * rand.nextDouble();
-			elements.add(new Plant(x, y));
+		if (PLANT_GRID) {
+			plantField.sow(nbPlants, rand);
+		} else {
+			for (int i = 0; i < nbPlants; i++) {
+				x = SPACE_SIZE * rand.nextDouble();
+				y = SPACE_SIZE * rand.nextDouble();
+				add(pool.obtainPlant(x, y), PLANT_COLOR);
+			}
 		}
 
-		for (Element element : elements) {
-			if (element.getType().equals("prey")) {
-				circles.add(new Circle(ELEMENT_RADIUS, PREY_COLOR));
-			} else if (element.getType().equals("predator")) {
-				circles.add(new Circle(ELEMENT_RADIUS, PREDATOR_COLOR));
-			} else {
-				circles.add(new Circle(ELEMENT_RADIUS, PLANT_COLOR));
+		if (TELEMETRY_PORT > 0) {
+			try {
+				telemetry = new Telemetry(TELEMETRY_PORT);
+			} catch (IOException e) {
+				System.err.println("Cannot serve the telemetry on port " + TELEMETRY_PORT + " (" + e.getMessage()
+						+ ").");
 			}
 		}
 
-		// Opening the socket
+	}
+
+	/**
+	 * Creates a model from a checkpoint file, exchanging with the server through
+	 * an already opened transport, e.g. to continue a region of a RegionCluster
+	 * on the connection of its previous owner. Unlike the constructors, it
+	 * creates no element before reading the file, and serves no telemetry.
+	 * 
+	 * @param file
+	 *            The path of the file, written by checkpoint()
+	 * 
+	 * @param transport
+	 *            The channel to the server
+	 * 
+	 * @param connected
+	 *            True if another simulation with the same schemas already sent
+	 *            them through the transport, with the raw encoding
+	 * 
+	 * @return The restored model
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public static Simulation fromCheckpoint(String file, Transport transport, boolean connected) throws IOException {
+		Simulation simulation = new Simulation(transport, connected);
 		try {
-			socket = new Socket("127.0.0.1", 6789);
-			input = new DataInputStream(socket.getInputStream());
-			output = new DataOutputStream(socket.getOutputStream());
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			simulation.restore(file);
 		} catch (IOException e) {
-			e.printStackTrace();
+			simulation.detach();
+			throw e;
 		}
+		return simulation;
+	}
 
+	/**
+	 * Creates an empty model, see fromCheckpoint()
+	 */
+	private Simulation(Transport transport, boolean connected) {
+		rand = new Random();
+		nbUpdates = 0;
+		capacity = 1024;
+		circles = new ArrayList<Circle>(capacity);
+		elements = new ArrayList<Element>(capacity);
+		clock = new Clock();
+		store = new EntityStore(RECORD_STORE, 1024);
+		pool = new ElementPool(clock, store);
+		chunks = new ChunkMap();
+		if (HYBRID) {
+			hybridField = new HybridField(chunks, rand);
+		}
+		vision = new Vision();
+		predatorBehavior = Behavior.predator(PREDATOR_BEHAVIOR);
+		preyBehavior = Behavior.prey(PREY_BEHAVIOR);
+		mateMatcher = new MateMatcher();
+		predation = new PredationStage(PREDATION_THREADS);
+		outPreysList = new ArrayList<Prey>(capacity);
+		outPredsList = new ArrayList<Predator>(capacity);
+		if (PLANT_GRID) {
+			plantField = new PlantField(chunks);
+		}
+
+		preySchema = SchemaRegistry.schema(PREY_FIELDS);
+		predSchema = SchemaRegistry.schema(PRED_FIELDS);
+
+		// Opening the channel to the server. A tcp connection is a session which
+		// reconnects by itself. If another server can't be reached, an embedded
+		// server is used instead so that the exiting animals still re-enter
+		this.transport = transport;
+		this.connected = connected;
+		if (transport == null && RESUME && "tcp".equals(TRANSPORT)) {
+			session = new ServerSession(TRANSPORT, preySchema, predSchema);
+		} else {
+			if (transport == null) {
+				try {
+					this.transport = Transport.open(TRANSPORT);
+				} catch (IOException e) {
+					System.err.println("Cannot open " + TRANSPORT + " transport (" + e.getMessage()
+							+ "), falling back to an embedded server.");
+					this.transport = new InProcessTransport();
+				}
+			}
+			input = this.transport.getInput();
+			output = this.transport.getOutput();
+			codec = new CreatureCodec(input, output);
+		}
+		preyBatch = new MigrationBatch(preySchema.length());
+		predBatch = new MigrationBatch(predSchema.length());
 	}
 
 	/**
@@ -202,479 +499,687 @@ public class Simulation {
 	public void update() {
 
 		nbUpdates++;
-		System.out.println("Simulation update #" + nbUpdates);
+		clock.startUpdate();
+		if (telemetry != null) {
+			telemetry.begin();
+		}
+		if (VERBOSE) {
+			System.out.println("Simulation update #" + nbUpdates);
+		}
 		int size = elements.size();
 
-		// The animals who are too old or didn't feed for too long die
-		for (int i = 0; i < size; i++) {
-
-			Element a = elements.get(i);
-
-			if ((a.getType().equals("prey")) || a.getType().equals("predator")) {
-
-				if (a.getType().equals("predator")) {
-					if ((((Predator) a).getLastate() > LASTMEAL_PRED) || (((Animal) a).getAge() > AGE_PRED)) {
-						elements.remove(a);
-						circles.remove(i);
-						size--;
-						i--;
-					}
-				}
-
-				if (a.getType().equals("prey")) {
-					if ((((Animal) a).getAge() > AGE_PREY) || (((Animal) a).getLastate() > LASTMEAL_PREY)) {
-						elements.remove(a);
-						circles.remove(i);
-						size--;
-						i--;
-					}
-				}
-			}
+		// The animals who are too old or didn't feed for too long die. Their deaths
+		// were scheduled when they were born or last ate, so only they are read
+		DeathWheel deaths = clock.getDeaths();
+		int dying = deaths.expire(clock.getUpdate());
+		for (int k = 0; k < dying; k++) {
+			deaths.getDue(k).leaving = true;
+		}
+		int alive = size - dying;
+		if (dying > 0 && !FUSED_PIPELINE) {
+			size = removeLeaving(size, true);
 		}
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.DEATHS);
+		}
+
+		// Spawns alive/50 new plants every PLANT updates, or grows the vegetation back
 
-		// Spawns size/50 new plants every PLANT updates
+		if (PLANT_GRID) {
 
-		if (nbUpdates % PLANT == 0) {
+			plantField.regrow();
 
-			rand = new Random();
+		} else if (nbUpdates % PLANT == 0) {
 
-			for (int i = 0; i < size / 50; i++) {
+			for (int i = 0; i < alive / 50; i++) {
 				double x = SPACE_SIZE * rand.nextDouble();
 				double y = SPACE_SIZE * rand.nextDouble();
-				elements.add(new Plant(x, y));
-				circles.add(new Circle(ELEMENT_RADIUS, PLANT_COLOR));
+				add(pool.obtainPlant(x, y), PLANT_COLOR);
 				size++;
+				alive++;
 			}
 
 		}
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.PLANTS);
+		}
 
 		// Moves the animals and checks if they are getting out or not
 
-		int outPreys = 0;
-		ArrayList<Prey> outPreysList = new ArrayList<Prey>();
-		int outPreds = 0;
-		ArrayList<Predator> outPredsList = new ArrayList<Predator>();
+		outPreysList.clear();
+		outPredsList.clear();
 
-		for (int i = 0; i < size; i++) {
+		vision.look(elements, size);
 
-			Element a = elements.get(i);
+		if (FUSED_PIPELINE) {
+			size = moveAll(size);
+		} else {
+			for (int i = 0; i < size; i++) {
 
-			boolean gotOut = false;
+				Element a = elements.get(i);
 
-			if (a.getType().equals("predator")) {
+				boolean gotOut = move(a);
 
-				if (((Animal) a).getLastate() < FED_DURATION) {
-					((Animal) a).setSpeed(FED_SPEED);
-				} else if ((((Animal) a).getLastate() >= FED_DURATION) && (((Animal) a).getLastate() < TIRED_AGE)) {
-					((Animal) a).setSpeed(SPEED);
-				} else {
-					((Animal) a).setSpeed(TIRED_SPEED);
+				if (!gotOut && !(a instanceof Plant)) {
+					chunks.moved(a);
 				}
 
-				if (((Animal) a).getAtePlant()) {
-					((Animal) a).setSpeed(((Animal) a).getSpeed() / 2);
-					((Animal) a).setAtePlant(false);
+				if ((gotOut) && ((a.getType().equals("prey")))) {
+					outPreysList.add(((Prey) a));
+					a.leaving = true;
 				}
 
-				double distMin = SPACE_SIZE;
-				Prey closestPrey = null;
-
-				for (int j = 0; j < size; j++) {
-
-					Element prey = elements.get(j);
-
-					if ((prey.getType().equals("prey")) && (a.getPos().get(a.getPos().size() - 1)
-							.norme(prey.getPos().get(prey.getPos().size() - 1)) < distMin)) {
-						closestPrey = (Prey) prey;
-						distMin = a.getPos().get(a.getPos().size() - 1)
-								.norme(prey.getPos().get(prey.getPos().size() - 1));
-					}
-
-				}
-
-				Position predatorPos = a.getPos().get(a.getPos().size() - 1);
-
-				if (closestPrey != null) {
-
-					Position closestPreyPos = closestPrey.getPos().get(closestPrey.getPos().size() - 1);
-
-					double visionRange = 2 * ((Animal) a).getSpeed();
-
-					// If the closest prey is within range of the predator, the predator aims for
-					// the prey and moves twice as fast; otherwise it just continues in the same
-					// direction at its normal speed
-					if (predatorPos.withinRange(closestPreyPos, visionRange)) {
-						gotOut = ((Predator) a).moveBrownian(2 * ((Animal) a).getSpeed(),
-								predatorPos.angle(closestPreyPos));
-					} else {
-
-						if (a.getPos().size() > 1) {
-							double theta = Math.PI + predatorPos.angle(a.getPos().get(a.getPos().size() - 2));
-							gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed(), theta);
-						} else {
-							gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed());
-						}
-
-					}
-
-				} else {
-
-					if (a.getPos().size() > 1) {
-						double theta = Math.PI + predatorPos.angle(a.getPos().get(a.getPos().size() - 2));
-						gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed(), theta);
-					} else {
-						gotOut = ((Predator) a).moveBrownian(((Animal) a).getSpeed());
-					}
-
+				if ((gotOut) && ((a.getType().equals("predator")))) {
+					outPredsList.add(((Predator) a));
+					a.leaving = true;
 				}
-
 			}
 
-			if (a.getType().equals("prey")) {
-
-				((Animal) a).setSpeed(SPEED);
-
-				if (((Animal) a).getAtePlant()) {
-					((Animal) a).setSpeed(((Animal) a).getSpeed() / 2);
-					((Animal) a).setAtePlant(false);
-
-				}
-
-				double distMin = SPACE_SIZE;
-				Predator closestPred = null;
+			// The exiting animals are released once sent to the server
+			if (!outPreysList.isEmpty() || !outPredsList.isEmpty()) {
+				size = removeLeaving(size, false);
+			}
+		}
 
-				for (int j = 0; j < size; j++) {
+		int outPreys = outPreysList.size();
+		int outPreds = outPredsList.size();
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.MOVE);
+		}
 
-					Element pred = elements.get(j);
+		// The normalized position and additional data of every exiting animal
+		preyBatch.clear();
+		for (int j = 0; j < outPreysList.size(); j++) {
+			Prey p = outPreysList.get(j);
+			int i = preyBatch.add(p.getX() / Simulation.SPACE_SIZE, p.getY() / Simulation.SPACE_SIZE);
+			preySchema.encode(p, preyBatch, i);
+		}
 
-					if ((pred.getType().equals("predator")) && (a.getPos().get(a.getPos().size() - 1)
-							.norme(pred.getPos().get(pred.getPos().size() - 1)) < distMin)) {
-						closestPred = (Predator) pred;
-						distMin = a.getPos().get(a.getPos().size() - 1)
-								.norme(pred.getPos().get(pred.getPos().size() - 1));
-					}
+		predBatch.clear();
+		for (int j = 0; j < outPredsList.size(); j++) {
+			Predator p = outPredsList.get(j);
+			int i = predBatch.add(p.getX() / Simulation.SPACE_SIZE, p.getY() / Simulation.SPACE_SIZE);
+			predSchema.encode(p, predBatch, i);
+		}
 
-				}
+		// The exiting animals now only exist in the batches
+		for (int j = 0; j < outPreysList.size(); j++) {
+			pool.release(outPreysList.get(j));
+		}
+		for (int j = 0; j < outPredsList.size(); j++) {
+			pool.release(outPredsList.get(j));
+		}
 
-				if (closestPred != null) {
+		// The simulation connects to the server
+		try {
 
-					Position closestPredPos = closestPred.getPos().get(closestPred.getPos().size() - 1);
-					Position preyPos = a.getPos().get(a.getPos().size() - 1);
+			if (session != null) {
+				// a broken connection is resumed later, the batches waiting in the session
+				session.exchange(nbPreys, nbPreds, preyBatch, predBatch);
+			} else {
+				connect();
 
-					double visionRange = 2 * ((Animal) a).getSpeed();
+				// Writing the number of exiting and remaining preys and predators
+				output.writeInt(nbPreys);
+				output.writeInt(nbPreds);
+				output.writeInt(outPreys);
+				output.writeInt(outPreds);
+				output.flush();
 
-					// If the closest predator is within range of the prey, the prey flees from the
-					// predator twice as fast; otherwise it just moves randomly
-					if (preyPos.withinRange(closestPredPos, visionRange)) {
-						gotOut = ((Prey) a).moveBrownian(2 * ((Animal) a).getSpeed(),
-								Math.PI + preyPos.angle(closestPredPos));
-						// Preys can't reproduce when a predator is nearby
-						((Animal) a).setHasReproduced(true);
-					} else {
-						gotOut = ((Prey) a).moveBrownian(((Animal) a).getSpeed());
-					}
+				int enteringPreys = input.readInt();
+				int enteringPreds = input.readInt();
 
+				// Writing the exiting animals, and receiving the entering ones
+				if (compactCodec != null) {
+					compactCodec.exchange(input, output, preyBatch, enteringPreys, predBatch, enteringPreds);
 				} else {
-					gotOut = ((Prey) a).moveBrownian(((Animal) a).getSpeed());
+					codec.exchange(preyBatch, enteringPreys);
+					codec.exchange(predBatch, enteringPreds);
 				}
-
 			}
 
-			if ((gotOut) && ((a.getType().equals("prey")))) {
-				outPreys++;
-				outPreysList.add(((Prey) a));
-				elements.remove(a);
-				circles.remove(i);
-				i--;
-				size--;
+			if (VERBOSE) {
+				System.out.println("Number of entering preys|predators : " + preyBatch.size() + "|" + predBatch.size());
 			}
 
-			if ((gotOut) && ((a.getType().equals("predator")))) {
-				outPreds++;
-				outPredsList.add(((Predator) a));
-				elements.remove(a);
-				circles.remove(i);
-				i--;
-				size--;
+			for (int i = 0; i < preyBatch.size(); i++) {
+				double x = preyBatch.getX(i) * Simulation.SPACE_SIZE;
+				double y = preyBatch.getY(i) * Simulation.SPACE_SIZE;
+				Prey p = pool.obtainPrey(x, y);
+				preySchema.decode(preyBatch, i, p);
+				add(p, PREY_COLOR);
+				size++;
 			}
-		}
 
-		int remainingPreys = 0;
-		int remainingPreds = 0;
+			for (int i = 0; i < predBatch.size(); i++) {
+				double x = predBatch.getX(i) * Simulation.SPACE_SIZE;
+				double y = predBatch.getY(i) * Simulation.SPACE_SIZE;
+				Predator p = pool.obtainPredator(x, y);
+				predSchema.decode(predBatch, i, p);
+				add(p, PREDATOR_COLOR);
+				size++;
+			}
 
-		// Computing the number of remaining preys and predators
-		for (int i = 0; i < size; i++) {
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.EXCHANGE);
+		}
 
-			Element a = elements.get(i);
+		// The predators eat the preys or plants they can eat, the preys eat the plants
+		// they can eat
+		if (predation.run(elements, size, plantField) > 0) {
+			size = removeEaten(size);
+		}
 
-			if ((a.getType().equals("prey"))) {
-				remainingPreys++;
-			}
+		clock.hunger();
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.PREDATION);
+		}
 
-			if ((a.getType().equals("predator"))) {
-				remainingPreds++;
+		// The reproduction probability is a function of the number of animals
+		// The animals of the dense chunks count as well
+		double preys = nbPreys;
+		double preds = nbPreds;
+		if (hybridField != null) {
+			preys += hybridField.getPreys();
+			preds += hybridField.getPredators();
+		}
+		alphaPred = Math.exp(-0.008 * preds);
+		alphaPrey = Math.exp(-0.016 * preys);
+
+		// The remaining animals of the same species reproduce when possible, the
+		// newborns are added once all the pairs are formed
+		int births = mateMatcher.match(elements, size, alphaPrey, alphaPred);
+		for (int b = 0; b < births; b++) {
+			double x = mateMatcher.getBirthX(b);
+			double y = mateMatcher.getBirthY(b);
+			if (mateMatcher.isPreyBirth(b)) {
+				add(pool.obtainPrey(x, y), PREY_COLOR);
+			} else {
+				add(pool.obtainPredator(x, y), PREDATOR_COLOR);
 			}
+			size++;
 		}
 
-		// The simulation connects to the server
-		try {
-
-			// How much additional data is sent : two ints (lastate & age) for predators and
-			// two ints (lastate & age) for preys
-			// Speed doesn't have to be sent because it is updated right before it is used
-			int preyData = 8;
-			int predData = 8;
-			if (nbUpdates == 1) {
-				output.writeInt(preyData);
-				output.writeInt(predData);
-				output.flush();
+		// With HYBRID, the crowded chunks absorb their animals and advance their
+		// counts, the animals coming out of them being added like newborns
+		if (hybridField != null) {
+			if (hybridField.absorb() > 0) {
+				size = removeLeaving(size, true);
 			}
-
-			// Writing the number of exiting and remaining preys and predators
-			output.writeInt(remainingPreys);
-			output.writeInt(remainingPreds);
-			output.writeInt(outPreys);
-			output.writeInt(outPreds);
-			output.flush();
-
-			int enteringPreys = input.readInt();
-			int enteringPreds = input.readInt();
-
-			System.out.println("Number of entering preys|predators : " + enteringPreys + "|" + enteringPreds);
-
-			// For each prey, writing its normalized position and additional data, and
-			// receiving the information back
-			for (Prey p : outPreysList) {
-				output.writeDouble(p.getPos().get(p.getPos().size() - 1).getX() / Simulation.SPACE_SIZE);
-				output.writeDouble(p.getPos().get(p.getPos().size() - 1).getY() / Simulation.SPACE_SIZE);
-				output.flush();
-
-				double x = input.readDouble() * Simulation.SPACE_SIZE;
-				double y = input.readDouble() * Simulation.SPACE_SIZE;
-
-				// Additional data has to be sent in bytes
-				byte[] ageBytes = ByteBuffer.allocate(4).putInt(p.getAge()).array();
-				byte[] lastateBytes = ByteBuffer.allocate(4).putInt(p.getLastate()).array();
-				byte[] toSend = new byte[predData];
-
-				for (int i = 0; i < 4; i++) {
-					toSend[i] = ageBytes[i];
-				}
-
-				for (int i = 4; i < predData; i++) {
-					toSend[i] = lastateBytes[i - 4];
-				}
-
-				output.write(toSend);
-				output.flush();
-
-				byte[] received = new byte[predData];
-				byte[] newAgeBytes = new byte[4];
-				byte[] newLastateBytes = new byte[4];
-
-				for (int i = 0; i < predData; i++) {
-					received[i] = input.readByte();
-				}
-
-				for (int i = 0; i < 4; i++) {
-					newAgeBytes[i] = received[i];
-				}
-
-				for (int i = 0; i < 4; i++) {
-					newLastateBytes[i] = received[i + 4];
+			int spawns = hybridField.advance(alphaPrey, alphaPred);
+			for (int s = 0; s < spawns; s++) {
+				double x = hybridField.getSpawnX(s);
+				double y = hybridField.getSpawnY(s);
+				if (hybridField.isPreySpawn(s)) {
+					add(pool.obtainPrey(x, y), PREY_COLOR);
+				} else {
+					add(pool.obtainPredator(x, y), PREDATOR_COLOR);
 				}
-
-				int age = ByteBuffer.wrap(newAgeBytes).getInt();
-
-				int lastate = ByteBuffer.wrap(newLastateBytes).getInt();
-
-				elements.add(new Prey(x, y, age, lastate));
-				circles.add(new Circle(ELEMENT_RADIUS, PREY_COLOR));
-
 				size++;
 			}
+		}
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.REPRODUCTION);
+		}
 
-			// For each predator, writing its normalized position and additional data
-			for (Predator p : outPredsList) {
-				output.writeDouble(p.getPos().get(p.getPos().size() - 1).getX() / Simulation.SPACE_SIZE);
-				output.writeDouble(p.getPos().get(p.getPos().size() - 1).getY() / Simulation.SPACE_SIZE);
-				output.flush();
-
-				double x = input.readDouble() * Simulation.SPACE_SIZE;
-				double y = input.readDouble() * Simulation.SPACE_SIZE;
-
-				// Additional data has to be sent in bytes
-				byte[] ageBytes = ByteBuffer.allocate(4).putInt(p.getAge()).array();
-				byte[] lastateBytes = ByteBuffer.allocate(4).putInt(p.getLastate()).array();
-				byte[] toSend = new byte[predData];
-
-				for (int i = 0; i < 4; i++) {
-					toSend[i] = ageBytes[i];
-				}
-
-				for (int i = 4; i < predData; i++) {
-					toSend[i] = lastateBytes[i - 4];
-				}
-
-				output.write(toSend);
-				output.flush();
-
-				byte[] received = new byte[predData];
-				byte[] newAgeBytes = new byte[4];
-				byte[] newLastateBytes = new byte[4];
+		// With FUSED_PIPELINE, the circles were updated by the movement and add()
+		if (!FUSED_PIPELINE) {
+			for (int i = 0; i < size; i++) {
 
-				for (int i = 0; i < predData; i++) {
-					received[i] = input.readByte();
-				}
+				// update the element coordinates
+				Element a = elements.get(i);
+				Circle circle = circles.get(i);
 
-				for (int i = 0; i < 4; i++) {
-					newAgeBytes[i] = received[i];
-				}
+				circle.setCenterX(a.getX());
+				circle.setCenterY(a.getY());
 
-				for (int i = 0; i < 4; i++) {
-					newLastateBytes[i] = received[i + 4];
-				}
-
-				int age = ByteBuffer.wrap(newAgeBytes).getInt();
+			}
+		}
 
-				int lastate = ByteBuffer.wrap(newLastateBytes).getInt();
+		clock.endUpdate();
+		if (telemetry != null) {
+			telemetry.mark(Telemetry.DISPLAY);
+			telemetry.end(this, elements, preyBatch.size(), predBatch.size());
+		}
 
-				elements.add(new Predator(x, y, age, lastate));
-				circles.add(new Circle(ELEMENT_RADIUS, PREDATOR_COLOR));
-				size++;
+	}
 
-			}
+	/**
+	 * Adds an element and its circle
+	 * 
+	 * @param e
+	 *            The element to add
+	 * 
+	 * @param color
+	 *            The color of its circle
+	 */
+	private void add(Element e, Color color) {
+		if (elements.size() == capacity) {
+			// the exiting animals are some of the elements, so their lists never
+			// need more
+			capacity *= 2;
+			elements.ensureCapacity(capacity);
+			circles.ensureCapacity(capacity);
+			outPreysList.ensureCapacity(capacity);
+			outPredsList.ensureCapacity(capacity);
+		}
+		elements.add(e);
+		chunks.enter(e);
+		Circle circle = pool.obtainCircle(color);
+		circle.setCenterX(e.getX());
+		circle.setCenterY(e.getY());
+		circles.add(circle);
+		count(e, 1);
+	}
 
-		} catch (IOException e1) {
-			e1.printStackTrace();
+	/**
+	 * Moves an animal with the behavior of its species. Each species has its own
+	 * call site, so that both stay monomorphic (see Behavior)
+	 * 
+	 * @param a
+	 *            The element, which doesn't move if it is a plant
+	 * 
+	 * @return True if the animal got out of the space
+	 */
+	private boolean move(Element a) {
+		if (a instanceof Predator) {
+			return predatorBehavior.move((Predator) a, vision);
+		}
+		if (a instanceof Prey) {
+			return preyBehavior.move((Prey) a, vision);
 		}
+		return false;
+	}
 
+	/**
+	 * Fused stages of FUSED_PIPELINE, in a single pass over the elements : the
+	 * animals who died are removed, the others move, those getting out are
+	 * removed and the circles of the remaining ones are updated. The elements
+	 * keep their order, as with removeLeaving().
+	 * 
+	 * @param size
+	 *            The number of elements, including the dead ones
+	 * 
+	 * @return The number of remaining elements
+	 */
+	private int moveAll(int size) {
+		int kept = 0;
 		for (int i = 0; i < size; i++) {
-
 			Element a = elements.get(i);
+			Circle circle = circles.get(i);
+
+			if (a.leaving) {
+				a.leaving = false;
+				chunks.leave(a);
+				count(a, -1);
+				pool.release(a);
+				pool.release(circle);
+				continue;
+			}
 
-			if ((a.getType().equals("prey")) || a.getType().equals("predator")) {
-
-				// The predators eat the preys or plants they can eat
-				if (a.getType().equals("predator")) {
-					for (int j = 0; j < size; j++) {
-						Element e = elements.get(j);
-						if ((e.getType().equals("prey")) || (e.getType().equals("plant"))) {
-							if (((Predator) a).edible(e)) {
-								((Predator) a).setLastate(-1);
-								elements.remove(e);
-								circles.remove(j);
-								size--;
-								j--;
-
-								if (e.getType().equals("plant")) {
-									((Predator) a).setAtePlant(true);
-								}
-							}
-						}
-
-					}
-
-				}
-
-				// The preys eat the plants they can eat
-				if (a.getType().equals("prey")) {
-					for (int j = 0; j < size; j++) {
-						Element e = elements.get(j);
-						if (e.getType().equals("plant")) {
-							if (((Prey) a).edible(e)) {
-								((Prey) a).setAtePlant(true);
-								((Prey) a).setLastate(-1);
-								elements.remove(e);
-								circles.remove(j);
-								size--;
-								j--;
-							}
-						}
-
-					}
-
+			if (move(a)) {
+				if (a instanceof Prey) {
+					outPreysList.add((Prey) a);
+				} else {
+					outPredsList.add((Predator) a);
 				}
+				chunks.leave(a);
+				count(a, -1);
+				pool.release(circle);
+				continue;
+			}
 
+			// a plant never moves, its circle was placed by add()
+			if (!(a instanceof Plant)) {
+				chunks.moved(a);
+				circle.setCenterX(a.getX());
+				circle.setCenterY(a.getY());
 			}
+			elements.set(kept, a);
+			circles.set(kept, circle);
+			kept++;
+		}
+		while (size > kept) {
+			size--;
+			elements.remove(size);
+			circles.remove(size);
+		}
+		return size;
+	}
+
+	/**
+	 * Counts the preys and predators added to or removed from the model
+	 * 
+	 * @param e
+	 *            The element
+	 * 
+	 * @param delta
+	 *            1 if it is added, -1 if it is removed
+	 */
+	private void count(Element e, int delta) {
+		if (e instanceof Prey) {
+			nbPreys += delta;
+		} else if (e instanceof Predator) {
+			nbPreds += delta;
 		}
+	}
 
+	/**
+	 * Removes the elements eaten during the feeding stage and gives them and
+	 * their circles back to the pool, keeping the order of the others
+	 * 
+	 * @param size
+	 *            The number of elements
+	 * 
+	 * @return The number of remaining elements
+	 */
+	private int removeEaten(int size) {
 		for (int i = 0; i < size; i++) {
-			Element a = elements.get(i);
-			if ((a.getType().equals("predator")) || (a.getType().equals("predator"))) {
-				((Animal) a).setLastate(((Animal) a).getLastate() + 1);
+			if (predation.isEaten(i)) {
+				elements.get(i).leaving = true;
 			}
 		}
+		return removeLeaving(size, true);
+	}
 
-		// The reproduction probability is a function of the number of animals
-		int predNb = 0;
-		int preyNb = 0;
+	/**
+	 * Removes the elements marked as leaving and gives their circles back to the
+	 * pool, keeping the order of the others. This is done in a single pass,
+	 * since removing the elements one by one from the middle of the list would
+	 * shift the end of the list each time.
+	 * 
+	 * @param size
+	 *            The number of elements
+	 * 
+	 * @param release
+	 *            Whether the elements are given back to the pool too
+	 * 
+	 * @return The number of remaining elements
+	 */
+	private int removeLeaving(int size, boolean release) {
+		int kept = 0;
 		for (int i = 0; i < size; i++) {
-			Element a = elements.get(i);
-			if (a.getType().equals("predator")) {
-				predNb++;
+			Element e = elements.get(i);
+			if (e.leaving) {
+				e.leaving = false;
+				chunks.leave(e);
+				count(e, -1);
+				if (release) {
+					pool.release(e);
+				}
+				pool.release(circles.get(i));
+			} else {
+				elements.set(kept, elements.get(i));
+				circles.set(kept, circles.get(i));
+				kept++;
 			}
-			if (a.getType().equals("prey")) {
-				preyNb++;
+		}
+		while (size > kept) {
+			size--;
+			elements.remove(size);
+			circles.remove(size);
+		}
+		return size;
+	}
+
+	/**
+	 * Sends the layout of the additional data to the server, unless it was
+	 * already sent. The first update does it otherwise. A session connects
+	 * unless connected, with the same handshake.
+	 * 
+	 * If the handshake fails, the transport is closed and replaced by an
+	 * embedded server, which the next update connects to : the simulation never
+	 * exchanges with a server which didn't agree on the layout.
+	 * 
+	 * @throws IOException
+	 *             If the exchange with the server fails
+	 */
+	public void connect() throws IOException {
+		if (session != null) {
+			session.connect();
+		} else if (!connected) {
+			try {
+				compactCodec = handshake(input, output, preySchema, predSchema);
+			} catch (IOException e) {
+				try {
+					transport.close();
+				} catch (IOException e2) {
+					// already broken
+				}
+				System.err.println("Handshake with the server failed (" + e.getMessage()
+						+ "), falling back to an embedded server.");
+				transport = new InProcessTransport();
+				input = transport.getInput();
+				output = transport.getOutput();
+				codec = new CreatureCodec(input, output);
+				compactCodec = null;
+				throw e;
 			}
+			connected = true;
 		}
+	}
 
-		ALPHA_PRED = Math.exp(-0.008 * predNb);
-		ALPHA_PREY = Math.exp(-0.016 * preyNb);
+	/**
+	 * Sends the layout of the additional data to the server on a new connection
+	 * 
+	 * @param input
+	 *            The stream carrying the data sent by the server
+	 * 
+	 * @param output
+	 *            The stream carrying the data sent to the server
+	 * 
+	 * @param preySchema
+	 *            Layout of the additional data of the preys
+	 * 
+	 * @param predSchema
+	 *            Layout of the additional data of the predators
+	 * 
+	 * @return The codec of the compact encoding if the server accepted it, null
+	 *         for the raw encoding
+	 * 
+	 * @throws IOException
+	 *             If the exchange with the server fails
+	 */
+	static CompactCodec handshake(DataInputStream input, DataOutputStream output, ExtSchema preySchema,
+			ExtSchema predSchema) throws IOException {
+		if (SCHEMA_HANDSHAKE) {
+			int encoding = SchemaRegistry.negotiate(input, output, preySchema, predSchema,
+					COMPACT_ENCODING ? SchemaRegistry.COMPACT_ENCODING : SchemaRegistry.RAW_ENCODING);
+			if (encoding == SchemaRegistry.COMPACT_ENCODING) {
+				return new CompactCodec(preySchema, predSchema);
+			}
+		} else {
+			output.writeInt(preySchema.length());
+			output.writeInt(predSchema.length());
+			output.flush();
+		}
+		return null;
+	}
 
-		for (int i = 0; i < size; i++) {
+	/**
+	 * Saves the elements of the model to a checkpoint file (see Checkpoint). The
+	 * vegetation of a PlantField is not saved.
+	 * 
+	 * @param file
+	 *            The path of the file
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be written
+	 */
+	public void checkpoint(String file) throws IOException {
+		Checkpoint.save(file, nbUpdates, clock, store, elements);
+	}
 
-			Element a = elements.get(i);
+	/**
+	 * Replaces the elements of the model with the ones of a checkpoint file
+	 * 
+	 * @param file
+	 *            The path of the file, written by checkpoint()
+	 * 
+	 * @throws IOException
+	 *             If the file cannot be read
+	 */
+	public void restore(String file) throws IOException {
+		Checkpoint saved = Checkpoint.load(file);
+		nbUpdates = saved.getUpdates();
 
-			if ((a.getType().equals("prey")) || a.getType().equals("predator")) {
+		int size = elements.size();
+		for (int i = 0; i < size; i++) {
+			elements.get(i).leaving = true;
+		}
+		removeLeaving(size, true);
+		clock.set(nbUpdates);
+
+		EntityStore from = saved.getStore();
+		for (int i = 0; i < saved.size(); i++) {
+			double x = saved.getX(i);
+			double y = saved.getY(i);
+			switch (saved.getKind(i)) {
+			case Checkpoint.PREY:
+				Prey prey = pool.obtainPrey(x, y);
+				prey.restore(from, saved.getSlot(i), saved.getAges(), saved.getHunger());
+				add(prey, PREY_COLOR);
+				break;
+			case Checkpoint.PREDATOR:
+				Predator predator = pool.obtainPredator(x, y);
+				predator.restore(from, saved.getSlot(i), saved.getAges(), saved.getHunger());
+				add(predator, PREDATOR_COLOR);
+				break;
+			default:
+				add(pool.obtainPlant(x, y), PLANT_COLOR);
+			}
+		}
+	}
 
-				// The remaining animals of the same species reproduce when possible
-				for (int j = 0; j < size; j++) {
-					Element e = elements.get(j);
+	/**
+	 * Returns the number of updates since the creation of the model, or since
+	 * the checkpoint it was restored from
+	 * 
+	 * @return The number of updates
+	 */
+	public int getUpdates() {
+		return nbUpdates;
+	}
 
-					if (e.getType().equals(a.getType())) {
-						if (((Animal) a).isReproductionPossible((Animal) e)
-								&& (elements.indexOf(a) != elements.indexOf(e))) {
+	/**
+	 * Returns the chunks of the space where the elements are
+	 * 
+	 * @return The chunk map, updated at every update
+	 */
+	public ChunkMap getChunks() {
+		return chunks;
+	}
 
-							double x = a.getPos().get(a.getPos().size() - 1).getX();
-							double y = a.getPos().get(a.getPos().size() - 1).getY();
+	/**
+	 * Returns the number of elements and circles allocated since the creation of
+	 * the model because none could be recycled
+	 * 
+	 * @return The number of allocations of the pool
+	 */
+	public long getPoolAllocations() {
+		return pool.getCreated();
+	}
 
-							if (a.getType().equals("prey")) {
-								elements.add(new Prey(x, y));
-								circles.add(new Circle(ELEMENT_RADIUS, PREY_COLOR));
-								size++;
+	/**
+	 * Returns the sum of the capacities of the buffers the updates fill : the
+	 * lists of the elements, the store, the pool, the chunks, the timing wheel
+	 * of the deaths, the stages, the migration batches and the compact codec.
+	 * It only changes when one of them grows, which is the only time an update
+	 * allocates (see TickAllocationBenchmark)
+	 * 
+	 * @return The capacity of the model
+	 */
+	public long getCapacity() {
+		long sum = capacity + store.getCapacity() + pool.getCapacity() + chunks.getCapacity()
+				+ clock.getDeaths().getCapacity() + vision.getCapacity() + mateMatcher.getCapacity()
+				+ predation.getCapacity() + preyBatch.getCapacity() + predBatch.getCapacity();
+		if (plantField != null) {
+			sum += plantField.getCapacity();
+		}
+		if (hybridField != null) {
+			sum += hybridField.getCapacity();
+		}
+		if (compactCodec != null) {
+			sum += compactCodec.getCapacity();
+		}
+		return sum;
+	}
 
-							} else {
-								elements.add(new Predator(x, y));
-								circles.add(new Circle(ELEMENT_RADIUS, PREDATOR_COLOR));
-								size++;
-							}
+	/**
+	 * Returns the number of dead elements and circles waiting to be reused
+	 * 
+	 * @return The number of free objects of the pool
+	 */
+	public int getPoolFree() {
+		return pool.getFree();
+	}
 
-							((Animal) a).setHasReproduced(true);
-							((Animal) e).setHasReproduced(true);
-						}
-					}
-				}
-			}
-		}
+	/**
+	 * Returns the number of preys in the model, those of the dense chunks
+	 * included
+	 * 
+	 * @return The number of preys
+	 */
+	public int getPreys() {
+		return nbPreys + (hybridField == null ? 0 : (int) Math.round(hybridField.getPreys()));
+	}
 
-		for (Element a : elements) {
+	/**
+	 * Returns the number of predators in the model, those of the dense chunks
+	 * included
+	 * 
+	 * @return The number of predators
+	 */
+	public int getPredators() {
+		return nbPreds + (hybridField == null ? 0 : (int) Math.round(hybridField.getPredators()));
+	}
 
-			// update the element coordinates
-			Circle circle = circles.get(elements.indexOf(a));
+	/**
+	 * Returns the number of preys that got out during the last update
+	 * 
+	 * @return The number of exiting preys
+	 */
+	public int getExitingPreys() {
+		return outPreysList.size();
+	}
 
-			circle.setCenterX(a.getPos().get(a.getPos().size() - 1).getX());
-			circle.setCenterY(a.getPos().get(a.getPos().size() - 1).getY());
+	/**
+	 * Returns the number of predators that got out during the last update
+	 * 
+	 * @return The number of exiting predators
+	 */
+	public int getExitingPreds() {
+		return outPredsList.size();
+	}
 
-		}
+	/**
+	 * Returns the telemetry of the updates
+	 * 
+	 * @return The telemetry, null unless TELEMETRY_PORT is set
+	 */
+	public Telemetry getTelemetry() {
+		return telemetry;
+	}
 
-		for (Element a : elements) {
-			if ((a.getType().equals("prey")) || a.getType().equals("predator")) {
-				((Animal) a).setHasReproduced(false);
-				((Animal) a).setAge(((Animal) a).getAge() + 1);
-			}
-		}
+	/**
+	 * Returns the vegetation grid
+	 * 
+	 * @return The vegetation, null unless PLANT_GRID is set
+	 */
+	public PlantField getPlantField() {
+		return plantField;
+	}
 
+	/**
+	 * Returns the dense chunks
+	 * 
+	 * @return The chunks simulated by their density, null unless HYBRID is set
+	 */
+	public HybridField getHybridField() {
+		return hybridField;
 	}
 
 	/**
@@ -691,15 +1196,38 @@ public class Simulation {
 	 */
 	public void exit() {
 		System.out.println("Exiting simulation and program. Bye.");
+		close();
+
+		System.exit(0);
+	}
+
+	/**
+	 * Stops the threads of the simulation and its telemetry, leaving its channel
+	 * to the server open for the simulation continuing it, e.g. the one of
+	 * fromCheckpoint().
+	 */
+	public void detach() {
+		if (telemetry != null) {
+			telemetry.close();
+		}
+		predation.close();
+	}
+
+	/**
+	 * Closes the channel to the server, without stopping the program, when
+	 * several simulations run in the same program.
+	 */
+	public void close() {
+		detach();
 		try {
-			input.close();
-			output.close();
-			socket.close();
+			if (session != null) {
+				session.close();
+			} else {
+				transport.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-
-		System.exit(0);
 	}
 
 }
@@ -0,0 +1,110 @@
+package m13;
+
+/**
+ * Index of points of the simulation torus, answering "which points are within
+ * a square range around (x, y)" without scanning all of them.
+ *
+ * Points are identified by an int chosen by the caller, usually the index of
+ * the element in the list of the simulation. The index is filled with
+ * insert(), then build() must be called before querying it. Queries don't
+ * modify the index, so several threads may query it at the same time.
+ */
+public interface SpatialIndex {
+
+	/**
+	 * Receives the points found by a query
+	 */
+	interface Visitor {
+
+		/**
+		 * Called once for every point within the range
+		 *
+		 * @param id
+		 *            The id of the point
+		 */
+		void visit(int id);
+	}
+
+	/**
+	 * Removes all the points
+	 */
+	void clear();
+
+	/**
+	 * Adds a point
+	 *
+	 * @param id
+	 *            The id of the point
+	 *
+	 * @param x
+	 *            The x coordinate of the point
+	 *
+	 * @param y
+	 *            The y coordinate of the point
+	 */
+	void insert(int id, double x, double y);
+
+	/**
+	 * Organizes the inserted points for the queries
+	 */
+	void build();
+
+	/**
+	 * Returns the number of points
+	 *
+	 * @return The number of points inserted since the last clear()
+	 */
+	int size();
+
+	/**
+	 * Returns the number of entries the arrays of the index can hold without
+	 * growing, which only changes when insert() or build() allocates
+	 *
+	 * @return The capacity of the index
+	 */
+	int getCapacity();
+
+	/**
+	 * Visits the points within a square range around (x, y), the range folding
+	 * on the sides of the torus like Position.withinRange()
+	 *
+	 * @param x
+	 *            The x coordinate of the center of the range
+	 *
+	 * @param y
+	 *            The y coordinate of the center of the range
+	 *
+	 * @param dist
+	 *            Half of the size of a side of the square range
+	 *
+	 * @param visitor
+	 *            Receives the ids of the points in the range
+	 */
+	void query(double x, double y, double dist, Visitor visitor);
+
+	/**
+	 * Creates an empty index of the given kind
+	 *
+	 * @param name
+	 *            One of "grid" or "kdtree"
+	 *
+	 * @param space
+	 *            The side of the torus
+	 *
+	 * @param dist
+	 *            The usual distance of the queries
+	 *
+	 * @return The index
+	 */
+	static SpatialIndex create(String name, double space, double dist) {
+		switch (name) {
+		case "grid":
+			return new GridIndex(space, dist);
+		case "kdtree":
+			return new KdTreeIndex(space);
+		default:
+			throw new IllegalArgumentException("Unknown spatial index: " + name);
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package m13;
+
+import java.util.Random;
+
+/**
+ * Compares the SpatialIndex backends on uniform and clustered populations :
+ * time to build the index and time of a PRED query around every point, as
+ * done by the feeding stage at every update.
+ *
+ * The clustered population looks like the simulation after a few hundred
+ * updates : most animals in a few herds of a few PRED wide, around the corner
+ * of the torus (so the queries fold on its sides) and elsewhere, plus some
+ * scattered ones.
+ *
+ * Usage: java m13.SpatialIndexBenchmark [<points>]
+ */
+public class SpatialIndexBenchmark {
+
+	private static final String[] BACKENDS = { "grid", "kdtree" };
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) {
+		int points = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		double space = Simulation.SPACE_SIZE;
+
+		double[] xs = new double[points];
+		double[] ys = new double[points];
+		Random rand = new Random(1);
+		for (int i = 0; i < points; i++) {
+			xs[i] = space * rand.nextDouble();
+			ys[i] = space * rand.nextDouble();
+		}
+		run("uniform", xs, ys);
+
+		double[][] herds = { { 0, 0 }, { 120, 300 }, { 310, 80 }, { 250, 250 } };
+		for (int i = 0; i < points; i++) {
+			if (i % 10 == 0) {
+				xs[i] = space * rand.nextDouble();
+				ys[i] = space * rand.nextDouble();
+			} else {
+				double[] herd = herds[i % herds.length];
+				xs[i] = wrap(herd[0] + 2 * Simulation.PRED * rand.nextGaussian(), space);
+				ys[i] = wrap(herd[1] + 2 * Simulation.PRED * rand.nextGaussian(), space);
+			}
+		}
+		run("clustered", xs, ys);
+	}
+
+	private static void run(String distribution, double[] xs, double[] ys) {
+		int points = xs.length;
+		for (String backend : BACKENDS) {
+			SpatialIndex index = SpatialIndex.create(backend, Simulation.SPACE_SIZE, Simulation.PRED);
+			Counter counter = new Counter();
+
+			// warmup, then measure
+			long buildNs = 0;
+			long queryNs = 0;
+			for (int pass = 0; pass < 2; pass++) {
+				buildNs = 0;
+				queryNs = 0;
+				counter.count = 0;
+				for (int r = 0; r < ROUNDS; r++) {
+					long t0 = System.nanoTime();
+					index.clear();
+					for (int i = 0; i < points; i++) {
+						index.insert(i, xs[i], ys[i]);
+					}
+					index.build();
+					long t1 = System.nanoTime();
+					for (int i = 0; i < points; i++) {
+						index.query(xs[i], ys[i], Simulation.PRED, counter);
+					}
+					long t2 = System.nanoTime();
+					buildNs += t1 - t0;
+					queryNs += t2 - t1;
+				}
+			}
+
+			double rounds = (double) ROUNDS * points;
+			System.out.printf("%-9s %-6s points=%d build=%.1f ns/point query=%.1f ns (%.1f neighbours)%n",
+					distribution, backend, points, buildNs / rounds, queryNs / rounds, counter.count / rounds);
+		}
+	}
+
+	private static double wrap(double v, double space) {
+		return v - space * Math.floor(v / space);
+	}
+
+	/**
+	 * Counts the points found, so that the queries can't be optimized away and
+	 * the backends can be checked to agree
+	 */
+	private static class Counter implements SpatialIndex.Visitor {
+
+		long count;
+
+		@Override
+		public void visit(int id) {
+			count++;
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+package m13;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a TCP connection to a SimpleServer. A server which doesn't
+ * answer within Simulation.READ_TIMEOUT_MS fails the read, as a broken
+ * connection.
+ *
+ * The connection is a SocketChannel, so that the records of an
+ * OffHeapRecordStore are written to it straight from their buffer (see
+ * ChannelOutput). They are still read through the stream of the socket, the
+ * only one the read timeout applies to.
+ */
+public class TcpTransport implements Transport {
+
+	private Socket socket;
+	private DataInputStream input;
+	private DataOutputStream output;
+
+	/**
+	 * Connects to a SimpleServer
+	 *
+	 * @param host
+	 *            Host name or address of the server
+	 *
+	 * @param port
+	 *            TCP port of the server
+	 *
+	 * @throws IOException
+	 *             If the connection cannot be established
+	 */
+	public TcpTransport(String host, int port) throws IOException {
+		socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+		// The exchange is a lock-step request/response, small writes must not wait
+		socket.setTcpNoDelay(true);
+		// A hung server must not hang the simulation, see ServerSession
+		socket.setSoTimeout(Simulation.READ_TIMEOUT_MS);
+		input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		output = ChannelOutput.of(socket);
+	}
+
+	@Override
+	public DataInputStream getInput() {
+		return input;
+	}
+
+	@Override
+	public DataOutputStream getOutput() {
+		return output;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+		output.close();
+		socket.close();
+	}
+
+}
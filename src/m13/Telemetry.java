@@ -0,0 +1,421 @@
+package m13;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Live telemetry of a running Simulation over HTTP, served by the HttpServer
+ * of the JDK :
+ *
+ * - /ticks streams one JSON object per update as server-sent events : the
+ * counts of the model, the time of each phase of the update, the bytes
+ * allocated by the update and the collections of the JVM so far
+ *
+ * - /tick returns the last of these objects
+ *
+ * - /snapshot?max=n returns the positions of at most n elements (default :
+ * 1000, at most MAX_SNAPSHOT), evenly sampled
+ *
+ * The thread of the updates only measures and copies : at the end of an
+ * update it publishes an immutable record of it, offered to the queue of each
+ * stream (a stream too slow to keep up loses records rather than slowing the
+ * updates down), and copies the sampled positions of the elements if a
+ * snapshot was asked for. Everything is turned into JSON by the threads of
+ * the HTTP server.
+ */
+public class Telemetry implements Closeable {
+
+	/** Phases of an update, timed from the end of the previous one */
+	public static final int DEATHS = 0;
+	public static final int PLANTS = 1;
+	public static final int MOVE = 2;
+	public static final int EXCHANGE = 3;
+	public static final int PREDATION = 4;
+	public static final int REPRODUCTION = 5;
+	public static final int DISPLAY = 6;
+	private static final String[] PHASES = { "deaths", "plants", "move", "exchange", "predation", "reproduction",
+			"display" };
+
+	/** Number of records a stream may fall behind before it loses some */
+	private static final int STREAM_BACKLOG = 256;
+
+	/** Most positions a snapshot may return, whatever max is asked for */
+	private static final int MAX_SNAPSHOT = 100_000;
+
+	/** Longest wait for the next update when a snapshot is asked for (ms) */
+	private static final long SNAPSHOT_TIMEOUT_MS = 5000;
+
+	/** An update, immutable once published */
+	private static final class Tick {
+		private final int update;
+		private final int preys, preds, elements;
+		private final int exitingPreys, exitingPreds, enteringPreys, enteringPreds;
+		private final long[] phases;
+		private final long allocated;
+		private final long collections, collectionMs, heapUsed;
+
+		private Tick(int update, int preys, int preds, int elements, int exitingPreys, int exitingPreds,
+				int enteringPreys, int enteringPreds, long[] phases, long allocated, long collections,
+				long collectionMs, long heapUsed) {
+			this.update = update;
+			this.preys = preys;
+			this.preds = preds;
+			this.elements = elements;
+			this.exitingPreys = exitingPreys;
+			this.exitingPreds = exitingPreds;
+			this.enteringPreys = enteringPreys;
+			this.enteringPreds = enteringPreds;
+			this.phases = phases;
+			this.allocated = allocated;
+			this.collections = collections;
+			this.collectionMs = collectionMs;
+			this.heapUsed = heapUsed;
+		}
+
+		private String toJson() {
+			StringBuilder json = new StringBuilder(256);
+			json.append("{\"update\":").append(update).append(",\"preys\":").append(preys).append(",\"predators\":")
+					.append(preds).append(",\"elements\":").append(elements).append(",\"exiting\":[")
+					.append(exitingPreys).append(',').append(exitingPreds).append("],\"entering\":[")
+					.append(enteringPreys).append(',').append(enteringPreds).append("],\"phasesUs\":{");
+			long total = 0;
+			for (int p = 0; p < phases.length; p++) {
+				json.append(p > 0 ? ",\"" : "\"").append(PHASES[p]).append("\":")
+						.append(String.format("%.1f", phases[p] / 1e3));
+				total += phases[p];
+			}
+			json.append("},\"updateUs\":").append(String.format("%.1f", total / 1e3)).append(",\"allocatedBytes\":")
+					.append(allocated).append(",\"gc\":{\"collections\":").append(collections).append(",\"timeMs\":")
+					.append(collectionMs).append(",\"heapUsedBytes\":").append(heapUsed).append("}}");
+			return json.toString();
+		}
+	}
+
+	/** Sampled positions of the elements, immutable once published */
+	private static final class Snapshot {
+		private final int update;
+		private final int total;
+		private final byte[] kinds;
+		private final float[] xs, ys;
+
+		private Snapshot(int update, int total, byte[] kinds, float[] xs, float[] ys) {
+			this.update = update;
+			this.total = total;
+			this.kinds = kinds;
+			this.xs = xs;
+			this.ys = ys;
+		}
+
+		private String toJson() {
+			StringBuilder json = new StringBuilder(64 + 24 * kinds.length);
+			json.append("{\"update\":").append(update).append(",\"total\":").append(total).append(",\"size\":")
+					.append(Simulation.SPACE_SIZE).append(",\"elements\":[");
+			for (int i = 0; i < kinds.length; i++) {
+				json.append(i > 0 ? ",[" : "[").append(kinds[i]).append(',').append(xs[i]).append(',').append(ys[i])
+						.append(']');
+			}
+			return json.append("]}").toString();
+		}
+	}
+
+	/** A snapshot asked for, taken at the end of the next update */
+	private static final class Request {
+		private final int max;
+		private final CompletableFuture<Snapshot> snapshot = new CompletableFuture<Snapshot>();
+
+		private Request(int max) {
+			this.max = max;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService threads;
+	private final CopyOnWriteArrayList<BlockingQueue<Tick>> streams = new CopyOnWriteArrayList<BlockingQueue<Tick>>();
+	private final AtomicReference<Request> request = new AtomicReference<Request>();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile Tick last;
+
+	/** Sources of the allocation and collection figures */
+	private final com.sun.management.ThreadMXBean threadBean;
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+	/** Current update, only touched by its thread */
+	private long[] phases = new long[PHASES.length];
+	private long phaseStart;
+	private long allocatedStart;
+
+	/**
+	 * Starts serving the telemetry
+	 *
+	 * @param port
+	 *            The TCP port of the HTTP server, 0 for any free port
+	 *
+	 * @throws IOException
+	 *             If the port cannot be bound
+	 */
+	public Telemetry(int port) throws IOException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threadBean = bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		threads = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "telemetry");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(threads);
+		server.createContext("/tick", this::tick);
+		server.createContext("/ticks", this::stream);
+		server.createContext("/snapshot", this::snapshot);
+		server.start();
+	}
+
+	/**
+	 * Returns the port of the HTTP server
+	 *
+	 * @return The port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Starts timing an update, on its thread
+	 */
+	public void begin() {
+		phaseStart = System.nanoTime();
+		if (threadBean != null) {
+			allocatedStart = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+
+	/**
+	 * Ends a phase of the update, which started at the end of the previous one
+	 *
+	 * @param phase
+	 *            The phase, e.g. MOVE
+	 */
+	public void mark(int phase) {
+		long now = System.nanoTime();
+		phases[phase] += now - phaseStart;
+		phaseStart = now;
+	}
+
+	/**
+	 * Publishes the update to the streams, and takes the snapshot asked for if
+	 * any
+	 *
+	 * @param simulation
+	 *            The updated simulation
+	 *
+	 * @param elements
+	 *            Its elements
+	 *
+	 * @param enteringPreys
+	 *            The number of preys which entered during the update
+	 *
+	 * @param enteringPreds
+	 *            The number of predators which entered during the update
+	 */
+	public void end(Simulation simulation, List<Element> elements, int enteringPreys, int enteringPreds) {
+		long allocated = threadBean == null ? -1
+				: threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedStart;
+		long collections = 0, collectionMs = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			collections += Math.max(0, collector.getCollectionCount());
+			collectionMs += Math.max(0, collector.getCollectionTime());
+		}
+		Tick tick = new Tick(simulation.getUpdates(), simulation.getPreys(), simulation.getPredators(),
+				elements.size(), simulation.getExitingPreys(), simulation.getExitingPreds(), enteringPreys,
+				enteringPreds, phases, allocated, collections, collectionMs, memory.getHeapMemoryUsage().getUsed());
+		phases = new long[PHASES.length];
+		last = tick;
+		for (BlockingQueue<Tick> stream : streams) {
+			if (!stream.offer(tick)) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		Request asked = request.getAndSet(null);
+		if (asked != null) {
+			asked.snapshot.complete(sample(simulation.getUpdates(), elements, asked.max));
+		}
+	}
+
+	/**
+	 * Copies the positions of every k-th element, k being chosen so that at
+	 * most max of them are copied
+	 */
+	private static Snapshot sample(int update, List<Element> elements, int max) {
+		int total = elements.size();
+		int stride = Math.max(1, (total + max - 1) / Math.max(1, max));
+		int count = (total + stride - 1) / stride;
+		byte[] kinds = new byte[count];
+		float[] xs = new float[count];
+		float[] ys = new float[count];
+		for (int i = 0, j = 0; j < count; i += stride, j++) {
+			Element e = elements.get(i);
+			kinds[j] = (byte) (e instanceof Prey ? 0 : e instanceof Predator ? 1 : 2);
+			xs[j] = (float) e.getX();
+			ys[j] = (float) e.getY();
+		}
+		return new Snapshot(update, total, kinds, xs, ys);
+	}
+
+	/**
+	 * Returns the number of records lost by the streams too slow to keep up
+	 *
+	 * @return The number of records not queued
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	private void tick(HttpExchange exchange) throws IOException {
+		Tick tick = last;
+		if (tick == null) {
+			send(exchange, 503, "text/plain", "No update yet");
+		} else {
+			send(exchange, 200, "application/json", tick.toJson());
+		}
+	}
+
+	/**
+	 * Streams the updates as server-sent events until the client leaves
+	 */
+	private void stream(HttpExchange exchange) throws IOException {
+		BlockingQueue<Tick> queue = new ArrayBlockingQueue<Tick>(STREAM_BACKLOG);
+		streams.add(queue);
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream body = exchange.getResponseBody()) {
+			while (true) {
+				Tick tick = queue.take();
+				body.write(("data: " + tick.toJson() + "\n\n").getBytes(StandardCharsets.UTF_8));
+				body.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// the client left
+		} finally {
+			streams.remove(queue);
+		}
+	}
+
+	/**
+	 * Asks for a snapshot at the end of the next update, sharing the one
+	 * already asked for if any
+	 */
+	private void snapshot(HttpExchange exchange) throws IOException {
+		int max = 1000;
+		String query = exchange.getRequestURI().getQuery();
+		if (query != null) {
+			for (String param : query.split("&")) {
+				if (param.startsWith("max=")) {
+					try {
+						max = Math.min(MAX_SNAPSHOT, Math.max(1, Integer.parseInt(param.substring(4))));
+					} catch (NumberFormatException e) {
+						send(exchange, 400, "text/plain", "Bad value for max");
+						return;
+					}
+				}
+			}
+		}
+		// the update may take the pending request between two reads of it, so
+		// the new one is only set where there is none, in a single step
+		Request fresh = new Request(max);
+		Request asked = request.updateAndGet(pending -> pending != null ? pending : fresh);
+		try {
+			Snapshot snapshot = asked.snapshot.get(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			send(exchange, 200, "application/json", snapshot.toJson());
+		} catch (TimeoutException e) {
+			send(exchange, 503, "text/plain", "No update within " + SNAPSHOT_TIMEOUT_MS + " ms");
+		} catch (InterruptedException | ExecutionException e) {
+			send(exchange, 500, "text/plain", e.toString());
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Stops the HTTP server, ending the streams
+	 */
+	@Override
+	public void close() {
+		server.stop(0);
+		threads.shutdownNow();
+	}
+
+	/**
+	 * Runs a simulation without window, serving its telemetry, e.g:
+	 * <p>
+	 * java m13.Telemetry 8080 5000 0
+	 * <p>
+	 * then curl -N http://localhost:8080/ticks
+	 *
+	 * @param args
+	 *            The HTTP port (default : 8080), the number of elements
+	 *            (default : 220) and the number of updates (default : 0, forever)
+	 */
+	public static void main(String[] args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int nbElements = args.length > 1 ? Integer.parseInt(args[1]) : 220;
+		int updates = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+		// must be set before the Simulation class is initialized
+		System.setProperty("m13.telemetryPort", Integer.toString(port));
+		if (System.getProperty("m13.verbose") == null) {
+			System.setProperty("m13.verbose", "false");
+		}
+
+		Simulation simulation = new Simulation(nbElements);
+		long period = 1_000_000_000L / Simulation.UPDATE_RATE_HZ;
+		long next = System.nanoTime();
+		for (int u = 0; updates == 0 || u < updates; u++) {
+			simulation.update();
+			next += period;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+				} catch (InterruptedException e) {
+					break;
+				}
+			} else {
+				next = System.nanoTime();
+			}
+		}
+		simulation.close();
+	}
+
+}
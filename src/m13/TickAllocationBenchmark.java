@@ -0,0 +1,79 @@
+package m13;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the bytes allocated by the simulation thread during each update of
+ * a Simulation connected to an embedded server, and its time per update.
+ *
+ * An update may only allocate when one of the buffers it fills grows, which
+ * Simulation.getCapacity() tells : such updates are counted as growing. Every
+ * other update is steady and must not allocate a single byte : the program
+ * exits with status 1 if one of them does.
+ *
+ * The measure starts after WARMUP_UPDATES updates, once the JIT has compiled
+ * the methods of the updates : the first time it compiles a method of a
+ * class, it resolves the string constants of the class on the calling thread.
+ *
+ * Usage: java m13.TickAllocationBenchmark [<elements> [<updates>]]
+ */
+public class TickAllocationBenchmark {
+
+	private static final int WARMUP_UPDATES = 10_000;
+
+	public static void main(String[] args) {
+		int nbElements = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int updates = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+		// must be set before the Simulation class is initialized
+		System.setProperty("m13.transport", "inprocess");
+		System.setProperty("m13.verbose", "false");
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		Simulation simulation = new Simulation(nbElements);
+		for (int u = 0; u < WARMUP_UPDATES; u++) {
+			simulation.update();
+		}
+
+		int steady = 0;
+		int growing = 0;
+		int allocating = 0;
+		long steadyBytes = 0;
+		long maxSteadyBytes = 0;
+		long growingBytes = 0;
+		long start = System.nanoTime();
+		for (int u = 0; u < updates; u++) {
+			long capacity = simulation.getCapacity();
+			long before = bean.getThreadAllocatedBytes(thread);
+			simulation.update();
+			long allocated = bean.getThreadAllocatedBytes(thread) - before;
+
+			if (simulation.getCapacity() != capacity) {
+				growing++;
+				growingBytes += allocated;
+			} else {
+				steady++;
+				if (allocated > 0) {
+					allocating++;
+				}
+				steadyBytes += allocated;
+				maxSteadyBytes = Math.max(maxSteadyBytes, allocated);
+			}
+		}
+		double updateUs = (System.nanoTime() - start) / (updates * 1e3);
+
+		System.out.printf("elements=%d updates=%d (%d steady, %d growing, %d B allocated by the growing ones)%n",
+				nbElements, updates, steady, growing, growingBytes);
+		System.out.printf("time     : %.1f us/update, %d elements at the end%n", updateUs,
+				simulation.getElements().size());
+		System.out.printf("allocated: %.1f B/steady update (max %d B, %d steady updates allocated)%n",
+				steady == 0 ? 0.0 : (double) steadyBytes / steady, maxSteadyBytes, allocating);
+		if (allocating != 0) {
+			System.exit(1);
+		}
+	}
+
+}
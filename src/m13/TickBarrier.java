@@ -0,0 +1,355 @@
+package m13;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Global tick of the clients of a SimpleServer serving several of them : the
+ * server answers the message of tick n of a client only once every other
+ * client sent the one of tick n - slack. With no slack, the clients advance in
+ * lockstep ; with a slack of k, a fast client may run k ticks ahead of the
+ * slowest one before its updates block. The clients need no change, since
+ * each of their updates already waits for the answer of the server.
+ *
+ * The global tick starts once a given number of clients joined, all of them
+ * at tick 0. A later client joins at the current global tick (the tick of the
+ * slowest client), so it neither blocks nor is blocked by the others, and a
+ * client leaves when its connection ends. A client keeping the others waiting
+ * longer than the timeout is failed : it leaves, its connection is closed
+ * (fail-stop) and the others go on without it.
+ *
+ * The time each message waited for the others is recorded, as well as the
+ * largest distance between the fastest and the slowest client, to tune the
+ * slack against the throughput.
+ *
+ * The clients wait on a Condition of a ReentrantLock rather than on the
+ * monitor of the barrier : a virtual thread waiting for a tick then unmounts,
+ * and its carrier thread serves the other connections.
+ */
+public class TickBarrier {
+
+	/** A client and its tick */
+	private static class Member {
+		private int tick;
+		private final Runnable stop;
+
+		private Member(int tick, Runnable stop) {
+			this.tick = tick;
+			this.stop = stop;
+		}
+	}
+
+	private final int parties;
+	private final int slack;
+	private final long timeoutNanos;
+	private boolean started;
+	private final HashMap<Integer, Member> members = new HashMap<Integer, Member>();
+
+	/** Guards the members and the ticks, signalled when the global tick moves */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition advanced = lock.newCondition();
+
+	/** Tick of the slowest clients, how many they are, and the fastest tick */
+	private int minTick;
+	private int atMin;
+	private int maxTick;
+
+	/** Metrics */
+	private final LatencyHistogram waits = new LatencyHistogram();
+	private int largestSkew;
+	private int failures;
+
+	/**
+	 * Creates a barrier without clients
+	 *
+	 * @param parties
+	 *            The number of clients to wait for before the first tick, 0 to
+	 *            start with the first client
+	 *
+	 * @param slack
+	 *            The number of ticks a client may run ahead of the slowest one,
+	 *            0 for lockstep
+	 *
+	 * @param timeoutMs
+	 *            The longest time a client may keep another one waiting before
+	 *            it fails (ms), 0 to wait forever
+	 */
+	public TickBarrier(int parties, int slack, long timeoutMs) {
+		this.parties = parties;
+		this.slack = slack;
+		this.timeoutNanos = timeoutMs * 1_000_000L;
+	}
+
+	/**
+	 * Adds a client at the current global tick
+	 *
+	 * @param client
+	 *            The id of the client
+	 *
+	 * @param stop
+	 *            Closes the connection of the client if it fails
+	 *
+	 * @return The tick the client joined at
+	 */
+	public int join(int client, Runnable stop) {
+		lock.lock();
+		try {
+			// before the start, the first clients may already have arrived at tick 1
+			int tick = !started ? 0 : members.isEmpty() ? maxTick : minTick;
+			if (members.isEmpty() || tick < minTick) {
+				minTick = tick;
+				atMin = 0;
+			}
+			members.put(client, new Member(tick, stop));
+			atMin++;
+			if (!started && members.size() >= parties) {
+				started = true;
+				advanced.signalAll();
+			}
+			return tick;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes a client, e.g. because its connection ended. The clients waiting
+	 * for it are released.
+	 *
+	 * @param client
+	 *            The id of the client, ignored if it already left
+	 */
+	public void leave(int client) {
+		lock.lock();
+		try {
+			Member member = members.remove(client);
+			if (member != null && member.tick == minTick && --atMin == 0) {
+				updateMin();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Counts the next tick of a client, then waits until every client reached
+	 * this tick minus the slack. The clients keeping it waiting beyond the
+	 * timeout are failed, the time spent waiting for the first clients to join
+	 * not being counted.
+	 *
+	 * @param client
+	 *            The id of the client
+	 *
+	 * @return The tick of the client
+	 *
+	 * @throws IOException
+	 *             If the client was failed by the barrier
+	 *
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	public int arrive(int client) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		List<Runnable> stops = null;
+		int tick;
+		lock.lock();
+		try {
+			Member member = members.get(client);
+			if (member == null) {
+				throw new IOException("Client " + client + " failed by the tick barrier");
+			}
+			tick = ++member.tick;
+			maxTick = Math.max(maxTick, tick);
+			if (tick - 1 == minTick && --atMin == 0) {
+				updateMin();
+			}
+			largestSkew = Math.max(largestSkew, maxTick - minTick);
+
+			int needed = tick - slack;
+			long deadline = started ? start + timeoutNanos : 0;
+			while (!started || minTick < needed) {
+				if (!started || timeoutNanos == 0) {
+					advanced.await();
+				} else {
+					if (deadline == 0) {
+						deadline = System.nanoTime() + timeoutNanos;
+					}
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						stops = fail(needed);
+						break;
+					}
+					advanced.awaitNanos(left);
+				}
+				if (!members.containsKey(client)) {
+					throw new IOException("Client " + client + " failed by the tick barrier");
+				}
+			}
+			waits.record(System.nanoTime() - start);
+		} finally {
+			lock.unlock();
+		}
+		// the failed connections are closed out of the lock, their servers
+		// leaving the barrier when they see it
+		if (stops != null) {
+			for (Runnable stop : stops) {
+				stop.run();
+			}
+		}
+		return tick;
+	}
+
+	/**
+	 * Removes the clients behind a tick
+	 *
+	 * @return The actions closing their connections
+	 */
+	private List<Runnable> fail(int tick) {
+		List<Runnable> stops = new ArrayList<Runnable>();
+		members.values().removeIf(member -> {
+			if (member.tick < tick) {
+				stops.add(member.stop);
+				return true;
+			}
+			return false;
+		});
+		failures += stops.size();
+		updateMin();
+		return stops;
+	}
+
+	/**
+	 * Finds the slowest clients again, and releases the clients waiting for
+	 * them
+	 */
+	private void updateMin() {
+		int min = Integer.MAX_VALUE;
+		int count = 0;
+		for (Member member : members.values()) {
+			if (member.tick < min) {
+				min = member.tick;
+				count = 1;
+			} else if (member.tick == min) {
+				count++;
+			}
+		}
+		minTick = count == 0 ? maxTick : min;
+		atMin = count;
+		advanced.signalAll();
+	}
+
+	/**
+	 * Tells whether the global tick started
+	 *
+	 * @return True once the expected clients joined
+	 */
+	public boolean isStarted() {
+		lock.lock();
+		try {
+			return started;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of ticks a client may run ahead
+	 *
+	 * @return The slack, 0 for lockstep
+	 */
+	public int getSlack() {
+		return slack;
+	}
+
+	/**
+	 * Returns the number of clients
+	 *
+	 * @return The number of clients which joined and didn't leave
+	 */
+	public int getClients() {
+		lock.lock();
+		try {
+			return members.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the global tick
+	 *
+	 * @return The tick of the slowest client
+	 */
+	public int getTick() {
+		lock.lock();
+		try {
+			return minTick;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the largest distance seen between the fastest and the slowest
+	 * client
+	 *
+	 * @return The number of ticks, at most the slack plus one
+	 */
+	public int getLargestSkew() {
+		lock.lock();
+		try {
+			return largestSkew;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of clients failed for keeping the others waiting
+	 *
+	 * @return The number of failures
+	 */
+	public int getFailures() {
+		lock.lock();
+		try {
+			return failures;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the times the messages waited for the other clients, from the
+	 * arrival of a message to its release (ns)
+	 *
+	 * @return A copy of the histogram of the waits
+	 */
+	public LatencyHistogram getWaits() {
+		LatencyHistogram copy = new LatencyHistogram();
+		lock.lock();
+		try {
+			copy.merge(waits);
+		} finally {
+			lock.unlock();
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the metrics of the barrier on one line
+	 *
+	 * @return The number of clients, the global tick, the waits percentiles
+	 *         (us), the largest skew and the failures
+	 */
+	public String report() {
+		LatencyHistogram w = getWaits();
+		return String.format("barrier slack %d: %d clients at tick %d, wait (us) p50=%.1f p99=%.1f max=%.1f"
+				+ " mean=%.1f, largest skew %d, %d failed", slack, getClients(), getTick(), w.percentile(0.5) / 1e3,
+				w.percentile(0.99) / 1e3, w.getMax() / 1e3, w.getMean() / 1e3, getLargestSkew(), getFailures());
+	}
+
+}
@@ -0,0 +1,60 @@
+package m13;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Channel used by the simulation to exchange exiting and entering creatures
+ * with the server.
+ *
+ * Every implementation carries the same byte protocol (see SimpleServer), only
+ * the way the bytes travel differs :
+ *
+ * - tcp : a socket to a SimpleServer, possibly on another host - inprocess : a
+ * SimpleServer embedded in the same JVM, fed through in-memory pipes - mapped :
+ * a ring buffer in a memory-mapped file shared with a SimpleServer running on
+ * the same host
+ */
+public interface Transport extends Closeable {
+
+	/**
+	 * Returns the stream carrying the data sent by the server
+	 *
+	 * @return The input stream of the channel
+	 */
+	DataInputStream getInput();
+
+	/**
+	 * Returns the stream carrying the data sent to the server
+	 *
+	 * @return The output stream of the channel
+	 */
+	DataOutputStream getOutput();
+
+	/**
+	 * Opens the transport designated by name.
+	 *
+	 * @param name
+	 *            One of "tcp", "inprocess" or "mapped"
+	 *
+	 * @return The opened transport
+	 *
+	 * @throws IOException
+	 *             If the channel cannot be established
+	 */
+	static Transport open(String name) throws IOException {
+		switch (name) {
+		case "tcp":
+			return new TcpTransport(Simulation.SERVER_HOST, Simulation.SERVER_PORT);
+		case "inprocess":
+			return new InProcessTransport();
+		case "mapped":
+			return MappedFileTransport.connect(Simulation.MAPPED_FILE);
+		default:
+			throw new IOException("Unknown transport: " + name);
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package m13;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javafx.scene.Node;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Circle;
+import javafx.scene.shape.Rectangle;
+
+/**
+ * Builds the content of the window from the chunks of the world, for the part
+ * of it shown by a Viewport.
+ *
+ * Only the chunks overlapping the window are read. If they hold at most
+ * MAX_DOTS elements, the elements inside the window are drawn as dots ;
+ * otherwise the window shows a heatmap : the world is divided in tiles of a few
+ * pixels, made of whole chunks, and each tile is filled with the color of each
+ * species with an opacity growing with its number of elements. Either way the
+ * number of nodes of the scene is bounded, whatever the population, and the
+ * circles and tiles are reused from frame to frame.
+ */
+public class ViewRenderer {
+
+	/** Smallest side of a heatmap tile (pixels) */
+	public static final int TILE = 8;
+
+	/** Kinds of elements, in drawing order */
+	private static final int PLANTS = 0;
+	private static final int PREYS = 1;
+	private static final int PREDATORS = 2;
+	private static final Color[] COLORS = { Simulation.PLANT_COLOR, Simulation.PREY_COLOR,
+			Simulation.PREDATOR_COLOR };
+
+	private final Viewport viewport;
+
+	/** Content of the last frame */
+	private final ArrayList<Node> nodes = new ArrayList<Node>();
+
+	/** Circles and tiles, reused from frame to frame */
+	private final ArrayList<Circle> dots = new ArrayList<Circle>();
+	private final ArrayList<Rectangle> tiles = new ArrayList<Rectangle>();
+	private int usedDots;
+	private int usedTiles;
+
+	/** Chunks overlapping the window */
+	private int firstColumn;
+	private int lastColumn;
+	private int firstRow;
+	private int lastRow;
+
+	/** Heatmap of the current frame : tiles of tileChunks x tileChunks chunks */
+	private int tileChunks;
+	private int tileColumns;
+	private int tileRows;
+	private int[] counts = new int[0];
+
+	/** Number of elements in the chunks overlapping the window */
+	private int shown;
+
+	/** Passes over the chunks overlapping the window */
+	private static final int COUNT = 0;
+	private static final int AGGREGATE = 1;
+	private static final int DRAW = 2;
+	private int pass;
+
+	/**
+	 * Creates a renderer for a camera
+	 *
+	 * @param viewport
+	 *            The camera giving the part of the world to show
+	 */
+	public ViewRenderer(Viewport viewport) {
+		this.viewport = viewport;
+	}
+
+	/**
+	 * Builds the content of the window
+	 *
+	 * @param chunks
+	 *            The chunks of the world
+	 *
+	 * @return The nodes to show, valid until the next call
+	 */
+	public ArrayList<Node> render(ChunkMap chunks) {
+		nodes.clear();
+		usedDots = 0;
+		usedTiles = 0;
+
+		int side = chunks.getSide();
+		firstColumn = chunkOf(viewport.getMinX(), side);
+		lastColumn = chunkOf(viewport.getMaxX(), side);
+		firstRow = chunkOf(viewport.getMinY(), side);
+		lastRow = chunkOf(viewport.getMaxY(), side);
+
+		shown = 0;
+		pass = COUNT;
+		visitChunks(chunks);
+
+		if (shown > Simulation.MAX_DOTS) {
+			double chunkPixels = Simulation.CHUNK_SIZE * viewport.getScale();
+			tileChunks = Math.max(1, (int) Math.ceil(TILE / chunkPixels));
+			tileColumns = lastColumn / tileChunks - firstColumn / tileChunks + 1;
+			tileRows = lastRow / tileChunks - firstRow / tileChunks + 1;
+			int length = 3 * tileColumns * tileRows;
+			if (counts.length < length) {
+				counts = new int[length];
+			}
+			Arrays.fill(counts, 0, length, 0);
+			pass = AGGREGATE;
+			visitChunks(chunks);
+			addTiles();
+		} else {
+			pass = DRAW;
+			visitChunks(chunks);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Tells if the last frame was a heatmap
+	 *
+	 * @return True for a heatmap, false for dots
+	 */
+	public boolean isHeatmap() {
+		return pass == AGGREGATE;
+	}
+
+	/**
+	 * Visits the allocated chunks overlapping the window, reading either their
+	 * coordinates or the whole table of chunks, whichever is smaller
+	 */
+	private void visitChunks(ChunkMap chunks) {
+		long overlapping = (long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1);
+		if (overlapping <= chunks.capacity()) {
+			for (int cy = firstRow; cy <= lastRow; cy++) {
+				for (int cx = firstColumn; cx <= lastColumn; cx++) {
+					Chunk c = chunks.getChunk(cx, cy);
+					if (c != null) {
+						visit(c);
+					}
+				}
+			}
+		} else {
+			for (int s = 0; s < chunks.capacity(); s++) {
+				Chunk c = chunks.slot(s);
+				if (c != null && c.cx >= firstColumn && c.cx <= lastColumn && c.cy >= firstRow
+						&& c.cy <= lastRow) {
+					visit(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts, aggregates or draws the elements of a chunk, depending on the pass
+	 */
+	private void visit(Chunk c) {
+		if (pass == COUNT) {
+			shown += c.plants + c.preys + c.predators;
+		} else if (pass == AGGREGATE) {
+			int tx = c.cx / tileChunks - firstColumn / tileChunks;
+			int ty = c.cy / tileChunks - firstRow / tileChunks;
+			int t = 3 * (ty * tileColumns + tx);
+			counts[t + PLANTS] += c.plants;
+			counts[t + PREYS] += c.preys;
+			counts[t + PREDATORS] += c.predators;
+		} else {
+			double radius = Simulation.ELEMENT_RADIUS;
+			double pixels = Math.max(1, radius * viewport.getScale());
+			for (Element e = c.first(); e != null; e = c.next(e)) {
+				if (viewport.contains(e.getX(), e.getY(), radius)) {
+					Circle dot = dot();
+					dot.setCenterX(viewport.toScreenX(e.getX()));
+					dot.setCenterY(viewport.toScreenY(e.getY()));
+					dot.setRadius(pixels);
+					dot.setFill(COLORS[kind(e)]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a tile per species and non empty part of the heatmap, its opacity
+	 * growing with the logarithm of the number of elements, the fullest tile of
+	 * each species being opaque
+	 */
+	private void addTiles() {
+		int nbTiles = tileColumns * tileRows;
+		double tileWorld = (double) tileChunks * Simulation.CHUNK_SIZE;
+		double pixels = tileWorld * viewport.getScale();
+		for (int k = PLANTS; k <= PREDATORS; k++) {
+			int max = 0;
+			for (int t = 0; t < nbTiles; t++) {
+				max = Math.max(max, counts[3 * t + k]);
+			}
+			for (int t = 0; t < nbTiles; t++) {
+				int count = counts[3 * t + k];
+				if (count > 0) {
+					int tx = t % tileColumns + firstColumn / tileChunks;
+					int ty = t / tileColumns + firstRow / tileChunks;
+					Rectangle tile = tile();
+					tile.setX(viewport.toScreenX(tx * tileWorld));
+					tile.setY(viewport.toScreenY(ty * tileWorld));
+					tile.setWidth(pixels);
+					tile.setHeight(pixels);
+					tile.setFill(COLORS[k]);
+					tile.setOpacity(Math.log1p(count) / Math.log1p(max));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns an unused circle, added to the nodes of the frame
+	 */
+	private Circle dot() {
+		if (usedDots == dots.size()) {
+			dots.add(new Circle(Simulation.ELEMENT_RADIUS, Simulation.PLANT_COLOR));
+		}
+		Circle dot = dots.get(usedDots++);
+		nodes.add(dot);
+		return dot;
+	}
+
+	/**
+	 * Returns an unused tile, added to the nodes of the frame
+	 */
+	private Rectangle tile() {
+		if (usedTiles == tiles.size()) {
+			tiles.add(new Rectangle());
+		}
+		Rectangle tile = tiles.get(usedTiles++);
+		nodes.add(tile);
+		return tile;
+	}
+
+	private static int kind(Element e) {
+		if (e instanceof Prey) {
+			return PREYS;
+		} else if (e instanceof Predator) {
+			return PREDATORS;
+		}
+		return PLANTS;
+	}
+
+	private static int chunkOf(double v, int side) {
+		return Math.max(0, Math.min(side - 1, (int) (v / Simulation.CHUNK_SIZE)));
+	}
+
+}
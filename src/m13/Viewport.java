@@ -0,0 +1,198 @@
+package m13;
+
+/**
+ * Camera of the graphical display : the part of the world shown in the
+ * VIEW_SIZE x VIEW_SIZE window, moved by pan() and zoom().
+ *
+ * The camera is the world point shown at the top left corner of the window and
+ * the scale, in pixels per world unit. At the lowest scale the whole world
+ * fits in the window ; the camera never shows anything outside of the world.
+ */
+public class Viewport {
+
+	/** Largest scale (pixels per world unit) */
+	public static final double MAX_SCALE = 16;
+
+	/** Side of the window (pixels) */
+	private final double size;
+
+	/** Smallest scale, showing the whole world */
+	private final double minScale;
+
+	/** World point at the top left corner of the window */
+	private double x0;
+	private double y0;
+
+	/** Pixels per world unit */
+	private double scale;
+
+	/**
+	 * Creates a camera showing the whole world
+	 *
+	 * @param size
+	 *            The side of the window (pixels)
+	 */
+	public Viewport(double size) {
+		this.size = size;
+		this.minScale = size / Simulation.SPACE_SIZE;
+		this.scale = minScale;
+	}
+
+	/**
+	 * Moves the camera
+	 *
+	 * @param dx
+	 *            Horizontal move of the world in the window (pixels)
+	 *
+	 * @param dy
+	 *            Vertical move of the world in the window (pixels)
+	 */
+	public void pan(double dx, double dy) {
+		x0 -= dx / scale;
+		y0 -= dy / scale;
+		clamp();
+	}
+
+	/**
+	 * Zooms in or out, the world point under (px, py) staying in place
+	 *
+	 * @param factor
+	 *            The scale is multiplied by factor, more than 1 to zoom in
+	 *
+	 * @param px
+	 *            The x coordinate of the fixed point in the window (pixels)
+	 *
+	 * @param py
+	 *            The y coordinate of the fixed point in the window (pixels)
+	 */
+	public void zoom(double factor, double px, double py) {
+		double x = toWorldX(px);
+		double y = toWorldY(py);
+		scale = Math.max(minScale, Math.min(MAX_SCALE, scale * factor));
+		x0 = x - px / scale;
+		y0 = y - py / scale;
+		clamp();
+	}
+
+	/**
+	 * Returns the scale
+	 *
+	 * @return The number of pixels per world unit
+	 */
+	public double getScale() {
+		return scale;
+	}
+
+	/**
+	 * Returns the lowest x coordinate shown
+	 *
+	 * @return The world x coordinate of the left side of the window
+	 */
+	public double getMinX() {
+		return x0;
+	}
+
+	/**
+	 * Returns the lowest y coordinate shown
+	 *
+	 * @return The world y coordinate of the top side of the window
+	 */
+	public double getMinY() {
+		return y0;
+	}
+
+	/**
+	 * Returns the highest x coordinate shown
+	 *
+	 * @return The world x coordinate of the right side of the window
+	 */
+	public double getMaxX() {
+		return x0 + size / scale;
+	}
+
+	/**
+	 * Returns the highest y coordinate shown
+	 *
+	 * @return The world y coordinate of the bottom side of the window
+	 */
+	public double getMaxY() {
+		return y0 + size / scale;
+	}
+
+	/**
+	 * Tells if a world point is shown
+	 *
+	 * @param x
+	 *            The world x coordinate
+	 *
+	 * @param y
+	 *            The world y coordinate
+	 *
+	 * @param margin
+	 *            Distance outside of the window still considered as shown
+	 *            (world units), such as the radius of a circle
+	 *
+	 * @return True if the point is in the window
+	 */
+	public boolean contains(double x, double y, double margin) {
+		return x >= x0 - margin && x <= getMaxX() + margin && y >= y0 - margin && y <= getMaxY() + margin;
+	}
+
+	/**
+	 * Converts a world x coordinate to the window
+	 *
+	 * @param x
+	 *            The world x coordinate
+	 *
+	 * @return The x coordinate in the window (pixels)
+	 */
+	public double toScreenX(double x) {
+		return (x - x0) * scale;
+	}
+
+	/**
+	 * Converts a world y coordinate to the window
+	 *
+	 * @param y
+	 *            The world y coordinate
+	 *
+	 * @return The y coordinate in the window (pixels)
+	 */
+	public double toScreenY(double y) {
+		return (y - y0) * scale;
+	}
+
+	/**
+	 * Converts a window x coordinate to the world
+	 *
+	 * @param px
+	 *            The x coordinate in the window (pixels)
+	 *
+	 * @return The world x coordinate
+	 */
+	public double toWorldX(double px) {
+		return x0 + px / scale;
+	}
+
+	/**
+	 * Converts a window y coordinate to the world
+	 *
+	 * @param py
+	 *            The y coordinate in the window (pixels)
+	 *
+	 * @return The world y coordinate
+	 */
+	public double toWorldY(double py) {
+		return y0 + py / scale;
+	}
+
+	/**
+	 * Keeps the window inside the world
+	 */
+	private void clamp() {
+		double shown = size / scale;
+		x0 = Math.max(0, Math.min(Simulation.SPACE_SIZE - shown, x0));
+		y0 = Math.max(0, Math.min(Simulation.SPACE_SIZE - shown, y0));
+	}
+
+}
@@ -0,0 +1,135 @@
+package m13;
+
+import java.util.ArrayList;
+
+/**
+ * Finds the closest prey of a predator and the closest predator of a prey for
+ * the movement stage of an update, from the positions of the animals at the
+ * beginning of the stage.
+ *
+ * The movement used to compute the distance to every animal of the other
+ * species and to keep the closest one, which is then only followed or fled if
+ * it is within the vision range. Only the animals within sqrt(2) times the
+ * vision range need to be read for that : the closest animal is within the
+ * range only if its distance is less than that, and all the animals closer
+ * than that are found by a query of the SpatialIndex.
+ *
+ * Distances are not measured across the sides of the world, like the angle
+ * an animal then moves at, so an animal never sees across them (see
+ * BatchedWorlds). Near the sides this differs from the old search of the
+ * whole list : it kept the closest animal of the list, which could be seen
+ * across a side when no animal was closer without crossing it.
+ */
+public class Vision implements SpatialIndex.Visitor {
+
+	/** Largest vision range, twice the speed of a fed predator */
+	private static final double RANGE = 2 * Simulation.FED_SPEED * Math.sqrt(2);
+
+	private final SpatialIndex preys = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE, RANGE);
+	private final SpatialIndex predators = SpatialIndex.create(Simulation.SPATIAL_INDEX, Simulation.SPACE_SIZE,
+			RANGE);
+
+	/** Positions of the animals at the beginning of the stage, by id */
+	private double[] xs = new double[64];
+	private double[] ys = new double[64];
+
+	/** Position of the closest animal found, reused by every search */
+	private final Position closest = new Position();
+
+	/** State of the current search */
+	private double fromX;
+	private double fromY;
+	private double distMin;
+	private int found;
+
+	/**
+	 * Takes the positions of the animals before they move, leaving out the ones
+	 * marked as leaving
+	 *
+	 * @param elements
+	 *            The elements of the simulation
+	 *
+	 * @param size
+	 *            The number of elements to consider
+	 */
+	public void look(ArrayList<Element> elements, int size) {
+		if (xs.length < size) {
+			xs = new double[Math.max(size, 2 * xs.length)];
+			ys = new double[xs.length];
+		}
+		preys.clear();
+		predators.clear();
+		for (int i = 0; i < size; i++) {
+			Element e = elements.get(i);
+			if (e.leaving) {
+				continue;
+			}
+			xs[i] = e.getX();
+			ys[i] = e.getY();
+			if (e instanceof Prey) {
+				preys.insert(i, xs[i], ys[i]);
+			} else if (e instanceof Predator) {
+				predators.insert(i, xs[i], ys[i]);
+			}
+		}
+		preys.build();
+		predators.build();
+	}
+
+	/**
+	 * Finds the closest animal of a species, if it is within the vision range
+	 *
+	 * @param prey
+	 *            True to look for a prey, false for a predator
+	 *
+	 * @param x
+	 *            The x coordinate of the animal looking
+	 *
+	 * @param y
+	 *            The y coordinate of the animal looking
+	 *
+	 * @param visionRange
+	 *            Half of the side of the square the animal sees
+	 *
+	 * @return The position of the closest animal, valid until the next call, or
+	 *         null if it is not within the vision range
+	 */
+	public Position closest(boolean prey, double x, double y, double visionRange) {
+		this.fromX = x;
+		this.fromY = y;
+		double reach = visionRange * Math.sqrt(2);
+		distMin = reach;
+		found = -1;
+		(prey ? preys : predators).query(x, y, reach, this);
+		if (found < 0) {
+			return null;
+		}
+		if (Math.abs(xs[found] - x) > visionRange || Math.abs(ys[found] - y) > visionRange) {
+			return null;
+		}
+		closest.set(xs[found], ys[found]);
+		return closest;
+	}
+
+	/**
+	 * Returns the number of positions and index entries Vision can hold without
+	 * growing
+	 *
+	 * @return The capacity of the stage
+	 */
+	public int getCapacity() {
+		return xs.length + preys.getCapacity() + predators.getCapacity();
+	}
+
+	@Override
+	public void visit(int id) {
+		double dx = xs[id] - fromX;
+		double dy = ys[id] - fromY;
+		double dist = Math.sqrt(dx * dx + dy * dy);
+		if (dist < distMin || (dist == distMin && id < found)) {
+			distMin = dist;
+			found = id;
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package m13;
+
+/**
+ * Behavior of animals ignoring the others : they move randomly at the basic
+ * speed, half of it after eating a plant.
+ *
+ * @param <A>
+ *            The species moved
+ */
+public class WanderBehavior<A extends Animal> implements Behavior<A> {
+
+	@Override
+	public boolean move(A a, Vision vision) {
+		a.setSpeed(Simulation.SPEED);
+
+		if (a.getAtePlant()) {
+			a.setSpeed(a.getSpeed() / 2);
+			a.setAtePlant(false);
+		}
+
+		return a.moveBrownian(a.getSpeed());
+	}
+
+}